@@ -171,6 +171,15 @@ public class Client extends EventDispatcher
         return _clobj;
     }
 
+    /**
+     * Returns our most recently reported position in the server's admission line, or zero if the
+     * server has not put us in line.
+     */
+    public function getAdmissionPosition () :int
+    {
+        return _admissionPosition;
+    }
+
     public function getInvocationDirector () :InvocationDirector
     {
         return _invdir;
@@ -518,6 +527,17 @@ public class Client extends EventDispatcher
         }
     }
 
+    /**
+     * Called by the omgr when the server reports that it has put us in line to have our session
+     * started.
+     */
+    internal function gotAdmissionPosition (position :int) :void
+    {
+        log.info("Waiting to be admitted by server", "position", position);
+        _admissionPosition = position;
+        notifyObservers(ClientEvent.CLIENT_ADMISSION_QUEUED);
+    }
+
     internal function setOutgoingMessageThrottle (messagesPerSec :int) :void
     {
         _comm.postMessage(new ThrottleUpdatedMessage(messagesPerSec));
@@ -591,6 +611,9 @@ public class Client extends EventDispatcher
     /** The entity that manages our network communications. */
     protected var _comm :Communicator;
 
+    /** Our position in the server's admission line, if it has put us in one. */
+    protected var _admissionPosition :int;
+
     /** Our outgoing message throttle. */
     protected var _outThrottle :Throttle = new Throttle(DEFAULT_MSGS_PER_SECOND, 1000);
 
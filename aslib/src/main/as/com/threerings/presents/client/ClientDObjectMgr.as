@@ -36,6 +36,7 @@ import com.threerings.presents.dobj.DObjectManager;
 import com.threerings.presents.dobj.ObjectAccessError;
 import com.threerings.presents.dobj.ObjectDestroyedEvent;
 import com.threerings.presents.dobj.Subscriber;
+import com.threerings.presents.net.AdmissionQueueMessage;
 import com.threerings.presents.net.BootstrapNotification;
 import com.threerings.presents.net.CompoundDownstreamMessage;
 import com.threerings.presents.net.DownstreamMessage;
@@ -192,6 +193,9 @@ public class ClientDObjectMgr
         } else if (msg is PongResponse) {
             _client.gotPong(msg as PongResponse);
 
+        } else if (msg is AdmissionQueueMessage) {
+            _client.gotAdmissionPosition((msg as AdmissionQueueMessage).position);
+
         } else if (msg is UpdateThrottleMessage) {
             _client.setOutgoingMessageThrottle((msg as UpdateThrottleMessage).messagesPerSec);
         } else if (msg is CompoundDownstreamMessage) {
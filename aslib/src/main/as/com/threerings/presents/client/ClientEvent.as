@@ -34,6 +34,8 @@ public class ClientEvent extends Event
     public static const CLIENT_WILL_LOGOFF :String = "clientWillLogoff";
     public static const CLIENT_DID_LOGOFF :String = "clientDidLogoff";
     public static const CLIENT_DID_CLEAR :String = "clientDidClear";
+    /** Dispatched when the server reports our position in its admission line. */
+    public static const CLIENT_ADMISSION_QUEUED :String = "clientAdmissionQueued";
 
     public function ClientEvent (
         type :String, client :Client, isSwitching :Boolean, cause :Error = null)
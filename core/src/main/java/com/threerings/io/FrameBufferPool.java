@@ -0,0 +1,146 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Provides the buffers used by the {@link FramedInputStream}s that are serviced by a single
+ * thread: a read buffer, shared by all of the streams, into which network data is read and from
+ * which complete frames are served up directly; and pooled buffers, in a range of power-of-two
+ * size classes, in which a stream holds on to a frame that has only partially arrived. A stream
+ * thus only has storage of its own while it is waiting for the rest of a frame.
+ *
+ * <p><em>Note:</em> a pool must only be used by a single thread.
+ */
+public class FrameBufferPool
+{
+    /**
+     * Creates a pool with a shared read buffer of the specified size.
+     */
+    public FrameBufferPool (int readBufferSize)
+    {
+        _readBuffer = ByteBuffer.allocate(readBufferSize);
+        _free = new byte[CLASS_COUNT][][];
+        for (int ii = 0; ii < CLASS_COUNT; ii++) {
+            _free[ii] = new byte[Math.max(1, MAX_POOLED_BYTES >> (MIN_CLASS_SHIFT + ii))][];
+        }
+        _freeCounts = new int[CLASS_COUNT];
+    }
+
+    /**
+     * Returns the number of bytes currently held in the pool's free buffers.
+     */
+    public int getPooledBytes ()
+    {
+        int bytes = 0;
+        for (int ii = 0; ii < CLASS_COUNT; ii++) {
+            bytes += _freeCounts[ii] << (MIN_CLASS_SHIFT + ii);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the read buffer to the supplied stream, first having its previous user (if any)
+     * squirrel away any data it had yet to consume.
+     */
+    protected ByteBuffer claimReadBuffer (FramedInputStream stream)
+    {
+        if (_owner != stream) {
+            if (_owner != null) {
+                _owner.evictReadBuffer(_readBuffer.array());
+            }
+            _owner = stream;
+        }
+        return _readBuffer;
+    }
+
+    /**
+     * Returns the read buffer's contents if they belong to the supplied stream, null otherwise.
+     */
+    protected byte[] getReadBuffer (FramedInputStream stream)
+    {
+        return (_owner == stream) ? _readBuffer.array() : null;
+    }
+
+    /**
+     * Returns a buffer of at least the specified size.
+     */
+    protected byte[] acquire (int size)
+    {
+        int sclass = getSizeClass(size);
+        if (sclass >= CLASS_COUNT) {
+            return new byte[size];
+        }
+        int count = _freeCounts[sclass];
+        if (count > 0) {
+            byte[] buf = _free[sclass][--count];
+            _free[sclass][count] = null;
+            _freeCounts[sclass] = count;
+            return buf;
+        }
+        return new byte[1 << (MIN_CLASS_SHIFT + sclass)];
+    }
+
+    /**
+     * Returns a buffer obtained via {@link #acquire} to the pool.
+     */
+    protected void release (byte[] buf)
+    {
+        int sclass = getSizeClass(buf.length);
+        if (sclass < CLASS_COUNT && buf.length == (1 << (MIN_CLASS_SHIFT + sclass)) &&
+            _freeCounts[sclass] < _free[sclass].length) {
+            _free[sclass][_freeCounts[sclass]++] = buf;
+        }
+    }
+
+    /**
+     * Returns the index of the smallest size class that can hold the specified number of bytes.
+     */
+    protected static int getSizeClass (int size)
+    {
+        int sclass = 0;
+        while ((1 << (MIN_CLASS_SHIFT + sclass)) < size) {
+            sclass++;
+        }
+        return sclass;
+    }
+
+    /** The buffer into which network data is read. */
+    protected ByteBuffer _readBuffer;
+
+    /** The stream whose data is currently in the read buffer. */
+    protected FramedInputStream _owner;
+
+    /** Free buffers in each size class, and the number of free buffers in each class. */
+    protected byte[][][] _free;
+    protected int[] _freeCounts;
+
+    /** The smallest size class is 1K. */
+    protected static final int MIN_CLASS_SHIFT = 10;
+
+    /** Our size classes run from 1K to 512K, the largest frame we'll accept. */
+    protected static final int CLASS_COUNT = 10;
+
+    /** We keep at most this many bytes of free buffers in each size class. */
+    protected static final int MAX_POOLED_BYTES = 1024 * 1024;
+}
@@ -37,17 +37,31 @@ import java.nio.channels.ReadableByteChannel;
  * won't result in the entire stream being skewed due to the remainder of
  * the undecoded frame remaining in the input stream.
  *
- * <p>The framed input stream reads an entire frame worth of data into its
- * internal buffer when <code>readFrame()</code> is called. It then
- * behaves as if this is the only data available on the stream (meaning
- * that when the data in the frame is exhausted, it will behave as if the
- * end of the stream has been reached). The buffer can only contain a
- * single frame at a time, so any data left over from a previous frame
- * will disappear when <code>readFrame()</code> is called again.
+ * <p>The framed input stream reads an entire frame worth of data when
+ * <code>readFrame()</code> is called. It then behaves as if this is the
+ * only data available on the stream (meaning that when the data in the
+ * frame is exhausted, it will behave as if the end of the stream has been
+ * reached). Only a single frame is available at a time, so any data left
+ * over from a previous frame will disappear when <code>readFrame()</code>
+ * is called again.
+ *
+ * <p>Network data is read into a buffer obtained from a {@link
+ * FrameBufferPool}, which may be shared by all of the streams serviced by
+ * a thread, and complete frames are served up directly from that buffer.
+ * A stream only obtains a buffer of its own (from the pool's size classes)
+ * to hold a frame that has only partially arrived, and returns it to the
+ * pool as soon as that frame has been consumed.
+ *
+ * <p>A frame that is too large to be sent in one piece may be split by the
+ * sender into fragments (see {@link FramingOutputStream#fragment}), which
+ * may be interleaved with other frames. Fragments are appended to a
+ * reassembly buffer as they arrive and the reassembled frame is served up
+ * once its last fragment has been read; {@link #isReassembled} can be used
+ * to tell such frames apart from regular frames.
  *
  * <p><em>Note:</em> The framing input stream does not synchronize reads
  * from its internal buffer. It is intended to only be accessed from a
- * single thread.
+ * single thread (the thread that uses its buffer pool).
  *
  * <p>Implementation note: maybe this should derive from
  * <code>FilterInputStream</code> and be tied to a single
@@ -56,11 +70,30 @@ import java.nio.channels.ReadableByteChannel;
 public class FramedInputStream extends InputStream
 {
     /**
-     * Creates a new framed input stream.
+     * Creates a new framed input stream that does not accept fragmented frames.
      */
     public FramedInputStream ()
     {
-        _buffer = ByteBuffer.allocate(INITIAL_BUFFER_CAPACITY);
+        this(0);
+    }
+
+    /**
+     * Creates a new framed input stream that will reassemble fragmented frames of up to the
+     * specified size.
+     */
+    public FramedInputStream (int maxReassembledSize)
+    {
+        this(new FrameBufferPool(PRIVATE_READ_BUFFER_SIZE), maxReassembledSize);
+    }
+
+    /**
+     * Creates a new framed input stream that obtains its buffers from the supplied pool and will
+     * reassemble fragmented frames of up to the specified size.
+     */
+    public FramedInputStream (FrameBufferPool pool, int maxReassembledSize)
+    {
+        _pool = pool;
+        _maxReassembledSize = maxReassembledSize;
     }
 
     /**
@@ -79,107 +112,269 @@ public class FramedInputStream extends InputStream
     public boolean readFrame (ReadableByteChannel source)
         throws IOException
     {
-        // flush data from any previous frame from the buffer
-        if (_buffer.limit() == _length) {
-            // this will remove the old frame's bytes from the buffer,
-            // shift our old data to the start of the buffer, position the
-            // buffer appropriately for appending new data onto the end of
-            // our existing data, and set the limit to the capacity
-            _buffer.limit(_have);
-            _buffer.position(_length);
-            _buffer.compact();
-            _have -= _length;
-
-            // we may have picked up the next frame in a previous read, so
-            // try decoding the length straight away
-            _length = decodeLength();
-        }
-
-        // we may already have the next frame entirely in the buffer from
-        // a previous read
-        if (checkForCompleteFrame()) {
-            return true;
-        }
-
-        // read whatever data we can from the source
-        do {
-            int got = source.read(_buffer);
-            if (got == -1) {
-                throw new EOFException();
+        while (readRawFrame(source)) {
+            if ((_flags & FRAGMENT_FLAG) == 0) {
+                return true;
             }
-            _have += got;
 
-            if (_length == -1) {
-                // if we didn't already have our length, see if we now
-                // have enough data to obtain it
-                _length = decodeLength();
+            // append this fragment to our reassembly buffer and keep reading; the next frame (or
+            // fragment) may already be in the buffer
+            int size = _frameLimit - _framePos;
+            int needed = _assemblyEnd + size;
+            if (needed > _maxReassembledSize) {
+                throw new IOException("Fragmented frame exceeds maximum size " +
+                                      "[size=" + needed + ", max=" + _maxReassembledSize + "]");
             }
-
-            // if there's room remaining in the buffer, that means we've
-            // read all there is to read, so we can move on to inspecting
-            // what we've got
-            if (_buffer.remaining() > 0) {
-                break;
+            if (_assembly == null) {
+                _assembly = new byte[Math.max(size, INITIAL_ASSEMBLY_CAPACITY)];
+            } else if (_assembly.length < needed) {
+                byte[] newbuf = new byte[
+                    Math.min(Math.max(_assembly.length << 1, needed), _maxReassembledSize)];
+                System.arraycopy(_assembly, 0, newbuf, 0, _assemblyEnd);
+                _assembly = newbuf;
             }
+            System.arraycopy(_frame, _framePos, _assembly, _assemblyEnd, size);
+            _assemblyEnd = needed;
 
-            // additionally, if the buffer happened to be exactly as long
-            // as we needed, we need to break as well
-            if ((_length > 0) && (_have >= _length)) {
-                break;
+            if ((_flags & LAST_FRAGMENT_FLAG) != 0) {
+                consumeFrame();
+                serveFrame(ASSEMBLY, _assembly, 0, _assemblyEnd);
+                return true;
             }
+        }
+        return false;
+    }
 
-            // otherwise, we've filled up our buffer as a result of this
-            // read, expand it and try reading some more
-            ByteBuffer newbuf = ByteBuffer.allocate(_buffer.capacity() << 1);
-            newbuf.put((ByteBuffer)_buffer.flip());
-            _buffer = newbuf;
+    /**
+     * Returns true if the frame most recently returned by {@link #readFrame} was reassembled from
+     * fragments. The data in such frames is written independently of the data in regular frames,
+     * so it must be decoded independently as well.
+     */
+    public boolean isReassembled ()
+    {
+        return _source == ASSEMBLY;
+    }
 
-            // don't let things grow without bounds
-        } while (_buffer.capacity() < MAX_BUFFER_CAPACITY);
+    /**
+     * Reads a single frame (or fragment) from the provided channel, first discarding the frame
+     * that we last served up.
+     *
+     * @return true if the entire frame has been read, false if we have only a partial frame.
+     */
+    protected boolean readRawFrame (ReadableByteChannel source)
+        throws IOException
+    {
+        consumeFrame();
+
+        while (true) {
+            byte[] rbuf = _pool.getReadBuffer(this);
+            int rhave = (rbuf == null) ? 0 : _readEnd - _readPos;
+
+            if (_pending != null) {
+                // if we have a partial frame, we need to complete it before we can look at
+                // anything else, so top it up from the read buffer
+                int needed = getFrameSize(_pending, 0, _pendingEnd);
+                if (_pendingEnd < needed && rhave > 0) {
+                    int count = Math.min(needed - _pendingEnd, rhave);
+                    ensurePending(needed);
+                    System.arraycopy(rbuf, _readPos, _pending, _pendingEnd, count);
+                    _pendingEnd += count;
+                    _readPos += count;
+                    continue; // we may need to decode our length and go around again
+                }
+                if (_pendingEnd >= needed) {
+                    serveFrame(PENDING, _pending, 0, needed);
+                    return true;
+                }
+
+                // if we need more than will fit in the read buffer, read directly into our
+                // pending buffer rather than reading and then copying
+                if (needed - _pendingEnd >= _pool.claimReadBuffer(this).capacity()) {
+                    ensurePending(needed);
+                    int got = read(source, ByteBuffer.wrap(_pending, _pendingEnd,
+                                                           needed - _pendingEnd));
+                    if (got <= 0) {
+                        return false;
+                    }
+                    _pendingEnd += got;
+                    continue;
+                }
+
+            } else if (rhave > 0) {
+                // serve up a complete frame straight from the read buffer if we can
+                int needed = getFrameSize(rbuf, _readPos, rhave);
+                if (rhave >= needed) {
+                    serveFrame(READ, rbuf, _readPos, needed);
+                    return true;
+                }
+
+                // otherwise stash the partial frame so that we can read more data
+                _pending = _pool.acquire(needed);
+                System.arraycopy(rbuf, _readPos, _pending, 0, rhave);
+                _pendingEnd = rhave;
+                _readPos = _readEnd;
+                continue;
+            }
 
-        // finally check to see if there's a complete frame in the buffer
-        // and prepare to serve it up if there is
-        return checkForCompleteFrame();
+            // we've nothing left, so read more data into the read buffer
+            ByteBuffer buffer = _pool.claimReadBuffer(this);
+            buffer.clear();
+            _readPos = _readEnd = 0;
+            int got = read(source, buffer);
+            if (got <= 0) {
+                return false;
+            }
+            _readEnd = got;
+        }
     }
 
     /**
-     * Decodes and returns the length of the current frame from the buffer
-     * if possible. Returns -1 otherwise.
+     * Reads what data is available from the supplied channel into the supplied buffer.
+     *
+     * @return the number of bytes read, or zero if there was no data to be had (or we already
+     * know that there won't be, because our last read did not fill its buffer).
      */
-    protected final int decodeLength ()
+    protected int read (ReadableByteChannel source, ByteBuffer buffer)
+        throws IOException
+    {
+        // if our last read didn't fill its buffer, we've read everything that was available, so
+        // we don't go back to the well again until the next time we're called upon
+        if (_drained) {
+            _drained = false;
+            return 0;
+        }
+        int got = source.read(buffer);
+        if (got == -1) {
+            throw new EOFException();
+        }
+        _drained = (got > 0 && buffer.hasRemaining());
+        return got;
+    }
+
+    /**
+     * Returns the size of the frame at the specified position in the supplied buffer if the frame
+     * header is available, or the size of a frame header if not.
+     */
+    protected int getFrameSize (byte[] buf, int pos, int have)
+        throws IOException
     {
         // if we don't have enough bytes to determine our frame size, stop
-        // here and let the caller know that we're not ready
-        if (_have < HEADER_SIZE) {
-            return -1;
+        // here and let the caller know that we need at least a header
+        if (have < HEADER_SIZE) {
+            return HEADER_SIZE;
         }
 
-        // decode the frame length
-        _buffer.rewind();
-        int length = (_buffer.get() & 0xFF) << 24;
-        length += (_buffer.get() & 0xFF) << 16;
-        length += (_buffer.get() & 0xFF) << 8;
-        length += (_buffer.get() & 0xFF);
-        _buffer.position(_have);
+        // decode the frame length, the top bits of which may be used to flag fragments
+        int length = (buf[pos] & 0xFF) << 24;
+        length += (buf[pos+1] & 0xFF) << 16;
+        length += (buf[pos+2] & 0xFF) << 8;
+        length += (buf[pos+3] & 0xFF);
+        length &= ~FLAG_MASK;
 
+        if (length < HEADER_SIZE || length > MAX_BUFFER_CAPACITY) {
+            throw new IOException("Invalid frame length " + length);
+        }
         return length;
     }
 
     /**
-     * Returns true if a complete frame is in the buffer, false otherwise.
-     * If a complete frame is in the buffer, the buffer will be prepared
-     * to deliver that frame via our {@link InputStream} interface.
+     * Makes sure our pending buffer can hold at least the specified number of bytes.
      */
-    protected final boolean checkForCompleteFrame ()
+    protected void ensurePending (int size)
     {
-        if (_length == -1 || _have < _length) {
-            return false;
+        if (_pending.length < size) {
+            byte[] pending = _pool.acquire(size);
+            System.arraycopy(_pending, 0, pending, 0, _pendingEnd);
+            if (_frame == _pending) {
+                _frame = pending;
+            }
+            _pool.release(_pending);
+            _pending = pending;
         }
+    }
 
-        // prepare the buffer such that this frame can be read
-        _buffer.position(HEADER_SIZE);
-        _buffer.limit(_length);
-        return true;
+    /**
+     * Prepares to deliver the supplied frame via our {@link InputStream} interface.
+     */
+    protected void serveFrame (int source, byte[] buf, int offset, int length)
+    {
+        _source = source;
+        _frame = buf;
+        _frameStart = _framePos = offset + HEADER_SIZE;
+        _frameLimit = offset + length;
+        if (source == ASSEMBLY) {
+            _frameStart = _framePos = offset; // reassembled frames have no header
+        } else {
+            _flags = ((buf[offset] & 0xFF) << 24) & FLAG_MASK;
+        }
+    }
+
+    /**
+     * Discards the frame that we last served up, releasing any buffer that held it if we no
+     * longer need it.
+     */
+    protected void consumeFrame ()
+    {
+        switch (_source) {
+        case READ:
+            _readPos = _frameLimit;
+            break;
+
+        case PENDING:
+            _pendingEnd -= _frameLimit;
+            if (_pendingEnd > 0) {
+                System.arraycopy(_pending, _frameLimit, _pending, 0, _pendingEnd);
+            } else {
+                _pool.release(_pending);
+                _pending = null;
+            }
+            break;
+
+        case ASSEMBLY:
+            // release the reassembly buffer so that we only hang onto that memory while needed
+            _assembly = null;
+            _assemblyEnd = 0;
+            break;
+        }
+        _source = NONE;
+        _frame = EMPTY;
+        _frameStart = _framePos = _frameLimit = 0;
+    }
+
+    /**
+     * Called by our pool when another stream is about to read into the read buffer. Any of our
+     * data that remains in the buffer (including the frame we're serving, if we're serving one
+     * from there) is moved to our pending buffer.
+     */
+    protected void evictReadBuffer (byte[] rbuf)
+    {
+        int rpos = _readPos, rhave = _readEnd - _readPos;
+        _readPos = _readEnd = 0;
+        if (rhave <= 0) {
+            return;
+        }
+
+        // the data in the read buffer follows any data in our pending buffer
+        if (_pending == null) {
+            _pending = _pool.acquire(rhave);
+            _pendingEnd = 0;
+        }
+        int offset = _pendingEnd;
+        ensurePending(offset + rhave);
+        System.arraycopy(rbuf, rpos, _pending, offset, rhave);
+        _pendingEnd += rhave;
+
+        // if we were serving a frame from the read buffer, serve it from our pending buffer
+        // instead (we only serve from the read buffer when we have no pending data, so the frame
+        // will now be at the start of our pending buffer)
+        if (_source == READ) {
+            int shift = offset - rpos;
+            _source = PENDING;
+            _frame = _pending;
+            _frameStart += shift;
+            _framePos += shift;
+            _frameLimit += shift;
+        }
     }
 
     /**
@@ -196,7 +391,7 @@ public class FramedInputStream extends InputStream
     @Override
     public int read ()
     {
-        return (_buffer.remaining() > 0) ? (_buffer.get() & 0xFF) : -1;
+        return (_framePos < _frameLimit) ? (_frame[_framePos++] & 0xFF) : -1;
     }
 
     /**
@@ -234,11 +429,12 @@ public class FramedInputStream extends InputStream
 
         // trim the amount to be read to what is available; if they wanted
         // bytes and we have none, return -1 to indicate EOF
-        if ((len = Math.min(len, _buffer.remaining())) == 0) {
+        if ((len = Math.min(len, _frameLimit - _framePos)) == 0) {
             return -1;
         }
 
-        _buffer.get(b, off, len);
+        System.arraycopy(_frame, _framePos, b, off, len);
+        _framePos += len;
         return len;
     }
 
@@ -270,7 +466,7 @@ public class FramedInputStream extends InputStream
     @Override
     public int available ()
     {
-        return _buffer.remaining();
+        return _frameLimit - _framePos;
     }
 
     /**
@@ -298,26 +494,73 @@ public class FramedInputStream extends InputStream
     @Override
     public void reset ()
     {
-        // position our buffer at the beginning of the frame data
-        _buffer.position(HEADER_SIZE);
+        // position ourselves at the beginning of the frame data
+        _framePos = _frameStart;
     }
 
-    /** The buffer in which we maintain our frame data. */
-    protected ByteBuffer _buffer;
+    /** The pool from which we obtain our buffers. */
+    protected FrameBufferPool _pool;
+
+    /** The bounds of our unconsumed data in the pool's read buffer, if we own it. */
+    protected int _readPos, _readEnd;
+
+    /** Whether our last read from the network failed to fill its buffer. */
+    protected boolean _drained;
+
+    /** Holds a frame that has only partially arrived (and possibly data beyond it), or null. */
+    protected byte[] _pending;
+
+    /** The number of bytes of data in our pending buffer. */
+    protected int _pendingEnd;
+
+    /** The buffer in which we reassemble fragmented frames, or null. */
+    protected byte[] _assembly;
 
-    /** The length of the current frame being read. */
-    protected int _length = -1;
+    /** The number of bytes of data in our reassembly buffer. */
+    protected int _assemblyEnd;
 
-    /** The number of bytes total that we have in our buffer (these bytes
-     * may comprise more than one frame. */
-    protected int _have = 0;
+    /** The largest frame we'll reassemble from fragments. */
+    protected int _maxReassembledSize;
+
+    /** Where the frame we're serving up comes from: {@link #NONE}, {@link #READ}, {@link
+     * #PENDING} or {@link #ASSEMBLY}. */
+    protected int _source = NONE;
+
+    /** The buffer containing the frame we're serving up, its start, our current position in it,
+     * and its end. */
+    protected byte[] _frame = EMPTY;
+    protected int _frameStart, _framePos, _frameLimit;
+
+    /** The flags from the header of the frame we're serving up. */
+    protected int _flags;
+
+    /** Values for {@link #_source}. */
+    protected static final int NONE = 0, READ = 1, PENDING = 2, ASSEMBLY = 3;
+
+    /** Served up when we have no frame. */
+    protected static final byte[] EMPTY = new byte[0];
 
     /** The size of the frame header (a 32-bit integer). */
     protected static final int HEADER_SIZE = 4;
 
-    /** The default initial size of the internal buffer. */
-    protected static final int INITIAL_BUFFER_CAPACITY = 32;
+    /** The size of the read buffer used by streams that are not given a shared pool. */
+    protected static final int PRIVATE_READ_BUFFER_SIZE = 8 * 1024;
+
+    /** The initial size of our reassembly buffer. */
+    protected static final int INITIAL_ASSEMBLY_CAPACITY = 32;
 
     /** No need to get out of hand. */
     protected static final int MAX_BUFFER_CAPACITY = 512 * 1024;
+
+    /** A reasonable limit on the size of frames reassembled from fragments. */
+    public static final int MAX_REASSEMBLED_SIZE = 16 * 1024 * 1024;
+
+    /** Set in the frame header of a fragment of a larger frame. */
+    protected static final int FRAGMENT_FLAG = FramingOutputStream.FRAGMENT_FLAG;
+
+    /** Set in the frame header of the last fragment of a larger frame. */
+    protected static final int LAST_FRAGMENT_FLAG = FramingOutputStream.LAST_FRAGMENT_FLAG;
+
+    /** The bits of the frame header used for flags. */
+    protected static final int FLAG_MASK = FRAGMENT_FLAG | LAST_FRAGMENT_FLAG;
 }
@@ -21,8 +21,12 @@
 
 package com.threerings.io;
 
+import java.util.List;
+
 import java.nio.ByteBuffer;
 
+import com.google.common.collect.Lists;
+
 /**
  * The framing output stream accumulates output into a byte array just
  * like the byte array output stream, but can then be instructed to send
@@ -87,6 +91,41 @@ public class FramingOutputStream extends ByteBufferOutputStream
         _buffer.put(HEADER_PAD);
     }
 
+    /**
+     * Splits the supplied frame contents into a series of fragment frames, each of which is no
+     * larger than <code>maxFragment</code> bytes (including its header). The receiving {@link
+     * FramedInputStream} reassembles the fragments into a single frame, which allows a very large
+     * frame to be sent in pieces between other, regular frames. Only one fragmented frame may be
+     * in transit on a stream at any one time.
+     */
+    public static List<byte[]> fragment (byte[] data, int offset, int length, int maxFragment)
+    {
+        int chunk = maxFragment - HEADER_PAD.length;
+        List<byte[]> frags = Lists.newArrayListWithCapacity((length + chunk - 1) / chunk);
+        for (int pos = 0; pos < length; pos += chunk) {
+            int size = Math.min(chunk, length - pos);
+            int count = size + HEADER_PAD.length;
+            int header = count | FRAGMENT_FLAG;
+            if (pos + size == length) {
+                header |= LAST_FRAGMENT_FLAG;
+            }
+            byte[] frag = new byte[count];
+            frag[0] = (byte)((header >>> 24) & 0xFF);
+            frag[1] = (byte)((header >>> 16) & 0xFF);
+            frag[2] = (byte)((header >>>  8) & 0xFF);
+            frag[3] = (byte)((header >>>  0) & 0xFF);
+            System.arraycopy(data, offset + pos, frag, HEADER_PAD.length, size);
+            frags.add(frag);
+        }
+        return frags;
+    }
+
+    /** Set in the frame header of a fragment of a larger frame. */
+    public static final int FRAGMENT_FLAG = 1 << 31;
+
+    /** Set in the frame header of the last fragment of a larger frame. */
+    public static final int LAST_FRAGMENT_FLAG = 1 << 30;
+
     /** We pad the beginning of our buffer so that we can write the frame
      * length when the time comes. */
     protected static final byte[] HEADER_PAD = new byte[4];
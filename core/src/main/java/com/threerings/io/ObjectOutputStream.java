@@ -21,6 +21,7 @@
 
 package com.threerings.io;
 
+import java.util.Iterator;
 import java.util.Map;
 
 import java.io.ByteArrayOutputStream;
@@ -299,6 +300,52 @@ public class ObjectOutputStream extends DataOutputStream
         _streamer.writeObject(_current, this, false);
     }
 
+    /**
+     * Returns the number of class and intern mappings that have been created by this stream. If
+     * this does not change while writing an object, the data written for that object depends only
+     * on data written before it, and could thus be omitted from the stream without affecting the
+     * decoding of anything written after it.
+     */
+    public int getMappingCount ()
+    {
+        return _nextClassCode + _nextInternCode;
+    }
+
+    /**
+     * Returns a mark that can be passed to {@link #rewindMappings} to forget any class and intern
+     * mappings created after this call.
+     */
+    public int markMappings ()
+    {
+        return (_nextClassCode << 16) | _nextInternCode;
+    }
+
+    /**
+     * Forgets all class and intern mappings created since the supplied mark was obtained. This is
+     * used when data written to this stream is not going to be delivered after all, so that
+     * subsequently written data does not refer to mappings that the reader will never see.
+     */
+    public void rewindMappings (int mark)
+    {
+        short classCode = (short)(mark >>> 16), internCode = (short)(mark & 0xFFFF);
+        if (_classmap != null && _nextClassCode != classCode) {
+            for (Iterator<ClassMapping> iter = _classmap.values().iterator(); iter.hasNext(); ) {
+                if (iter.next().code >= classCode) {
+                    iter.remove();
+                }
+            }
+        }
+        if (_internmap != null && _nextInternCode != internCode) {
+            for (Iterator<Short> iter = _internmap.values().iterator(); iter.hasNext(); ) {
+                if (iter.next() >= internCode) {
+                    iter.remove();
+                }
+            }
+        }
+        _nextClassCode = classCode;
+        _nextInternCode = internCode;
+    }
+
     /**
      * Write a string encoded as real UTF-8 (rather than the modified format handled by
      * {link #writeUTF}).
@@ -44,6 +44,15 @@ public class ConMgrStats
     /** The overflow queue size. This is a snapshot at the time the stats are requested. */
     public int overQueueSize;
 
+    /** The number of connections with overflow queues. This is a snapshot at the time the stats
+     * are requested. */
+    public int overQueueCount;
+
+    /** The number of messages and bytes in the largest overflow queue on any single connection.
+     * These are snapshots at the time the stats are requested. */
+    public int maxOverQueueSize;
+    public long maxOverQueueBytes;
+
     /** The number of raw network events (sockets reporting ACCEPT or READY). */
     public long eventCount;
 
@@ -68,6 +77,58 @@ public class ConMgrStats
     /** The number of messages written since the server started up. */
     public long msgsOut;
 
+    /** The number of socket writes made since the server started up. Multiple messages may be
+     * written by a single (gathering) write. */
+    public long writes;
+
+    /** The number of queued messages dropped because their connection could not keep up. */
+    public long overflowDropped;
+
+    /** The number of queued messages discarded because a later message superseded them. */
+    public long overflowCoalesced;
+
+    /** The number of connections closed because they could not keep up with their messages. */
+    public int overflowDisconnects;
+
+    /** The total number of milliseconds that the messages written in each {@link
+     * OutgoingMessage} priority class spent waiting to be written. */
+    public long[] queueDelays = new long[OutgoingMessage.PRIORITY_CLASSES];
+
+    /** The number of messages written in each {@link OutgoingMessage} priority class. */
+    public long[] queueDelayed = new long[OutgoingMessage.PRIORITY_CLASSES];
+
+    /**
+     * Adds the counters and snapshot values from the supplied stats to our own (excepting
+     * {@link #connectionCount} which is tracked in aggregate). The per-connection maxima are
+     * combined by taking the larger of the two.
+     */
+    public void accumulate (ConMgrStats other)
+    {
+        handlerCount += other.handlerCount;
+        deathQueueSize += other.deathQueueSize;
+        outQueueSize += other.outQueueSize;
+        overQueueSize += other.overQueueSize;
+        overQueueCount += other.overQueueCount;
+        maxOverQueueSize = Math.max(maxOverQueueSize, other.maxOverQueueSize);
+        maxOverQueueBytes = Math.max(maxOverQueueBytes, other.maxOverQueueBytes);
+        eventCount += other.eventCount;
+        connects += other.connects;
+        disconnects += other.disconnects;
+        closes += other.closes;
+        bytesIn += other.bytesIn;
+        bytesOut += other.bytesOut;
+        msgsIn += other.msgsIn;
+        msgsOut += other.msgsOut;
+        writes += other.writes;
+        overflowDropped += other.overflowDropped;
+        overflowCoalesced += other.overflowCoalesced;
+        overflowDisconnects += other.overflowDisconnects;
+        for (int ii = 0; ii < queueDelays.length; ii++) {
+            queueDelays[ii] += other.queueDelays[ii];
+            queueDelayed[ii] += other.queueDelayed[ii];
+        }
+    }
+
     @Override
     public String toString ()
     {
@@ -78,7 +139,10 @@ public class ConMgrStats
     public ConMgrStats clone ()
     {
         try {
-            return (ConMgrStats)super.clone();
+            ConMgrStats stats = (ConMgrStats)super.clone();
+            stats.queueDelays = queueDelays.clone();
+            stats.queueDelayed = queueDelayed.clone();
+            return stats;
         } catch (CloneNotSupportedException cnse) {
             throw new AssertionError(cnse);
         }
@@ -23,6 +23,8 @@ package com.threerings.nio.conman;
 
 import static com.threerings.NaryaLog.log;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.channels.SelectionKey;
@@ -48,9 +50,28 @@ public abstract class Connection implements NetEventHandler
         throws IOException
     {
         _cmgr = cmgr;
+        _loop = cmgr.getPrimaryLoop();
         _channel = channel;
         _lastEvent = createStamp;
-        _connectionId = ++_lastConnectionId;
+        _connectionId = _lastConnectionId.incrementAndGet();
+    }
+
+    /**
+     * Returns the I/O loop that reads from and writes to this connection.
+     */
+    public IOLoop getLoop ()
+    {
+        return _loop;
+    }
+
+    /**
+     * Assigns this connection to an I/O loop. Connections start out on their connection manager's
+     * primary loop; this should only be called by the connection manager before the connection is
+     * registered for network events.
+     */
+    public void setLoop (IOLoop loop)
+    {
+        _loop = loop;
     }
 
     /**
@@ -61,6 +82,14 @@ public abstract class Connection implements NetEventHandler
         return _connectionId;
     }
 
+    /**
+     * Returns the time at which we last saw network activity on this connection.
+     */
+    public long getLastEvent ()
+    {
+        return _lastEvent;
+    }
+
     /**
      * Returns the non-blocking socket object used to construct this connection.
      */
@@ -78,6 +107,60 @@ public abstract class Connection implements NetEventHandler
         return (_channel == null) ? null : _channel.socket().getInetAddress();
     }
 
+    /**
+     * Limits the rate at which data is written to this connection. Messages that would exceed the
+     * limit wait in the connection's overflow queue, where higher priority messages may overtake
+     * them. This may be called from any thread.
+     *
+     * @param bytesPerSecond the maximum sustained write rate, or zero for no limit.
+     */
+    public void setBandwidthLimit (int bytesPerSecond)
+    {
+        _bwLimit = bytesPerSecond;
+    }
+
+    /**
+     * Returns the rate to which writes to this connection are limited, or zero.
+     */
+    public int getBandwidthLimit ()
+    {
+        return _bwLimit;
+    }
+
+    /**
+     * Returns the number of bytes that may be written to this connection right now without
+     * exceeding its bandwidth limit. This must only be called on the thread of our I/O loop.
+     */
+    public long getWriteAllowance (long now)
+    {
+        int limit = _bwLimit;
+        if (limit <= 0) {
+            return Long.MAX_VALUE;
+        }
+        // we allow up to a second's worth of data to accumulate, and start out with that much
+        if (_bwStamp == 0L) {
+            _bwAllowance = limit;
+            _bwStamp = now;
+        } else if (now > _bwStamp) {
+            // clamp the elapsed time so that a long idle period can't overflow our arithmetic
+            long elapsed = Math.min(now - _bwStamp, 1000L);
+            _bwAllowance = Math.min(limit, _bwAllowance + elapsed * limit / 1000);
+            _bwStamp = now;
+        }
+        return _bwAllowance;
+    }
+
+    /**
+     * Notes that the specified number of bytes were written to this connection. This must only be
+     * called on the thread of our I/O loop.
+     */
+    public void noteWritten (long bytes)
+    {
+        if (_bwLimit > 0) {
+            _bwAllowance -= bytes;
+        }
+    }
+
     /**
      * Returns true if this connection is closed.
      */
@@ -88,7 +171,7 @@ public abstract class Connection implements NetEventHandler
 
     /**
      * Closes this connection and unregisters it from the connection manager. This should only be
-     * called from the conmgr thread.
+     * called from the thread of this connection's I/O loop.
      */
     public void close ()
     {
@@ -190,12 +273,20 @@ public abstract class Connection implements NetEventHandler
     }
 
     protected ConnectionManager _cmgr;
+    protected IOLoop _loop;
     protected SocketChannel _channel;
 
     protected long _lastEvent;
 
+    /** Our bandwidth limit in bytes per second, or zero. */
+    protected volatile int _bwLimit;
+
+    /** The number of bytes we may currently write without exceeding our bandwidth limit, and the
+     * time at which it was last computed. */
+    protected long _bwAllowance, _bwStamp;
+
     protected int _connectionId;
 
     /** The last connection id assigned. */
-    protected static int _lastConnectionId;
+    protected static AtomicInteger _lastConnectionId = new AtomicInteger();
 }
@@ -21,29 +21,22 @@
 
 package com.threerings.nio.conman;
 
-import java.util.ArrayList;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
-import com.samskivert.util.IntMap;
-import com.samskivert.util.IntMaps;
 import com.samskivert.util.Lifecycle;
 import com.samskivert.util.LoopingThread;
 import com.samskivert.util.Queue;
-import com.samskivert.util.Tuple;
-
-import com.threerings.nio.SelectorIterable;
 
 import static com.threerings.NaryaLog.log;
 
@@ -54,7 +47,13 @@ import static com.threerings.NaryaLog.log;
  *
  * ConnectionManager doesn't directly accept TCP connections; it expects
  * {@link ServerSocketChannelAcceptor} or an external entity to do so and call its
- * {@link #handleAcceptedSocket} method
+ * {@link #handleAcceptedSocket} method.<p>
+ *
+ * The actual network I/O is done by one or more {@link IOLoop}s. The connection manager thread
+ * runs the primary loop, which services acceptors and any other registered handlers along with
+ * its share of connections. If <code>presents.net.ioThreads</code> is greater than one, additional
+ * loops are started on threads of their own and accepted connections are spread across all of the
+ * loops, either round-robin or by assigning each to the least loaded loop.
  */
 public abstract class ConnectionManager extends LoopingThread
     implements Lifecycle.ShutdownComponent
@@ -67,8 +66,9 @@ public abstract class ConnectionManager extends LoopingThread
     {
         super("ConnectionManager");
         cycle.addComponent(this);
-        _selector = Selector.open();
         _idleTime = idleTime;
+        _primary = new IOLoop(this, 0);
+        _loops = new IOLoop[] { _primary };
     }
 
     /**
@@ -83,35 +83,78 @@ public abstract class ConnectionManager extends LoopingThread
     }
 
     /**
-     * Returns our current runtime statistics. <em>Note:</em> don't call this method <em>too</em>
-     * frequently as it is synchronized and will contend with the network I/O thread.
+     * Returns our current runtime statistics, aggregated across all of our I/O loops.
      */
     public synchronized ConMgrStats getStats ()
     {
         // fill in our snapshot values
         _stats.connectionCount = _connections.size();
-        _stats.handlerCount = _handlers.size();
-        _stats.deathQueueSize = _deathq.size();
-        _stats.outQueueSize = _outq.size();
-        if (_oflowqs.size() > 0) {
-            _stats.overQueueSize = 0;
-            for (OverflowQueue oq : _oflowqs.values()) {
-                _stats.overQueueSize += oq.size();
-            }
+        ConMgrStats stats = _stats.clone();
+        for (IOLoop loop : _loops) {
+            loop.accumulateStats(stats);
         }
-        return _stats.clone();
+        return stats;
+    }
+
+    /**
+     * Returns the primary I/O loop, which is run by the connection manager thread.
+     */
+    public IOLoop getPrimaryLoop ()
+    {
+        return _primary;
+    }
+
+    /**
+     * Returns the time after which a connection with no network traffic is deemed idle.
+     */
+    public long getIdleTime ()
+    {
+        return _idleTime;
+    }
+
+    /**
+     * Returns the policy used to deal with connections whose overflow queues exceed their limits.
+     */
+    public OverflowPolicy getOverflowPolicy ()
+    {
+        return _overflowPolicy;
+    }
+
+    /**
+     * Configures the policy used to deal with connections whose overflow queues exceed their
+     * limits. This should be called before the connection manager is started.
+     */
+    public void setOverflowPolicy (OverflowPolicy policy)
+    {
+        _overflowPolicy = policy;
+    }
+
+    /**
+     * Returns the maximum number of messages that may be queued up for a connection that is not
+     * keeping up with its outgoing traffic before our overflow policy is applied.
+     */
+    public int getMaxOverflowMessages ()
+    {
+        return _maxOverflowMessages;
+    }
+
+    /**
+     * Returns the maximum number of bytes that may be queued up for a connection that is not
+     * keeping up with its outgoing traffic before our overflow policy is applied.
+     */
+    public long getMaxOverflowBytes ()
+    {
+        return _maxOverflowBytes;
     }
 
     /**
-     * Registers <code>ops</code> on <code>chan</code> on this manager's selector and hooks
+     * Registers <code>ops</code> on <code>chan</code> on the primary loop's selector and hooks
      * <code>netEventHandler</code> up to receive events whenever the selection occurs.
      */
     public SelectionKey register (SelectableChannel chan, int ops, NetEventHandler netEventHandler)
         throws IOException
     {
-        SelectionKey key = chan.register(_selector, ops);
-        _handlers.put(key, netEventHandler);
-        return key;
+        return _primary.register(chan, ops, netEventHandler);
     }
 
     /**
@@ -125,26 +168,38 @@ public abstract class ConnectionManager extends LoopingThread
     }
 
     /**
-     * Queues a connection up to be closed on the conmgr thread.
+     * Queues a connection up to be closed on the thread of its I/O loop.
      */
     public void closeConnection (Connection conn)
     {
-        _deathq.append(conn);
+        conn.getLoop().closeConnection(conn);
     }
 
     @Override // from LoopingThread
     protected void willStart ()
     {
         super.willStart();
+        _primary.willStart(this, _selectLoopTime);
 
-        _selectorSelector = new SelectorIterable(
-            _selector, _selectLoopTime, new SelectorIterable.SelectFailureHandler() {
-            public void handleSelectFailure (Exception e) {
-                log.error("One of our selectors crapped out completely.  " +
-                          "Shutting down the connection manager.", e);
-                shutdown();
+        // create and start up any additional I/O loops
+        if (_ioThreads > 1) {
+            List<IOLoop> loops = Lists.newArrayList(_primary);
+            for (int ii = 1; ii < _ioThreads; ii++) {
+                try {
+                    loops.add(new IOLoop(this, ii));
+                } catch (IOException ioe) {
+                    log.warning("Failed to create I/O loop, using fewer loops.", "index", ii, ioe);
+                    break;
+                }
+            }
+            _runners = new IOLoopThread[loops.size()-1];
+            for (int ii = 1; ii < loops.size(); ii++) {
+                (_runners[ii-1] = new IOLoopThread(loops.get(ii))).start();
             }
-        });
+            _loops = loops.toArray(new IOLoop[loops.size()]);
+            log.info("Started connection manager I/O loops", "count", _loops.length,
+                     "assignment", _assignByLoad ? "least-loaded" : "round-robin");
+        }
     }
 
     @Override // from LoopingThread
@@ -159,24 +214,9 @@ public abstract class ConnectionManager extends LoopingThread
             _lastDebugStamp = iterStamp;
         }
 
-        // close any connections that have been queued up to die
-        Connection dconn;
-        while ((dconn = _deathq.getNonBlocking()) != null) {
-            // it's possible that we caught an EOF trying to read from this connection even after
-            // it was queued up for death, so let's avoid trying to close it twice
-            if (!dconn.isClosed()) {
-                dconn.close();
-            }
-        }
-
-        // close connections that have had no network traffic for too long
-        long idleStamp = iterStamp - _idleTime;
-        for (NetEventHandler handler : _handlers.values()) {
-            if (handler.checkIdle(idleStamp)) {
-                // this will queue the connection for closure on our next tick
-                handler.becameIdle();
-            }
-        }
+        // run queued tasks, close any connections that have been queued up to die and those that
+        // have had no network traffic for too long
+        _primary.processQueued(iterStamp);
 
         // send any messages that are waiting on the outgoing overflow and message queues
         sendOutgoingMessages(iterStamp);
@@ -185,15 +225,25 @@ public abstract class ConnectionManager extends LoopingThread
         // isRunning() is true); this is because we stick around until the dobject manager is
         // totally done so that we can send shutdown-related events out to our clients; during
         // those last moments we don't want to accept new connections or read any incoming messages
-        if (super.isRunning()) {
+        if (isReadingIncoming()) {
             handleIncoming(iterStamp);
         }
+        _primary.updateSnapshot();
 
         if (DEBUG_REPORT && generateDebugReport) {
             log.info("CONMGR status " + getStats());
         }
     }
 
+    /**
+     * Returns true if we're still accepting connections and reading incoming data, false if we're
+     * shutting down and only sticking around to deliver outgoing messages.
+     */
+    protected boolean isReadingIncoming ()
+    {
+        return super.isRunning();
+    }
+
     protected void handleIncoming (long iterStamp)
     {
         SocketChannel accepted;
@@ -214,13 +264,12 @@ public abstract class ConnectionManager extends LoopingThread
     {
         try {
             // create a new authing connection object to manage the authentication of this client
-            // connection and register it with our selection set
+            // connection and hand it off to an I/O loop to be registered with its selection set
             channel.configureBlocking(false);
             conn.init(this, channel, System.currentTimeMillis());
-            conn.selkey = register(channel, SelectionKey.OP_READ, conn);
-            synchronized (this) {
-                _stats.connects++;
-            }
+            IOLoop loop = selectLoop();
+            conn.setLoop(loop);
+            loop.adopt(conn);
 
         } catch (IOException ioe) {
             // no need to generate a warning because this happens in the normal course of events
@@ -235,185 +284,58 @@ public abstract class ConnectionManager extends LoopingThread
     }
 
     /**
-     * Checks for any network events on our set of sockets and passes those events down to their
-     * associated {@link NetEventHandler}s for processing.
+     * Selects the I/O loop to which a newly accepted connection will be assigned.
      */
-    protected void processIncomingEvents (long iterStamp)
+    protected IOLoop selectLoop ()
     {
-        // process those events
-        long bytesIn = 0, msgsIn = 0, eventCount = 0;
-        for (SelectionKey selkey : _selectorSelector) {
-            eventCount++;
-            NetEventHandler handler = null;
-            try {
-                handler = _handlers.get(selkey);
-                if (handler == null) {
-                    log.warning("Received network event for unknown handler",
-                                "key", selkey, "ops", selkey.readyOps());
-                    // request that this key be removed from our selection set, which normally
-                    // happens automatically but for some reason didn't
-                    selkey.cancel();
-                    continue;
-                }
-
-//                 log.info("Got event", "selkey", selkey, "handler", handler);
-
-                int got = handler.handleEvent(iterStamp);
-                if (got != 0) {
-                    bytesIn += got;
-                    // we know that the handlers only report having read bytes when they have a
-                    // whole message, so we can count thusly
-                    msgsIn++;
-                }
-
-            } catch (Exception e) {
-                log.warning("Error processing network data: " + handler + ".", e);
-
-                // if you freak out here, you go straight in the can
-                if (handler != null && handler instanceof Connection) {
-                    closeConnection((Connection)handler);
-                }
+        IOLoop[] loops = _loops;
+        if (loops.length == 1) {
+            return loops[0];
+        }
+        if (!_assignByLoad) {
+            return loops[(_nextLoop++ & Integer.MAX_VALUE) % loops.length];
+        }
+        IOLoop best = loops[0];
+        for (int ii = 1; ii < loops.length; ii++) {
+            if (loops[ii].getLoad() < best.getLoad()) {
+                best = loops[ii];
             }
         }
+        return best;
+    }
 
-        synchronized (this) {
-            // update our stats
-            _stats.eventCount += eventCount;
-            _stats.bytesIn += bytesIn;
-            _stats.msgsIn += msgsIn;
-        }
+    /**
+     * Checks for any network events on the primary loop's sockets and passes those events down to
+     * their associated {@link NetEventHandler}s for processing.
+     */
+    protected void processIncomingEvents (long iterStamp)
+    {
+        _primary.processIncomingEvents(iterStamp);
     }
 
     /**
-     * Writes all queued overflow and normal messages to their respective sockets. Connections that
-     * already have established overflow queues will have their messages appended to their overflow
-     * queue instead so that they are delivered in the proper order.
+     * Writes all queued overflow and normal messages for the primary loop's connections. Other
+     * loops send their own messages on their own threads.
      */
     protected void sendOutgoingMessages (long iterStamp)
     {
-        // first attempt to send any messages waiting on the overflow queues
-        if (_oflowqs.size() > 0) {
-            // do this on a snapshot as a network failure writing oflow queue messages will result
-            // in the queue being removed from _oflowqs via the connectionFailed() code path
-            for (OverflowQueue oq : _oflowqs.values().toArray(new OverflowQueue[_oflowqs.size()])) {
-                try {
-                    // try writing the messages in this overflow queue
-                    if (oq.writeOverflowMessages(iterStamp)) {
-                        // if they were all written, we can remove it
-                        _oflowqs.remove(oq.conn);
-                    }
-
-                } catch (IOException ioe) {
-                    oq.conn.networkFailure(ioe);
-                }
-            }
-        }
-
-        // then send any new messages
-        Tuple<Connection, byte[]> tup;
-        while ((tup = _outq.getNonBlocking()) != null) {
-            Connection conn = tup.left;
-
-            // if an overflow queue exists for this client, go ahead and slap the message on there
-            // because we can't send it until all other messages in their queue have gone out
-            OverflowQueue oqueue = _oflowqs.get(conn);
-            if (oqueue != null) {
-                int size = oqueue.size();
-                if ((size > 500) && (size % 50 == 0)) {
-                    log.warning("Aiya, big overflow queue for " + conn + "", "size", size,
-                                "bytes", tup.right.length);
-                }
-                oqueue.add(tup.right);
-                continue;
-            }
-
-            // otherwise write the message out to the client directly
-            writeMessage(conn, tup.right, _oflowHandler);
-        }
+        _primary.sendOutgoingMessages(iterStamp);
     }
 
     /**
-     * Writes a message out to a connection, passing the buck to the partial write handler if the
-     * entire message could not be written.
-     *
-     * @return true if the message was fully written, false if it was partially written (in which
-     * case the partial message handler will have been invoked).
+     * Queues up a message to be written to the supplied connection by its I/O loop.
      */
-    protected boolean writeMessage (Connection conn, byte[] data, PartialWriteHandler pwh)
+    protected void postMessage (Connection conn, byte[] data)
     {
-        // if the connection to which this message is destined is closed, drop the message and move
-        // along quietly; this is perfectly legal, a user can logoff whenever they like, even if we
-        // still have things to tell them; such is life in a fully asynchronous distributed system
-        if (conn.isClosed()) {
-            return true;
-        }
-
-        // if this is an asynchronous close request, queue the connection up for death
-        if (data == ASYNC_CLOSE_REQUEST) {
-            closeConnection(conn);
-            return true;
-        }
-
-        // sanity check the message size
-        if (data.length > 1024 * 1024) {
-            log.warning("Refusing to write very large message", "conn", conn, "size", data.length);
-            return true;
-        }
-
-        // expand our output buffer if needed to accomodate this message
-        if (data.length > _outbuf.capacity()) {
-            // increase the buffer size in large increments
-            int ncapacity = Math.max(_outbuf.capacity() << 1, data.length);
-            log.info("Expanding output buffer size", "nsize", ncapacity);
-            _outbuf = ByteBuffer.allocateDirect(ncapacity);
-        }
-
-        boolean fully = true;
-        try {
-//             log.info("Writing " + data.length + " byte message to " + conn + ".");
-
-            // first copy the data into our "direct" output buffer
-            _outbuf.put(data);
-            _outbuf.flip();
-
-            // if the connection to which we're writing is not yet ready, the whole message is
-            // "leftover", so we pass it to the partial write handler
-            SocketChannel sochan = conn.getChannel();
-            if (sochan.isConnectionPending()) {
-                pwh.handlePartialWrite(conn, _outbuf);
-                return false;
-            }
-
-            // then write the data to the socket
-            int wrote = sochan.write(_outbuf);
-            noteWrite(1, wrote);
-
-            // if we didn't write our entire message, deal with the leftover bytes
-            if (_outbuf.remaining() > 0) {
-                fully = false;
-                pwh.handlePartialWrite(conn, _outbuf);
-            }
-
-        } catch (NotYetConnectedException nyce) {
-            // this should be caught by isConnectionPending() but awesomely it's not
-            pwh.handlePartialWrite(conn, _outbuf);
-            return false;
-
-        } catch (IOException ioe) {
-            conn.networkFailure(ioe); // instruct the connection to deal with its failure
-
-        } finally {
-            _outbuf.clear();
-        }
-
-        return fully;
+        postMessage(new OutgoingMessage(conn, data));
     }
 
-    /** Called by {@link #writeMessage} and friends when they write data over the network. */
-    protected synchronized void noteWrite (int msgs, int bytes)
+    /**
+     * Queues up a message to be written to its connection by that connection's I/O loop.
+     */
+    protected void postMessage (OutgoingMessage msg)
     {
-        _stats.msgsOut += msgs;
-        _stats.bytesOut += bytes;
+        msg.conn.getLoop().postMessage(msg);
     }
 
     /**
@@ -426,37 +348,35 @@ public abstract class ConnectionManager extends LoopingThread
      */
     protected void postAsyncClose (Connection conn)
     {
-        _outq.append(Tuple.newTuple(conn, ASYNC_CLOSE_REQUEST));
+        postMessage(conn, ASYNC_CLOSE_REQUEST);
     }
 
     /**
-     * Called by a connection if it experiences a network failure.
+     * Called by a connection if it experiences a network failure. This is called on the thread of
+     * the connection's I/O loop.
      */
     protected void connectionFailed (Connection conn, IOException ioe)
     {
         // remove this connection from our mappings (it is automatically removed from the Selector
         // when the socket is closed)
-        _handlers.remove(conn.selkey);
+        IOLoop loop = conn.getLoop();
+        loop.connectionRemoved(conn);
         _connections.remove(conn.getConnectionId());
-        _oflowqs.remove(conn);
-        synchronized (this) {
-            _stats.disconnects++;
-        }
+        loop._stats.disconnects++;
     }
 
     /**
-     * Called by a connection when it discovers that it's closed.
+     * Called by a connection when it discovers that it's closed. This is called on the thread of
+     * the connection's I/O loop.
      */
     protected void connectionClosed (Connection conn)
     {
         // remove this connection from our mappings (it is automatically removed from the Selector
         // when the socket is closed)
-        _handlers.remove(conn.selkey);
+        IOLoop loop = conn.getLoop();
+        loop.connectionRemoved(conn);
         _connections.remove(conn.getConnectionId());
-        _oflowqs.remove(conn);
-        synchronized (this) {
-            _stats.closes++;
-        }
+        loop._stats.closes++;
     }
 
     @Override
@@ -473,8 +393,18 @@ public abstract class ConnectionManager extends LoopingThread
         sendOutgoingMessages(System.currentTimeMillis());
 
         // report if there's anything left on the outgoing message queue
-        if (_outq.size() > 0) {
-            log.warning("Connection Manager failed to deliver " + _outq.size() + " message(s).");
+        int undelivered = _primary.getOutgoingQueueSize();
+        if (undelivered > 0) {
+            log.warning("Connection Manager failed to deliver " + undelivered + " message(s).");
+        }
+
+        // our other I/O loops will make their own final attempts and then exit
+        if (_runners != null) {
+            for (IOLoopThread runner : _runners) {
+                if (runner != null) {
+                    runner.shutdown();
+                }
+            }
         }
 
         // run our on-exit handler if we have one
@@ -487,139 +417,75 @@ public abstract class ConnectionManager extends LoopingThread
         }
     }
 
-    /** Used to handle partial writes in {@link ConnectionManager#writeMessage}. */
-    protected static interface PartialWriteHandler
-    {
-        void handlePartialWrite (Connection conn, ByteBuffer buffer);
-    }
-
     /**
-     * Used to handle messages for a client whose network buffer has filled up because their
-     * outgoing network buffer has filled up. This can happen if the client receives many messages
-     * in rapid succession or if they receive very large messages or if they become unresponsive
-     * and stop acknowledging network packets sent by the server. We want to accomodate the first
-     * to circumstances and recognize the third as quickly as possible so that we can disconnect
-     * the client and propagate that information up to the higher levels so that further messages
-     * are not queued up for the unresponsive client.
+     * Runs one of our non-primary I/O loops.
      */
-    protected class OverflowQueue extends ArrayList<byte[]>
-        implements PartialWriteHandler
+    protected class IOLoopThread extends LoopingThread
     {
-        /** The connection for which we're managing overflow. */
-        public Connection conn;
-
-        /**
-         * Creates a new overflow queue for the supplied connection and with the supplied initial
-         * partial message.
-         */
-        public OverflowQueue (Connection conn, ByteBuffer message)
+        public IOLoopThread (IOLoop loop)
         {
-            this.conn = conn;
-            // set up our initial _partial buffer
-            handlePartialWrite(conn, message);
+            super("ConnectionManager-io-" + loop.getIndex());
+            _loop = loop;
         }
 
-        /**
-         * Called each time through the {@link ConnectionManager#iterate} loop, this attempts to
-         * send any remaining partial message and all subsequent messages in the overflow queue.
-         *
-         * @return true if all messages in this queue were successfully sent, false if there
-         * remains data to be sent on the next loop.
-         *
-         * @throws IOException if an error occurs writing data to the connection or if we have been
-         * unable to write any data to the connection for ten seconds.
-         */
-        public boolean writeOverflowMessages (long iterStamp)
-            throws IOException
+        @Override // from LoopingThread
+        protected void willStart ()
         {
-            // write any partial message if we have one
-            if (_partial != null) {
-                // if our outgoing channel is gone or closed, then bail immediately
-                SocketChannel sochan = conn.getChannel();
-                if (sochan == null || (!sochan.isConnected() && !sochan.isConnectionPending())) {
-                    throw new IOException("Connection unavailable for overflow write " + sochan);
-                }
-                if (sochan.isConnectionPending()) {
-                    return false; // not ready to write to this connection yet
-                }
-
-                // write all we can of our partial buffer
-                int wrote = sochan.write(_partial);
-                noteWrite(0, wrote);
-
-                if (_partial.remaining() == 0) {
-                    _partial = null;
-                    _partials++;
-                } else {
-//                     log.info("Still going", "conn", conn, "wrote", wrote,
-//                              "remain", _partial.remaining());
-                    return false;
-                }
-            }
-
-            while (size() > 0) {
-                byte[] data = remove(0);
-                // if any of these messages are partially written, we have to stop and wait for the
-                // next tick
-                _msgs++;
-                if (!writeMessage(conn, data, this)) {
-                    return false;
-                }
-            }
+            super.willStart();
+            _loop.willStart(this, _selectLoopTime);
+        }
 
-            return true;
+        @Override // from LoopingThread
+        protected void iterate ()
+        {
+            _loop.iterate(System.currentTimeMillis());
         }
 
-        // documentation inherited
-        public void handlePartialWrite (Connection wconn, ByteBuffer buffer)
+        @Override // from LoopingThread
+        protected void kick ()
         {
-            // set up our _partial buffer
-            _partial = ByteBuffer.allocateDirect(buffer.remaining());
-            _partial.put(buffer);
-            _partial.flip();
+            _loop.getSelector().wakeup();
         }
 
-        @Override
-        public String toString ()
+        @Override // from LoopingThread
+        protected void handleIterateFailure (Exception e)
         {
-            return "[conn=" + conn + ", partials=" + _partials + ", msgs=" + _msgs + "]";
+            log.warning("I/O loop uncaught exception.", "loop", _loop, e);
         }
 
-        /** The remains of a message that was only partially written on its first attempt. */
-        protected ByteBuffer _partial;
+        @Override // from LoopingThread
+        protected void didShutdown ()
+        {
+            // take one last crack at the outgoing message queue
+            _loop.sendOutgoingMessages(System.currentTimeMillis());
+            int undelivered = _loop.getOutgoingQueueSize();
+            if (undelivered > 0) {
+                log.warning("I/O loop failed to deliver messages", "loop", _loop,
+                            "count", undelivered);
+            }
+        }
 
-        /** A couple of counters. */
-        protected int _msgs, _partials;
+        protected final IOLoop _loop;
     }
 
-    /** Used to create an overflow queue on the first partial write. */
-    protected PartialWriteHandler _oflowHandler = new PartialWriteHandler() {
-        public void handlePartialWrite (Connection conn, ByteBuffer msgbuf) {
-            // if we couldn't write all the data for this message, we'll need to establish an
-            // overflow queue
-            _oflowqs.put(conn, new OverflowQueue(conn, msgbuf));
-        }
-    };
+    /** The I/O loop run by the connection manager thread. */
+    protected final IOLoop _primary;
 
-    protected Selector _selector;
-    protected SelectorIterable _selectorSelector;
+    /** All of our I/O loops, the primary loop first. */
+    protected volatile IOLoop[] _loops;
 
-    /** Maps selection keys to network event handlers. */
-    protected Map<SelectionKey, NetEventHandler> _handlers = Maps.newHashMap();
+    /** The threads running our non-primary I/O loops. */
+    protected IOLoopThread[] _runners;
+
+    /** Used to assign connections to loops round-robin. */
+    protected int _nextLoop;
 
     /** Connections mapped by identifier. */
-    protected IntMap<Connection> _connections = IntMaps.newHashIntMap();
+    protected ConcurrentMap<Integer, Connection> _connections = Maps.newConcurrentMap();
 
-    protected Queue<Connection> _deathq = Queue.newQueue();
     protected Queue<SocketChannel> _acceptedq = Queue.newQueue();
 
-    protected Queue<Tuple<Connection, byte[]>> _outq = Queue.newQueue();
-
-    protected ByteBuffer _outbuf = ByteBuffer.allocateDirect(64 * 1024);
-
-    protected Map<Connection, OverflowQueue> _oflowqs = Maps.newHashMap();
-
-    /** Our current runtime stats. */
+    /** Our current runtime stats (those not maintained by our individual I/O loops). */
     protected ConMgrStats _stats = new ConMgrStats();
 
     /** Used to periodically report connection manager activity when in debug mode. */
@@ -635,6 +501,25 @@ public abstract class ConnectionManager extends LoopingThread
     @Inject(optional=true) @Named("presents.net.selectLoopTime")
     protected int _selectLoopTime = 100;
 
+    /** The total number of I/O loops (including the connection manager thread's own loop). */
+    @Inject(optional=true) @Named("presents.net.ioThreads")
+    protected int _ioThreads = 1;
+
+    /** Whether to assign new connections to the least loaded I/O loop rather than round-robin. */
+    @Inject(optional=true) @Named("presents.net.assignByLoad")
+    protected boolean _assignByLoad = false;
+
+    /** The maximum number of messages and bytes that may be queued up for a connection that is
+     * not keeping up with its outgoing traffic before {@link #_overflowPolicy} is applied. */
+    @Inject(optional=true) @Named("presents.net.maxOverflowMessages")
+    protected int _maxOverflowMessages = 10000;
+    @Inject(optional=true) @Named("presents.net.maxOverflowBytes")
+    protected long _maxOverflowBytes = 8 * 1024 * 1024;
+
+    /** Decides what to do with connections whose overflow queues exceed their limits. */
+    @Inject(optional=true)
+    protected OverflowPolicy _overflowPolicy = OverflowPolicy.DROP_UNRELIABLE;
+
     protected final long _idleTime;
 
     /** Used to denote asynchronous close requests. */
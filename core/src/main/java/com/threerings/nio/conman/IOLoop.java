@@ -0,0 +1,790 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.nio.conman;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.Queue;
+
+import com.threerings.io.FrameBufferPool;
+import com.threerings.util.TimingWheel;
+
+import com.threerings.nio.SelectorIterable;
+
+import static com.threerings.NaryaLog.log;
+
+/**
+ * Performs the network I/O for a subset of a {@link ConnectionManager}'s connections. Each loop
+ * has its own selector, outgoing message queue and overflow queues, all of which are only touched
+ * by the thread that runs the loop. The connection manager thread runs the primary loop, which is
+ * also home to acceptors, datagram channels and outgoing connections; any additional loops are
+ * run by threads of their own.
+ */
+public class IOLoop
+{
+    /**
+     * Creates an I/O loop for the supplied connection manager.
+     */
+    public IOLoop (ConnectionManager cmgr, int index)
+        throws IOException
+    {
+        _cmgr = cmgr;
+        _index = index;
+        _selector = Selector.open();
+        // size our idle wheel such that it spans the idle time, so that connections are never
+        // handed back before their deadline
+        int slots = (int)Math.max(MIN_IDLE_SLOTS, cmgr.getIdleTime() / IDLE_TICK + 2);
+        _idlers = new TimingWheel<SelectionKey>(IDLE_TICK, slots, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns this loop's index in its connection manager's set of loops (the primary loop is
+     * index zero).
+     */
+    public int getIndex ()
+    {
+        return _index;
+    }
+
+    /**
+     * Returns the selector used by this loop. Channels should only be registered with it on the
+     * loop's thread.
+     */
+    public Selector getSelector ()
+    {
+        return _selector;
+    }
+
+    /**
+     * Returns the pool that provides input buffers for the connections serviced by this loop.
+     * This must only be used on the loop's thread.
+     */
+    public FrameBufferPool getFrameBufferPool ()
+    {
+        return _framePool;
+    }
+
+    /**
+     * Returns true if the caller is running on this loop's thread.
+     */
+    public boolean isLoopThread ()
+    {
+        return Thread.currentThread() == _thread;
+    }
+
+    /**
+     * Returns an estimate of the number of handlers being serviced by this loop, including those
+     * that have been assigned to it but not yet registered. This may be called from any thread.
+     */
+    public int getLoad ()
+    {
+        return _handlerCount + _pendingAdopts.get();
+    }
+
+    /**
+     * Registers <code>ops</code> on <code>chan</code> with this loop's selector and hooks
+     * <code>handler</code> up to receive events whenever the selection occurs. This must be called
+     * on the loop's thread (or before the loop is started).
+     */
+    public SelectionKey register (SelectableChannel chan, int ops, NetEventHandler handler)
+        throws IOException
+    {
+        SelectionKey key = chan.register(_selector, ops);
+        setHandler(key, handler);
+        return key;
+    }
+
+    /**
+     * Maps (or remaps) the handler for the supplied selection key. This must be called on the
+     * loop's thread.
+     */
+    public void setHandler (SelectionKey key, NetEventHandler handler)
+    {
+        if (_handlers.put(key, handler) == null) {
+            // newly mapped keys need to be scheduled for idle checks; a remapped key is already
+            // scheduled and will be checked against its new handler when it comes due
+            long now = System.currentTimeMillis();
+            _idlers.schedule(key, getIdleDeadline(handler, now));
+        }
+        _handlerCount = _handlers.size();
+    }
+
+    /**
+     * Clears out the handler mapping for the supplied selection key. This must be called on the
+     * loop's thread.
+     */
+    public void removeHandler (SelectionKey key)
+    {
+        _handlers.remove(key);
+        _handlerCount = _handlers.size();
+    }
+
+    /**
+     * Queues up a task to be run on this loop's thread at the start of its next iteration.
+     */
+    public void postTask (Runnable task)
+    {
+        _taskq.append(task);
+        _selector.wakeup();
+    }
+
+    /**
+     * Runs the supplied task immediately if we're on this loop's thread, or queues it up to be run
+     * on the loop's thread otherwise.
+     */
+    public void invoke (Runnable task)
+    {
+        if (isLoopThread()) {
+            task.run();
+        } else {
+            postTask(task);
+        }
+    }
+
+    /**
+     * Queues up a message to be written to the supplied connection, which must belong to this loop.
+     */
+    public void postMessage (OutgoingMessage msg)
+    {
+        _outq.append(msg);
+    }
+
+    /**
+     * Queues a connection up to be closed on this loop's thread.
+     */
+    public void closeConnection (Connection conn)
+    {
+        _deathq.append(conn);
+    }
+
+    /**
+     * Takes ownership of a newly accepted connection, registering its channel with our selector
+     * (on our thread).
+     */
+    public void adopt (final Connection conn)
+    {
+        _pendingAdopts.incrementAndGet();
+        invoke(new Runnable() {
+            public void run () {
+                _pendingAdopts.decrementAndGet();
+                try {
+                    conn.selkey = register(conn.getChannel(), SelectionKey.OP_READ, conn);
+                    _stats.connects++;
+                } catch (IOException ioe) {
+                    // no need to generate a warning because this happens in the normal course
+                    log.info("Failure registering new connection: " + ioe);
+                    conn.closeSocket();
+                }
+            }
+        });
+    }
+
+    /**
+     * Performs one full iteration of this loop: queued work, outgoing messages and incoming
+     * network events. The primary loop instead has these phases driven individually by the
+     * connection manager so that it can interleave its own work.
+     */
+    public void iterate (long iterStamp)
+    {
+        processQueued(iterStamp);
+        sendOutgoingMessages(iterStamp);
+        if (_cmgr.isReadingIncoming()) {
+            processIncomingEvents(iterStamp);
+        }
+        updateSnapshot();
+    }
+
+    /**
+     * Runs any queued tasks, closes connections that have been queued up to die and checks for
+     * connections that have gone idle.
+     */
+    public void processQueued (long iterStamp)
+    {
+        Runnable task;
+        while ((task = _taskq.getNonBlocking()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.warning("I/O loop task failed", "loop", _index, "task", task, e);
+            }
+        }
+
+        // close any connections that have been queued up to die
+        Connection dconn;
+        while ((dconn = _deathq.getNonBlocking()) != null) {
+            // it's possible that we caught an EOF trying to read from this connection even after
+            // it was queued up for death, so let's avoid trying to close it twice
+            if (!dconn.isClosed()) {
+                dconn.close();
+            }
+        }
+
+        // close connections that have had no network traffic for too long
+        checkIdle(iterStamp);
+    }
+
+    /**
+     * Checks the handlers whose idle deadlines have come due. Activity on a connection simply
+     * updates its last event time, so most handlers that come due turn out not to be idle and are
+     * rescheduled for their actual deadline; we thus do work proportional to the number of
+     * handlers that may have gone idle rather than checking every handler on every iteration.
+     */
+    protected void checkIdle (long iterStamp)
+    {
+        List<SelectionKey> due = _idlers.advance(iterStamp, _idleDue);
+        if (due.isEmpty()) {
+            return;
+        }
+
+        long idleStamp = iterStamp - _cmgr.getIdleTime();
+        for (SelectionKey key : due) {
+            NetEventHandler handler = _handlers.get(key);
+            if (handler == null) {
+                continue; // this handler has been removed since it was scheduled
+            }
+            if (handler.checkIdle(idleStamp)) {
+                // this will queue the connection for closure on our next tick; if it's still
+                // around when we next check, we'll tell it again
+                handler.becameIdle();
+                _idlers.schedule(key, iterStamp + _idlers.getTickMillis());
+            } else {
+                _idlers.schedule(key, getIdleDeadline(handler, iterStamp));
+            }
+        }
+        due.clear();
+    }
+
+    /**
+     * Returns the time at which the supplied handler should next be checked for idleness.
+     * Connections can tell us when they last saw network traffic; other handlers are simply
+     * rechecked on every tick of our idle wheel.
+     */
+    protected long getIdleDeadline (NetEventHandler handler, long now)
+    {
+        if (handler instanceof Connection) {
+            // add a millisecond because checkIdle() considers a connection idle only once its last
+            // event is no later than the idle stamp
+            return ((Connection)handler).getLastEvent() + _cmgr.getIdleTime() + 1;
+        }
+        return now + _idlers.getTickMillis();
+    }
+
+    /**
+     * Checks for any network events on our set of sockets and passes those events down to their
+     * associated {@link NetEventHandler}s for processing.
+     */
+    public void processIncomingEvents (long iterStamp)
+    {
+        // process those events
+        long bytesIn = 0, msgsIn = 0, eventCount = 0;
+        for (SelectionKey selkey : _selectorSelector) {
+            eventCount++;
+            NetEventHandler handler = null;
+            try {
+                handler = _handlers.get(selkey);
+                if (handler == null) {
+                    log.warning("Received network event for unknown handler",
+                                "key", selkey, "ops", selkey.readyOps());
+                    // request that this key be removed from our selection set, which normally
+                    // happens automatically but for some reason didn't
+                    selkey.cancel();
+                    continue;
+                }
+
+//                 log.info("Got event", "selkey", selkey, "handler", handler);
+
+                int got = handler.handleEvent(iterStamp);
+                if (got != 0) {
+                    bytesIn += got;
+                    // we know that the handlers only report having read bytes when they have a
+                    // whole message, so we can count thusly
+                    msgsIn++;
+                }
+
+            } catch (Exception e) {
+                log.warning("Error processing network data: " + handler + ".", e);
+
+                // if you freak out here, you go straight in the can
+                if (handler != null && handler instanceof Connection) {
+                    _cmgr.closeConnection((Connection)handler);
+                }
+            }
+        }
+
+        // update our stats
+        _stats.eventCount += eventCount;
+        _stats.bytesIn += bytesIn;
+        _stats.msgsIn += msgsIn;
+    }
+
+    /**
+     * Writes all queued overflow and normal messages to their respective sockets. Connections that
+     * already have established overflow queues will have their messages appended to their overflow
+     * queue instead so that they are delivered in the proper order.
+     */
+    public void sendOutgoingMessages (long iterStamp)
+    {
+        // first attempt to send any messages waiting on the overflow queues
+        if (_oflowqs.size() > 0) {
+            // do this on a snapshot as a network failure writing oflow queue messages will result
+            // in the queue being removed from _oflowqs via the connectionFailed() code path
+            for (OverflowQueue oq : _oflowqs.values().toArray(new OverflowQueue[_oflowqs.size()])) {
+                try {
+                    // try writing the messages in this overflow queue
+                    if (writeOverflowMessages(oq, iterStamp)) {
+                        // if they were all written, we can remove it
+                        _oflowqs.remove(oq.conn);
+                    }
+
+                } catch (IOException ioe) {
+                    oq.conn.networkFailure(ioe);
+                }
+            }
+        }
+
+        // then gather up any new messages by connection so that each connection can be flushed
+        // with a single gathering write rather than one write per message
+        OutgoingMessage msg;
+        while ((msg = _outq.getNonBlocking()) != null) {
+            Connection conn = msg.conn;
+
+            // if an overflow queue exists for this client, go ahead and slap the message on there
+            // because we can't send it until all other messages in their queue have gone out
+            OverflowQueue oqueue = _oflowqs.get(conn);
+            if (oqueue != null) {
+                int size = oqueue.size();
+                if ((size > 500) && (size % 50 == 0)) {
+                    log.warning("Aiya, big overflow queue for " + conn + "", "size", size,
+                                "bytes", msg.data.length);
+                }
+                oqueue.enqueue(msg);
+                checkOverflow(oqueue);
+                continue;
+            }
+
+            List<OutgoingMessage> msgs = _pending.get(conn);
+            if (msgs == null) {
+                _pending.put(conn, msgs = Lists.newArrayList());
+            }
+            // let urgent messages move ahead of those they're allowed to overtake
+            int idx = msgs.size();
+            while (idx > 0 && msg.canOvertake(msgs.get(idx-1))) {
+                idx--;
+            }
+            msgs.add(idx, msg);
+        }
+
+        // now write each connection's messages out directly; we flush connections in the order in
+        // which their first message was queued so that an authing connection's messages go out
+        // before those of the running connection that replaces it on the same socket
+        for (Map.Entry<Connection, List<OutgoingMessage>> entry : _pending.entrySet()) {
+            Connection conn = entry.getKey();
+            List<OutgoingMessage> msgs = entry.getValue();
+            int consumed = writeMessages(conn, msgs, _oflowHandler);
+            if (consumed < msgs.size()) {
+                // a partial write established an overflow queue, so the remaining messages must
+                // go on it after the partially written one
+                OverflowQueue oqueue = _oflowqs.get(conn);
+                if (oqueue != null) {
+                    for (int ii = consumed, ll = msgs.size(); ii < ll; ii++) {
+                        oqueue.enqueue(msgs.get(ii));
+                    }
+                    checkOverflow(oqueue);
+                }
+            }
+        }
+        _pending.clear();
+    }
+
+    /**
+     * Checks whether the supplied overflow queue has exceeded its limits and, if so, lets our
+     * connection manager's overflow policy deal with it, disconnecting the client if the policy
+     * so decides.
+     */
+    protected void checkOverflow (OverflowQueue oqueue)
+    {
+        if (!oqueue.isOverLimit()) {
+            return;
+        }
+        int size = oqueue.size();
+        long bytes = oqueue.getBytes();
+        if (_cmgr.getOverflowPolicy().handleOverflow(oqueue, _stats)) {
+            return;
+        }
+
+        log.warning("Disconnecting client that is not keeping up with its outgoing messages",
+                    "conn", oqueue.conn, "msgs", size, "bytes", bytes);
+        _stats.overflowDisconnects++;
+        // clear the queue out now so that it can't hang onto its memory any longer than needed;
+        // the failure will take care of removing it from our overflow queues
+        oqueue.clear();
+        oqueue.conn.networkFailure(new IOException("Outgoing message queue limits exceeded"));
+    }
+
+    /**
+     * Called each time through the {@link #sendOutgoingMessages} loop, this attempts to send any
+     * remaining partial message and all subsequent messages in the supplied overflow queue.
+     *
+     * @return true if all messages in the queue were successfully sent, false if there remains
+     * data to be sent on the next loop.
+     *
+     * @throws IOException if an error occurs writing data to the connection.
+     */
+    protected boolean writeOverflowMessages (OverflowQueue oq, long iterStamp)
+        throws IOException
+    {
+        // write any partial message if we have one
+        ByteBuffer partial = oq.getPartial();
+        if (partial != null) {
+            // if our outgoing channel is gone or closed, then bail immediately
+            SocketChannel sochan = oq.conn.getChannel();
+            if (sochan == null || (!sochan.isConnected() && !sochan.isConnectionPending())) {
+                throw new IOException("Connection unavailable for overflow write " + sochan);
+            }
+            if (sochan.isConnectionPending()) {
+                return false; // not ready to write to this connection yet
+            }
+            if (oq.conn.getWriteAllowance(iterStamp) <= 0) {
+                return false; // we've used up this connection's bandwidth for now
+            }
+
+            // write all we can of our partial buffer
+            int wrote = sochan.write(partial);
+            noteWrite(partial.hasRemaining() ? 0 : 1, wrote);
+            oq.conn.noteWritten(wrote);
+
+            if (partial.remaining() == 0) {
+                if (oq.getPartialMessage() != null) {
+                    noteQueueDelay(oq.getPartialMessage(), iterStamp);
+                }
+                oq.clearPartial();
+            } else {
+                return false;
+            }
+        }
+
+        // write as many of our queued messages as we can; if any of these messages are partially
+        // written, we have to stop and wait for the next tick
+        oq.removeFirst(writeMessages(oq.conn, oq, oq));
+        return (oq.getPartial() == null && oq.isEmpty());
+    }
+
+    /**
+     * Called when one of our connections has closed or failed to clear out our mappings for it.
+     * The channel is automatically removed from our selector when its socket is closed.
+     */
+    public void connectionRemoved (Connection conn)
+    {
+        removeHandler(conn.selkey);
+        _oflowqs.remove(conn);
+    }
+
+    /**
+     * Moves any overflow queue established for <code>from</code> over to <code>to</code>. This is
+     * used when one connection replaces another on the same socket.
+     */
+    public void transferOverflow (Connection from, Connection to)
+    {
+        OverflowQueue oqueue = _oflowqs.remove(from);
+        if (oqueue != null) {
+            _oflowqs.put(to, oqueue);
+        }
+    }
+
+    /**
+     * Adds this loop's statistics to the supplied aggregate. This may be called from any thread;
+     * the counters are maintained without locking, so the totals are a (very slightly) fuzzy
+     * snapshot.
+     */
+    public void accumulateStats (ConMgrStats stats)
+    {
+        stats.accumulate(_stats);
+        stats.deathQueueSize += _deathq.size();
+        stats.outQueueSize += _outq.size();
+    }
+
+    /**
+     * Returns the number of messages still waiting in our outgoing queue.
+     */
+    public int getOutgoingQueueSize ()
+    {
+        return _outq.size();
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[loop=" + _index + ", handlers=" + _handlerCount + "]";
+    }
+
+    /**
+     * Called when the thread that will run this loop is starting up.
+     */
+    protected void willStart (Thread thread, int selectLoopTime)
+    {
+        _thread = thread;
+        _selectorSelector = new SelectorIterable(
+            _selector, selectLoopTime, new SelectorIterable.SelectFailureHandler() {
+            public void handleSelectFailure (Exception e) {
+                log.error("One of our selectors crapped out completely.  " +
+                          "Shutting down the connection manager.", "loop", _index, e);
+                _cmgr.shutdown();
+            }
+        });
+    }
+
+    /**
+     * Updates the snapshot values in our stats, which are only computable on our thread.
+     */
+    protected void updateSnapshot ()
+    {
+        _stats.handlerCount = _handlerCount;
+        int overQueueSize = 0, maxOverQueueSize = 0;
+        long maxOverQueueBytes = 0;
+        for (OverflowQueue oq : _oflowqs.values()) {
+            int size = oq.size();
+            overQueueSize += size;
+            maxOverQueueSize = Math.max(maxOverQueueSize, size);
+            maxOverQueueBytes = Math.max(maxOverQueueBytes, oq.getBytes());
+        }
+        _stats.overQueueSize = overQueueSize;
+        _stats.overQueueCount = _oflowqs.size();
+        _stats.maxOverQueueSize = maxOverQueueSize;
+        _stats.maxOverQueueBytes = maxOverQueueBytes;
+    }
+
+    /**
+     * Writes the supplied messages out to a connection, gathering as many of them as possible into
+     * each socket write. If a message is only partially written, its remaining bytes are passed to
+     * the partial write handler and we stop; the caller is responsible for queueing up the
+     * messages that follow it. If the connection's bandwidth limit is reached, the first message
+     * that would exceed it is passed to the partial write handler unwritten.
+     *
+     * @return the number of messages consumed from the front of the list, which includes messages
+     * that were fully written, dropped, or (in the case of the last one) handed to the partial
+     * write handler.
+     */
+    protected int writeMessages (
+        Connection conn, List<OutgoingMessage> msgs, PartialWriteHandler pwh)
+    {
+        int count = msgs.size(), consumed = 0;
+        long now = System.currentTimeMillis(), allowance = conn.getWriteAllowance(now);
+        while (consumed < count) {
+            // if the connection to which these messages are destined is closed, drop them and move
+            // along quietly; this is perfectly legal, a user can logoff whenever they like, even
+            // if we still have things to tell them; such is life in a fully asynchronous
+            // distributed system
+            if (conn.isClosed()) {
+                return count;
+            }
+
+            // gather messages until we run out, reach an asynchronous close request (which must
+            // be processed in order) or fill up our gather array
+            int nbufs = 0, idx = consumed;
+            long bytes = 0;
+            for (; idx < count && nbufs < _gather.length && bytes < MAX_GATHER_BYTES &&
+                     bytes < allowance; idx++) {
+                byte[] data = msgs.get(idx).data;
+                if (data == ConnectionManager.ASYNC_CLOSE_REQUEST) {
+                    break;
+                }
+                // sanity check the message size
+                if (data.length > MAX_MESSAGE_SIZE) {
+                    log.warning("Refusing to write very large message",
+                                "conn", conn, "size", data.length);
+                    continue;
+                }
+                _gather[nbufs] = ByteBuffer.wrap(data);
+                _gatherIdx[nbufs++] = idx;
+                bytes += data.length;
+            }
+
+            // if we've used up the connection's bandwidth, the rest must wait
+            if (nbufs == 0 && allowance <= 0 && idx < count &&
+                msgs.get(idx).data != ConnectionManager.ASYNC_CLOSE_REQUEST) {
+                pwh.handlePartialWrite(conn, msgs.get(idx), ByteBuffer.wrap(msgs.get(idx).data));
+                return idx + 1;
+            }
+
+            if (nbufs > 0) {
+                try {
+                    // if the connection to which we're writing is not yet ready, the whole first
+                    // message is "leftover", so we pass it to the partial write handler
+                    SocketChannel sochan = conn.getChannel();
+                    if (sochan.isConnectionPending()) {
+                        pwh.handlePartialWrite(conn, msgs.get(_gatherIdx[0]), _gather[0]);
+                        return _gatherIdx[0] + 1;
+                    }
+
+                    // write as much as we can in a single call
+                    long wrote = sochan.write(_gather, 0, nbufs);
+                    int full = 0;
+                    while (full < nbufs && !_gather[full].hasRemaining()) {
+                        full++;
+                    }
+                    noteWrite(full, wrote);
+                    conn.noteWritten(wrote);
+                    allowance -= wrote;
+                    for (int ii = 0; ii < full; ii++) {
+                        noteQueueDelay(msgs.get(_gatherIdx[ii]), now);
+                    }
+
+                    // if we didn't write everything, deal with the leftover bytes
+                    if (full < nbufs) {
+                        pwh.handlePartialWrite(conn, msgs.get(_gatherIdx[full]), _gather[full]);
+                        return _gatherIdx[full] + 1;
+                    }
+
+                } catch (NotYetConnectedException nyce) {
+                    // this should be caught by isConnectionPending() but awesomely it's not
+                    pwh.handlePartialWrite(conn, msgs.get(_gatherIdx[0]), _gather[0]);
+                    return _gatherIdx[0] + 1;
+
+                } catch (IOException ioe) {
+                    conn.networkFailure(ioe); // instruct the connection to deal with its failure
+                    return count;
+
+                } finally {
+                    Arrays.fill(_gather, 0, nbufs, null);
+                }
+            }
+
+            // if this is an asynchronous close request, queue the connection up for death
+            consumed = idx;
+            if (consumed < count &&
+                msgs.get(consumed).data == ConnectionManager.ASYNC_CLOSE_REQUEST) {
+                closeConnection(conn);
+                consumed++;
+            }
+        }
+        return consumed;
+    }
+
+    /** Called by {@link #writeMessages} and friends when they write data over the network. */
+    protected void noteWrite (int msgs, long bytes)
+    {
+        _stats.writes++;
+        _stats.msgsOut += msgs;
+        _stats.bytesOut += bytes;
+    }
+
+    /** Called by {@link #writeMessages} when a message has been fully written. */
+    protected void noteQueueDelay (OutgoingMessage msg, long now)
+    {
+        _stats.queueDelays[msg.priority] += now - msg.queued;
+        _stats.queueDelayed[msg.priority]++;
+    }
+
+    /** Used to handle partial writes in {@link IOLoop#writeMessages}. */
+    protected static interface PartialWriteHandler
+    {
+        void handlePartialWrite (Connection conn, OutgoingMessage msg, ByteBuffer buffer);
+    }
+
+    /** Used to create an overflow queue on the first partial write. */
+    protected PartialWriteHandler _oflowHandler = new PartialWriteHandler() {
+        public void handlePartialWrite (Connection conn, OutgoingMessage msg, ByteBuffer msgbuf) {
+            // if we couldn't write all the data for this message, we'll need to establish an
+            // overflow queue
+            _oflowqs.put(conn, new OverflowQueue(conn, msg, msgbuf, _cmgr.getMaxOverflowMessages(),
+                                                 _cmgr.getMaxOverflowBytes()));
+        }
+    };
+
+    /** The connection manager for which we're doing I/O. */
+    protected final ConnectionManager _cmgr;
+
+    /** Our index in our connection manager's loops. */
+    protected final int _index;
+
+    protected final Selector _selector;
+    protected SelectorIterable _selectorSelector;
+
+    /** The thread that runs this loop. */
+    protected volatile Thread _thread;
+
+    /** Maps selection keys to network event handlers. */
+    protected Map<SelectionKey, NetEventHandler> _handlers = Maps.newHashMap();
+
+    /** Tracks when each of our handlers is next due to be checked for idleness. */
+    protected TimingWheel<SelectionKey> _idlers;
+
+    /** Used to collect the handlers that have come due for an idle check. */
+    protected List<SelectionKey> _idleDue = Lists.newArrayList();
+
+    /** The number of handlers in {@link #_handlers} and the number of connections that have been
+     * assigned to us but not yet registered; used to estimate our load from other threads. */
+    protected volatile int _handlerCount;
+    protected final AtomicInteger _pendingAdopts = new AtomicInteger();
+
+    protected Queue<Runnable> _taskq = Queue.newQueue();
+    protected Queue<Connection> _deathq = Queue.newQueue();
+    protected Queue<OutgoingMessage> _outq = Queue.newQueue();
+
+    protected Map<Connection, OverflowQueue> _oflowqs = Maps.newHashMap();
+
+    /** Messages gathered up for each connection during {@link #sendOutgoingMessages}. */
+    protected Map<Connection, List<OutgoingMessage>> _pending = Maps.newLinkedHashMap();
+
+    /** Used to pass messages to gathering writes and to map them back to their source index. */
+    protected ByteBuffer[] _gather = new ByteBuffer[MAX_GATHER_BUFFERS];
+    protected int[] _gatherIdx = new int[MAX_GATHER_BUFFERS];
+
+    /** Provides the buffers into which our connections read their incoming frames. */
+    protected FrameBufferPool _framePool = new FrameBufferPool(READ_BUFFER_SIZE);
+
+    /** Our runtime stats, only modified by our thread. */
+    protected ConMgrStats _stats = new ConMgrStats();
+
+    /** The resolution with which we check for idle handlers. */
+    protected static final long IDLE_TICK = 1000L;
+
+    /** The minimum number of slots in our idle wheel. */
+    protected static final int MIN_IDLE_SLOTS = 64;
+
+    /** The size of the buffer shared by our connections for reading network data. */
+    protected static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /** We refuse to write messages larger than this. */
+    protected static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    /** The maximum number of messages we pass to a single gathering write. */
+    protected static final int MAX_GATHER_BUFFERS = 64;
+
+    /** We stop gathering once we've got this many bytes to write; the socket won't take much more
+     * than this in a single write anyway. */
+    protected static final int MAX_GATHER_BYTES = 256 * 1024;
+}
@@ -0,0 +1,144 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.nio.conman;
+
+/**
+ * A message queued up for delivery to a connection, along with hints as to how it may be treated
+ * if the connection is unable to keep up with its outgoing traffic.
+ */
+public class OutgoingMessage
+{
+    /** The priority class of latency critical messages (pongs, unreliable game state). */
+    public static final int URGENT = 0;
+
+    /** The priority class of ordinary messages. */
+    public static final int NORMAL = 1;
+
+    /** The priority class of large transfers that may wait for everything else. */
+    public static final int BULK = 2;
+
+    /** The number of priority classes. */
+    public static final int PRIORITY_CLASSES = 3;
+
+    /** The connection to which this message is destined. */
+    public final Connection conn;
+
+    /** The framed message data. */
+    public final byte[] data;
+
+    /** Whether this message may be discarded if the connection falls behind. Only messages that
+     * were hinted as unreliable and which can be removed from the stream without affecting the
+     * decoding of subsequent messages should be so marked. */
+    public final boolean droppable;
+
+    /** If non-null, a later message with an equal key supersedes this one and this one may be
+     * discarded in its favor if the connection falls behind. */
+    public final Object supersedeKey;
+
+    /** If non-null, identifies the ordering constraints of this message: it may be delivered ahead
+     * of fragments of a larger message that was queued before it if that message has a different
+     * (non-null) order key. */
+    public final Object orderKey;
+
+    /** Whether this message is one fragment of a larger message. */
+    public final boolean fragment;
+
+    /** The priority class of this message: {@link #URGENT}, {@link #NORMAL} or {@link #BULK}. */
+    public final int priority;
+
+    /** Whether this message can be decoded regardless of what precedes it, which is to say it
+     * established no state on which later messages may depend. Only such messages may be
+     * overtaken by higher priority messages. */
+    public final boolean standalone;
+
+    /** The time at which this message was queued. */
+    public final long queued = System.currentTimeMillis();
+
+    /**
+     * Creates an outgoing message that must be delivered.
+     */
+    public OutgoingMessage (Connection conn, byte[] data)
+    {
+        this(conn, data, false, null);
+    }
+
+    /**
+     * Creates an outgoing message with the supplied delivery hints.
+     */
+    public OutgoingMessage (Connection conn, byte[] data, boolean droppable, Object supersedeKey)
+    {
+        this(conn, data, droppable, supersedeKey, null, false);
+    }
+
+    /**
+     * Creates an outgoing message with the supplied delivery hints and ordering constraints.
+     */
+    public OutgoingMessage (Connection conn, byte[] data, boolean droppable, Object supersedeKey,
+                            Object orderKey, boolean fragment)
+    {
+        this(conn, data, droppable, supersedeKey, orderKey, fragment,
+             fragment ? BULK : NORMAL, fragment);
+    }
+
+    /**
+     * Creates an outgoing message with the supplied delivery hints, ordering constraints and
+     * priority.
+     */
+    public OutgoingMessage (Connection conn, byte[] data, boolean droppable, Object supersedeKey,
+                            Object orderKey, boolean fragment, int priority, boolean standalone)
+    {
+        this.conn = conn;
+        this.data = data;
+        this.droppable = droppable;
+        this.supersedeKey = supersedeKey;
+        this.orderKey = orderKey;
+        this.fragment = fragment;
+        this.priority = priority;
+        this.standalone = standalone;
+    }
+
+    /**
+     * Returns true if this message may be delivered ahead of the supplied message, which was
+     * queued before it.
+     */
+    public boolean canOvertake (OutgoingMessage other)
+    {
+        if (orderKey == null || other.orderKey == null || orderKey.equals(other.orderKey)) {
+            return false;
+        }
+        // fragments must never overtake one another as only one fragmented message may be in
+        // transit at a time
+        if (other.fragment) {
+            return !fragment;
+        }
+        // otherwise we may only overtake lower priority messages that nothing else depends upon
+        return priority < other.priority && other.standalone;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[conn=" + conn + ", size=" + data.length + ", droppable=" + droppable +
+            ", supersedeKey=" + supersedeKey + ", orderKey=" + orderKey +
+            ", fragment=" + fragment + ", priority=" + priority + "]";
+    }
+}
@@ -0,0 +1,84 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.nio.conman;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Decides what to do with a connection whose {@link OverflowQueue} has exceeded its limits, which
+ * generally means that the client is not reading its data as quickly as we are generating it.
+ */
+public abstract class OverflowPolicy
+{
+    /** Disconnects the slow client straight away. */
+    public static final OverflowPolicy DISCONNECT = new OverflowPolicy() {
+        @Override public boolean handleOverflow (OverflowQueue queue, ConMgrStats stats) {
+            return false;
+        }
+    };
+
+    /** Drops messages that were sent via an unreliable transport, and disconnects the client if
+     * that does not suffice. */
+    public static final OverflowPolicy DROP_UNRELIABLE = new OverflowPolicy() {
+        @Override public boolean handleOverflow (OverflowQueue queue, ConMgrStats stats) {
+            return dropUnreliable(queue, stats);
+        }
+    };
+
+    /** Removes messages that have been superseded by later messages in the queue, then drops
+     * unreliable messages, and disconnects the client if that does not suffice. */
+    public static final OverflowPolicy COALESCE = new OverflowPolicy() {
+        @Override public boolean handleOverflow (OverflowQueue queue, ConMgrStats stats) {
+            stats.overflowCoalesced += queue.removeSuperseded();
+            return !queue.isOverLimit() || dropUnreliable(queue, stats);
+        }
+    };
+
+    /**
+     * Called when a connection's overflow queue has exceeded its limits. The policy may remove
+     * messages from the queue to bring it back within its limits.
+     *
+     * @param stats the stats of the I/O loop that owns the queue, in which any dropped or
+     * coalesced messages should be recorded.
+     *
+     * @return true if the queue is acceptable, false if the client should be disconnected.
+     */
+    public abstract boolean handleOverflow (OverflowQueue queue, ConMgrStats stats);
+
+    /**
+     * Drops all droppable messages from the supplied queue.
+     *
+     * @return true if the queue is back within its limits.
+     */
+    protected static boolean dropUnreliable (OverflowQueue queue, ConMgrStats stats)
+    {
+        stats.overflowDropped += queue.removeMatching(DROPPABLE);
+        return !queue.isOverLimit();
+    }
+
+    /** Matches droppable messages. */
+    protected static final Predicate<OutgoingMessage> DROPPABLE = new Predicate<OutgoingMessage>() {
+        public boolean apply (OutgoingMessage msg) {
+            return msg.droppable;
+        }
+    };
+}
@@ -0,0 +1,275 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.nio.conman;
+
+import java.util.AbstractList;
+import java.util.Set;
+
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Sets;
+
+/**
+ * Holds the messages for a connection whose outgoing network buffer has filled up. This can happen
+ * if the client receives many messages in rapid succession or if they receive very large messages
+ * or if they become unresponsive and stop acknowledging network packets sent by the server. We
+ * want to accomodate the first two circumstances and recognize the third as quickly as possible
+ * so that we can disconnect the client and propagate that information up to the higher levels so
+ * that further messages are not queued up for the unresponsive client.
+ *
+ * <p> The queue is a ring buffer with limits on the number of messages and bytes it may hold; when
+ * those are exceeded, the connection manager's {@link OverflowPolicy} decides what to do.
+ */
+public class OverflowQueue extends AbstractList<OutgoingMessage>
+    implements IOLoop.PartialWriteHandler
+{
+    /** The connection for which we're managing overflow. */
+    public final Connection conn;
+
+    /**
+     * Creates a new overflow queue for the supplied connection and with the supplied initial
+     * partial message.
+     */
+    public OverflowQueue (Connection conn, ByteBuffer message, int maxMessages, long maxBytes)
+    {
+        this(conn, null, message, maxMessages, maxBytes);
+    }
+
+    /**
+     * Creates a new overflow queue for the supplied connection and with the supplied initial
+     * partial message.
+     *
+     * @param msg the message that was partially written.
+     * @param remains the unwritten remainder of that message.
+     */
+    public OverflowQueue (Connection conn, OutgoingMessage msg, ByteBuffer remains,
+                          int maxMessages, long maxBytes)
+    {
+        this.conn = conn;
+        _maxMessages = maxMessages;
+        _maxBytes = maxBytes;
+        // set up our initial _partial buffer
+        handlePartialWrite(conn, msg, remains);
+    }
+
+    /**
+     * Returns the total number of bytes in the queued messages (including any partially written
+     * message).
+     */
+    public long getBytes ()
+    {
+        return _bytes + (_partial == null ? 0 : _partial.remaining());
+    }
+
+    /**
+     * Returns true if this queue has grown beyond its limits.
+     */
+    public boolean isOverLimit ()
+    {
+        return _count > _maxMessages || getBytes() > _maxBytes;
+    }
+
+    /**
+     * Returns the remains of a message that was only partially written, or null.
+     */
+    public ByteBuffer getPartial ()
+    {
+        return _partial;
+    }
+
+    /**
+     * Returns the message that was only partially written, if known.
+     */
+    public OutgoingMessage getPartialMessage ()
+    {
+        return _partialMsg;
+    }
+
+    /**
+     * Notes that our partial message was fully written.
+     */
+    public void clearPartial ()
+    {
+        _partial = null;
+        _partialMsg = null;
+        _partials++;
+    }
+
+    /**
+     * Adds a message to the end of the queue, save that it is moved ahead of any fragments of a
+     * larger message at the end of the queue that it is allowed to overtake. This keeps small
+     * messages from waiting behind a large message that is trickling out to a slow client.
+     */
+    public void enqueue (OutgoingMessage msg)
+    {
+        add(msg);
+        for (int ii = _count-1; ii > 0; ii--) {
+            int idx = (_head + ii) % _msgs.length, pidx = (_head + ii - 1) % _msgs.length;
+            OutgoingMessage prev = _msgs[pidx];
+            if (!msg.canOvertake(prev)) {
+                break;
+            }
+            _msgs[idx] = prev;
+            _msgs[pidx] = msg;
+        }
+    }
+
+    /**
+     * Removes the specified number of messages from the front of the queue.
+     */
+    public void removeFirst (int count)
+    {
+        for (int ii = 0; ii < count; ii++) {
+            int idx = (_head + ii) % _msgs.length;
+            _bytes -= _msgs[idx].data.length;
+            _msgs[idx] = null;
+        }
+        _head = (_head + count) % _msgs.length;
+        _count -= count;
+        _written += count;
+    }
+
+    /**
+     * Removes all queued messages that match the supplied predicate, preserving the order of the
+     * remaining messages. The partially written message, if any, is never removed.
+     *
+     * @return the number of messages removed.
+     */
+    public int removeMatching (Predicate<OutgoingMessage> pred)
+    {
+        int kept = 0;
+        for (int ii = 0; ii < _count; ii++) {
+            OutgoingMessage msg = get(ii);
+            if (pred.apply(msg)) {
+                _bytes -= msg.data.length;
+            } else {
+                _msgs[(_head + kept++) % _msgs.length] = msg;
+            }
+        }
+        int removed = _count - kept;
+        for (int ii = kept; ii < _count; ii++) {
+            _msgs[(_head + ii) % _msgs.length] = null;
+        }
+        _count = kept;
+        return removed;
+    }
+
+    /**
+     * Removes any queued message that is superseded by a later message in the queue.
+     *
+     * @return the number of messages removed.
+     */
+    public int removeSuperseded ()
+    {
+        // work backwards noting the keys of the latest messages; any earlier message with a key
+        // we've already seen is superseded
+        final Set<Object> seen = Sets.newHashSet();
+        final Set<OutgoingMessage> superseded = Sets.newIdentityHashSet();
+        for (int ii = _count-1; ii >= 0; ii--) {
+            OutgoingMessage msg = get(ii);
+            if (msg.supersedeKey != null && !seen.add(msg.supersedeKey)) {
+                superseded.add(msg);
+            }
+        }
+        return superseded.isEmpty() ? 0 : removeMatching(new Predicate<OutgoingMessage>() {
+            public boolean apply (OutgoingMessage msg) {
+                return superseded.contains(msg);
+            }
+        });
+    }
+
+    @Override // from AbstractList
+    public OutgoingMessage get (int index)
+    {
+        if (index < 0 || index >= _count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + _count);
+        }
+        return _msgs[(_head + index) % _msgs.length];
+    }
+
+    @Override // from AbstractList
+    public int size ()
+    {
+        return _count;
+    }
+
+    @Override // from AbstractList
+    public boolean add (OutgoingMessage msg)
+    {
+        if (_count == _msgs.length) {
+            OutgoingMessage[] msgs = new OutgoingMessage[_msgs.length*2];
+            for (int ii = 0; ii < _count; ii++) {
+                msgs[ii] = get(ii);
+            }
+            _msgs = msgs;
+            _head = 0;
+        }
+        _msgs[(_head + _count++) % _msgs.length] = msg;
+        _bytes += msg.data.length;
+        return true;
+    }
+
+    @Override // from AbstractList
+    public void clear ()
+    {
+        removeMatching(com.google.common.base.Predicates.<OutgoingMessage>alwaysTrue());
+    }
+
+    // from interface IOLoop.PartialWriteHandler
+    public void handlePartialWrite (Connection wconn, OutgoingMessage msg, ByteBuffer buffer)
+    {
+        // the buffer wraps a message that is never modified once queued, so we can simply hang
+        // onto the unwritten remainder rather than copying it
+        _partial = buffer.slice();
+        _partialMsg = msg;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[conn=" + conn + ", msgs=" + _count + ", bytes=" + getBytes() +
+            ", partials=" + _partials + ", written=" + _written + "]";
+    }
+
+    /** Our queued messages, a ring buffer starting at {@link #_head}. */
+    protected OutgoingMessage[] _msgs = new OutgoingMessage[16];
+
+    /** The index of our first message and the number of messages we hold. */
+    protected int _head, _count;
+
+    /** The number of bytes in our queued messages. */
+    protected long _bytes;
+
+    /** Our limits. */
+    protected final int _maxMessages;
+    protected final long _maxBytes;
+
+    /** The remains of a message that was only partially written on its first attempt. */
+    protected ByteBuffer _partial;
+
+    /** The message of which {@link #_partial} is the remains, if known. */
+    protected OutgoingMessage _partialMsg;
+
+    /** A couple of counters. */
+    protected int _written, _partials;
+}
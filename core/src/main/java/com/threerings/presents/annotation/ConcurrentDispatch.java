@@ -0,0 +1,47 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.presents.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Indicates that an invocation service method, or all of the service methods of an invocation
+ * provider, may be dispatched on a pool of worker threads rather than on the distributed object
+ * thread. This is intended for methods that only read thread-safe state or that immediately hand
+ * off to an invoker.
+ *
+ * <p> Such a method must not modify distributed objects directly (it should post a runnable to
+ * the distributed object manager instead) and should read nothing from the caller's {@code
+ * ClientObject} other than its oid and username. Its listener may be responded to from the worker
+ * thread. Requests from a single client to such methods are dispatched in the order they were
+ * received, but may be dispatched before or after that client's other requests.
+ */
+@Target(value={ ElementType.METHOD, ElementType.TYPE })
+@Retention(value=RetentionPolicy.RUNTIME)
+@Inherited
+public @interface ConcurrentDispatch
+{
+}
@@ -32,7 +32,6 @@ import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 
@@ -52,15 +51,19 @@ import com.threerings.presents.net.AESAuthRequest;
 import com.threerings.presents.net.AuthResponse;
 import com.threerings.presents.net.AuthResponseData;
 import com.threerings.presents.net.AuthRequest;
+import com.threerings.presents.net.CompoundUpstreamMessage;
 import com.threerings.presents.net.DownstreamMessage;
 import com.threerings.presents.net.LogoffRequest;
 import com.threerings.presents.net.PingRequest;
 import com.threerings.presents.net.PublicKeyCredentials;
 import com.threerings.presents.net.SecureRequest;
+import com.threerings.presents.net.ResumeSessionRequest;
 import com.threerings.presents.net.SecureResponse;
 import com.threerings.presents.net.TransmitDatagramsRequest;
+import com.threerings.presents.net.TransmitFragmentsRequest;
 import com.threerings.presents.net.Transport;
 import com.threerings.presents.net.UpstreamMessage;
+import com.threerings.presents.util.DatagramAuthenticator;
 import com.threerings.presents.util.DatagramSequencer;
 
 import static com.threerings.presents.Log.log;
@@ -122,6 +125,15 @@ public class BlockingCommunicator extends Communicator
         // post a logoff message
         postMessage(new LogoffRequest());
 
+        // and shut everything down
+        shutdown();
+    }
+
+    /**
+     * Shuts down our communication threads without notifying the server.
+     */
+    protected synchronized void shutdown ()
+    {
         // let our readers and writers know that it's time to go
         if (_reader != null) {
             // if logoff() is being called by the client as part of a normal shutdown, this will
@@ -205,6 +217,16 @@ public class BlockingCommunicator extends Communicator
         }
         _writer = new Writer();
         _writer.start();
+
+        // let the server know that we can handle very large messages being sent in fragments
+        postMessage(new TransmitFragmentsRequest());
+
+        // ask to resume our old session, or let the server know we'd like to be able to
+        if (_resumeOmgr != null) {
+            postMessage(new ResumeSessionRequest(_resumeOmgr.getLastSequence()));
+        } else if (_client.getResumeSessions()) {
+            postMessage(new ResumeSessionRequest(ResumeSessionRequest.ENABLE));
+        }
     }
 
     /**
@@ -219,6 +241,15 @@ public class BlockingCommunicator extends Communicator
             return;
         }
 
+        // if our session can be resumed, shut down quietly and let the client reconnect
+        if (_client.getResumeSessions() && _client.getClientObject() != null && _omgr != null &&
+            !_omgr.isResuming()) {
+            log.info("Connection failed, will attempt to resume session", "error", ioe);
+            _resumeFailure = ioe;
+            shutdown();
+            return;
+        }
+
         log.info("Connection failed", ioe);
 
         // let the client know that things went south
@@ -262,7 +293,7 @@ public class BlockingCommunicator extends Communicator
             closeChannel();
 
             // let the client know when we finally go away
-            clientCleanup(_logonError);
+            communicatorDidExit();
         }
 
         log.debug("Reader thread exited.");
@@ -277,12 +308,14 @@ public class BlockingCommunicator extends Communicator
         _writer = null;
         log.debug("Writer thread exited.");
 
-        // let the client observers know that we're logged off
-        notifyClientObservers(new ObserverOps.Session(_client) {
-            @Override protected void notify (SessionObserver obs) {
-                obs.clientDidLogoff(_client);
-            }
-        });
+        // let the client observers know that we're logged off (unless we're about to resume)
+        if (_resumeFailure == null) {
+            notifyClientObservers(new ObserverOps.Session(_client) {
+                @Override protected void notify (SessionObserver obs) {
+                    obs.clientDidLogoff(_client);
+                }
+            });
+        }
 
         // now that the writer thread has gone away, we can safely close our socket and let the
         // client know that the logoff process has completed
@@ -290,10 +323,48 @@ public class BlockingCommunicator extends Communicator
 
         // let the client know when we finally go away
         if (_reader == null) {
-            clientCleanup(_logonError);
+            communicatorDidExit();
         }
     }
 
+    /**
+     * Called by {@link #readerDidExit} or {@link #writerDidExit} whichever is called last, after
+     * our socket has been closed.
+     */
+    protected void communicatorDidExit ()
+    {
+        if (_client == null) {
+            return;
+        }
+
+        // if our connection failed, hand our session over to a new communicator to resume
+        if (_resumeFailure != null) {
+            Client client = _client;
+            _client = null;
+            client.resumeSession(this, _omgr, _resumeFailure);
+            return;
+        }
+
+        // if we were unable to reconnect to resume a session, report the original failure
+        if (_resumeOmgr != null && _omgr == null) {
+            log.info("Unable to reconnect to resume session", "error", _logonError);
+            notifyClientObservers(new ObserverOps.Client(_client) {
+                @Override protected void notify (ClientObserver obs) {
+                    obs.clientConnectionFailed(_client, _resumeCause);
+                }
+            });
+            notifyClientObservers(new ObserverOps.Session(_client) {
+                @Override protected void notify (SessionObserver obs) {
+                    obs.clientDidLogoff(_client);
+                }
+            });
+            clientCleanup(null);
+            return;
+        }
+
+        clientCleanup(_logonError);
+    }
+
     /**
      * Closes the socket channel that we have open to the server. Called by either {@link
      * #readerDidExit} or {@link #writerDidExit} whichever is called last.
@@ -446,14 +517,11 @@ public class BlockingCommunicator extends Communicator
             return;
         }
 
-        // compute the hash
-        buf.position(12);
-        _digest.update(buf);
-        byte[] hash = _digest.digest(_secret);
-
-        // insert the first 64 bits of the hash
-        buf.position(4);
-        buf.put(hash, 0, 8).rewind();
+        // flag the connection id if we're using the fast MAC, then compute and insert the MAC
+        if (_fastMac) {
+            buf.putInt(0, _client.getConnectionId() | DatagramAuthenticator.FAST_MAC_FLAG);
+        }
+        _authenticator.sign(buf, _fastMac);
 
         // send the datagram
         writeDatagram(buf);
@@ -495,7 +563,14 @@ public class BlockingCommunicator extends Communicator
 
         try {
             int size = _fin.available();
-            DownstreamMessage msg = (DownstreamMessage)_oin.readObject();
+            // reassembled frames are written with a stream of their own, so we must read them with
+            // one as well
+            ObjectInputStream oin = _oin;
+            if (_fin.isReassembled()) {
+                oin = new ClientObjectInputStream(_client, _fin);
+                oin.setClassLoader(_loader);
+            }
+            DownstreamMessage msg = (DownstreamMessage)oin.readObject();
             if (debugLogMessages()) {
                 log.info("RECEIVE " + msg);
             }
@@ -582,17 +657,22 @@ public class BlockingCommunicator extends Communicator
     }
 
     /**
-     * Throttles an outgoing message operation in a thread-safe manner.
+     * Throttles an outgoing message in a thread-safe manner. A compound message is charged one
+     * operation for each of its constituents, as the server throttles it that way.
      */
-    protected void throttleOutgoingMessage ()
+    protected void throttleOutgoingMessage (UpstreamMessage msg)
     {
+        int ops = (msg instanceof CompoundUpstreamMessage) ?
+            ((CompoundUpstreamMessage)msg).msgs.size() : 1;
         Throttle throttle = _client.getOutgoingMessageThrottle();
         synchronized(throttle) {
-            while (throttle.throttleOp()) {
-                try {
-                    Thread.sleep(2);
-                } catch (InterruptedException ie) {
-                    // no problem
+            for (int ii = 0; ii < ops; ii++) {
+                while (throttle.throttleOp()) {
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException ie) {
+                        // no problem
+                    }
                 }
             }
         }
@@ -679,7 +759,7 @@ public class BlockingCommunicator extends Communicator
 
             // our messages are framed (preceded by their length), so we use these helper streams
             // to manage the framing
-            _fin = new FramedInputStream();
+            _fin = new FramedInputStream(FramedInputStream.MAX_REASSEMBLED_SIZE);
             _fout = new FramingOutputStream();
 
             // create our object input and output streams
@@ -776,7 +856,7 @@ public class BlockingCommunicator extends Communicator
             }
 
             // make sure we're not exceeding our outgoing throttle rate
-            throttleOutgoingMessage();
+            throttleOutgoingMessage(msg);
 
             try {
                 // write the message out the socket
@@ -830,15 +910,15 @@ public class BlockingCommunicator extends Communicator
             _datagramChannel.configureBlocking(false);
             _datagramChannel.register(_selector, SelectionKey.OP_READ, null);
 
-            // create the message digest
+            // create the datagram authenticator
             try {
-                _digest = MessageDigest.getInstance("MD5");
+                _authenticator = new DatagramAuthenticator(
+                    _client.getCredentials().getDatagramSecret().getBytes("UTF-8"));
             } catch (NoSuchAlgorithmException nsae) {
                 log.warning("Missing MD5 algorithm.");
                 shutdown();
                 return;
             }
-            _secret = _client.getCredentials().getDatagramSecret().getBytes("UTF-8");
 
             // create our various streams
             _bout = new ByteBufferOutputStream();
@@ -890,7 +970,10 @@ public class BlockingCommunicator extends Communicator
         {
             _datagramChannel.connect(new InetSocketAddress(_client.getHostname(), port));
             for (int ii = 0; ii < DATAGRAM_ATTEMPTS_PER_PORT; ii++) {
-                // send a ping datagram
+                // send a ping datagram, using the fast MAC for the first few attempts; servers
+                // that predate it will not answer those, so we fall back to the original MAC for
+                // the rest and stick with whichever we last used once we hear back
+                _fastMac = (ii < FAST_MAC_ATTEMPTS);
                 sendDatagram(new PingRequest(Transport.UNRELIABLE_UNORDERED));
 
                 // wait for a response
@@ -1027,6 +1110,9 @@ public class BlockingCommunicator extends Communicator
 
     protected Exception _logonError;
 
+    /** The failure that caused us to shut down so that our session could be resumed. */
+    protected IOException _resumeFailure;
+
     /** We use this to frame our upstream messages. */
     protected FramingOutputStream _fout;
     protected ObjectOutputStream _oout;
@@ -1038,8 +1124,8 @@ public class BlockingCommunicator extends Communicator
     /** We use these to write our upstream datagrams. */
     protected ByteBufferOutputStream _bout;
     protected UnreliableObjectOutputStream _uout;
-    protected MessageDigest _digest;
-    protected byte[] _secret;
+    protected DatagramAuthenticator _authenticator;
+    protected volatile boolean _fastMac;
 
     /** We use these to read our downstream datagrams. */
     protected ByteBuffer _buf = ByteBuffer.allocateDirect(Client.MAX_DATAGRAM_SIZE);
@@ -1051,6 +1137,9 @@ public class BlockingCommunicator extends Communicator
     /** The number of times per port to try to establish a datagram "connection". */
     protected static final int DATAGRAM_ATTEMPTS_PER_PORT = 10;
 
+    /** The number of datagram connection attempts per port that use the fast MAC. */
+    protected static final int FAST_MAC_ATTEMPTS = 2;
+
     /** The number of milliseconds to wait for a response datagram. */
     protected static final long DATAGRAM_RESPONSE_WAIT = 1000L;
 }
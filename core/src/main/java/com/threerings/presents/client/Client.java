@@ -44,6 +44,7 @@ import com.threerings.presents.net.BootstrapData;
 import com.threerings.presents.net.Credentials;
 import com.threerings.presents.net.PingRequest;
 import com.threerings.presents.net.PongResponse;
+import com.threerings.presents.net.ResumeSessionResponse;
 import com.threerings.presents.net.ThrottleUpdatedMessage;
 import com.threerings.presents.util.SecureUtil;
 
@@ -252,6 +253,25 @@ public class Client
         return _requireSecureAuth;
     }
 
+    /**
+     * Configures whether this client will attempt to resume its session when its connection to
+     * the server fails. A resumed session keeps its distributed objects and receives only the
+     * events it missed while disconnected; observers are notified of the connection failure only
+     * if the session cannot be resumed. Must be set before logging on.
+     */
+    public void setResumeSessions (boolean resumeSessions)
+    {
+        _resumeSessions = resumeSessions;
+    }
+
+    /**
+     * Returns true if this client will attempt to resume its session after a connection failure.
+     */
+    public boolean getResumeSessions ()
+    {
+        return _resumeSessions;
+    }
+
     /**
      * Sets the secret key to use with a session.
      */
@@ -467,6 +487,16 @@ public class Client
         return stamp - _serverDelta;
     }
 
+    /**
+     * Returns our estimate of the network round trip time to the server in milliseconds, as
+     * measured when last we synchronized our clock with the server's, or -1 if we have not yet
+     * done so.
+     */
+    public long getRoundTripTime ()
+    {
+        return _roundTripTime;
+    }
+
     /**
      * Returns true if we are in active communication (we may not yet be logged on, but we could be
      * trying to log on).
@@ -606,7 +636,11 @@ public class Client
             return false;
         }
 
-        // ask the communicator to send a logoff message and disconnect from the server
+        // send any requests still waiting to be batched, then ask the communicator to send a
+        // logoff message and disconnect from the server
+        if (_omgr instanceof ClientDObjectMgr) {
+            ((ClientDObjectMgr)_omgr).sendPendingMessages();
+        }
         _comm.logoff();
 
         return true;
@@ -953,7 +987,59 @@ public class Client
             // the clock delta and then refine it as more packets come in
             _dcalc.gotPong(pong);
             _serverDelta = _dcalc.getTimeDelta();
+            _roundTripTime = _dcalc.getRoundTripTime();
+        }
+    }
+
+    /**
+     * Called by a communicator whose connection failed in a session that we'd like to resume.
+     * Starts up a new communicator that will reconnect and ask to resume the session.
+     */
+    protected synchronized void resumeSession (
+        Communicator failed, ClientDObjectMgr omgr, Exception cause)
+    {
+        if (_comm != failed) {
+            log.warning("Not resuming session for stale communicator", "comm", failed);
+            return;
+        }
+        _comm = createCommunicator();
+        _comm.setClassLoader(_loader);
+        _comm.resume(omgr, cause);
+    }
+
+    /**
+     * Called when the server responds to our request to resume our session.
+     */
+    protected synchronized void gotResumeResponse (ResumeSessionResponse rsp)
+    {
+        if (_comm == null) {
+            return;
         }
+        if (!rsp.resumed) {
+            log.info("Server was unable to resume our session.");
+            _comm.resumeFailed();
+            return;
+        }
+
+        // our connection id changed with our connection, let the communicator set up datagrams
+        log.info("Resumed session", "connectionId", rsp.connectionId);
+        _connectionId = rsp.connectionId;
+        _comm.gotBootstrap();
+    }
+
+    /**
+     * Called when the server reports that it has put us in line to have our session started.
+     */
+    protected void gotAdmissionPosition (final int position)
+    {
+        log.info("Waiting to be admitted by server", "position", position);
+        notifyObservers(new ObserverOps.Session(this) {
+            @Override protected void notify (SessionObserver obs) {
+                if (obs instanceof AdmissionObserver) {
+                    ((AdmissionObserver)obs).clientAdmissionQueued(_client, position);
+                }
+            }
+        });
     }
 
     /**
@@ -1064,6 +1150,9 @@ public class Client
     /** If we require a secure connection to send our credentials. */
     protected boolean _requireSecureAuth = false;
 
+    /** Whether or not we attempt to resume our session after a connection failure. */
+    protected boolean _resumeSessions;
+
     /** The unique id of our connection. */
     protected int _connectionId = -1;
 
@@ -1109,6 +1198,9 @@ public class Client
      * logging on). */
     protected long _serverDelta;
 
+    /** Our most recent estimate of the network round trip time to the server. */
+    protected long _roundTripTime = -1L;
+
     /** Used when establishing our clock delta between the client and server. */
     protected DeltaCalculator _dcalc;
 
@@ -45,9 +45,11 @@ import com.threerings.presents.dobj.DObjectManager;
 import com.threerings.presents.dobj.ObjectAccessException;
 import com.threerings.presents.dobj.ObjectDestroyedEvent;
 import com.threerings.presents.dobj.Subscriber;
+import com.threerings.presents.net.AdmissionQueueMessage;
 import com.threerings.presents.net.BootstrapData;
 import com.threerings.presents.net.BootstrapNotification;
 import com.threerings.presents.net.CompoundDownstreamMessage;
+import com.threerings.presents.net.CompoundUpstreamMessage;
 import com.threerings.presents.net.DownstreamMessage;
 import com.threerings.presents.net.EventNotification;
 import com.threerings.presents.net.FailureResponse;
@@ -55,10 +57,13 @@ import com.threerings.presents.net.ForwardEventRequest;
 import com.threerings.presents.net.Message;
 import com.threerings.presents.net.ObjectResponse;
 import com.threerings.presents.net.PongResponse;
+import com.threerings.presents.net.ResumableEventNotification;
+import com.threerings.presents.net.ResumeSessionResponse;
 import com.threerings.presents.net.SubscribeRequest;
 import com.threerings.presents.net.UnsubscribeRequest;
 import com.threerings.presents.net.UnsubscribeResponse;
 import com.threerings.presents.net.UpdateThrottleMessage;
+import com.threerings.presents.net.UpstreamMessage;
 
 import static com.threerings.presents.Log.log;
 
@@ -129,7 +134,7 @@ public class ClientDObjectMgr
     public void postEvent (DEvent event)
     {
         // send a forward event request to the server
-        _comm.postMessage(new ForwardEventRequest(event));
+        sendMessage(new ForwardEventRequest(event));
     }
 
     // inherit documentation from the interface
@@ -151,6 +156,45 @@ public class ClientDObjectMgr
         flushObject(obj);
     }
 
+    /**
+     * Configures whether the requests we send to the server (forwarded events and subscription
+     * requests) are batched. When batching, requests made during the same pass through the client's
+     * run queue are sent together in a single compound message, which the server processes in a
+     * single unit, sending back any responses in a single compound message. Batching is enabled by
+     * default.
+     */
+    public void setBatchRequests (boolean batch)
+    {
+        _batchRequests = batch;
+        if (!batch) {
+            sendPendingMessages();
+        }
+    }
+
+    /**
+     * Sends any requests that are waiting to be batched.
+     */
+    public void sendPendingMessages ()
+    {
+        UpstreamMessage msg;
+        synchronized (_pending) {
+            switch (_pending.size()) {
+            case 0:
+                return;
+            case 1:
+                msg = _pending.get(0);
+                break;
+            default:
+                CompoundUpstreamMessage cmsg = new CompoundUpstreamMessage();
+                cmsg.msgs.addAll(_pending);
+                msg = cmsg;
+                break;
+            }
+            _pending.clear();
+        }
+        _comm.postMessage(msg);
+    }
+
     /**
      * Registers an object flush delay.
      *
@@ -193,12 +237,34 @@ public class ClientDObjectMgr
     protected void dispatchAction (Object obj)
     {
         if (obj instanceof EventNotification) {
+            if (obj instanceof ResumableEventNotification &&
+                !_received.noteReceived(((ResumableEventNotification)obj).sequence)) {
+                return; // replayed after we resumed, but we got it before the connection dropped
+            }
             dispatchEvent(((EventNotification)obj).getEvent());
 
         } else if (obj instanceof BootstrapNotification) {
+            // a server that gave up waiting for us to resume will bootstrap us, but we're going to
+            // log off when it declines our resumption request, so we ignore the bootstrap
+            if (_resuming) {
+                log.info("Ignoring bootstrap while resuming session.");
+                return;
+            }
             BootstrapData data = ((BootstrapNotification)obj).getData();
             _client.gotBootstrap(data, this);
 
+        } else if (obj instanceof ResumeSessionResponse) {
+            ResumeSessionResponse rsp = (ResumeSessionResponse)obj;
+            _resuming = false;
+            if (rsp.resumed) {
+                // any subscription requests that were outstanding when our connection failed may
+                // have been lost, so we ask again
+                for (PendingRequest<?> req : _penders.values()) {
+                    sendMessage(new SubscribeRequest(req.oid));
+                }
+            }
+            _client.gotResumeResponse(rsp);
+
         } else if (obj instanceof ObjectResponse<?>) {
             registerObjectAndNotify((ObjectResponse<?>)obj);
 
@@ -218,6 +284,9 @@ public class ClientDObjectMgr
             UpdateThrottleMessage upmsg = (UpdateThrottleMessage)obj;
             _client.setOutgoingMessageThrottle(upmsg.messagesPerSec);
 
+        } else if (obj instanceof AdmissionQueueMessage) {
+            _client.gotAdmissionPosition(((AdmissionQueueMessage)obj).position);
+
         } else if (obj instanceof ObjectAction<?>) {
             ObjectAction<?> act = (ObjectAction<?>)obj;
             if (act.subscribe) {
@@ -235,11 +304,42 @@ public class ClientDObjectMgr
         }
     }
 
+    /**
+     * Returns the sequence number through which we've received every event notification from a
+     * server with which we've enabled session resumption, or zero if none have been received.
+     */
+    public long getLastSequence ()
+    {
+        return _received.getContiguous();
+    }
+
+    /**
+     * Returns true if we're waiting to hear whether our session was resumed.
+     */
+    public boolean isResuming ()
+    {
+        return _resuming;
+    }
+
+    /**
+     * Called when a new communicator has reconnected to the server and is about to ask it to
+     * resume the session whose objects we manage.
+     */
+    public void resumeWith (Communicator comm)
+    {
+        _comm = comm;
+        _resuming = true;
+    }
+
     /**
      * Called when the client is cleaned up due to having disconnected from the server.
      */
     public void cleanup ()
     {
+        synchronized (_pending) {
+            _pending.clear();
+        }
+
         // tell any pending object subscribers that they're not getting their bits
         for (PendingRequest<?> req : _penders.values()) {
             for (Subscriber<?> sub : req.targets) {
@@ -429,7 +529,7 @@ public class ClientDObjectMgr
         // Log.info("Registering pending request [oid=" + oid + "].");
 
         // and issue a request to get things rolling
-        _comm.postMessage(new SubscribeRequest(oid));
+        sendMessage(new SubscribeRequest(oid));
     }
 
     /**
@@ -448,6 +548,32 @@ public class ClientDObjectMgr
         }
     }
 
+    /**
+     * Sends the supplied message to the server. Reliable messages are batched (if enabled) with
+     * any others sent before the client's run queue next gets around to sending them.
+     */
+    protected void sendMessage (UpstreamMessage msg)
+    {
+        if (!_batchRequests || !msg.getTransport().isReliable() ||
+                !_client.getRunQueue().isRunning()) {
+            sendPendingMessages();
+            _comm.postMessage(msg);
+            return;
+        }
+
+        synchronized (_pending) {
+            _pending.add(msg);
+            if (_pending.size() > 1) {
+                return; // already scheduled
+            }
+        }
+        _client.getRunQueue().postRunnable(new Runnable() {
+            public void run () {
+                sendPendingMessages();
+            }
+        });
+    }
+
     /**
      * Flushes a distributed object subscription, issuing an unsubscribe request to the server.
      */
@@ -461,7 +587,7 @@ public class ClientDObjectMgr
 
         // ship off an unsubscribe message to the server; we'll remove the object from our table
         // when we get the unsub ack
-        _comm.postMessage(new UnsubscribeRequest(ooid));
+        sendMessage(new UnsubscribeRequest(ooid));
     }
 
     /**
@@ -546,6 +672,18 @@ public class ClientDObjectMgr
     /** A reference to our client instance. */
     protected Client _client;
 
+    /** Tracks the sequence numbers of the resumable event notifications we've received. */
+    protected SequenceTracker _received = new SequenceTracker();
+
+    /** Whether we're waiting to hear whether our session was resumed. */
+    protected volatile boolean _resuming;
+
+    /** Whether or not we batch the requests we send to the server. */
+    protected volatile boolean _batchRequests = true;
+
+    /** Requests waiting to be sent to the server in a batch. */
+    protected List<UpstreamMessage> _pending = Lists.newArrayList();
+
     /** Periodically calls {@link #flushObject}. */
     protected Interval _flusher;
 
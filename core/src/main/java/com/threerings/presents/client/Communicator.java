@@ -48,6 +48,21 @@ public abstract class Communicator
      */
     public abstract void logon ();
 
+    /**
+     * Logs on to the server and attempts to resume the session whose objects are managed by the
+     * supplied object manager, rather than starting afresh. Used after a connection failure by a
+     * client that has enabled session resumption.
+     *
+     * @param cause the failure that interrupted the session, reported to the client's observers if
+     * the session cannot be resumed.
+     */
+    public void resume (ClientDObjectMgr omgr, Exception cause)
+    {
+        _resumeOmgr = omgr;
+        _resumeCause = cause;
+        logon();
+    }
+
     /**
      * Delivers a logoff notification to the server and shuts down the network connection. Also
      * causes all communication threads to terminate.
@@ -113,8 +128,13 @@ public abstract class Communicator
      */
     protected synchronized void logonSucceeded (AuthResponseData data)
     {
-        // create our distributed object manager
-        _omgr = new ClientDObjectMgr(this, _client);
+        // create our distributed object manager (or take over the one whose session we're resuming)
+        if (_resumeOmgr != null) {
+            _omgr = _resumeOmgr;
+            _omgr.resumeWith(this);
+        } else {
+            _omgr = new ClientDObjectMgr(this, _client);
+        }
 
         // fill the auth data into the client's local field so that it can be requested by external
         // entities
@@ -123,6 +143,20 @@ public abstract class Communicator
         // wait for the bootstrap notification before we claim that we're actually logged on
     }
 
+    /**
+     * Called by the client when the server has declined to resume our session. Reports the
+     * connection failure that interrupted the session and logs off.
+     */
+    protected void resumeFailed ()
+    {
+        notifyClientObservers(new ObserverOps.Client(_client) {
+            @Override protected void notify (ClientObserver obs) {
+                obs.clientConnectionFailed(_client, _resumeCause);
+            }
+        });
+        logoff();
+    }
+
     /**
      * Callback called by the reader thread when it has parsed a new message from the socket and
      * wishes to have it processed.
@@ -152,5 +186,11 @@ public abstract class Communicator
 
     protected Client _client;
     protected ClientDObjectMgr _omgr;
+
+    /** The object manager of the session we're resuming, if any. */
+    protected ClientDObjectMgr _resumeOmgr;
+
+    /** The connection failure that caused us to resume a session, if any. */
+    protected Exception _resumeCause;
     protected long _lastWrite;
 }
@@ -44,6 +44,7 @@ public class DeltaCalculator
     public DeltaCalculator ()
     {
         _deltas = new long[CLOCK_SYNC_PING_COUNT];
+        _rtts = new long[CLOCK_SYNC_PING_COUNT];
     }
 
     /**
@@ -95,6 +96,7 @@ public class DeltaCalculator
         // the time delta is the client time when the pong was received
         // minus the server's send time (plus network delay): dT = C - S
         _deltas[_iter] = recv - (server + nettime);
+        _rtts[_iter] = recv - send - delay;
 
         log.debug("Calculated delta", "delay", delay, "nettime", nettime, "delta", _deltas[_iter],
                   "rtt", (recv-send));
@@ -144,6 +146,23 @@ public class DeltaCalculator
         return deltasCopy[deltasCopy.length/2];
     }
 
+    /**
+     * Returns the best estimate of the network round trip time to the server (excluding the time
+     * the server took to process our pings), or -1 if we have no estimate yet.
+     */
+    public long getRoundTripTime ()
+    {
+        if (_iter == 0) { // no responses yet
+            return -1L;
+        }
+
+        long[] rttsCopy = new long[_iter];
+        System.arraycopy(_rtts, 0, rttsCopy, 0, _iter);
+
+        Arrays.sort(rttsCopy);
+        return rttsCopy[rttsCopy.length/2];
+    }
+
     /**
      * Returns true if this calculator has enough data to compute a time
      * delta estimate. Stick a fork in it!
@@ -159,6 +178,9 @@ public class DeltaCalculator
     /** Client/server time delta estimates. */
     protected long[] _deltas;
 
+    /** Round trip time measurements. */
+    protected long[] _rtts;
+
     /** A reference to the most recently sent ping which we use to obtain
      * the appropriate send stamp when we get the corresponding receive
      * stamp. */
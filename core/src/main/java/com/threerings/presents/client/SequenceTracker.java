@@ -0,0 +1,68 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.client;
+
+import java.util.Set;
+
+import com.google.common.collect.Sets;
+
+import com.threerings.presents.net.ResumableEventNotification;
+
+/**
+ * Tracks the sequence numbers of the {@link ResumableEventNotification}s received by a client so
+ * that it can tell the server the point through which it received every notification when it
+ * resumes its session, and ignore notifications that it already received when they are replayed.
+ * Notifications may arrive out of order, so we note those that arrive ahead of a gap until the
+ * gap is filled.
+ */
+public class SequenceTracker
+{
+    /**
+     * Notes the receipt of the notification with the supplied sequence number.
+     *
+     * @return true if the notification should be processed, false if it was already received.
+     */
+    public synchronized boolean noteReceived (long sequence)
+    {
+        if (sequence <= _contiguous || !_ahead.add(sequence)) {
+            return false;
+        }
+        while (_ahead.remove(_contiguous + 1)) {
+            _contiguous++;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the highest sequence number through which every notification has been received, or
+     * zero if the first has yet to arrive.
+     */
+    public synchronized long getContiguous ()
+    {
+        return _contiguous;
+    }
+
+    /** The sequence number through which we've received every notification. */
+    protected long _contiguous;
+
+    /** The sequence numbers of notifications received ahead of a gap. */
+    protected Set<Long> _ahead = Sets.newHashSet();
+}
@@ -50,4 +50,8 @@ public interface InvocationCodes
     /** An error code returned to clients when a service cannot be performed because the requesting
      * client does not have the proper access. */
     public static final String E_ACCESS_DENIED = "e.access_denied";
+
+    /** An error code returned to clients when a service request is refused because the client
+     * has been sending requests faster than the server is willing to process them. */
+    public static final String E_THROTTLED = "e.throttled";
 }
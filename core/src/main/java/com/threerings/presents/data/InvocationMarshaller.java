@@ -22,6 +22,8 @@
 package com.threerings.presents.data;
 
 import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
 
 import com.threerings.io.ObjectInputStream;
 import com.threerings.io.Streamable;
@@ -49,6 +51,42 @@ public class InvocationMarshaller<T extends ClientObject>
     public static class ListenerMarshaller
         implements Streamable, InvocationListener
     {
+        /**
+         * Watches a listener on the server so that we can warn if it is collected without ever
+         * having been responded to. Only a sample of listeners are watched, see
+         * {@link #setLeakWatch}.
+         */
+        public static abstract class LeakWatch extends PhantomReference<ListenerMarshaller>
+        {
+            public LeakWatch (ListenerMarshaller listener,
+                              ReferenceQueue<? super ListenerMarshaller> queue)
+            {
+                super(listener, queue);
+            }
+
+            /**
+             * Called when the watched listener has responded (or has been marked as not needing
+             * to respond). The watch must clear itself so that it is never enqueued.
+             */
+            public abstract void responded ();
+        }
+
+        /**
+         * Notified on the server when a listener responds to its requester. See {@link
+         * #setResponseObserver}.
+         */
+        public static interface ResponseObserver
+        {
+            /**
+             * Called when the observed listener responds.
+             *
+             * @param elapsed the nanoseconds that elapsed between the observer being configured
+             * and the response.
+             * @param failed true if the response was a {@link #requestFailed} response.
+             */
+            void listenerResponded (long elapsed, boolean failed);
+        }
+
         /** The method id used to dispatch a {@link #requestFailed} response. */
         public static final int REQUEST_FAILED_RSPID = 0;
 
@@ -75,12 +113,25 @@ public class InvocationMarshaller<T extends ClientObject>
         public transient Transport transport;
 
         /**
-         * Set an identifier for the invocation that this listener is used for, so we can report it
-         * if we are never responded-to.
+         * Configures a watch that will report this listener if it is never responded-to. This is
+         * only done for a sample of listeners, the rest carry no tracking overhead.
          */
-        public void setInvocationId (String name)
+        public void setLeakWatch (LeakWatch watch)
         {
-            _invId = name;
+            _watch = watch;
+        }
+
+        /**
+         * Configures an observer to be notified when this listener responds, or clears the
+         * observer if null is supplied.
+         *
+         * @param start the time (per {@link System#nanoTime}) from which to measure the time
+         * taken to respond.
+         */
+        public void setResponseObserver (ResponseObserver observer, long start)
+        {
+            _observer = observer;
+            _observeStart = start;
         }
 
         /**
@@ -88,8 +139,8 @@ public class InvocationMarshaller<T extends ClientObject>
          */
         public void setNoResponse ()
         {
-            // we enact this by merely doing the same thing that we normally do during a response.
-            _invId = null;
+            clearLeakWatch();
+            _observer = null;
         }
 
         // documentation inherited from interface
@@ -119,29 +170,42 @@ public class InvocationMarshaller<T extends ClientObject>
                 ", type=" + getClass().getName() + "]";
         }
 
-        @Override
-        protected void finalize ()
-            throws Throwable
-        {
-            try {
-                if (_invId != null && getClass() != ListenerMarshaller.class) {
-                    log.warning("Invocation listener never responded to: " + _invId);
-                }
-            } finally {
-                super.finalize();
-            }
-        }
-
         /**
          * Handles sending a response to our requester.
          */
         protected void sendResponse (int methodId, Object... args)
         {
-            _invId = null;
+            noteResponse(methodId);
             omgr.postEvent(new InvocationResponseEvent(callerOid, requestId, methodId, args).
                            setTransport(transport));
         }
 
+        /**
+         * Notes that we have sent the specified response to our requester.
+         */
+        protected void noteResponse (int methodId)
+        {
+            clearLeakWatch();
+            ResponseObserver observer = _observer;
+            if (observer != null) {
+                _observer = null;
+                observer.listenerResponded(System.nanoTime() - _observeStart,
+                                           methodId == REQUEST_FAILED_RSPID);
+            }
+        }
+
+        /**
+         * Notes that we no longer need to be reported if we are collected.
+         */
+        protected void clearLeakWatch ()
+        {
+            LeakWatch watch = _watch;
+            if (watch != null) {
+                _watch = null;
+                watch.responded();
+            }
+        }
+
         /**
          * Performs type casts in a way that works for parameterized types as well as simple types.
          */
@@ -151,8 +215,14 @@ public class InvocationMarshaller<T extends ClientObject>
             return (K)value;
         }
 
-        /** On the server, the id of the invocation method. */
-        protected transient String _invId;
+        /** On the server, the watch that reports us if we're never responded-to, if sampled. */
+        protected transient LeakWatch _watch;
+
+        /** On the server, the observer to notify when we respond, if any. */
+        protected transient ResponseObserver _observer;
+
+        /** The time from which our observer measures our response time. */
+        protected transient long _observeStart;
     }
 
     /**
@@ -167,7 +237,7 @@ public class InvocationMarshaller<T extends ClientObject>
         // documentation inherited from interface
         public void requestProcessed ()
         {
-            _invId = null;
+            noteResponse(REQUEST_PROCESSED);
             omgr.postEvent(new InvocationResponseEvent(
                                callerOid, requestId, REQUEST_PROCESSED, null).
                            setTransport(transport));
@@ -199,7 +269,7 @@ public class InvocationMarshaller<T extends ClientObject>
         // documentation inherited from interface
         public void requestProcessed (Object result)
         {
-            _invId = null;
+            noteResponse(REQUEST_PROCESSED);
             omgr.postEvent(new InvocationResponseEvent(
                                callerOid, requestId, REQUEST_PROCESSED, new Object[] { result }).
                            setTransport(transport));
@@ -30,8 +30,9 @@ import com.threerings.nio.conman.ConMgrStats;
 public class PresentsConMgrStats extends ConMgrStats
     implements Streamable
 {
-    /** The size of the queue of waiting to auth sockets. This is a snapshot at the time the stats
-     * are requested. */
+    /** The number of connections waiting to be authenticated or being authenticated, plus those
+     * that have authenticated and are waiting to be started. This is a snapshot at the time the
+     * stats are requested. */
     public int authQueueSize;
 
     @Override // from Object
@@ -0,0 +1,51 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.presents.net;
+
+/**
+ * Notifies an authenticated client that the server is busy and that it is waiting in line to have
+ * its session started. Sent periodically while the client's position in line changes.
+ */
+public class AdmissionQueueMessage extends DownstreamMessage
+{
+    /** The client's position in line, starting at one for the next client to be admitted. */
+    public final int position;
+
+    /**
+     * Zero argument constructor used when unserializing an instance.
+     */
+    public AdmissionQueueMessage ()
+    {
+        this.position = 0;
+    }
+
+    public AdmissionQueueMessage (int position)
+    {
+        this.position = position;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[type=ADMQ, msgid=" + messageId + ", position=" + position + "]";
+    }
+}
@@ -52,6 +52,24 @@ public class ObjectResponse<T extends DObject>
         return _dobj;
     }
 
+    /**
+     * Returns the id of the first event whose effects are not reflected in the object as it was
+     * encoded for this response, or zero if it has not been noted. Used only on the server.
+     */
+    public long getFirstEventId ()
+    {
+        return _firstEventId;
+    }
+
+    /**
+     * Notes the id of the first event whose effects are not reflected in the object as it was
+     * encoded for this response.
+     */
+    public void setFirstEventId (long eventId)
+    {
+        _firstEventId = eventId;
+    }
+
     @Override
     public String toString ()
     {
@@ -60,4 +78,7 @@ public class ObjectResponse<T extends DObject>
 
     /** The object which is associated with this response. */
     protected T _dobj;
+
+    /** The id of the first event not reflected in our encoded object, on the server. */
+    protected transient long _firstEventId;
 }
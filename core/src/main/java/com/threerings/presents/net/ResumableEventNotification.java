@@ -0,0 +1,60 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.net;
+
+import com.threerings.presents.dobj.DEvent;
+
+/**
+ * An event notification that carries a sequence number assigned by the server as it delivers
+ * events to the client's session. Sequence numbers increase by one with each notification in the
+ * order in which the server queued them for delivery, which may differ from the order in which
+ * they arrive (urgent messages may overtake them) and from the order of their events' ids. Only
+ * sent to clients that have enabled session resumption, which report the highest sequence number
+ * up to which they have received every notification when they reconnect.
+ */
+public class ResumableEventNotification extends EventNotification
+{
+    /** This notification's position in its session's delivery sequence, starting at one. */
+    public final long sequence;
+
+    /**
+     * Zero argument constructor used when unserializing an instance.
+     */
+    public ResumableEventNotification ()
+    {
+        this.sequence = 0L;
+    }
+
+    /**
+     * Constructs a notification for the supplied event.
+     */
+    public ResumableEventNotification (DEvent event, long sequence)
+    {
+        super(event);
+        this.sequence = sequence;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[type=REVT, seq=" + sequence + ", evt=" + _event + "]";
+    }
+}
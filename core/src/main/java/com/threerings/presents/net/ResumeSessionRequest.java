@@ -0,0 +1,57 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.net;
+
+/**
+ * Sent by a client that wishes its session to survive a dropped connection. Sent with {@link
+ * #ENABLE} immediately after a fresh logon to request that the server deliver {@link
+ * ResumableEventNotification}s, and with the highest sequence number up to which the client
+ * received every notification immediately after reconnecting to ask that the server replay only
+ * the notifications that follow it.
+ */
+public class ResumeSessionRequest extends UpstreamMessage
+{
+    /** The sequence number sent by a freshly logged on client to enable resumption. */
+    public static final long ENABLE = -1L;
+
+    /** The sequence number through which the client received every notification, or {@link
+     * #ENABLE}. */
+    public final long lastSequence;
+
+    /**
+     * Zero argument constructor used when unserializing an instance.
+     */
+    public ResumeSessionRequest ()
+    {
+        this.lastSequence = ENABLE;
+    }
+
+    public ResumeSessionRequest (long lastSequence)
+    {
+        this.lastSequence = lastSequence;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[type=RESUME, msgid=" + messageId + ", lastSequence=" + lastSequence + "]";
+    }
+}
@@ -0,0 +1,57 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.net;
+
+/**
+ * Answers a {@link ResumeSessionRequest} sent by a reconnecting client. If the session was
+ * resumed, the events the client missed follow this response and no bootstrap will be sent.
+ * Otherwise the client must abandon its old session state.
+ */
+public class ResumeSessionResponse extends DownstreamMessage
+{
+    /** Whether or not the server was able to resume the session. */
+    public final boolean resumed;
+
+    /** The id of the client's new connection (used for datagram transmission). */
+    public final int connectionId;
+
+    /**
+     * Zero argument constructor used when unserializing an instance.
+     */
+    public ResumeSessionResponse ()
+    {
+        this.resumed = false;
+        this.connectionId = 0;
+    }
+
+    public ResumeSessionResponse (boolean resumed, int connectionId)
+    {
+        this.resumed = resumed;
+        this.connectionId = connectionId;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[type=RESUMED, msgid=" + messageId + ", resumed=" + resumed +
+            ", connectionId=" + connectionId + "]";
+    }
+}
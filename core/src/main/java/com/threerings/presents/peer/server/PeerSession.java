@@ -23,8 +23,6 @@ package com.threerings.presents.peer.server;
 
 import com.google.inject.Inject;
 
-import com.samskivert.util.Throttle;
-
 import com.threerings.presents.dobj.DObject;
 import com.threerings.presents.net.BootstrapData;
 import com.threerings.presents.net.DownstreamMessage;
@@ -32,6 +30,7 @@ import com.threerings.presents.net.Message;
 import com.threerings.presents.peer.data.NodeObject;
 import com.threerings.presents.peer.net.PeerBootstrapData;
 import com.threerings.presents.server.PresentsSession;
+import com.threerings.presents.server.RequestThrottle;
 import com.threerings.presents.server.net.PresentsConnection;
 
 import static com.threerings.presents.Log.log;
@@ -148,20 +147,22 @@ public class PeerSession extends PresentsSession
     }
 
     @Override // from PresentsSession
-    protected Throttle createIncomingMessageThrottle ()
+    protected RequestThrottle createIncomingMessageThrottle ()
     {
         // more than 100 messages per second and we complain about it
-        return new Throttle(100, 1000L);
+        return new RequestThrottle(100, 100);
     }
 
     @Override // from PresentsSession
-    protected void handleThrottleExceeded ()
+    protected void throttleMessage (Message message, long wait)
     {
+        // we never delay or refuse messages from our peers, we just complain
         long now = System.currentTimeMillis();
         if (now >= _nextThrottleWarning) {
             log.warning("Peer sent more than 100 messages in one second " + this + ".");
             _nextThrottleWarning = now + 5000L; // don't warn more than once every 5 seconds
         }
+        dispatchMessage(message);
     }
 
     protected PeerManager _peermgr;
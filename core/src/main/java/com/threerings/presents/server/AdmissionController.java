@@ -0,0 +1,381 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.presents.server;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import com.samskivert.util.Interval;
+import com.samskivert.util.Invoker;
+import com.samskivert.util.Lifecycle;
+
+import com.threerings.presents.annotation.MainInvoker;
+import com.threerings.presents.net.AdmissionQueueMessage;
+import com.threerings.presents.net.Message;
+import com.threerings.presents.net.PingRequest;
+import com.threerings.presents.net.PongResponse;
+import com.threerings.presents.server.net.PresentsConnection;
+
+import com.threerings.nio.conman.Connection;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * Limits the number of new sessions that may be resolving their client objects at once so that a
+ * storm of reconnecting clients (after a server restart, say) is worked through at a pace the
+ * server can sustain rather than degrading everything at once. Authenticated connections that
+ * arrive while we're at capacity wait in line and are periodically told their position. The
+ * number of concurrent resolutions is backed off when the distributed object or invoker queues
+ * are slow to respond and ramped back up as they recover.
+ */
+@Singleton
+public class AdmissionController
+    implements Lifecycle.Component
+{
+    @Inject public AdmissionController (Lifecycle cycle)
+    {
+        cycle.addComponent(this);
+    }
+
+    /**
+     * Called by the client manager when a new session is to be started on the supplied
+     * connection. This must be called on the connection's I/O loop thread.
+     *
+     * @param establish a runnable that will start the session, which will be run on the
+     * connection's I/O loop thread once it is admitted if it cannot be admitted immediately.
+     *
+     * @return true if the session may be started immediately, false if it has been queued up.
+     */
+    public boolean admit (PresentsConnection conn, Runnable establish)
+    {
+        synchronized (this) {
+            if (_maxResolving <= 0 || (_waiting.isEmpty() && hasCapacity())) {
+                return true;
+            }
+            Waiter waiter = new Waiter(conn, establish);
+            conn.setMessageHandler(waiter);
+            _waiting.add(waiter);
+            _queued++;
+        }
+        sendPositions();
+        return false;
+    }
+
+    /**
+     * Called by the client manager when it has started a new session, which will count against
+     * our limit until it has resolved its client object.
+     */
+    public synchronized void sessionResolving (PresentsSession session)
+    {
+        if (_maxResolving > 0) {
+            _resolving.add(session);
+        }
+    }
+
+    /**
+     * Called by the client manager when a session has been started or has ended, either of which
+     * means it is no longer resolving.
+     */
+    public void sessionResolved (PresentsSession session)
+    {
+        boolean removed;
+        synchronized (this) {
+            removed = _resolving.remove(session);
+        }
+        if (removed) {
+            admitWaiters();
+        }
+    }
+
+    /**
+     * Called by the client manager when a connection has closed or failed, so that we can remove
+     * it from our line if it is waiting.
+     */
+    public synchronized void connectionClosed (Connection conn)
+    {
+        for (Iterator<Waiter> iter = _waiting.iterator(); iter.hasNext(); ) {
+            if (iter.next().conn == conn) {
+                iter.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends a summary of our activity to the server report.
+     */
+    public synchronized void appendReport (StringBuilder report, boolean reset)
+    {
+        report.append("- Admission: ");
+        report.append(_resolving.size()).append(" resolving, ");
+        report.append(_waiting.size()).append(" waiting, ");
+        report.append(_limit).append(" limit, ");
+        report.append(_queued).append(" queued, ");
+        report.append(_dobjLatency).append("ms dobj latency, ");
+        report.append(_invokerLatency).append("ms invoker latency\n");
+        if (reset) {
+            _queued = 0;
+        }
+    }
+
+    // from interface Lifecycle.Component
+    public void init ()
+    {
+        _limit = _maxResolving;
+        if (_maxResolving > 0) {
+            _probe = new Interval(Interval.RUN_DIRECT) {
+                @Override public void expired () {
+                    probe();
+                }
+            };
+            _probe.schedule(PROBE_INTERVAL, true);
+        }
+    }
+
+    // from interface Lifecycle.Component
+    public void shutdown ()
+    {
+        if (_probe != null) {
+            _probe.cancel();
+            _probe = null;
+        }
+    }
+
+    /**
+     * Called periodically to measure how long the dobj and invoker threads are taking to get to
+     * new work, adjust our limit accordingly and admit and update waiting clients.
+     */
+    protected void probe ()
+    {
+        final long now = System.currentTimeMillis();
+
+        // if our previous probes haven't come back yet, their latency is at least their age
+        long latency = Math.max(_dobjLatency, _invokerLatency);
+        if (_dobjProbe > 0) {
+            latency = Math.max(latency, now - _dobjProbe);
+        }
+        if (_invokerProbe > 0) {
+            latency = Math.max(latency, now - _invokerProbe);
+        }
+
+        synchronized (this) {
+            if (latency > _targetLatency) {
+                // back off sharply when the server is struggling
+                _limit = Math.max(_limit / 2, 1);
+            } else {
+                // and ramp back up gradually once it recovers
+                _limit = Math.min(_limit + Math.max(_maxResolving / 10, 1), _maxResolving);
+            }
+        }
+
+        if (_dobjProbe == 0) {
+            _dobjProbe = now;
+            _omgr.postRunnable(new Runnable() {
+                public void run () {
+                    _dobjLatency = System.currentTimeMillis() - now;
+                    _dobjProbe = 0;
+                }
+            });
+        }
+        if (_invokerProbe == 0) {
+            _invokerProbe = now;
+            _invoker.postUnit(new Invoker.Unit("AdmissionController.probe") {
+                @Override public boolean invoke () {
+                    _invokerLatency = System.currentTimeMillis() - now;
+                    _invokerProbe = 0;
+                    return false;
+                }
+            });
+        }
+
+        admitWaiters();
+        sendPositions();
+    }
+
+    /**
+     * Admits as many waiting connections as our current limit allows.
+     */
+    protected void admitWaiters ()
+    {
+        List<Waiter> admitted = Lists.newArrayList();
+        synchronized (this) {
+            while (!_waiting.isEmpty() && hasCapacity()) {
+                admitted.add(_waiting.removeFirst());
+                _admitting++;
+            }
+        }
+        for (Waiter waiter : admitted) {
+            waiter.admit();
+        }
+    }
+
+    /**
+     * Lets waiting clients know their position in line, if it has changed since we last told
+     * them.
+     */
+    protected void sendPositions ()
+    {
+        final List<Waiter> waiters = Lists.newArrayList();
+        final List<Integer> positions = Lists.newArrayList();
+        synchronized (this) {
+            int position = 0;
+            for (Waiter waiter : _waiting) {
+                if (waiter.position != ++position) {
+                    waiter.position = position;
+                    waiters.add(waiter);
+                    positions.add(position);
+                }
+            }
+        }
+        if (waiters.isEmpty()) {
+            return;
+        }
+        _omgr.postRunnable(new Runnable() {
+            public void run () {
+                for (int ii = 0, ll = waiters.size(); ii < ll; ii++) {
+                    PresentsConnection conn = waiters.get(ii).conn;
+                    if (!conn.isClosed()) {
+                        conn.postMessage(new AdmissionQueueMessage(positions.get(ii)));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns true if another session may start resolving. Must be called with our lock held.
+     */
+    protected boolean hasCapacity ()
+    {
+        return _resolving.size() + _admitting < _limit;
+    }
+
+    /** Holds a connection waiting to be admitted and any messages it sends while waiting. */
+    protected class Waiter
+        implements PresentsConnection.MessageHandler
+    {
+        public final PresentsConnection conn;
+        public int position;
+
+        public Waiter (PresentsConnection conn, Runnable establish)
+        {
+            this.conn = conn;
+            _establish = establish;
+        }
+
+        /**
+         * Starts our session on our connection's loop and passes along anything we held on to.
+         */
+        public void admit ()
+        {
+            conn.getLoop().invoke(new Runnable() {
+                public void run () {
+                    try {
+                        if (!conn.isClosed()) {
+                            _establish.run();
+                            PresentsConnection.MessageHandler handler = conn.getMessageHandler();
+                            for (Message msg : _held) {
+                                handler.handleMessage(msg);
+                            }
+                        }
+                    } finally {
+                        synchronized (AdmissionController.this) {
+                            _admitting--;
+                        }
+                    }
+                }
+            });
+        }
+
+        // from interface PresentsConnection.MessageHandler
+        public void handleMessage (Message msg)
+        {
+            if (msg instanceof PingRequest) {
+                // keep the client's clock sync going while it waits
+                final PingRequest req = (PingRequest)msg;
+                _omgr.postRunnable(new Runnable() {
+                    public void run () {
+                        conn.postMessage(
+                            new PongResponse(req.getUnpackStamp(), req.getTransport()));
+                    }
+                });
+            } else if (_held.size() < MAX_HELD_MESSAGES) {
+                _held.add(msg);
+            } else {
+                log.warning("Dropping message from waiting connection", "conn", conn, "msg", msg);
+            }
+        }
+
+        protected Runnable _establish;
+        protected List<Message> _held = Lists.newArrayList();
+    }
+
+    /** Connections waiting to be admitted, in order of arrival. */
+    protected LinkedList<Waiter> _waiting = Lists.newLinkedList();
+
+    /** The sessions that are currently resolving their client objects. */
+    protected Set<PresentsSession> _resolving = Sets.newIdentityHashSet();
+
+    /** The number of waiters that have been admitted but have not yet started their session. */
+    protected int _admitting;
+
+    /** Our current limit on resolving sessions, adjusted based on server responsiveness. */
+    protected int _limit;
+
+    /** The number of connections that had to wait since our last report. */
+    protected int _queued;
+
+    /** Measures server responsiveness. */
+    protected Interval _probe;
+
+    /** The time at which our outstanding dobj and invoker probes were posted, or zero. */
+    protected volatile long _dobjProbe, _invokerProbe;
+
+    /** The latency measured by our most recently completed probes. */
+    protected volatile long _dobjLatency, _invokerLatency;
+
+    /** The maximum number of new sessions that may be resolving at once, or zero to disable
+     * admission control entirely. */
+    @Inject(optional=true) @Named("presents.admission.maxResolving")
+    protected int _maxResolving = 100;
+
+    /** The dobj or invoker queue latency (in millis) above which we slow admissions. */
+    @Inject(optional=true) @Named("presents.admission.targetLatency")
+    protected long _targetLatency = 250L;
+
+    @Inject protected PresentsDObjectMgr _omgr;
+    @Inject @MainInvoker protected Invoker _invoker;
+
+    /** The frequency with which we probe latency and update waiting clients. */
+    protected static final long PROBE_INTERVAL = 1000L;
+
+    /** The maximum number of messages we'll hold on to for a waiting connection. */
+    protected static final int MAX_HELD_MESSAGES = 64;
+}
@@ -28,6 +28,9 @@ import com.threerings.presents.data.AuthCodes;
 import com.threerings.presents.net.AuthRequest;
 import com.threerings.presents.net.AuthResponse;
 import com.threerings.presents.net.AuthResponseData;
+import com.threerings.presents.net.Credentials;
+import com.threerings.presents.net.ServiceCreds;
+import com.threerings.presents.net.UsernamePasswordCreds;
 import com.threerings.presents.server.net.AuthingConnection;
 
 import static com.threerings.presents.Log.log;
@@ -54,14 +57,76 @@ public abstract class Authenticator
      * Called by the connection management code when an authenticating connection has received its
      * authentication request from the client.
      */
-    public void authenticateConnection (Invoker invoker, final AuthingConnection conn,
-                                        final ResultListener<AuthingConnection> onComplete)
+    public void authenticateConnection (Invoker invoker, AuthingConnection conn,
+                                        ResultListener<AuthingConnection> onComplete)
+    {
+        invoker.postUnit(createAuthUnit(conn, onComplete));
+    }
+
+    /**
+     * Called by the connection management code when an authenticating connection has received its
+     * authentication request from the client and authentication is being performed in parallel.
+     * Requests with the same {@link #getOrderingKey} are processed strictly in order.
+     */
+    public void authenticateConnection (KeyedUnitExecutor executor, AuthingConnection conn,
+                                        ResultListener<AuthingConnection> onComplete)
+    {
+        executor.postUnit(getOrderingKey(conn), createAuthUnit(conn, onComplete));
+    }
+
+    /**
+     * Returns true if this authenticator may be handed connections via the {@link
+     * KeyedUnitExecutor} variant of {@link #authenticateConnection}. That is the case unless a
+     * subclass has customized the {@link Invoker} variant without also customizing the parallel
+     * one, in which case we route connections through the former so that its customizations are
+     * not silently bypassed.
+     */
+    public boolean supportsParallelAuthentication ()
+    {
+        if (_parallel == null) {
+            try {
+                Class<?> serial = getClass().getMethod("authenticateConnection", Invoker.class,
+                    AuthingConnection.class, ResultListener.class).getDeclaringClass();
+                Class<?> parallel = getClass().getMethod("authenticateConnection",
+                    KeyedUnitExecutor.class, AuthingConnection.class,
+                    ResultListener.class).getDeclaringClass();
+                _parallel = serial.isAssignableFrom(parallel);
+            } catch (NoSuchMethodException nsme) {
+                _parallel = false; // can't happen, but be conservative
+            }
+        }
+        return _parallel;
+    }
+
+    /**
+     * Returns the key that identifies the user authenticating on the supplied connection. Requests
+     * with equal keys are never processed concurrently, which prevents racing duplicate sessions
+     * for the same user. Returns null if the user cannot be identified, in which case the request
+     * is not ordered with respect to any other.
+     */
+    protected Object getOrderingKey (AuthingConnection conn)
+    {
+        Credentials creds = conn.getAuthRequest().getCredentials();
+        if (creds instanceof UsernamePasswordCreds) {
+            return ((UsernamePasswordCreds)creds).getUsername();
+        } else if (creds instanceof ServiceCreds) {
+            return ((ServiceCreds)creds).clientId;
+        }
+        return null;
+    }
+
+    /**
+     * Creates the unit that authenticates the supplied connection and reports back to the
+     * connection manager.
+     */
+    protected Invoker.Unit createAuthUnit (final AuthingConnection conn,
+                                           final ResultListener<AuthingConnection> onComplete)
     {
         final AuthRequest req = conn.getAuthRequest();
         final AuthResponseData rdata = createResponseData();
         final AuthResponse rsp = new AuthResponse(rdata);
 
-        invoker.postUnit(new Invoker.Unit("authenticateConnection") {
+        return new Invoker.Unit("authenticateConnection") {
             @Override
             public boolean invoke () {
                 try {
@@ -94,7 +159,7 @@ public abstract class Authenticator
                     onComplete.requestCompleted(conn);
                 }
             }
-        });
+        };
     }
 
     /**
@@ -115,4 +180,7 @@ public abstract class Authenticator
      */
     protected abstract void processAuthentication (AuthingConnection conn, AuthResponse rsp)
         throws Exception;
+
+    /** Whether we can authenticate via a {@link KeyedUnitExecutor}, or null if not yet known. */
+    protected Boolean _parallel;
 }
@@ -0,0 +1,227 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.presents.server;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.samskivert.util.Interval;
+import com.samskivert.util.Invoker;
+
+import com.threerings.util.Name;
+
+import com.threerings.presents.annotation.MainInvoker;
+import com.threerings.presents.data.ClientObject;
+
+/**
+ * A client resolver that loads the data for many clients at once. Resolvers of the same class
+ * whose client objects become available within a short window are gathered into a batch and
+ * {@link #loadClientData} is called once with all of their names, allowing the implementation to
+ * do multi-row database loads rather than a set of round trips per client. Each resolver is then
+ * handed its share of the results via {@link #resolveClientData(ClientObject,Object)} and goes on
+ * to {@link #finishResolution} just as a regular resolver would.
+ *
+ * @param <T> the type of data loaded for each client.
+ */
+public abstract class BatchingClientResolver<T> extends ClientResolver
+{
+    /**
+     * Gathers batching resolvers into batches. All access happens on the dobj thread.
+     */
+    @Singleton
+    public static class Batcher
+    {
+        /**
+         * Adds the supplied resolver to the pending batch for its class, starting a new batch if
+         * necessary.
+         */
+        public void add (BatchingClientResolver<?> resolver)
+        {
+            final Class<?> rclass = resolver.getClass();
+            List<BatchingClientResolver<?>> batch = _batches.get(rclass);
+            if (batch == null) {
+                _batches.put(rclass, batch = Lists.newArrayList());
+                Interval window = _omgr.newInterval(new Runnable() {
+                    public void run () {
+                        flush(rclass);
+                    }
+                });
+                _windows.put(rclass, window);
+                window.schedule(resolver.getBatchWindow());
+            }
+            batch.add(resolver);
+            if (batch.size() >= resolver.getMaxBatchSize()) {
+                flush(rclass);
+            }
+        }
+
+        /**
+         * Posts the pending batch for the specified class (if it has not already been posted) to
+         * the invoker.
+         */
+        protected void flush (Class<?> rclass)
+        {
+            // cancel the batch's window, lest it expire during and prematurely flush the next
+            // batch of its class
+            Interval window = _windows.remove(rclass);
+            if (window != null) {
+                window.cancel();
+            }
+            List<BatchingClientResolver<?>> batch = _batches.remove(rclass);
+            if (batch != null) {
+                _invoker.postUnit(new BatchUnit(batch));
+            }
+        }
+
+        /** Pending batches by resolver class. */
+        protected Map<Class<?>, List<BatchingClientResolver<?>>> _batches = Maps.newHashMap();
+
+        /** The intervals that will flush our pending batches, by resolver class. */
+        protected Map<Class<?>, Interval> _windows = Maps.newHashMap();
+
+        @Inject protected PresentsDObjectMgr _omgr;
+        @Inject @MainInvoker protected Invoker _invoker;
+    }
+
+    @Override
+    public void objectAvailable (ClientObject object)
+    {
+        // rather than posting ourselves to the invoker, join the pending batch
+        _clobj = object;
+        _batcher.add(this);
+    }
+
+    /**
+     * Loads the data for all of the supplied clients. This is called on the invoker thread, on
+     * one resolver of the batch, with the names of all of the clients in the batch. Any exception
+     * thrown fails the resolution of every client in the batch.
+     *
+     * @return the loaded data, mapped by name. Clients with no entry will be passed null.
+     */
+    protected abstract Map<Name, T> loadClientData (List<Name> names)
+        throws Exception;
+
+    /**
+     * Populates the supplied client object with the data loaded for it by {@link
+     * #loadClientData}. This is called on the invoker thread and should not perform any database
+     * loads of its own. Any exception thrown is reported as a failure of this client only.
+     */
+    protected abstract void resolveClientData (ClientObject clobj, T data)
+        throws Exception;
+
+    @Override
+    protected void resolveClientData (ClientObject clobj)
+        throws Exception
+    {
+        super.resolveClientData(clobj);
+        resolveClientData(clobj, _data);
+    }
+
+    /**
+     * Returns the number of milliseconds to wait for other resolutions to join a batch before
+     * loading it.
+     */
+    protected long getBatchWindow ()
+    {
+        return 50L;
+    }
+
+    /**
+     * Returns the size at which a batch is loaded immediately rather than waiting for its window
+     * to expire.
+     */
+    protected int getMaxBatchSize ()
+    {
+        return 100;
+    }
+
+    /** Loads and resolves a batch of clients on the invoker thread. */
+    protected static class BatchUnit extends Invoker.Unit
+    {
+        public BatchUnit (List<BatchingClientResolver<?>> batch)
+        {
+            super("BatchingClientResolver");
+            _batch = batch;
+        }
+
+        @Override
+        public boolean invoke ()
+        {
+            List<Name> names = Lists.newArrayListWithCapacity(_batch.size());
+            for (BatchingClientResolver<?> resolver : _batch) {
+                names.add(resolver._username);
+            }
+
+            Map<Name, ?> data;
+            try {
+                data = _batch.get(0).loadClientData(names);
+            } catch (Exception cause) {
+                for (BatchingClientResolver<?> resolver : _batch) {
+                    resolver._failure = cause;
+                }
+                return true;
+            }
+
+            // now split the results back out to the individual resolvers
+            for (BatchingClientResolver<?> resolver : _batch) {
+                resolver.setData(data.get(resolver._username));
+                resolver.invoke();
+            }
+            return true;
+        }
+
+        @Override
+        public void handleResult ()
+        {
+            for (BatchingClientResolver<?> resolver : _batch) {
+                resolver.handleResult();
+            }
+        }
+
+        @Override
+        public String toString ()
+        {
+            return "BatchingClientResolver:" + _batch.size();
+        }
+
+        protected List<BatchingClientResolver<?>> _batch;
+    }
+
+    /**
+     * Stores the data loaded for our client by the batch.
+     */
+    @SuppressWarnings("unchecked")
+    protected void setData (Object data)
+    {
+        _data = (T)data;
+    }
+
+    /** The data loaded for our client by the batch. */
+    protected T _data;
+
+    @Inject protected Batcher _batcher;
+}
@@ -0,0 +1,293 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import com.samskivert.util.Invoker;
+import com.samskivert.util.Lifecycle;
+import com.samskivert.util.ResultListener;
+
+import com.threerings.presents.annotation.AnyThread;
+import com.threerings.presents.annotation.BlockingThread;
+import com.threerings.presents.data.ClientObject;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * Runs blocking work (calls to remote services, file access and the like) that is started on the
+ * dobj thread, without tying up the invoker behind it. Each call is run on one of a bounded pool
+ * of threads and its result is delivered back to a listener on the dobj thread. The client on
+ * whose behalf a call is made may be supplied, in which case it is available to the call via
+ * {@link #getCaller} and noted should the call fail.
+ */
+@Singleton
+public class BlockingExecutor
+    implements Lifecycle.ShutdownComponent
+{
+    /** The default maximum number of calls that run at once. */
+    public static final int DEFAULT_THREADS = 16;
+
+    @Inject public BlockingExecutor (PresentsDObjectMgr omgr, Lifecycle cycle, ReportManager repmgr,
+                                     StallWatchdog watchdog)
+    {
+        _omgr = omgr;
+        _watchdog = watchdog;
+        cycle.addComponent(this);
+        repmgr.registerReporter(ReportManager.DEFAULT_TYPE, new ReportManager.Reporter() {
+            public void appendReport (StringBuilder buf, long now, long sinceLast, boolean reset) {
+                buf.append("* presents.BlockingExecutor:\n");
+                KeyedUnitExecutor exec = _exec;
+                buf.append("- Pending calls: ");
+                buf.append((exec == null) ? 0 : exec.getPendingUnits()).append("\n");
+                long calls = reset ? _calls.getAndSet(0) : _calls.get();
+                long failures = reset ? _failures.getAndSet(0) : _failures.get();
+                buf.append("- Calls run: ").append(calls).append("\n");
+                buf.append("- Calls failed: ").append(failures).append("\n");
+            }
+        });
+        repmgr.registerReporter(ReportManager.PROFILE_TYPE, new ReportManager.Reporter() {
+            public void appendReport (StringBuilder buf, long now, long sinceLast, boolean reset) {
+                buf.append("* presents.BlockingExecutor:\n");
+                for (Map.Entry<String, PresentsDObjectMgr.UnitProfile> entry :
+                         _profiles.entrySet()) {
+                    PresentsDObjectMgr.UnitProfile profile = entry.getValue();
+                    synchronized (profile) {
+                        buf.append("  ").append(entry.getKey()).append(" ");
+                        buf.append(profile).append("\n");
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Configures the maximum number of calls that may run at once. This must be called before the
+     * first call is executed.
+     */
+    @Inject(optional=true)
+    public void setThreads (@Named("presents.blocking.threads") int threads)
+    {
+        _threads = threads;
+    }
+
+    /**
+     * Returns the client on whose behalf the calling thread is running a call, or null if it is
+     * not running a call or no client was supplied. Only the client's oid and username should be
+     * read off of the dobj thread.
+     */
+    @BlockingThread
+    public static ClientObject getCaller ()
+    {
+        return _caller.get();
+    }
+
+    /**
+     * Runs the supplied call on a pool thread and reports its result or failure to the supplied
+     * listener on the dobj thread.
+     *
+     * @param name identifies the call in logs and profiling reports.
+     * @param listener the listener to inform, or null if failures should simply be logged.
+     */
+    @AnyThread
+    public <T> void execute (String name, Callable<T> call, ResultListener<T> listener)
+    {
+        execute(name, null, call, listener);
+    }
+
+    /**
+     * Runs the supplied call on a pool thread on behalf of the supplied client and reports its
+     * result or failure to the supplied listener on the dobj thread.
+     *
+     * @param name identifies the call in logs and profiling reports.
+     * @param caller the client on whose behalf the call is made, or null.
+     * @param listener the listener to inform, or null if failures should simply be logged. If we
+     * have been shut down, the listener is informed of a {@link RejectedExecutionException}.
+     */
+    @AnyThread
+    public <T> void execute (String name, ClientObject caller, Callable<T> call,
+                             ResultListener<T> listener)
+    {
+        CallUnit<T> unit = new CallUnit<T>(name, caller, call, listener);
+        KeyedUnitExecutor exec = getExecutor();
+        if (exec != null) {
+            try {
+                exec.postUnit(null, unit);
+                return;
+            } catch (RejectedExecutionException ree) {
+                // we were shut down after getting our executor, fall through
+            }
+        }
+
+        unit._error = new RejectedExecutionException("Blocking executor shut down");
+        if (listener == null) {
+            log.warning("Dropping blocking call after shutdown", "call", unit);
+        } else {
+            _omgr.postRunnable(unit);
+        }
+    }
+
+    // from interface Lifecycle.ShutdownComponent
+    public void shutdown ()
+    {
+        KeyedUnitExecutor exec;
+        synchronized (this) {
+            exec = _exec;
+            _exec = null;
+            _shutdown = true;
+        }
+        if (exec != null) {
+            exec.shutdown();
+        }
+    }
+
+    /**
+     * Returns the executor on which we run calls, creating it if need be, or null if we have been
+     * shut down.
+     */
+    protected synchronized KeyedUnitExecutor getExecutor ()
+    {
+        if (_shutdown) {
+            return null;
+        }
+        if (_exec == null) {
+            _exec = new KeyedUnitExecutor("presents.BlockingExecutor", _omgr, _threads);
+            _exec.setWatchdog(_watchdog);
+        }
+        return _exec;
+    }
+
+    /**
+     * Records the time (in microseconds) taken by a call in the profile for its name.
+     */
+    protected void recordProfile (String name, long elapsed)
+    {
+        PresentsDObjectMgr.UnitProfile profile = _profiles.get(name);
+        if (profile == null) {
+            PresentsDObjectMgr.UnitProfile nprofile = new PresentsDObjectMgr.UnitProfile();
+            profile = _profiles.putIfAbsent(name, nprofile);
+            if (profile == null) {
+                profile = nprofile;
+            }
+        }
+        synchronized (profile) {
+            profile.record(elapsed);
+        }
+    }
+
+    /** Runs a call and then reports its result on the dobj thread. */
+    protected class CallUnit<T> extends Invoker.Unit
+    {
+        public CallUnit (String name, ClientObject caller, Callable<T> call,
+                         ResultListener<T> listener)
+        {
+            super(name);
+            _caller = caller;
+            _who = (caller == null) ? null : caller.who();
+            _call = call;
+            _listener = listener;
+        }
+
+        @Override // from Invoker.Unit
+        public boolean invoke ()
+        {
+            long start = System.nanoTime();
+            BlockingExecutor._caller.set(_caller);
+            try {
+                _result = _call.call();
+            } catch (Exception e) {
+                _error = e;
+            } catch (Throwable t) {
+                // our listener can only be told of exceptions, but it must hear of errors too
+                _error = new ExecutionException(t);
+            } finally {
+                BlockingExecutor._caller.remove();
+            }
+            recordProfile(_name, (System.nanoTime() - start)/1000);
+            _calls.incrementAndGet();
+
+            if (_error != null) {
+                _failures.incrementAndGet();
+                if (_listener == null) {
+                    log.warning("Blocking call failed", "call", _name, "caller", _who, _error);
+                }
+            }
+            return (_listener != null);
+        }
+
+        @Override // from Invoker.Unit
+        public void handleResult ()
+        {
+            if (_error != null) {
+                _listener.requestFailed(_error);
+            } else {
+                _listener.requestCompleted(_result);
+            }
+        }
+
+        @Override
+        public String toString ()
+        {
+            return (_who == null) ? _name : (_name + " for " + _who);
+        }
+
+        protected ClientObject _caller;
+        protected String _who;
+        protected Callable<T> _call;
+        protected ResultListener<T> _listener;
+        protected T _result;
+        protected Exception _error;
+    }
+
+    /** Delivers the results of our calls. */
+    protected PresentsDObjectMgr _omgr;
+
+    /** Watches our threads for calls that stall them. */
+    protected StallWatchdog _watchdog;
+
+    /** Runs our calls, created when first needed. */
+    protected KeyedUnitExecutor _exec;
+
+    /** Set once we've been shut down. */
+    protected boolean _shutdown;
+
+    /** The maximum number of calls that run at once. */
+    protected int _threads = DEFAULT_THREADS;
+
+    /** Profiles of the time taken by our calls, by name. */
+    protected ConcurrentHashMap<String, PresentsDObjectMgr.UnitProfile> _profiles =
+        new ConcurrentHashMap<String, PresentsDObjectMgr.UnitProfile>();
+
+    /** Counts of calls run and failed since our last report. */
+    protected AtomicLong _calls = new AtomicLong(), _failures = new AtomicLong();
+
+    /** The client on whose behalf each of our threads is running a call. */
+    protected static ThreadLocal<ClientObject> _caller = new ThreadLocal<ClientObject>();
+}
@@ -21,7 +21,8 @@
 
 package com.threerings.presents.server;
 
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -38,6 +39,7 @@ import com.google.inject.Singleton;
 import com.samskivert.util.Lifecycle;
 import com.samskivert.util.ObserverList;
 import com.samskivert.util.StringUtil;
+import com.samskivert.util.Tuple;
 
 import com.threerings.util.Name;
 
@@ -163,9 +165,7 @@ public class ClientManager
      */
     public int getClientCount ()
     {
-        synchronized (_usermap) {
-            return _usermap.size();
-        }
+        return _sessions.size();
     }
 
     /**
@@ -174,19 +174,7 @@ public class ClientManager
      */
     public List<PresentsSession> getSessionsForAddress (byte[] addr)
     {
-        List<PresentsSession> sessions = Lists.newArrayListWithExpectedSize(1);
-        synchronized (_usermap) {
-            for (PresentsSession session : _usermap.values()) {
-                InetAddress sessionAddr = session.getInetAddress();
-                if (sessionAddr == null) {
-                    continue;
-                }
-                if (Arrays.equals(addr, sessionAddr.getAddress())) {
-                    sessions.add(session);
-                }
-            }
-        }
-        return sessions;
+        return _sessions.getByAddress(addr);
     }
 
     /**
@@ -241,9 +229,16 @@ public class ClientManager
      */
     public PresentsSession getClient (Name authUsername)
     {
-        synchronized (_usermap) {
-            return _usermap.get(authUsername);
-        }
+        return _sessions.get(authUsername);
+    }
+
+    /**
+     * Returns the client instance whose session is using the client object with the specified oid
+     * or null if no such session exists.
+     */
+    public PresentsSession getClient (int cloid)
+    {
+        return _sessions.getByOid(cloid);
     }
 
     /**
@@ -385,17 +380,15 @@ public class ClientManager
     // from interface Lifecycle.Component
     public void shutdown ()
     {
-        log.info("Client manager shutting down", "ccount", _usermap.size());
+        log.info("Client manager shutting down", "ccount", _sessions.size());
 
         // inform all of our clients that they are being shut down
-        synchronized (_usermap) {
-            for (PresentsSession pc : _usermap.values()) {
-                try {
-                    pc.shutdown();
-                } catch (Exception e) {
-                    log.warning("Client choked in shutdown()",
-                                "client", StringUtil.safeToString(pc), e);
-                }
+        for (PresentsSession pc : _sessions.values()) {
+            try {
+                pc.shutdown();
+            } catch (Exception e) {
+                log.warning("Client choked in shutdown()",
+                            "client", StringUtil.safeToString(pc), e);
             }
         }
     }
@@ -444,6 +437,35 @@ public class ClientManager
      * Called by the connection manager to let us know when a new connection has been established.
      */
     public synchronized void connectionEstablished (
+        final PresentsConnection conn, final Name authname, final AuthRequest req,
+        final AuthResponse rsp)
+    {
+        // new sessions have to be admitted, which may mean waiting their turn
+        if (getClient(authname) == null && !_admitter.admit(conn, new Runnable() {
+            public void run () {
+                admitConnection(conn, authname, req, rsp);
+            }
+        })) {
+            log.info("Session queued for admission", "who", authname, "conn", conn);
+            return;
+        }
+        establishSession(conn, authname, req, rsp);
+    }
+
+    /**
+     * Called on the connection's I/O loop thread when a connection that had to wait its turn has
+     * been admitted.
+     */
+    protected synchronized void admitConnection (
+        PresentsConnection conn, Name authname, AuthRequest req, AuthResponse rsp)
+    {
+        establishSession(conn, authname, req, rsp);
+    }
+
+    /**
+     * Starts a new session for, or resumes an existing session with, the supplied connection.
+     */
+    protected void establishSession (
         PresentsConnection conn, Name authname, AuthRequest req, AuthResponse rsp)
     {
         String type = authname.getClass().getSimpleName();
@@ -467,17 +489,16 @@ public class ClientManager
             // create a new session and stick'em in the table
             session = _injector.getInstance(sessionClass);
             session.startSession(authname, req, conn, rsp.authdata);
+            _admitter.sessionResolving(session);
 
-            // map their session instance
-            synchronized (_usermap) {
-                // we refetch the authname from the session for use in the map in case it decides
-                // to do something crazy like rewrite it in startSession()
-                _usermap.put(session.getAuthName(), session);
-            }
+            // map their session instance (which will use the authname from the session in case it
+            // decides to do something crazy like rewrite it in startSession())
+            _sessions.add(session);
         }
 
         // map this connection to this session
         _conmap.put(conn, session);
+        _sessions.connected(session, conn);
     }
 
     /**
@@ -485,12 +506,15 @@ public class ClientManager
      */
     public synchronized void connectionFailed (Connection conn, IOException fault)
     {
+        _admitter.connectionClosed(conn);
+
         // remove the session from the connection map
         PresentsSession session = _conmap.remove(conn);
         if (session != null) {
             log.info("Unmapped failed session", "session", session, "conn", conn, "fault", fault);
             // let the session know the connection went away
             session.wasUnmapped();
+            _sessions.disconnected(session, conn);
             // and let the session know things went haywire
             session.connectionFailed(fault);
 
@@ -504,12 +528,15 @@ public class ClientManager
      */
     public synchronized void connectionClosed (Connection conn)
     {
+        _admitter.connectionClosed(conn);
+
         // remove the session from the connection map
         PresentsSession session = _conmap.remove(conn);
         if (session != null) {
             log.debug("Unmapped session", "session", session, "conn", conn);
             // let the session know the connection went away
             session.wasUnmapped();
+            _sessions.disconnected(session, conn);
 
         } else {
             log.info("Closed unmapped connection '" + conn + "'. " +
@@ -522,12 +549,41 @@ public class ClientManager
     {
         report.append("* presents.ClientManager:\n");
         report.append("- Sessions: ");
-        synchronized (_usermap) {
-            report.append(_usermap.size()).append(" total, ");
-        }
+        report.append(_sessions.size()).append(" total, ");
         report.append(_conmap.size()).append(" connected, ");
         report.append(_penders.size()).append(" pending\n");
         report.append("- Mapped users: ").append(_objmap.size()).append("\n");
+        _admitter.appendReport(report, reset);
+
+        // note the sessions that have been most heavily throttled
+        List<Tuple<Integer, String>> throttled = Lists.newArrayList();
+        for (PresentsSession session : _sessions.values()) {
+            RequestThrottle throttle = session._throttle;
+            if (throttle == null) {
+                continue;
+            }
+            int shed = throttle.getShed(), delayed = throttle.getDelayed();
+            if (shed + delayed > 0) {
+                throttled.add(Tuple.newTuple(shed + delayed, session.who() + " (" + shed +
+                                             " shed, " + delayed + " delayed)"));
+            }
+            if (reset) {
+                throttle.resetStats();
+            }
+        }
+        if (!throttled.isEmpty()) {
+            Collections.sort(throttled, new Comparator<Tuple<Integer, String>>() {
+                public int compare (Tuple<Integer, String> t1, Tuple<Integer, String> t2) {
+                    return t2.left.compareTo(t1.left);
+                }
+            });
+            report.append("- Throttled: ").append(throttled.size()).append(" sessions");
+            for (Tuple<Integer, String> entry :
+                     throttled.subList(0, Math.min(5, throttled.size()))) {
+                report.append(", ").append(entry.right);
+            }
+            report.append("\n");
+        }
     }
 
     /**
@@ -536,6 +592,10 @@ public class ClientManager
     @EventThread
     protected void clientSessionDidStart (final PresentsSession session)
     {
+        // this session is no longer tying up resolution resources
+        _admitter.sessionResolved(session);
+        _sessions.mapClientObject(session, session.getClientObject().getOid());
+
         // let the observers know
         _clobservers.apply(new ObserverList.ObserverOp<ClientObserver>() {
             public boolean apply (ClientObserver observer) {
@@ -545,6 +605,15 @@ public class ClientManager
         });
     }
 
+    /**
+     * Called by PresentsSession when it has switched to a new client object.
+     */
+    @EventThread
+    protected void clientObjectDidChange (PresentsSession session)
+    {
+        _sessions.mapClientObject(session, session.getClientObject().getOid());
+    }
+
     /**
      * Called by PresentsSession when it is about to end its session.
      */
@@ -580,11 +649,11 @@ public class ClientManager
      */
     protected void clearSession (PresentsSession session)
     {
+        // in case the session ended before it finished resolving
+        _admitter.sessionResolved(session);
+
         // remove the session from the username map
-        PresentsSession rc;
-        synchronized (_usermap) {
-            rc = _usermap.remove(session.getAuthName());
-        }
+        PresentsSession rc = _sessions.remove(session);
 
         // sanity check just because we can
         if (rc == null) {
@@ -602,20 +671,8 @@ public class ClientManager
      */
     protected void flushSessions ()
     {
-        List<PresentsSession> victims = Lists.newArrayList();
         long now = System.currentTimeMillis();
-
-        // first build a list of our victims
-        synchronized (_usermap) {
-            for (PresentsSession session : _usermap.values()) {
-                if (session.checkExpired(now)) {
-                    victims.add(session);
-                }
-            }
-        }
-
-        // now end their sessions
-        for (PresentsSession session : victims) {
+        for (PresentsSession session : _sessions.getExpired(now)) {
             try {
                 log.info("Session expired, ending session", "session", session,
                          "dtime", (now-session.getNetworkStamp()) + "ms].");
@@ -629,8 +686,8 @@ public class ClientManager
     /** Used to resolve dependencies in {@link PresentsSession} instances that we create. */
     protected Injector _injector;
 
-    /** A mapping from auth username to session instances. */
-    protected Map<Name, PresentsSession> _usermap = Maps.newHashMap();
+    /** Our session instances, by auth username, address and client object oid. */
+    protected SessionRegistry _sessions = new SessionRegistry(SESSION_FLUSH_INTERVAL);
 
     /** A mapping from connections to session instances. */
     protected Map<Connection, PresentsSession> _conmap = Maps.newHashMap();
@@ -653,6 +710,9 @@ public class ClientManager
     // our injected dependencies
     @Inject protected PresentsDObjectMgr _omgr;
 
+    /** Paces the starting of new sessions. */
+    @Inject protected AdmissionController _admitter;
+
     /** The frequency with which we check for expired sessions. */
     protected static final long SESSION_FLUSH_INTERVAL = 60 * 1000L;
 }
@@ -40,9 +40,11 @@ import static com.threerings.presents.Log.log;
  * Used to resolve client data when a user starts a session (or when some other entity needs access
  * to a client object). Implementations will want to extend this class and override {@link
  * #resolveClientData}, making the necessary database calls and populating the client object
- * appropriately.
+ * appropriately. Systems that would rather load many clients with one set of queries during busy
+ * periods can extend {@link BatchingClientResolver} instead.
  */
 public class ClientResolver extends Invoker.Unit
+    implements PresentsInvoker.Keyed
 {
     /**
      * Thrown during resolution if the client disconnects.
@@ -97,6 +99,19 @@ public class ClientResolver extends Invoker.Unit
         _invoker.postUnit(this);
     }
 
+    /**
+     * Returns the key that determines the order in which this resolver is run by the {@link
+     * PresentsInvoker}. By default this is null, so that resolution is run on the invoker's main
+     * thread in order with any (unkeyed) units saving the user's data, including those flushed
+     * by the {@link WriteBehindQueue}. Systems that key all of a user's persistence by their
+     * username can return it here to resolve clients in parallel, in which case they should have
+     * {@link WriteBehindQueue#getInvokerKey} use the same key.
+     */
+    public Object getOrderingKey ()
+    {
+        return null;
+    }
+
     @Override
     public boolean invoke ()
     {
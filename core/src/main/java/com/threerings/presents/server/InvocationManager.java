@@ -21,11 +21,13 @@
 
 package com.threerings.presents.server;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Lists;
@@ -33,14 +35,18 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
 import com.samskivert.util.IntMap;
 import com.samskivert.util.IntMaps;
+import com.samskivert.util.Invoker;
 import com.samskivert.util.LRUHashMap;
+import com.samskivert.util.Lifecycle;
 import com.samskivert.util.StringUtil;
 
 import com.threerings.io.Streamable;
 
+import com.threerings.presents.annotation.ConcurrentDispatch;
 import com.threerings.presents.client.Client;
 import com.threerings.presents.data.ClientObject;
 import com.threerings.presents.data.InvocationCodes;
@@ -51,6 +57,8 @@ import com.threerings.presents.dobj.DObject;
 import com.threerings.presents.dobj.EventListener;
 import com.threerings.presents.dobj.InvocationRequestEvent;
 import com.threerings.presents.net.Transport;
+import com.threerings.presents.server.InvocationStats.MethodStats;
+import com.threerings.presents.server.InvocationStats.ServiceStats;
 
 import static com.threerings.presents.Log.log;
 
@@ -80,11 +88,23 @@ public class InvocationManager
      * operate its invocation services. Generally only one invocation manager should be operational
      * in a particular system.
      */
-    @Inject public InvocationManager (PresentsDObjectMgr omgr)
+    @Inject public InvocationManager (PresentsDObjectMgr omgr, Lifecycle cycle)
     {
         _omgr = omgr;
         _omgr._invmgr = this;
 
+        // our concurrent executor is created on demand, but we must register to shut it down now
+        // as components cannot be added once shutdown has started
+        cycle.addComponent(new Lifecycle.ShutdownComponent() {
+            public void shutdown () {
+                _concurrentShutdown = true;
+                KeyedUnitExecutor exec = _concurrentExec;
+                if (exec != null) {
+                    exec.shutdown();
+                }
+            }
+        });
+
         // create the object on which we'll listen for invocation requests
         DObject invobj = _omgr.registerObject(new DObject());
         invobj.addListener(this);
@@ -93,6 +113,17 @@ public class InvocationManager
         log.debug("Created invocation service object", "oid", _invoid);
     }
 
+    /**
+     * Configures the rate at which invocation listeners are sampled to check that they are
+     * eventually responded-to: one in every <code>rate</code> listeners is checked, a rate of one
+     * checks every listener and zero disables the check.
+     */
+    @Inject(optional=true)
+    public void setListenerSampleRate (@Named("presents.invocation.listenerSampleRate") int rate)
+    {
+        _leakTracker.setSampleRate(rate);
+    }
+
     /**
      * Returns the object id of the invocation services object.
      */
@@ -128,6 +159,12 @@ public class InvocationManager
     {
         _omgr.requireEventThread(); // sanity check
 
+        // if a dispatcher was generated for this service, use it rather than reflection
+        InvocationDispatcher<T> gendisp = createGeneratedDispatcher(provider, mclass);
+        if (gendisp != null) {
+            return registerDispatcher(gendisp, group);
+        }
+
         // find the invocation provider interface class (defaulting to the concrete class to cope
         // with legacy non-interface based providers)
         Class<?> pclass = provider.getClass();
@@ -144,7 +181,7 @@ public class InvocationManager
         }
 
         // determine the invocation service code mappings
-        final Map<Integer,Method> invmeths = Maps.newHashMap();
+        Map<Integer,Method> methmap = Maps.newHashMap();
         for (Method method : pclass.getMethods()) {
             Class<?>[] ptypes = method.getParameterTypes();
             // only consider methods whose first argument is of type ClientObject; this is a
@@ -157,7 +194,7 @@ public class InvocationManager
             }
             try {
                 Field code = mclass.getField(StringUtil.unStudlyName(method.getName()));
-                invmeths.put(code.getInt(null), method);
+                methmap.put(code.getInt(null), method);
             } catch (IllegalAccessException iae) {
                 throw new RuntimeException(iae); // Field.get failed? shouldn't happen
             } catch (NoSuchFieldException nsfe) {
@@ -165,6 +202,23 @@ public class InvocationManager
             }
         }
 
+        // index the methods by code (which are small and dense) so that we can look them up without
+        // boxing, and suppress the access checks that would otherwise be made on every call
+        int maxCode = -1;
+        for (Integer code : methmap.keySet()) {
+            maxCode = Math.max(maxCode, code);
+        }
+        final Method[] invmeths = new Method[maxCode+1];
+        for (Map.Entry<Integer,Method> entry : methmap.entrySet()) {
+            Method method = entry.getValue();
+            try {
+                method.setAccessible(true);
+            } catch (SecurityException se) {
+                // no matter, we'll just pay for the access checks
+            }
+            invmeths[entry.getKey()] = method;
+        }
+
         // get the next invocation code
         int invCode = nextInvCode();
 
@@ -181,6 +235,8 @@ public class InvocationManager
         }
 
         // register the dispatcher
+        _servstats.put(invCode, _invstats.getService(mclass));
+        noteConcurrentMethods(invCode, provider, mclass);
         _dispatchers.put(invCode, new Dispatcher() {
             public InvocationProvider getProvider () {
                 return provider;
@@ -189,7 +245,8 @@ public class InvocationManager
             public void dispatchRequest (ClientObject source, int methodId, Object[] args)
                 throws InvocationException {
                 // locate the method to be invoked
-                Method m = invmeths.get(methodId);
+                Method m = (methodId >= 0 && methodId < invmeths.length) ?
+                    invmeths[methodId] : null;
                 if (m == null) {
                     String pclass = StringUtil.shortClassName(provider.getClass());
                     log.warning("Requested to dispatch unknown method", "source", source.who(),
@@ -232,6 +289,54 @@ public class InvocationManager
         return marsh;
     }
 
+    /**
+     * Creates an instance of the dispatcher generated for the service with the supplied marshaller
+     * (see <code>GenServiceTask</code>), which calls the provider's methods directly. Returns null
+     * if no dispatcher was generated for the service or the supplied provider does not implement
+     * the service's provider interface.
+     */
+    protected <T extends InvocationMarshaller<?>> InvocationDispatcher<T>
+        createGeneratedDispatcher (InvocationProvider provider, Class<T> mclass)
+    {
+        Constructor<?> ctor;
+        if (_genDispatchers.containsKey(mclass)) {
+            ctor = _genDispatchers.get(mclass);
+        } else {
+            // FooMarshaller in foo.data has its dispatcher generated as FooDispatcher in foo.server
+            String dname = mclass.getName().replaceAll("\\.data\\.", ".server.").
+                replaceAll("Marshaller$", "Dispatcher");
+            ctor = null;
+            try {
+                Class<?> dclass = Class.forName(dname, true, mclass.getClassLoader());
+                if (InvocationDispatcher.class.isAssignableFrom(dclass)) {
+                    for (Constructor<?> dctor : dclass.getConstructors()) {
+                        Class<?>[] ptypes = dctor.getParameterTypes();
+                        if (ptypes.length == 1 &&
+                            InvocationProvider.class.isAssignableFrom(ptypes[0])) {
+                            ctor = dctor;
+                        }
+                    }
+                }
+            } catch (ClassNotFoundException cnfe) {
+                // no dispatcher was generated for this service, no problem
+            }
+            _genDispatchers.put(mclass, ctor);
+        }
+
+        if (ctor == null || !ctor.getParameterTypes()[0].isInstance(provider)) {
+            return null;
+        }
+        try {
+            @SuppressWarnings("unchecked") InvocationDispatcher<T> disp =
+                (InvocationDispatcher<T>)ctor.newInstance(provider);
+            return disp;
+        } catch (Exception e) {
+            log.warning("Failed to create generated dispatcher", "marsh", mclass,
+                        "provider", provider, e);
+            return null;
+        }
+    }
+
     /**
      * Registers the supplied invocation dispatcher, returning a marshaller that can be used to
      * send requests to the provider for whom the dispatcher is proxying.
@@ -277,6 +382,10 @@ public class InvocationManager
             null : _standaloneClient.getInvocationDirector());
 
         // register the dispatcher
+        @SuppressWarnings("unchecked") Class<? extends InvocationMarshaller<?>> mclass =
+            (Class<? extends InvocationMarshaller<?>>)marsh.getClass();
+        _servstats.put(invCode, _invstats.getService(mclass));
+        noteConcurrentMethods(invCode, dispatcher.getProvider(), mclass);
         _dispatchers.put(invCode, dispatcher);
 
         // if it's a bootstrap service, slap it in the list
@@ -303,6 +412,8 @@ public class InvocationManager
             return;
         }
 
+        _servstats.remove(marsh.getInvocationCode());
+        _concurrent.remove(marsh.getInvocationCode());
         if (_dispatchers.remove(marsh.getInvocationCode()) == null) {
             log.warning("Requested to remove unregistered marshaller?", "marsh", marsh,
                         new Exception());
@@ -346,6 +457,26 @@ public class InvocationManager
         }
     }
 
+    /**
+     * Refuses an invocation request without dispatching it, reporting the supplied reason to the
+     * first listener in the request's arguments (if it has one).
+     */
+    public void rejectRequest (int clientOid, InvocationRequestEvent req, String reason)
+    {
+        for (Object arg : req.getArgs()) {
+            if (arg instanceof ListenerMarshaller) {
+                ListenerMarshaller list = (ListenerMarshaller)arg;
+                list.callerOid = clientOid;
+                list.omgr = _omgr;
+                list.transport = req.getTransport();
+                list.requestFailed(reason);
+                return;
+            }
+        }
+        log.info("Rejected invocation request has no listener to inform", "clientOid", clientOid,
+                 "code", req.getInvCode(), "methId", req.getMethodId(), "reason", reason);
+    }
+
     /**
      * Called when we receive an invocation request message. Dispatches the request to the
      * appropriate invocation provider via the registered invocation dispatcher.
@@ -391,26 +522,70 @@ public class InvocationManager
         log.debug("Dispatching invreq", "caller", source.who(), "provider", disp.getProvider(),
                   "methId", methodId, "args", args);
 
-        // dispatch the request
-        try {
-            if (rlist != null) {
-                rlist.setInvocationId(
-                    StringUtil.shortClassName(disp.getProvider()) + ", methodId=" + methodId);
+        // note the time taken for the request's listener to be responded to
+        ServiceStats sstats = _servstats.get(invCode);
+        MethodStats mstats = (sstats == null) ? null : sstats.getMethod(methodId);
+        if (rlist != null) {
+            _leakTracker.sample(rlist, disp.getProvider(), methodId);
+            if (mstats != null) {
+                rlist.setResponseObserver(mstats, System.nanoTime());
+            }
+        }
+
+        // dispatch the request on a worker thread if its method permits
+        boolean[] concurrent = _concurrent.get(invCode);
+        if (concurrent != null && methodId >= 0 && methodId < concurrent.length &&
+                concurrent[methodId]) {
+            final Dispatcher fdisp = disp;
+            final ClientObject fsource = source;
+            final int fmethodId = methodId;
+            final Object[] fargs = args;
+            final ListenerMarshaller frlist = rlist;
+            final MethodStats fmstats = mstats;
+            try {
+                _concurrentExec.postUnit(clientOid, new Invoker.Unit("InvocationManager.dispatch") {
+                    @Override public boolean invoke () {
+                        dispatchRequest(fdisp, fsource, fmethodId, fargs, frlist, fmstats);
+                        return false;
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                // we're shutting down, so dispatch it here
+                dispatchRequest(disp, source, methodId, args, rlist, mstats);
             }
+        } else {
+            dispatchRequest(disp, source, methodId, args, rlist, mstats);
+        }
+    }
+
+    /**
+     * Dispatches a request to its provider, reporting failure to the request's primary listener.
+     * This is normally called on the distributed object thread, but is called on a worker thread
+     * for methods marked with {@link ConcurrentDispatch}.
+     */
+    protected void dispatchRequest (Dispatcher disp, ClientObject source, int methodId,
+                                    Object[] args, ListenerMarshaller rlist, MethodStats mstats)
+    {
+        long start = System.nanoTime();
+        boolean failed = false;
+        try {
             disp.dispatchRequest(source, methodId, args);
 
         } catch (InvocationException ie) {
+            failed = true;
             if (rlist != null) {
+                // we've already noted the failure, so the listener needn't
+                rlist.setResponseObserver(null, 0L);
                 rlist.requestFailed(ie.getMessage());
 
             } else {
                 log.warning("Service request failed but we've got no listener to inform of " +
-                            "the failure", "caller", source.who(), "code", invCode,
-                            "provider", disp.getProvider(), "methodId", methodId, "args", args,
-                            "error", ie);
+                            "the failure", "caller", source.who(), "provider", disp.getProvider(),
+                            "methodId", methodId, "args", args, "error", ie);
             }
 
         } catch (Throwable t) {
+            failed = true;
             log.warning("Dispatcher choked", "provider", disp.getProvider(), "caller", source.who(),
                         "methId", methodId, "args", args, t);
 
@@ -419,6 +594,61 @@ public class InvocationManager
                 rlist.setNoResponse();
             }
         }
+
+        if (mstats != null) {
+            mstats.dispatched(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Notes which of the supplied provider's methods are marked with {@link ConcurrentDispatch},
+     * creating the executor on which they'll be dispatched if need be.
+     */
+    protected void noteConcurrentMethods (int invCode, InvocationProvider provider, Class<?> mclass)
+    {
+        if (provider == null) {
+            return;
+        }
+        Class<?> pclass = provider.getClass();
+        boolean all = pclass.isAnnotationPresent(ConcurrentDispatch.class);
+        boolean[] concurrent = null;
+        for (Method method : pclass.getMethods()) {
+            Class<?>[] ptypes = method.getParameterTypes();
+            if (ptypes.length == 0 || !ClientObject.class.isAssignableFrom(ptypes[0]) ||
+                !(all || method.isAnnotationPresent(ConcurrentDispatch.class))) {
+                continue;
+            }
+            int methodId;
+            try {
+                methodId = mclass.getField(StringUtil.unStudlyName(method.getName())).getInt(null);
+            } catch (IllegalAccessException iae) {
+                throw new RuntimeException(iae); // Field.get failed? shouldn't happen
+            } catch (NoSuchFieldException nsfe) {
+                continue; // not a service method
+            }
+            if (methodId < 0) {
+                continue;
+            }
+            if (concurrent == null || methodId >= concurrent.length) {
+                boolean[] nconcurrent = new boolean[methodId+1];
+                if (concurrent != null) {
+                    System.arraycopy(concurrent, 0, nconcurrent, 0, concurrent.length);
+                }
+                concurrent = nconcurrent;
+            }
+            concurrent[methodId] = true;
+        }
+        if (concurrent == null || _concurrentShutdown) {
+            return; // once we've shut down, everything is dispatched on the dobj thread
+        }
+
+        _concurrent.put(invCode, concurrent);
+        if (_concurrentExec == null) {
+            KeyedUnitExecutor exec = new KeyedUnitExecutor(
+                "presents.InvocationExecutor", _omgr, _concurrentThreads);
+            exec.setWatchdog(_watchdog);
+            _concurrentExec = exec;
+        }
     }
 
     /**
@@ -450,6 +680,37 @@ public class InvocationManager
     /** A table of invocation dispatchers each mapped by a unique code. */
     protected IntMap<Dispatcher> _dispatchers = IntMaps.newHashIntMap();
 
+    /** The stats for each registered service, mapped by invocation code. */
+    protected IntMap<ServiceStats> _servstats = IntMaps.newHashIntMap();
+
+    /** The methods of each registered service that may be dispatched on a worker thread, mapped
+     * by invocation code. Services without such methods are not mapped. */
+    protected IntMap<boolean[]> _concurrent = IntMaps.newHashIntMap();
+
+    /** The executor on which we dispatch {@link ConcurrentDispatch} methods, created when the
+     * first such method is registered. Each client's requests are dispatched in order. */
+    protected volatile KeyedUnitExecutor _concurrentExec;
+
+    /** Set once our executor has been shut down, after which we don't create one. */
+    protected volatile boolean _concurrentShutdown;
+
+    /** The number of threads on which {@link ConcurrentDispatch} methods are dispatched. */
+    @Inject(optional=true) @Named("presents.invocation.concurrentThreads")
+    protected int _concurrentThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Watches our executor's threads for units that stall them. */
+    @Inject protected StallWatchdog _watchdog;
+
+    /** Records the number and latency of invocation requests. */
+    @Inject protected InvocationStats _invstats;
+
+    /** Reports sampled listeners that are never responded-to. */
+    protected ListenerLeakTracker _leakTracker =
+        new ListenerLeakTracker(DEFAULT_LISTENER_SAMPLE_RATE);
+
+    /** The constructors of our services' generated dispatchers (or null for those without). */
+    protected Map<Class<?>, Constructor<?>> _genDispatchers = Maps.newHashMap();
+
     /** Maps bootstrap group to lists of services to be provided to clients at boot time. */
     protected Multimap<String, InvocationMarshaller<?>> _bootlists = ArrayListMultimap.create();
 
@@ -457,4 +718,7 @@ public class InvocationManager
      * comes in on a service we don't know about. */
     protected final Map<Integer, String> _recentRegServices =
         new LRUHashMap<Integer, String>(10000);
+
+    /** By default, one in every this many listeners is checked for a response. */
+    protected static final int DEFAULT_LISTENER_SAMPLE_RATE = 100;
 }
@@ -0,0 +1,439 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.presents.server;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.threerings.presents.data.InvocationMarshaller;
+import com.threerings.presents.data.InvocationMarshaller.ListenerMarshaller;
+
+/**
+ * Records the number of calls, the number of failures and the latency of every invocation
+ * service method. Two latencies are recorded: the time spent dispatching the request on the
+ * distributed object thread and the total time taken for the request's listener to be responded
+ * to, which includes any time spent on invokers. The stats are included in the profile report and
+ * are available in a tab separated form via the {@link #REPORT_TYPE} report.
+ */
+@Singleton
+public class InvocationStats
+{
+    /** The report type that provides our stats in machine readable form: a line of tab separated
+     * values for each service method, preceded by a header line naming the columns. Latencies are
+     * in microseconds. */
+    public static final String REPORT_TYPE = "invocation";
+
+    /** The percentiles included in our reports. */
+    public static final double[] PERCENTILES = { 50, 90, 99 };
+
+    /**
+     * Records latencies in buckets whose size grows with the latency, such that every value is
+     * recorded to within an eighth of its magnitude. May be updated from any thread.
+     */
+    public static class Latencies
+    {
+        /**
+         * Records the supplied latency, in microseconds.
+         */
+        public void record (long micros)
+        {
+            _counts.incrementAndGet(getBucket(micros));
+            for (long max = _max.get(); micros > max && !_max.compareAndSet(max, micros);
+                 max = _max.get()) {}
+        }
+
+        /**
+         * Returns the number of latencies recorded.
+         */
+        public long getCount ()
+        {
+            long count = 0;
+            for (int ii = 0, ll = _counts.length(); ii < ll; ii++) {
+                count += _counts.get(ii);
+            }
+            return count;
+        }
+
+        /**
+         * Returns the largest latency recorded, in microseconds.
+         */
+        public long getMax ()
+        {
+            return _max.get();
+        }
+
+        /**
+         * Returns the (upper bound of the) latency below which the specified percentage of the
+         * recorded latencies fall, in microseconds.
+         */
+        public long getPercentile (double percent)
+        {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long)Math.ceil(count * percent / 100));
+            for (int ii = 0, ll = _counts.length(); ii < ll; ii++) {
+                rank -= _counts.get(ii);
+                if (rank <= 0) {
+                    return Math.min(getUpperBound(ii), _max.get());
+                }
+            }
+            return _max.get();
+        }
+
+        /**
+         * Clears out the recorded latencies.
+         */
+        public void clear ()
+        {
+            // subtract what we've seen rather than zeroing so as not to lose concurrent updates
+            for (int ii = 0, ll = _counts.length(); ii < ll; ii++) {
+                long count = _counts.get(ii);
+                if (count != 0) {
+                    _counts.addAndGet(ii, -count);
+                }
+            }
+            _max.set(0);
+        }
+
+        protected static int getBucket (long micros)
+        {
+            if (micros < SUB_BUCKETS) {
+                return (int)Math.max(micros, 0);
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(micros);
+            if (exp > MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int sub = (int)(micros >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return ((exp - SUB_BITS + 1) << SUB_BITS) | sub;
+        }
+
+        protected static long getUpperBound (int bucket)
+        {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            } else if (bucket == BUCKETS - 1) {
+                return Long.MAX_VALUE;
+            }
+            int exp = (bucket >> SUB_BITS) + SUB_BITS - 1;
+            long sub = bucket & (SUB_BUCKETS - 1);
+            return ((SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+        }
+
+        protected AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+        protected AtomicLong _max = new AtomicLong();
+
+        /** Each power of two is divided into 2^SUB_BITS buckets. */
+        protected static final int SUB_BITS = 3;
+        protected static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        /** Latencies of 2^(MAX_EXPONENT+1) micros (about two hours) or more share a bucket. */
+        protected static final int MAX_EXPONENT = 32;
+        protected static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) << SUB_BITS;
+    }
+
+    /**
+     * The stats recorded for a single service method.
+     */
+    public static class MethodStats
+        implements ListenerMarshaller.ResponseObserver
+    {
+        /** The name of the service's marshaller class. */
+        public final String service;
+
+        /** The name of the method. */
+        public final String method;
+
+        /** The time spent dispatching requests on the distributed object thread. */
+        public final Latencies dispatchTimes = new Latencies();
+
+        /** The time taken for requests' listeners to be responded to. */
+        public final Latencies responseTimes = new Latencies();
+
+        public MethodStats (String service, String method)
+        {
+            this.service = service;
+            this.method = method;
+        }
+
+        /**
+         * Records the dispatch of a request.
+         *
+         * @param elapsed the nanoseconds spent dispatching the request.
+         * @param failed true if the dispatch of the request failed.
+         */
+        public void dispatched (long elapsed, boolean failed)
+        {
+            _calls.incrementAndGet();
+            if (failed) {
+                _errors.incrementAndGet();
+            }
+            dispatchTimes.record(elapsed / 1000);
+        }
+
+        // from interface ListenerMarshaller.ResponseObserver
+        public void listenerResponded (long elapsed, boolean failed)
+        {
+            if (failed) {
+                _errors.incrementAndGet();
+            }
+            responseTimes.record(elapsed / 1000);
+        }
+
+        /**
+         * Returns the number of requests dispatched.
+         */
+        public long getCalls ()
+        {
+            return _calls.get();
+        }
+
+        /**
+         * Returns the number of requests that failed, either by throwing an exception when
+         * dispatched or by reporting failure to their listener.
+         */
+        public long getErrors ()
+        {
+            return _errors.get();
+        }
+
+        /**
+         * Clears out our recorded stats.
+         */
+        public void clear ()
+        {
+            _calls.addAndGet(-_calls.get());
+            _errors.addAndGet(-_errors.get());
+            dispatchTimes.clear();
+            responseTimes.clear();
+        }
+
+        protected AtomicLong _calls = new AtomicLong(), _errors = new AtomicLong();
+    }
+
+    /**
+     * The stats recorded for the methods of a single service.
+     */
+    public static class ServiceStats
+    {
+        /** The name of the service's marshaller class. */
+        public final String service;
+
+        public ServiceStats (Class<?> mclass)
+        {
+            service = mclass.getSimpleName();
+            // the marshaller defines a constant for each method whose name we use for reporting
+            for (Field field : mclass.getDeclaredFields()) {
+                int mods = field.getModifiers();
+                if (field.getType() != Integer.TYPE || !Modifier.isStatic(mods) ||
+                    !Modifier.isFinal(mods) || !Modifier.isPublic(mods)) {
+                    continue;
+                }
+                try {
+                    int methodId = field.getInt(null);
+                    if (methodId >= 0 && methodId < MAX_METHODS) {
+                        getMethod(methodId, toMethodName(field.getName()));
+                    }
+                } catch (IllegalAccessException iae) {
+                    // no matter, we'll report the method by id
+                }
+            }
+        }
+
+        /**
+         * Returns the stats for the specified method, or null if the method id is not valid.
+         */
+        public MethodStats getMethod (int methodId)
+        {
+            MethodStats[] methods = _methods;
+            if (methodId >= 0 && methodId < methods.length && methods[methodId] != null) {
+                return methods[methodId];
+            }
+            return (methodId >= 0 && methodId < MAX_METHODS) ?
+                getMethod(methodId, String.valueOf(methodId)) : null;
+        }
+
+        /**
+         * Returns the stats for all of our methods that have been called.
+         */
+        public List<MethodStats> getMethods ()
+        {
+            List<MethodStats> methods = Lists.newArrayList();
+            for (MethodStats stats : _methods) {
+                if (stats != null && stats.getCalls() > 0) {
+                    methods.add(stats);
+                }
+            }
+            return methods;
+        }
+
+        protected synchronized MethodStats getMethod (int methodId, String name)
+        {
+            if (methodId >= _methods.length) {
+                MethodStats[] methods = new MethodStats[methodId+1];
+                System.arraycopy(_methods, 0, methods, 0, _methods.length);
+                _methods = methods;
+            }
+            if (_methods[methodId] == null) {
+                _methods[methodId] = new MethodStats(service, name);
+            }
+            return _methods[methodId];
+        }
+
+        protected static String toMethodName (String constant)
+        {
+            StringBuilder buf = new StringBuilder();
+            for (String word : constant.toLowerCase().split("_")) {
+                if (buf.length() > 0 && word.length() > 0) {
+                    buf.append(Character.toUpperCase(word.charAt(0))).append(word.substring(1));
+                } else {
+                    buf.append(word);
+                }
+            }
+            return buf.toString();
+        }
+
+        /** Our methods' stats, indexed by method id. Copied on write. */
+        protected volatile MethodStats[] _methods = new MethodStats[0];
+
+        /** Method ids are transmitted as a byte. */
+        protected static final int MAX_METHODS = Byte.MAX_VALUE + 1;
+    }
+
+    /**
+     * Creates our stats and registers our reports with the report manager.
+     */
+    @Inject public InvocationStats (ReportManager repmgr)
+    {
+        repmgr.registerReporter(ReportManager.PROFILE_TYPE, new ReportManager.Reporter() {
+            public void appendReport (StringBuilder report, long now, long elapsed, boolean reset) {
+                report.append("* presents.InvocationManager:\n");
+                for (MethodStats stats : getMethods()) {
+                    report.append("  ").append(stats.service).append(".").append(stats.method);
+                    report.append(" ").append(stats.getCalls()).append(" calls, ");
+                    report.append(stats.getErrors()).append(" errors, dispatch ");
+                    appendLatencies(report, stats.dispatchTimes);
+                    report.append(", response ");
+                    appendLatencies(report, stats.responseTimes);
+                    report.append("\n");
+                }
+                if (reset) {
+                    clear();
+                }
+            }
+        });
+        repmgr.registerReporter(REPORT_TYPE, new ReportManager.Reporter() {
+            public void appendReport (StringBuilder report, long now, long elapsed, boolean reset) {
+                report.append("service\tmethod\tcalls\terrors");
+                for (String type : new String[] { "dispatch", "response" }) {
+                    report.append("\t").append(type).append("_count");
+                    for (double pct : PERCENTILES) {
+                        report.append("\t").append(type).append("_p").append((int)pct);
+                    }
+                    report.append("\t").append(type).append("_max");
+                }
+                report.append("\n");
+                for (MethodStats stats : getMethods()) {
+                    report.append(stats.service).append("\t").append(stats.method);
+                    report.append("\t").append(stats.getCalls());
+                    report.append("\t").append(stats.getErrors());
+                    for (Latencies lats : new Latencies[] {
+                            stats.dispatchTimes, stats.responseTimes }) {
+                        report.append("\t").append(lats.getCount());
+                        for (double pct : PERCENTILES) {
+                            report.append("\t").append(lats.getPercentile(pct));
+                        }
+                        report.append("\t").append(lats.getMax());
+                    }
+                    report.append("\n");
+                }
+                if (reset) {
+                    clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the stats for the service with the supplied marshaller class.
+     */
+    public ServiceStats getService (Class<? extends InvocationMarshaller<?>> mclass)
+    {
+        ServiceStats stats = _services.get(mclass);
+        if (stats == null) {
+            ServiceStats nstats = _services.putIfAbsent(mclass, stats = new ServiceStats(mclass));
+            if (nstats != null) {
+                stats = nstats;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the stats for all service methods that have been called.
+     */
+    public List<MethodStats> getMethods ()
+    {
+        List<MethodStats> methods = Lists.newArrayList();
+        for (ServiceStats stats : _services.values()) {
+            methods.addAll(stats.getMethods());
+        }
+        return methods;
+    }
+
+    /**
+     * Clears out all recorded stats.
+     */
+    public void clear ()
+    {
+        for (ServiceStats sstats : _services.values()) {
+            for (MethodStats mstats : sstats.getMethods()) {
+                mstats.clear();
+            }
+        }
+    }
+
+    protected static void appendLatencies (StringBuilder report, Latencies lats)
+    {
+        report.append("[");
+        for (double pct : PERCENTILES) {
+            report.append("p").append((int)pct).append("=").append(lats.getPercentile(pct));
+            report.append("us ");
+        }
+        report.append("max=").append(lats.getMax()).append("us]");
+    }
+
+    /** Our stats for each service, keyed by marshaller class. */
+    protected ConcurrentMap<Class<?>, ServiceStats> _services =
+        new ConcurrentHashMap<Class<?>, ServiceStats>();
+}
@@ -0,0 +1,258 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.presents.server;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.Invoker;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * Runs {@link Invoker.Unit}s on a pool of threads, delivering their results to a receiver just as
+ * an {@link Invoker} would. Units posted with the same key are run strictly in the order they were
+ * posted and never concurrently with one another, while units with different keys run in
+ * parallel.
+ */
+public class KeyedUnitExecutor
+{
+    /**
+     * Creates an executor that runs units on the specified number of threads and passes their
+     * results to the supplied receiver.
+     */
+    public KeyedUnitExecutor (final String name, Executor receiver, int threads)
+    {
+        _receiver = receiver;
+        threads = Math.max(threads, 1);
+        _exec = new ThreadPoolExecutor(
+            threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Worker worker = new Worker(r, name + "-" + _threadId.incrementAndGet());
+                    worker.setDaemon(true);
+                    StallWatchdog watchdog = _watchdog;
+                    if (watchdog != null) {
+                        watchdog.watch(worker);
+                    }
+                    return worker;
+                }
+                protected AtomicInteger _threadId = new AtomicInteger();
+            });
+    }
+
+    /**
+     * Configures a watchdog to be informed of each of our threads as it is created, so that units
+     * which stall them are noticed. This must be called before the first unit is posted.
+     */
+    public void setWatchdog (StallWatchdog watchdog)
+    {
+        _watchdog = watchdog;
+    }
+
+    /**
+     * Posts a unit to be invoked. If another unit with an equal key is pending or running, this
+     * unit will be invoked after it (and any others with that key) completes.
+     *
+     * @param key the key that determines ordering, or null if the unit can run at any time.
+     *
+     * @exception RejectedExecutionException thrown if this executor has been shut down.
+     */
+    public void postUnit (Object key, Invoker.Unit unit)
+    {
+        if (_exec.isShutdown()) {
+            throw new RejectedExecutionException("Executor shut down: " + unit);
+        }
+
+        unit.queueStamp = System.currentTimeMillis();
+        _pending.incrementAndGet();
+        if (key != null) {
+            synchronized (_lanes) {
+                LinkedList<Invoker.Unit> lane = _lanes.get(key);
+                if (lane != null) {
+                    lane.add(unit);
+                    return;
+                }
+                _lanes.put(key, Lists.<Invoker.Unit>newLinkedList());
+            }
+        }
+        try {
+            _exec.execute(new Runner(key, unit));
+        } catch (RejectedExecutionException ree) {
+            // we lost a race with shutdown, so undo our bookkeeping before passing the buck
+            _pending.decrementAndGet();
+            if (key != null) {
+                synchronized (_lanes) {
+                    _lanes.remove(key);
+                }
+            }
+            throw ree;
+        }
+    }
+
+    /**
+     * Returns the number of units that have been posted but have not yet finished invoking.
+     */
+    public int getPendingUnits ()
+    {
+        return _pending.get();
+    }
+
+    /**
+     * Stops accepting units and lets our threads exit once the pending units are done.
+     */
+    public void shutdown ()
+    {
+        _exec.shutdown();
+    }
+
+    /** Invokes a unit and then any units that were queued up behind it with the same key. */
+    protected class Runner implements Runnable
+    {
+        public Runner (Object key, Invoker.Unit unit)
+        {
+            _key = key;
+            _unit = unit;
+        }
+
+        public void run ()
+        {
+            // we drain the lane on this thread rather than resubmitting its next unit, as the
+            // executor will reject new tasks once we're shut down and strand the rest of the lane
+            for (Invoker.Unit unit = _unit; unit != null; ) {
+                invoke(unit);
+                if (_key == null) {
+                    return;
+                }
+                synchronized (_lanes) {
+                    unit = _lanes.get(_key).poll();
+                    if (unit == null) {
+                        _lanes.remove(_key);
+                    }
+                }
+            }
+        }
+
+        protected Object _key;
+        protected Invoker.Unit _unit;
+    }
+
+    /** One of our threads, which notes the unit it is running for the benefit of the watchdog. */
+    protected class Worker extends Thread
+        implements StallWatchdog.Watched
+    {
+        public Worker (Runnable r, String name)
+        {
+            super(r, name);
+        }
+
+        // from interface StallWatchdog.Watched
+        public Thread getUnitThread ()
+        {
+            return this;
+        }
+
+        // from interface StallWatchdog.Watched
+        public int getQueueSize ()
+        {
+            return _exec.getQueue().size();
+        }
+
+        // from interface StallWatchdog.Watched
+        public Object getCurrentUnit ()
+        {
+            return _currentUnit;
+        }
+
+        // from interface StallWatchdog.Watched
+        public long getCurrentUnitStart ()
+        {
+            return _currentUnitStart;
+        }
+
+        /** The unit being run by this thread, or null if it is idle. */
+        protected volatile Object _currentUnit;
+
+        /** The time at which our current unit started running. */
+        protected volatile long _currentUnitStart;
+    }
+
+    /**
+     * Invokes the supplied unit, passing it to our receiver if it has a result to report.
+     */
+    protected void invoke (Invoker.Unit unit)
+    {
+        long start = System.currentTimeMillis();
+        Thread thread = Thread.currentThread();
+        Worker worker = (thread instanceof Worker) ? (Worker)thread : null;
+        if (worker != null) {
+            worker._currentUnitStart = start;
+            worker._currentUnit = unit;
+        }
+        boolean report = false;
+        try {
+            report = unit.invoke();
+        } catch (Throwable t) {
+            log.warning("Invocation unit failed", "unit", unit, t);
+        } finally {
+            _pending.decrementAndGet();
+            if (worker != null) {
+                worker._currentUnit = null;
+            }
+        }
+        if (report) {
+            _receiver.execute(unit);
+        }
+
+        long duration = System.currentTimeMillis() - start;
+        if (duration > unit.getLongThreshold()) {
+            log.warning("Really long invoker unit", "unit", unit, "time", duration + "ms",
+                        "queued", (start - unit.queueStamp) + "ms");
+        }
+    }
+
+    /** The executor on which we run units. */
+    protected ThreadPoolExecutor _exec;
+
+    /** The executor to which we pass units that have results to report. */
+    protected Executor _receiver;
+
+    /** Units waiting for an earlier unit with the same key to complete, by key. A key is mapped
+     * while one of its units is running. */
+    protected Map<Object, LinkedList<Invoker.Unit>> _lanes = Maps.newHashMap();
+
+    /** The number of units posted but not yet invoked. */
+    protected AtomicInteger _pending = new AtomicInteger();
+
+    /** Informed of our threads as they are created, if configured. */
+    protected volatile StallWatchdog _watchdog;
+}
@@ -0,0 +1,162 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.presents.server;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+
+import com.google.common.collect.Sets;
+
+import com.samskivert.util.StringUtil;
+
+import com.threerings.presents.data.InvocationMarshaller.ListenerMarshaller;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * Reports invocation listeners that are garbage collected without ever having been responded to.
+ * Rather than making every listener finalizable, only one in every <code>sampleRate</code>
+ * listeners is watched (via a phantom reference), so the remainder cost nothing extra to collect.
+ */
+public class ListenerLeakTracker
+{
+    /**
+     * Creates a tracker that watches one in every <code>sampleRate</code> listeners.
+     */
+    public ListenerLeakTracker (int sampleRate)
+    {
+        setSampleRate(sampleRate);
+    }
+
+    /**
+     * Configures the rate at which listeners are sampled. One in every <code>sampleRate</code>
+     * listeners is watched, a rate of one watches every listener and zero disables tracking.
+     */
+    public void setSampleRate (int sampleRate)
+    {
+        _sampleRate = Math.max(sampleRate, 0);
+    }
+
+    /**
+     * Returns the rate at which listeners are sampled.
+     */
+    public int getSampleRate ()
+    {
+        return _sampleRate;
+    }
+
+    /**
+     * Called when a request is dispatched with the supplied listener. If the listener is selected
+     * for sampling, it will be reported if it is collected without having responded. Also
+     * reports any previously sampled listeners that have since been collected.
+     */
+    public void sample (ListenerMarshaller listener, Object provider, int methodId)
+    {
+        reportLeaks();
+
+        // plain listener marshallers are passed for services that don't care about a response, so
+        // they neither count toward nor take up our samples
+        if (listener.getClass() == ListenerMarshaller.class) {
+            return;
+        }
+        int rate = _sampleRate;
+        if (rate == 0 || ++_dispatched % rate != 0) {
+            return;
+        }
+        Watch watch = new Watch(listener, StringUtil.shortClassName(provider), methodId);
+        _watches.add(watch);
+        listener.setLeakWatch(watch);
+    }
+
+    /**
+     * Returns the number of sampled listeners that are still awaiting a response.
+     */
+    public int getPending ()
+    {
+        return _watches.size();
+    }
+
+    /**
+     * Returns the number of sampled listeners that were collected without having responded.
+     */
+    public int getLeaked ()
+    {
+        return _leaked;
+    }
+
+    /**
+     * Reports any sampled listeners that have been collected without having responded.
+     */
+    public void reportLeaks ()
+    {
+        Watch watch;
+        while ((watch = (Watch)_queue.poll()) != null) {
+            if (_watches.remove(watch)) {
+                _leaked++;
+                log.warning("Invocation listener never responded to: " + watch);
+            }
+        }
+    }
+
+    /** Watches a single sampled listener. */
+    protected class Watch extends ListenerMarshaller.LeakWatch
+    {
+        public Watch (ListenerMarshaller listener, String provider, int methodId)
+        {
+            super(listener, _queue);
+            _provider = provider;
+            _methodId = methodId;
+        }
+
+        @Override
+        public void responded ()
+        {
+            clear();
+            _watches.remove(this);
+        }
+
+        @Override
+        public String toString ()
+        {
+            return _provider + ", methodId=" + _methodId;
+        }
+
+        protected String _provider;
+        protected int _methodId;
+    }
+
+    /** One in every this many listeners is watched. */
+    protected volatile int _sampleRate;
+
+    /** The number of listeners offered for sampling. */
+    protected int _dispatched;
+
+    /** The number of sampled listeners that were never responded to. */
+    protected int _leaked;
+
+    /** Our outstanding watches, which must remain reachable to be enqueued once collected. */
+    protected Set<Watch> _watches = Collections.synchronizedSet(Sets.<Watch>newHashSet());
+
+    /** The queue on which collected listeners' watches are delivered. */
+    protected ReferenceQueue<ListenerMarshaller> _queue = new ReferenceQueue<ListenerMarshaller>();
+}
@@ -68,7 +68,7 @@ import static com.threerings.presents.Log.log;
  */
 @Singleton
 public class PresentsDObjectMgr
-    implements RootDObjectManager
+    implements RootDObjectManager, StallWatchdog.Watched
 {
     /** Returned by {@link #getStats}. */
     public static class Stats
@@ -653,6 +653,36 @@ public class PresentsDObjectMgr
         return _running;
     }
 
+    // from interface StallWatchdog.Watched
+    public String getName ()
+    {
+        return "presents.PresentsDObjectMgr";
+    }
+
+    // from interface StallWatchdog.Watched
+    public synchronized Thread getUnitThread ()
+    {
+        return _dobjThread;
+    }
+
+    // from interface StallWatchdog.Watched
+    public int getQueueSize ()
+    {
+        return _evqueue.size();
+    }
+
+    // from interface StallWatchdog.Watched
+    public Object getCurrentUnit ()
+    {
+        return _currentUnit;
+    }
+
+    // from interface StallWatchdog.Watched
+    public long getCurrentUnitStart ()
+    {
+        return _currentUnitStart;
+    }
+
     /**
      * Processes a single unit from the queue.
      */
@@ -660,6 +690,10 @@ public class PresentsDObjectMgr
     {
         long start = System.nanoTime();
 
+        // note the unit we're running for the stall watchdog (the start must be set first)
+        _currentUnitStart = System.currentTimeMillis();
+        _currentUnit = unit;
+
         // keep track of the largest queue size we've seen
         int queueSize = _evqueue.size();
         if (queueSize > _current.maxQueueSize) {
@@ -672,22 +706,7 @@ public class PresentsDObjectMgr
                 ((Runnable)unit).run();
 
             } else {
-                DEvent event = (DEvent)unit;
-
-                // if this event is on a proxied object, forward it to the owning manager
-                ProxyReference proxy = _proxies.get(event.getTargetOid());
-                if (proxy != null) {
-                    // rewrite the oid into the originating manager's id space
-                    event.setTargetOid(proxy.origObjectId);
-                    // then pass it on to the originating manager to handle
-                    proxy.origManager.postEvent(event);
-
-                } else if (event instanceof CompoundEvent) {
-                    processCompoundEvent((CompoundEvent)event);
-
-                } else {
-                    processEvent(event);
-                }
+                processEventUnit((DEvent)unit);
             }
 
         } catch (VirtualMachineError e) {
@@ -696,6 +715,7 @@ public class PresentsDObjectMgr
         } catch (Throwable t) {
             log.warning("Execution unit failed", "unit", unit, t);
         }
+        _currentUnit = null;
 
         // compute the elapsed time in microseconds
         long elapsed = (System.nanoTime() - start)/1000;
@@ -730,6 +750,47 @@ public class PresentsDObjectMgr
         }
     }
 
+    /**
+     * Processes an event that was posted to the queue.
+     */
+    protected void processEventUnit (DEvent event)
+    {
+        // if this event is on a proxied object, forward it to the owning manager
+        ProxyReference proxy = _proxies.get(event.getTargetOid());
+        if (proxy != null) {
+            // rewrite the oid into the originating manager's id space
+            event.setTargetOid(proxy.origObjectId);
+            // then pass it on to the originating manager to handle
+            proxy.origManager.postEvent(event);
+
+        } else if (event instanceof CompoundEvent) {
+            processCompoundEvent((CompoundEvent)event);
+
+        } else {
+            processEvent(event);
+        }
+    }
+
+    /**
+     * Processes the supplied events one after another as part of the unit currently being run,
+     * just as if each had been posted and run as a unit of its own. This allows a batch of events
+     * to be processed without the overhead of queueing each. The events must already have been
+     * assigned ids (see {@link #getNextEventId}). This must be called on the dobj thread.
+     */
+    protected void processEvents (List<DEvent> events)
+    {
+        for (int ii = 0, ll = events.size(); ii < ll; ii++) {
+            DEvent event = events.get(ii);
+            try {
+                processEventUnit(event);
+            } catch (VirtualMachineError e) {
+                handleFatalError(event, e);
+            } catch (Throwable t) {
+                log.warning("Execution unit failed", "unit", event, t);
+            }
+        }
+    }
+
     /**
      * Performs the processing associated with a compound event, notifying listeners and the like.
      */
@@ -1110,6 +1171,12 @@ public class PresentsDObjectMgr
      * restrictions on code that should or should not be called from the event dispatch thread. */
     protected Thread _dobjThread;
 
+    /** The unit currently being processed, if any. */
+    protected volatile Object _currentUnit;
+
+    /** The time at which the current unit started processing. */
+    protected volatile long _currentUnitStart;
+
     /** A monotonically increasing counter used to assign an id to all dispatched events. */
     protected long _nextEventId = 1;
 
@@ -26,6 +26,7 @@ import java.util.List;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
 import com.samskivert.util.Invoker;
 import com.samskivert.util.Lifecycle;
@@ -36,16 +37,61 @@ import static com.threerings.presents.Log.log;
 
 /**
  * Extends the generic {@link Invoker} and integrates it a bit more into the Presents system.
+ *
+ * <p> Units are normally run one at a time on the invoker's thread. Units that implement {@link
+ * Keyed} and supply an ordering key are instead run on one of a number of lanes (chosen by their
+ * key), each with its own thread. Units with the same key are run in the order they were posted,
+ * while units with different keys may run in parallel with one another and with unkeyed units.
  */
 @Singleton
 public class PresentsInvoker extends ReportingInvoker
     implements Lifecycle.ShutdownComponent
 {
+    /**
+     * Implemented by units that need only be run in order with other units that share their
+     * ordering key (a player id, for example) and may otherwise be run in parallel.
+     */
+    public static interface Keyed
+    {
+        /**
+         * Returns the key that determines the lane on which this unit is run, or null if the unit
+         * should be run on the invoker's main thread in order with all other unkeyed units.
+         */
+        Object getOrderingKey ();
+    }
+
     @Inject public PresentsInvoker (PresentsDObjectMgr omgr, Lifecycle cycle, ReportManager repmgr)
     {
         super("presents.Invoker", omgr, repmgr);
         cycle.addComponent(this);
         _omgr = omgr;
+        _repmgr = repmgr;
+    }
+
+    /**
+     * Posts a unit to be run in order with other units that have the same key.
+     *
+     * @param key the unit's ordering key, or null to run the unit on our main thread.
+     */
+    public void postUnit (Object key, Unit unit)
+    {
+        if (key == null) {
+            super.postUnit(unit);
+        } else {
+            Invoker[] lanes = getLanes();
+            Invoker lane = lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length];
+            if (lane == this) {
+                super.postUnit(unit);
+            } else {
+                lane.postUnit(unit);
+            }
+        }
+    }
+
+    @Override // from Invoker
+    public void postUnit (Unit unit)
+    {
+        postUnit((unit instanceof Keyed) ? ((Keyed)unit).getOrderingKey() : null, unit);
     }
 
     /**
@@ -84,6 +130,14 @@ public class PresentsInvoker extends ReportingInvoker
     {
         _server = server;
         super.start();
+        synchronized (this) {
+            for (Invoker lane : getLanes()) {
+                if (lane != this) {
+                    lane.start();
+                }
+            }
+            _started = true;
+        }
     }
 
     @Override // from Invoker, Lifecycle.ShutdownComponent
@@ -95,6 +149,11 @@ public class PresentsInvoker extends ReportingInvoker
         // make it to the shutdown unit without queueing up more units for processing
         postRunnableWhenEmpty(new Runnable() {
             public void run () {
+                for (Invoker lane : getLanes()) {
+                    if (lane != PresentsInvoker.this) {
+                        lane.shutdown();
+                    }
+                }
                 _omgr.harshShutdown(); // end the dobj thread
 
                 // Now that things have emptied out, set _shutdownRequested and commit suicide
@@ -112,6 +171,34 @@ public class PresentsInvoker extends ReportingInvoker
         }
     }
 
+    /**
+     * Returns our lanes, creating them if need be. The first lane is this invoker.
+     */
+    protected Invoker[] getLanes ()
+    {
+        Invoker[] lanes = _lanes;
+        if (lanes != null) {
+            return lanes;
+        }
+        synchronized (this) {
+            if (_lanes == null) {
+                lanes = new Invoker[Math.max(_laneCount, 1)];
+                lanes[0] = this;
+                for (int ii = 1; ii < lanes.length; ii++) {
+                    ReportingInvoker lane =
+                        new ReportingInvoker(getName() + ".lane" + ii, _omgr, _repmgr);
+                    _watchdog.watch(lane);
+                    lanes[ii] = lane;
+                    if (_started) {
+                        lanes[ii].start();
+                    }
+                }
+                _lanes = lanes;
+            }
+            return _lanes;
+        }
+    }
+
     /**
      * This gets posted to this invoker over and over again until it, any interdependent invokers
      * and the DObjectManager are all empty.
@@ -145,11 +232,17 @@ public class PresentsInvoker extends ReportingInvoker
             } else {
                 _loopCount = 0;
                 // The invoker is empty and running this. Check if everything else is empty.
-                List<BlockingUnit> checkers =
-                    Lists.newArrayListWithCapacity(_interdependentInvokers.size() + 1);
+                Invoker[] lanes = getLanes();
+                List<BlockingUnit> checkers = Lists.newArrayListWithCapacity(
+                    _interdependentInvokers.size() + lanes.length);
                 for (Invoker invoker : _interdependentInvokers) {
                     checkers.add(new BlockingUnit(invoker));
                 }
+                for (Invoker lane : lanes) {
+                    if (lane != PresentsInvoker.this) {
+                        checkers.add(new BlockingUnit(lane));
+                    }
+                }
                 checkers.add(new BlockingUnit());
                 long checkStart = System.currentTimeMillis();
                 while (true) {
@@ -335,9 +428,28 @@ public class PresentsInvoker extends ReportingInvoker
     /** Invokers that may post to Presents and may be posted to by Presents. */
     protected List<Invoker> _interdependentInvokers = Lists.newArrayList();
 
+    /** Our lanes, the first of which is this invoker. Created when first needed. */
+    protected volatile Invoker[] _lanes;
+
+    /** Whether our threads have been started. */
+    protected boolean _started;
+
+    /** The number of lanes on which we run keyed units, including our main thread. */
+    @Inject(optional=true) @Named("presents.invoker.lanes")
+    protected int _laneCount = DEFAULT_LANES;
+
     /** The distributed object manager with which we interoperate. */
     protected PresentsDObjectMgr _omgr;
 
+    /** The report manager with which our lanes register. */
+    protected ReportManager _repmgr;
+
+    /** Watches our lanes for stalled units. */
+    @Inject protected StallWatchdog _watchdog;
+
     /** The server we're working for. */
     protected PresentsServer _server;
+
+    /** The default number of lanes. */
+    protected static final int DEFAULT_LANES = 4;
 }
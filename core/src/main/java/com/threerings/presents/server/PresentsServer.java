@@ -187,6 +187,14 @@ public class PresentsServer
         _authInvoker.start();
         ((PresentsInvoker)_invoker).addInterdependentInvoker(_authInvoker);
 
+        // keep an eye out for units that tie up our dobj and invoker threads
+        _watchdog.watch(_omgr);
+        for (Invoker invoker : new Invoker[] { _invoker, _authInvoker }) {
+            if (invoker instanceof StallWatchdog.Watched) {
+                _watchdog.watch((StallWatchdog.Watched)invoker);
+            }
+        }
+
         // provide our client manager with the injector it needs
         _clmgr.setInjector(injector);
 
@@ -352,4 +360,7 @@ public class PresentsServer
 
     /** Used to invoke authentication tasks. */
     @Inject @AuthInvoker protected Invoker _authInvoker;
+
+    /** Notes units that run for too long on our dobj and invoker threads. */
+    @Inject protected StallWatchdog _watchdog;
 }
@@ -24,6 +24,7 @@ package com.threerings.presents.server;
 import java.net.InetAddress;
 
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -34,11 +35,13 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
 import com.samskivert.util.IntMap;
+import com.samskivert.util.Interval;
 import com.samskivert.util.IntMaps;
 import com.samskivert.util.ResultListener;
-import com.samskivert.util.Throttle;
+import com.samskivert.util.Tuple;
 
 import com.threerings.util.Name;
 
@@ -46,8 +49,10 @@ import com.threerings.presents.annotation.AnyThread;
 import com.threerings.presents.annotation.EventThread;
 import com.threerings.presents.client.Client;
 import com.threerings.presents.data.ClientObject;
+import com.threerings.presents.data.InvocationCodes;
 import com.threerings.presents.dobj.DEvent;
 import com.threerings.presents.dobj.DObject;
+import com.threerings.presents.dobj.InvocationRequestEvent;
 import com.threerings.presents.dobj.ObjectAccessException;
 import com.threerings.presents.dobj.ObjectDestroyedEvent;
 import com.threerings.presents.dobj.ProxySubscriber;
@@ -66,9 +71,13 @@ import com.threerings.presents.net.Message;
 import com.threerings.presents.net.ObjectResponse;
 import com.threerings.presents.net.PingRequest;
 import com.threerings.presents.net.PongResponse;
+import com.threerings.presents.net.ResumableEventNotification;
+import com.threerings.presents.net.ResumeSessionRequest;
+import com.threerings.presents.net.ResumeSessionResponse;
 import com.threerings.presents.net.SubscribeRequest;
 import com.threerings.presents.net.ThrottleUpdatedMessage;
 import com.threerings.presents.net.TransmitDatagramsRequest;
+import com.threerings.presents.net.TransmitFragmentsRequest;
 import com.threerings.presents.net.UnsubscribeRequest;
 import com.threerings.presents.net.UnsubscribeResponse;
 import com.threerings.presents.net.UpdateThrottleMessage;
@@ -223,6 +232,23 @@ public class PresentsSession
         }
     }
 
+    /**
+     * Limits the rate at which data is sent to this client, overriding the connection manager's
+     * default limit. Messages that would exceed the limit are queued up, where latency critical
+     * messages may overtake them. This remains in effect if the client reconnects.
+     *
+     * @param bytesPerSecond the maximum sustained rate, or zero to use the default.
+     */
+    public void setOutgoingBandwidthLimit (int bytesPerSecond)
+    {
+        _bytesPerSec = bytesPerSecond;
+        PresentsConnection conn = getConnection();
+        if (conn != null) {
+            conn.setBandwidthLimit(
+                (bytesPerSecond > 0) ? bytesPerSecond : conn.getDefaultBandwidthLimit());
+        }
+    }
+
     /**
      * <em>Danger:</em> this method is not for general consumption. This changes the username of
      * the client, but should only be done very early in a user's session, when you know that no
@@ -287,6 +313,7 @@ public class PresentsSession
 
                 // update our internal fields
                 _clobj = clobj;
+                _clmgr.clientObjectDidChange(PresentsSession.this);
 
                 // call down to any derived classes
                 clientObjectDidChange(_clobj);
@@ -436,19 +463,155 @@ public class PresentsSession
     // from interface Connection.MessageHandler
     public void handleMessage (Message message)
     {
-        // if the client has been getting crazy with the cheeze whiz, stick a fork in them; the
-        // first time through we end our session, subsequently _throttle is null and we just drop
-        // any messages that come in until we've fully shutdown
-        if (_throttle == null) {
+        // if the client has been getting crazy with the cheeze whiz, we will have stuck a fork in
+        // them, in which case _throttle is null and we just drop any messages that come in until
+        // we've fully shutdown
+        RequestThrottle throttle = _throttle;
+        if (throttle == null) {
 //             log.info("Dropping message from force-quit client", "conn", getConnection(),
 //                      "msg", message);
             return;
+        }
 
-        } else if (_throttle.throttleOp(message.received)) {
+        long wait = throttle.reserve(_costs.getCost(message), message.received, _maxThrottleDelay);
+        if (wait == 0) {
+            synchronized (_delayed) {
+                // if earlier messages are still waiting out their delay, this one must follow
+                if (!_delayed.isEmpty()) {
+                    wait = Math.max(_delayed.getLast().left - message.received, 1L);
+                }
+            }
+        }
+        if (wait == 0) {
+            _shedStreak = 0;
+            dispatchMessage(message);
+        } else {
+            throttleMessage(message, wait);
+        }
+    }
+
+    /**
+     * Called when a message cannot be dispatched immediately because the client has exceeded its
+     * incoming message rate. By default, the message is dispatched once the specified delay has
+     * elapsed, or refused via {@link #shedMessage} if it would have had to wait longer than our
+     * maximum throttle delay. A client that has every message refused for a sustained period is
+     * disconnected via {@link #handleThrottleExceeded}. This is called on the conmgr thread.
+     *
+     * @param wait the number of milliseconds for which the message must be delayed, or -1 if it
+     * is to be refused.
+     */
+    protected void throttleMessage (Message message, long wait)
+    {
+        if (wait > 0) {
+            _shedStreak = 0;
+            delayMessage(message, message.received + wait);
+            return;
+        }
+
+        shedMessage(message);
+        if (++_shedStreak > getMaxShedStreak()) {
             handleThrottleExceeded();
         }
+    }
+
+    /**
+     * Queues up a message to be dispatched at the specified time.
+     */
+    protected void delayMessage (Message message, long when)
+    {
+        synchronized (_delayed) {
+            // messages must be dispatched in the order they arrived
+            if (!_delayed.isEmpty()) {
+                when = Math.max(when, _delayed.getLast().left);
+            }
+            _delayed.add(new Tuple<Long, Message>(when, message));
+            if (_delayed.size() == 1) {
+                if (_releaser == null) {
+                    _releaser = _omgr.newInterval(new Runnable() {
+                        public void run () {
+                            releaseDelayed();
+                        }
+                    });
+                }
+                _releaser.schedule(Math.max(when - System.currentTimeMillis(), 1L));
+            }
+        }
+    }
 
-        dispatchMessage(message);
+    /**
+     * Dispatches any delayed messages whose time has come.
+     */
+    protected void releaseDelayed ()
+    {
+        long now = System.currentTimeMillis();
+        synchronized (_delayed) {
+            // we dispatch while holding the lock so that messages arriving meanwhile queue up
+            // behind those we're releasing rather than overtaking them
+            while (!_delayed.isEmpty() && _delayed.getFirst().left <= now) {
+                dispatchMessage(_delayed.removeFirst().right);
+            }
+            if (!_delayed.isEmpty()) {
+                _releaser.schedule(Math.max(_delayed.getFirst().left - now, 1L));
+            }
+        }
+    }
+
+    /**
+     * Refuses a message that the client sent while over its incoming message rate. Requests that
+     * expect a response are told that they were throttled so that the client is not left hanging;
+     * anything else is simply dropped. This is called on the conmgr thread.
+     */
+    protected void shedMessage (Message message)
+    {
+        if (message instanceof CompoundUpstreamMessage) {
+            for (UpstreamMessage submsg : ((CompoundUpstreamMessage)message).msgs) {
+                shedMessage(submsg);
+            }
+
+        } else if (message instanceof SubscribeRequest) {
+            safePostMessage(new FailureResponse(((SubscribeRequest)message).getOid(),
+                                                InvocationCodes.E_THROTTLED));
+
+        } else if (message instanceof ForwardEventRequest) {
+            DEvent event = ((ForwardEventRequest)message).getEvent();
+            ClientObject clobj = _clobj;
+            if (event instanceof InvocationRequestEvent && clobj != null) {
+                _invmgr.rejectRequest(clobj.getOid(), (InvocationRequestEvent)event,
+                                      InvocationCodes.E_THROTTLED);
+            }
+        }
+    }
+
+    /**
+     * Prepares an event forwarded by the client to be processed, returning null if it should be
+     * dropped. This is called on the conmgr thread.
+     */
+    protected DEvent prepareForwardedEvent (ForwardEventRequest req)
+    {
+        DEvent fevt = req.getEvent();
+
+        // freak not out if a message arrives from a client just after their session ended
+        ClientObject clobj = getClientObject();
+        if (clobj == null) {
+            log.info("Dropping event that arrived after client disconnected " + fevt + ".");
+            return null;
+        }
+
+        // fill in the proper source oid
+        fevt.setSourceOid(clobj.getOid());
+
+//         log.info("Forwarding event", "client", this, "event", fevt);
+
+        return fevt;
+    }
+
+    /**
+     * Returns the number of consecutive messages we'll refuse before concluding that the client is
+     * hopelessly out of control and disconnecting it.
+     */
+    protected int getMaxShedStreak ()
+    {
+        return 10*(_messagesPerSec+1);
     }
 
     /**
@@ -560,9 +723,31 @@ public class PresentsSession
             return;
         }
 
+        // if we held onto our subscriptions for a client that enabled resumption, give it a
+        // moment to tell us which events it missed before falling back to a full bootstrap
+        if (_parked) {
+            _awaitingResume = true;
+            scheduleResumeTimer(RESUME_WAIT);
+            return;
+        }
+
+        bootstrapResumedSession();
+    }
+
+    /**
+     * Completes the resumption of a session for which we have no retained subscriptions (or for
+     * which the client declined to resume them) by sending a fresh bootstrap.
+     */
+    @EventThread
+    protected void bootstrapResumedSession ()
+    {
         // make extra sure we have no lingering subscriptions
         clearSubscrips(false);
 
+        // the new connection must enable resumption anew if it wishes to use it
+        _resumable = false;
+        _replay.clear();
+
         // Update our client secret with the new auth request
         _clobj.getLocal(ClientLocal.class).secret = getSecret();
 
@@ -580,6 +765,180 @@ public class PresentsSession
         log.info("Session resumed " + this + ".");
     }
 
+    /**
+     * Called on the dobjmgr thread when our client asks to enable resumption or to resume its
+     * session after reconnecting.
+     *
+     * @param lastSequence the delivery sequence number through which the client received every
+     * event notification, or {@link ResumeSessionRequest#ENABLE}.
+     */
+    @EventThread
+    protected void resumeRequested (long lastSequence)
+    {
+        if (lastSequence == ResumeSessionRequest.ENABLE) {
+            // a freshly logged on client has no use for any parked subscriptions
+            if (_awaitingResume) {
+                abandonResume();
+            }
+            _resumable = true;
+            _replay.clear();
+            _replayFloor = _deliverySeq = 0L;
+            return;
+        }
+
+        // we can only resume if we're still holding our subscriptions and have buffered every
+        // notification that follows the last one the client is sure it received
+        if (!_awaitingResume || lastSequence < _replayFloor) {
+            log.info("Unable to resume session", "client", this, "lastSequence", lastSequence,
+                     "floor", _replayFloor, "parked", _awaitingResume);
+            postMessage(new ResumeSessionResponse(false, 0), null);
+            if (_awaitingResume) {
+                abandonResume();
+            }
+            return;
+        }
+
+        PresentsConnection conn = getConnection();
+        if (conn == null) {
+            return; // we'll be parked again once the closure of the new connection is processed
+        }
+        _awaitingResume = false;
+        _parked = false;
+        cancelResumeTimer();
+
+        // point our subscriptions at the new connection
+        for (ClientProxy rec : _subscrips.values()) {
+            rec._oconn = conn;
+        }
+
+        // update our client secret with the new auth request and let derived classes know
+        _clobj.getLocal(ClientLocal.class).secret = getSecret();
+        sessionWillResume();
+
+        // tell the client it can keep its objects and then send along the events it missed; it
+        // will ignore any that it received out of order before the connection dropped
+        postMessage(new ResumeSessionResponse(true, conn.getConnectionId()), null);
+        int replayed = 0;
+        for (ResumableEventNotification notif : _replay) {
+            if (notif.sequence > lastSequence) {
+                postMessage(notif, null);
+                replayed++;
+            }
+        }
+
+        // resend the throttle update if non-default
+        if (_messagesPerSec != Client.DEFAULT_MSGS_PER_SECOND) {
+            sendThrottleUpdate();
+        }
+
+        log.info("Session resumed without bootstrap", "client", this, "replayed", replayed);
+    }
+
+    /**
+     * Called on the dobjmgr thread when a client that enabled resumption loses its connection. We
+     * hold onto our subscriptions and continue to buffer their events so that the client can pick
+     * up where it left off if it reconnects before our replay buffer overflows.
+     */
+    @EventThread
+    protected void parkSession ()
+    {
+        _parked = true;
+        scheduleResumeTimer(getResumeWindow());
+    }
+
+    /**
+     * Stops holding onto subscriptions for a disconnected client that enabled resumption.
+     */
+    @EventThread
+    protected void releaseParked ()
+    {
+        _parked = false;
+        _resumable = false;
+        _replay.clear();
+        cancelResumeTimer();
+        clearSubscrips(false);
+    }
+
+    /**
+     * Gives up on resuming a parked session for a reconnected client and bootstraps it afresh.
+     */
+    @EventThread
+    protected void abandonResume ()
+    {
+        _awaitingResume = false;
+        releaseParked();
+        bootstrapResumedSession();
+    }
+
+    /**
+     * Records an event delivered to a client that enabled resumption so that it can be replayed
+     * if the client's connection drops before it is received.
+     */
+    @EventThread
+    protected void noteReplayable (ResumableEventNotification notif)
+    {
+        _replay.add(notif);
+        if (_replay.size() > getReplayBufferSize()) {
+            _replayFloor = _replay.removeFirst().sequence;
+            // if our client is disconnected, it can no longer be caught up from the buffer
+            if (_parked && !_awaitingResume) {
+                log.info("Replay buffer overflowed, releasing parked session", "client", this);
+                releaseParked();
+            }
+        }
+    }
+
+    /**
+     * Sends the supplied event to our client. Reliable events sent to a client that enabled
+     * resumption are numbered in the order we queue them and retained for replay.
+     */
+    @EventThread
+    protected void forwardEvent (DEvent event, PresentsConnection expect)
+    {
+        // unreliable events may be lost without consequence, so we don't number them lest the
+        // client think it missed something
+        if (_resumable && event.getTransport().isReliable()) {
+            ResumableEventNotification notif =
+                new ResumableEventNotification(event, ++_deliverySeq);
+            noteReplayable(notif);
+            postMessage(notif, expect);
+        } else {
+            postMessage(new EventNotification(event), expect);
+        }
+    }
+
+    /**
+     * (Re)schedules our resumption timer to expire after the specified delay.
+     */
+    protected void scheduleResumeTimer (long delay)
+    {
+        if (_resumeTimer == null) {
+            _resumeTimer = _omgr.newInterval(new Runnable() {
+                public void run () {
+                    if (_awaitingResume) {
+                        log.info("Client did not resume session in time", "client",
+                                 PresentsSession.this);
+                        abandonResume();
+                    } else if (_parked) {
+                        releaseParked();
+                    }
+                }
+            });
+        }
+        _resumeTimer.cancel();
+        _resumeTimer.schedule(delay);
+    }
+
+    /**
+     * Cancels our resumption timer if it is scheduled.
+     */
+    protected void cancelResumeTimer ()
+    {
+        if (_resumeTimer != null) {
+            _resumeTimer.cancel();
+        }
+    }
+
     /**
      * Sends the throttle update to the client.
      */
@@ -613,14 +972,16 @@ public class PresentsSession
      * Creates our incoming message throttle. Use {@link #setIncomingMessageThrottle} to adjust the
      * throttle for running clients.
      */
-    protected Throttle createIncomingMessageThrottle ()
+    protected RequestThrottle createIncomingMessageThrottle ()
     {
         // see throttleUpdated() for details on these numbers
-        return new Throttle(10*(Client.DEFAULT_MSGS_PER_SECOND+1), 10*1000L);
+        return new RequestThrottle(Client.DEFAULT_MSGS_PER_SECOND,
+                                   10*(Client.DEFAULT_MSGS_PER_SECOND+1));
     }
 
     /**
-     * Called when a client exceeds their allotted incoming messages per second throttle.
+     * Called when a client has persistently exceeded their allotted incoming messages per second
+     * throttle, such that we've been refusing everything they send.
      */
     protected void handleThrottleExceeded ()
     {
@@ -706,6 +1067,11 @@ public class PresentsSession
     @EventThread
     protected void sessionDidEnd ()
     {
+        // stop holding onto anything for a client that might have resumed
+        _resumable = _parked = _awaitingResume = false;
+        _replay.clear();
+        cancelResumeTimer();
+
         // clear out our subscriptions so that we don't get a complaint about inability to forward
         // the object destroyed event we're about to generate
         clearSubscrips(false);
@@ -799,9 +1165,16 @@ public class PresentsSession
 
         // reset the throttle state in case the client reconnects
         _throttle = createIncomingMessageThrottle();
+        _shedStreak = 0;
         synchronized (_pendingThrottles) {
             _pendingThrottles.clear();
         }
+        synchronized (_delayed) {
+            _delayed.clear();
+            if (_releaser != null) {
+                _releaser.cancel();
+            }
+        }
 
         // if we are being closed after the omgr has shutdown, then just stop here; the whole world
         // is about to come to a screeching halt anyway
@@ -826,6 +1199,12 @@ public class PresentsSession
     @EventThread
     protected void sessionConnectionClosed ()
     {
+        // hold onto our subscriptions if our client hopes to resume
+        if (_resumable && _clobj != null) {
+            parkSession();
+            return;
+        }
+
         // clear out our dobj subscriptions in case they weren't cleared by a call to sessionDidEnd
         clearSubscrips(false);
     }
@@ -870,6 +1249,11 @@ public class PresentsSession
             if (_loader != null) {
                 _conn.setClassLoader(_loader);
             }
+
+            // and any custom bandwidth limit
+            if (_bytesPerSec > 0) {
+                _conn.setBandwidthLimit(_bytesPerSec);
+            }
         }
 
         // make a note that our network status changed
@@ -949,7 +1333,10 @@ public class PresentsSession
             return false;
         }
 
-        if (_compound != null) {
+        // object responses are sent immediately: the object is encoded when the message is sent,
+        // so one held in a compound message would include the effects of events that are also
+        // forwarded in the compound message after it
+        if (_compound != null && !(msg instanceof ObjectResponse<?>)) {
             _compound.msgs.add(msg);
             return true;
         }
@@ -968,8 +1355,9 @@ public class PresentsSession
                 "count", _messagesDropped, "msg", msg);
         }
 
-        // make darned sure we don't have any remaining subscriptions
-        if (_subscrips.size() > 0) {
+        // make darned sure we don't have any remaining subscriptions (unless we're holding them
+        // for a client that hopes to resume)
+        if (_subscrips.size() > 0 && !_parked) {
 //             log.warning("Clearing stale subscriptions", "client", this,
 //                         "subscrips", _subscrips.size());
             clearSubscrips(_messagesDropped > 10);
@@ -993,12 +1381,14 @@ public class PresentsSession
         }
 
         // log.info("Applying updated throttle", "client", this, "msgsPerSec", messagesPerSec);
-        // We set our hard throttle over a 10 second period instead of a 1 second period to
-        // account for periods of network congestion that might cause otherwise properly
-        // throttled messages to bunch up while they're "on the wire"; we also add a one
-        // message buffer so that if the client is right up against the limit, we don't end
-        // up quibbling over a couple of milliseconds
-        _throttle.reinit(10*messagesPerSec+1, 10*1000L);
+        // We allow a burst of ten seconds worth of messages to account for periods of network
+        // congestion that might cause otherwise properly throttled messages to bunch up while
+        // they're "on the wire"; we also add a one message buffer so that if the client is right
+        // up against the limit, we don't end up quibbling over a couple of milliseconds
+        RequestThrottle throttle = _throttle;
+        if (throttle != null) {
+            throttle.reinit(messagesPerSec, 10*messagesPerSec+1);
+        }
     }
 
     @Override
@@ -1024,6 +1414,24 @@ public class PresentsSession
         return DEFAULT_FLUSH_TIME;
     }
 
+    /**
+     * Returns the number of delivered events retained for replay to a client that resumes its
+     * session. A client that misses more events than this while disconnected must bootstrap anew.
+     */
+    protected int getReplayBufferSize ()
+    {
+        return DEFAULT_REPLAY_BUFFER_SIZE;
+    }
+
+    /**
+     * Returns the duration (in milliseconds) for which subscriptions are retained for a
+     * disconnected client that enabled resumption.
+     */
+    protected long getResumeWindow ()
+    {
+        return DEFAULT_RESUME_WINDOW;
+    }
+
     /**
      * Derived classes override this to augment stringification.
      */
@@ -1057,8 +1465,12 @@ public class PresentsSession
         // from interface ProxySubscriber
         public void objectAvailable (DObject dobj)
         {
-            if (postMessage(new ObjectResponse<DObject>(dobj), _oconn)) {
-                _firstEventId = _omgr.getNextEventId(false);
+            ObjectResponse<DObject> rsp = new ObjectResponse<DObject>(dobj);
+            if (postMessage(rsp, _oconn)) {
+                // a shared snapshot may predate changes whose events are yet to be dispatched, in
+                // which case we must forward those events
+                _firstEventId = (rsp.getFirstEventId() > 0) ?
+                    rsp.getFirstEventId() : _omgr.getNextEventId(false);
                 object = dobj;
                 ClientProxy orec;
                 synchronized (_subscrips) {
@@ -1101,7 +1513,7 @@ public class PresentsSession
                 return;
             }
 
-            postMessage(new EventNotification(event), _oconn);
+            forwardEvent(event, _oconn);
 
             if (event instanceof ObjectDestroyedEvent) {
                 // Make sure it's cleared out.  Otherwise, client-server timing can
@@ -1171,22 +1583,75 @@ public class PresentsSession
     {
         public void dispatch (final PresentsSession client, Message msg)
         {
-            // Compound downstream messages sent while dispatching the upstream compound message
-            client._omgr.postRunnable(new Runnable() {
-                public void run () {
-                    client.startCompoundMessage();
-                }});
+            // forwarded events are processed together in a single unit (or as few as need be to
+            // keep them in order with any other messages) and any messages sent to the client
+            // while processing them are sent back en masse in a compound downstream message
+            EventBatch batch = new EventBatch(client, true);
             for (UpstreamMessage submsg : ((CompoundUpstreamMessage)msg).msgs) {
+                if (submsg instanceof ForwardEventRequest) {
+                    client._messagesIn++;
+                    DEvent fevt = client.prepareForwardedEvent((ForwardEventRequest)submsg);
+                    if (fevt != null) {
+                        batch.events.add(fevt);
+                    }
+                    continue;
+                }
+                // process the events batched thus far before this message
+                if (batch.start || !batch.events.isEmpty()) {
+                    client._omgr.postRunnable(batch);
+                    batch = new EventBatch(client, false);
+                }
                 client.dispatchMessage(submsg);
             }
-            // Send any messages produced en masse now that we've finished dispatching
-            client._omgr.postRunnable(new Runnable() {
-                public void run () {
-                    client.finishCompoundMessage();
-                }});
+            batch.finish = true;
+            client._omgr.postRunnable(batch);
         }
     }
 
+    /**
+     * Processes a batch of forwarded events, collecting any messages sent to the client.
+     */
+    protected static class EventBatch implements Runnable
+    {
+        public final List<DEvent> events = Lists.newArrayList();
+        public boolean start, finish;
+
+        public EventBatch (PresentsSession client, boolean start)
+        {
+            _client = client;
+            this.start = start;
+        }
+
+        public void run ()
+        {
+            if (start) {
+                _client.startCompoundMessage();
+            }
+            // claim our event ids now, so that they increase in the order events are dispatched
+            for (int ii = 0, ll = events.size(); ii < ll; ii++) {
+                events.get(ii).eventId = _client._omgr.getNextEventId(true);
+            }
+            _client._omgr.processEvents(events);
+            if (finish) {
+                // the responses to our events are themselves events, posted while we processed
+                // them, so we finish up once those have been processed
+                _client._omgr.postRunnable(new Runnable() {
+                    public void run () {
+                        _client.finishCompoundMessage();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public String toString ()
+        {
+            return "[client=" + _client.getAuthName() + ", events=" + events.size() + "]";
+        }
+
+        protected PresentsSession _client;
+    }
+
     /**
      * Processes unsubscribe requests.
      */
@@ -1214,23 +1679,11 @@ public class PresentsSession
     {
         public void dispatch (PresentsSession client, Message msg)
         {
-            ForwardEventRequest req = (ForwardEventRequest)msg;
-            DEvent fevt = req.getEvent();
-
-            // freak not out if a message arrives from a client just after their session ended
-            ClientObject clobj = client.getClientObject();
-            if (clobj == null) {
-                log.info("Dropping event that arrived after client disconnected " + fevt + ".");
-                return;
+            DEvent fevt = client.prepareForwardedEvent((ForwardEventRequest)msg);
+            if (fevt != null) {
+                // forward the event to the omgr for processing
+                client._omgr.postEvent(fevt);
             }
-
-            // fill in the proper source oid
-            fevt.setSourceOid(clobj.getOid());
-
-//             log.info("Forwarding event", "client", client, "event", fevt);
-
-            // forward the event to the omgr for processing
-            client._omgr.postEvent(fevt);
         }
     }
 
@@ -1263,6 +1716,20 @@ public class PresentsSession
         }
     }
 
+    /**
+     * Processes fragment transmission requests.
+     */
+    protected static class TransmitFragmentsDispatcher implements MessageDispatcher
+    {
+        public void dispatch (PresentsSession client, Message msg)
+        {
+            PresentsConnection conn = client.getConnection();
+            if (conn != null) {
+                conn.setTransmitFragments(true);
+            }
+        }
+    }
+
     /**
      * Processes throttle updated messages.
      */
@@ -1275,6 +1742,22 @@ public class PresentsSession
         }
     }
 
+    /**
+     * Processes session resumption requests.
+     */
+    protected static class ResumeSessionDispatcher implements MessageDispatcher
+    {
+        public void dispatch (final PresentsSession client, Message msg)
+        {
+            final long lastSequence = ((ResumeSessionRequest)msg).lastSequence;
+            client._omgr.postRunnable(new Runnable() {
+                public void run () {
+                    client.resumeRequested(lastSequence);
+                }
+            });
+        }
+    }
+
     /**
      * Processes logoff requests.
      */
@@ -1291,6 +1774,12 @@ public class PresentsSession
     @Inject protected ConnectionManager _conmgr;
     @Inject protected PresentsDObjectMgr _omgr;
     @Inject protected InvocationManager _invmgr;
+    @Inject protected RequestCosts _costs;
+
+    /** The longest we'll delay a message from a client that is over its throttle before we
+     * refuse it outright. */
+    @Inject(optional=true) @Named("presents.throttle.maxDelay")
+    protected long _maxThrottleDelay = 2000L;
 
     protected AuthRequest _areq;
     protected Object _authdata;
@@ -1328,12 +1817,46 @@ public class PresentsSession
     /** The configured throttle setting (resent to reconnecting clients). */
     protected int _messagesPerSec = Client.DEFAULT_MSGS_PER_SECOND;
 
+    /** The configured outgoing bandwidth limit, or zero for the default. */
+    protected int _bytesPerSec;
+
     /** Prevent the client from sending too many messages too frequently. */
-    protected Throttle _throttle = createIncomingMessageThrottle();
+    protected volatile RequestThrottle _throttle = createIncomingMessageThrottle();
+
+    /** Messages being held back by our throttle, along with the times at which to dispatch them. */
+    protected LinkedList<Tuple<Long, Message>> _delayed = Lists.newLinkedList();
+
+    /** Dispatches our delayed messages when their time comes. */
+    protected Interval _releaser;
+
+    /** The number of messages we've refused in a row. */
+    protected int _shedStreak;
 
     /** Used to keep throttles around until we know the client is ready for us to apply them. */
     protected List<Integer> _pendingThrottles = Lists.newArrayList();
 
+    /** Whether our client has asked that its session survive a dropped connection. */
+    protected boolean _resumable;
+
+    /** Recently delivered events, replayed to a client that resumes its session. */
+    protected LinkedList<ResumableEventNotification> _replay = Lists.newLinkedList();
+
+    /** The sequence number of the newest notification to have been dropped from {@link
+     * #_replay}. */
+    protected long _replayFloor;
+
+    /** The sequence number assigned to the last notification sent to a resumable client. */
+    protected long _deliverySeq;
+
+    /** Whether we're holding our subscriptions for a disconnected client that may resume. */
+    protected boolean _parked;
+
+    /** Whether we're waiting for a reconnected client to tell us which events it missed. */
+    protected boolean _awaitingResume;
+
+    /** Releases our parked subscriptions if the client doesn't resume in time. */
+    protected Interval _resumeTimer;
+
     // keep these for kicks and giggles
     protected int _messagesIn;
     protected int _messagesOut;
@@ -1342,6 +1865,15 @@ public class PresentsSession
     /** A mapping of message dispatchers. */
     protected static Map<Class<?>, MessageDispatcher> _disps = Maps.newHashMap();
 
+    /** Default number of delivered events retained for replay to a resuming client. */
+    protected static final int DEFAULT_REPLAY_BUFFER_SIZE = 512;
+
+    /** Default period for which we hold subscriptions for a disconnected resumable client. */
+    protected static final long DEFAULT_RESUME_WINDOW = 60 * 1000L;
+
+    /** How long we wait for a reconnected client to ask to resume before bootstrapping it. */
+    protected static final long RESUME_WAIT = 5 * 1000L;
+
     /** Default period a user is allowed after disconn before their session is forcibly ended. */
     protected static final long DEFAULT_FLUSH_TIME = 7 * 60 * 1000L;
 
@@ -1355,8 +1887,10 @@ public class PresentsSession
         _disps.put(ForwardEventRequest.class, new ForwardEventDispatcher());
         _disps.put(PingRequest.class, new PingDispatcher());
         _disps.put(TransmitDatagramsRequest.class, new TransmitDatagramsDispatcher());
+        _disps.put(TransmitFragmentsRequest.class, new TransmitFragmentsDispatcher());
         _disps.put(ThrottleUpdatedMessage.class, new ThrottleUpdatedDispatcher());
         _disps.put(LogoffRequest.class, new LogoffDispatcher());
+        _disps.put(ResumeSessionRequest.class, new ResumeSessionDispatcher());
         _disps.put(CompoundUpstreamMessage.class, new CompoundDispatcher());
     }
 }
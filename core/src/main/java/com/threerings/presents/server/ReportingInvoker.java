@@ -31,6 +31,7 @@ import com.samskivert.util.StringUtil;
  * historical size and the results of unit profiling if enabled.
  */
 public class ReportingInvoker extends Invoker
+    implements StallWatchdog.Watched
 {
     public static class Stats
     {
@@ -71,6 +72,30 @@ public class ReportingInvoker extends Invoker
         }
     }
 
+    // from interface StallWatchdog.Watched
+    public Thread getUnitThread ()
+    {
+        return isAlive() ? this : null;
+    }
+
+    // from interface StallWatchdog.Watched
+    public int getQueueSize ()
+    {
+        return _queue.size();
+    }
+
+    // from interface StallWatchdog.Watched
+    public synchronized Object getCurrentUnit ()
+    {
+        return _currentUnit;
+    }
+
+    // from interface StallWatchdog.Watched
+    public synchronized long getCurrentUnitStart ()
+    {
+        return _currentUnitStart;
+    }
+
     @Override // from Invoker
     protected void willInvokeUnit (Unit unit, long start)
     {
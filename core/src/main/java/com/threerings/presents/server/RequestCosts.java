@@ -0,0 +1,141 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.inject.Singleton;
+
+import com.threerings.presents.data.InvocationMarshaller;
+import com.threerings.presents.dobj.DEvent;
+import com.threerings.presents.dobj.InvocationRequestEvent;
+import com.threerings.presents.net.CompoundUpstreamMessage;
+import com.threerings.presents.net.ForwardEventRequest;
+import com.threerings.presents.net.LogoffRequest;
+import com.threerings.presents.net.Message;
+import com.threerings.presents.net.PingRequest;
+import com.threerings.presents.net.ResumeSessionRequest;
+import com.threerings.presents.net.ThrottleUpdatedMessage;
+import com.threerings.presents.net.TransmitDatagramsRequest;
+import com.threerings.presents.net.TransmitFragmentsRequest;
+import com.threerings.presents.net.UnsubscribeRequest;
+import com.threerings.presents.net.UpstreamMessage;
+
+/**
+ * Assigns a cost to each message received from a client, which is charged against that client's
+ * {@link RequestThrottle}. By default every message costs one token, save for pings (which are
+ * cheap) and housekeeping messages (which are free). Services whose requests are expensive to
+ * process can be made to cost more, either in their entirety or on a per-method basis:
+ *
+ * <pre>
+ * FooMarshaller marsh = _invmgr.registerProvider(this, FooMarshaller.class);
+ * _costs.setCost(marsh, 1.0);
+ * _costs.setCost(marsh, FooMarshaller.EXPENSIVE_SEARCH, 5.0);
+ * </pre>
+ */
+@Singleton
+public class RequestCosts
+{
+    /** The cost of any message for which no other cost has been configured. */
+    public static final double DEFAULT_COST = 1.0;
+
+    public RequestCosts ()
+    {
+        setCost(PingRequest.class, 0.25);
+        setCost(LogoffRequest.class, 0);
+        setCost(UnsubscribeRequest.class, 0);
+        setCost(ThrottleUpdatedMessage.class, 0);
+        setCost(TransmitDatagramsRequest.class, 0);
+        setCost(TransmitFragmentsRequest.class, 0);
+        setCost(ResumeSessionRequest.class, 0);
+    }
+
+    /**
+     * Configures the cost of all messages of the specified class. Invocation requests (which
+     * arrive as {@link ForwardEventRequest}s) are better configured via {@link
+     * #setCost(InvocationMarshaller,double)}.
+     */
+    public void setCost (Class<? extends UpstreamMessage> mclass, double cost)
+    {
+        _classCosts.put(mclass, cost);
+    }
+
+    /**
+     * Configures the cost of every request made to the service with the supplied marshaller.
+     */
+    public void setCost (InvocationMarshaller<?> marsh, double cost)
+    {
+        setCost(marsh, ALL_METHODS, cost);
+    }
+
+    /**
+     * Configures the cost of requests made to the specified method of the service with the
+     * supplied marshaller.
+     */
+    public void setCost (InvocationMarshaller<?> marsh, int methodId, double cost)
+    {
+        _invCosts.put(invKey(marsh.getInvocationCode(), methodId), cost);
+    }
+
+    /**
+     * Returns the cost of the supplied message. Compound messages cost the sum of their
+     * constituents, as batching requests together must not make them any cheaper.
+     */
+    public double getCost (Message msg)
+    {
+        if (msg instanceof CompoundUpstreamMessage) {
+            double cost = 0;
+            for (UpstreamMessage submsg : ((CompoundUpstreamMessage)msg).msgs) {
+                cost += getCost(submsg);
+            }
+            return cost;
+        }
+
+        if (msg instanceof ForwardEventRequest && !_invCosts.isEmpty()) {
+            DEvent event = ((ForwardEventRequest)msg).getEvent();
+            if (event instanceof InvocationRequestEvent) {
+                InvocationRequestEvent req = (InvocationRequestEvent)event;
+                Double cost = _invCosts.get(invKey(req.getInvCode(), req.getMethodId()));
+                if (cost == null) {
+                    cost = _invCosts.get(invKey(req.getInvCode(), ALL_METHODS));
+                }
+                if (cost != null) {
+                    return cost;
+                }
+            }
+        }
+
+        Double cost = _classCosts.get(msg.getClass());
+        return (cost == null) ? DEFAULT_COST : cost;
+    }
+
+    protected static Long invKey (int invCode, int methodId)
+    {
+        return ((long)invCode << 32) | (methodId & 0xFFFFFFFFL);
+    }
+
+    protected Map<Class<?>, Double> _classCosts = new ConcurrentHashMap<Class<?>, Double>();
+    protected Map<Long, Double> _invCosts = new ConcurrentHashMap<Long, Double>();
+
+    /** The method id used to configure the cost of all of a service's methods. */
+    protected static final int ALL_METHODS = -1;
+}
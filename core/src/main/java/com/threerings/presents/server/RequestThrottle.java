@@ -0,0 +1,121 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+/**
+ * A token bucket used to throttle the messages sent to the server by a client. Tokens accrue at a
+ * fixed rate up to a maximum burst, and each message costs some number of tokens (see {@link
+ * RequestCosts}). A message that cannot be afforded immediately may be delayed until enough
+ * tokens have accrued, in which case the tokens are reserved (leaving the bucket in debt) so that
+ * any messages that follow it wait their turn behind it.
+ */
+public class RequestThrottle
+{
+    /**
+     * Creates a throttle that accrues the specified number of tokens per second, up to the
+     * specified maximum. The bucket starts out full.
+     */
+    public RequestThrottle (double rate, double burst)
+    {
+        reinit(rate, burst);
+        _tokens = burst;
+    }
+
+    /**
+     * Updates the rate and maximum burst of this throttle.
+     */
+    public synchronized void reinit (double rate, double burst)
+    {
+        _rate = rate;
+        _burst = burst;
+        _tokens = Math.min(_tokens, burst);
+    }
+
+    /**
+     * Reserves the tokens needed to process a message of the specified cost.
+     *
+     * @param maxWait the longest we're willing to wait for the tokens to accrue.
+     *
+     * @return zero if the message can be processed immediately, the number of milliseconds the
+     * caller must wait before processing the message, or -1 if the message would have to wait
+     * longer than <code>maxWait</code> (in which case no tokens are reserved). Messages that cost
+     * nothing are never refused, but will wait behind any messages that are already waiting.
+     */
+    public synchronized long reserve (double cost, long now, long maxWait)
+    {
+        // accrue any tokens earned since we were last consulted
+        if (now > _stamp) {
+            _tokens = Math.min(_burst, _tokens + (now - _stamp) * _rate / 1000);
+            _stamp = now;
+        }
+
+        if (_tokens >= cost) {
+            _tokens -= cost;
+            return 0;
+        }
+
+        long wait = (long)Math.ceil((cost - _tokens) * 1000 / _rate);
+        if (cost > 0 && wait > maxWait) {
+            _shed++;
+            return -1;
+        }
+        _tokens -= cost;
+        _delayed++;
+        return wait;
+    }
+
+    /**
+     * Returns the number of messages that have been delayed since the last call to {@link
+     * #resetStats}.
+     */
+    public synchronized int getDelayed ()
+    {
+        return _delayed;
+    }
+
+    /**
+     * Returns the number of messages that have been refused since the last call to {@link
+     * #resetStats}.
+     */
+    public synchronized int getShed ()
+    {
+        return _shed;
+    }
+
+    /**
+     * Clears our delayed and refused message counts.
+     */
+    public synchronized void resetStats ()
+    {
+        _delayed = _shed = 0;
+    }
+
+    @Override
+    public synchronized String toString ()
+    {
+        return "[rate=" + _rate + ", burst=" + _burst + ", tokens=" + _tokens +
+            ", delayed=" + _delayed + ", shed=" + _shed + "]";
+    }
+
+    protected double _rate, _burst, _tokens;
+    protected long _stamp = System.currentTimeMillis();
+    protected int _delayed, _shed;
+}
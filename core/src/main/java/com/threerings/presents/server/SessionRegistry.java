@@ -0,0 +1,269 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.threerings.util.Name;
+import com.threerings.util.TimingWheel;
+
+import com.threerings.presents.data.ClientObject;
+
+import com.threerings.nio.conman.Connection;
+
+/**
+ * Tracks the {@link ClientManager}'s sessions, indexed by authentication username, by the address
+ * from which they are connected and by client object oid. Lookups do not lock and may be made
+ * from any thread. Disconnected sessions are filed away by the time at which they will expire so
+ * that finding the expired sessions does not require a scan of every session.
+ */
+public class SessionRegistry
+{
+    /**
+     * Creates a registry whose expiry checks are made with the specified granularity.
+     */
+    public SessionRegistry (long expiryTick)
+    {
+        _expiries = new TimingWheel<PresentsSession>(
+            expiryTick, EXPIRY_SLOTS, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the number of registered sessions.
+     */
+    public int size ()
+    {
+        return _byName.size();
+    }
+
+    /**
+     * Returns all registered sessions. The returned collection is live and may be iterated over
+     * while sessions are being added and removed.
+     */
+    public Collection<PresentsSession> values ()
+    {
+        return Collections.unmodifiableCollection(_byName.values());
+    }
+
+    /**
+     * Returns the session registered with the supplied authentication username, or null.
+     */
+    public PresentsSession get (Name authname)
+    {
+        return _byName.get(authname);
+    }
+
+    /**
+     * Returns the session whose client object has the supplied oid, or null.
+     */
+    public PresentsSession getByOid (int cloid)
+    {
+        PresentsSession session = _byOid.get(cloid);
+        if (session != null) {
+            // make sure the session didn't change client objects out from under our index
+            ClientObject clobj = session.getClientObject();
+            if (clobj == null || clobj.getOid() != cloid) {
+                _byOid.remove(cloid, session);
+                return null;
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Returns all sessions connected from the supplied address, in the form returned from {@link
+     * InetAddress#getAddress()}.
+     */
+    public List<PresentsSession> getByAddress (byte[] addr)
+    {
+        try {
+            return getByAddress(InetAddress.getByAddress(addr));
+        } catch (UnknownHostException uhe) {
+            return Collections.emptyList(); // not a legal address, so no one's connected from it
+        }
+    }
+
+    /**
+     * Returns all sessions connected from the supplied address.
+     */
+    public List<PresentsSession> getByAddress (InetAddress addr)
+    {
+        Map<Connection, PresentsSession> conns = _byAddress.get(addr);
+        if (conns == null) {
+            return Collections.emptyList();
+        }
+        // a session may briefly have both its stale and its new connection mapped
+        Set<PresentsSession> sessions = Sets.newLinkedHashSet(conns.values());
+        return Lists.newArrayList(sessions);
+    }
+
+    /**
+     * Registers a session under its authentication username.
+     */
+    public void add (PresentsSession session)
+    {
+        _byName.put(session.getAuthName(), session);
+    }
+
+    /**
+     * Removes a session from the registry.
+     *
+     * @return the session that was registered under the supplied session's authentication
+     * username, which will be some other session if something has gone awry, or null.
+     */
+    public PresentsSession remove (PresentsSession session)
+    {
+        ClientObject clobj = session.getClientObject();
+        if (clobj != null) {
+            _byOid.remove(clobj.getOid(), session);
+        }
+        return _byName.remove(session.getAuthName());
+    }
+
+    /**
+     * Notes that the supplied session is now using the client object with the specified oid.
+     */
+    public void mapClientObject (PresentsSession session, int cloid)
+    {
+        _byOid.put(cloid, session);
+    }
+
+    /**
+     * Notes that the supplied session is now using the supplied connection.
+     */
+    public void connected (PresentsSession session, Connection conn)
+    {
+        InetAddress addr = conn.getInetAddress();
+        if (addr == null) {
+            return; // closed already, we'll hear about it shortly
+        }
+        _connAddrs.put(conn, addr);
+        while (true) {
+            ConcurrentMap<Connection, PresentsSession> conns = _byAddress.get(addr);
+            if (conns == null) {
+                ConcurrentMap<Connection, PresentsSession> ncons =
+                    new ConcurrentHashMap<Connection, PresentsSession>(4);
+                conns = _byAddress.putIfAbsent(addr, ncons);
+                if (conns == null) {
+                    conns = ncons;
+                }
+            }
+            // the per-address map is only emptied and unmapped while holding its lock, so once
+            // we hold it and find it still mapped, our addition can't be lost
+            synchronized (conns) {
+                if (_byAddress.get(addr) == conns) {
+                    conns.put(conn, session);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Notes that the supplied session has lost the supplied connection. It will be handed back by
+     * {@link #getExpired} once it has been disconnected for its {@link
+     * PresentsSession#getFlushTime flush time}.
+     */
+    public void disconnected (PresentsSession session, Connection conn)
+    {
+        InetAddress addr = _connAddrs.remove(conn);
+        if (addr != null) {
+            Map<Connection, PresentsSession> conns = _byAddress.get(addr);
+            if (conns != null) {
+                synchronized (conns) {
+                    conns.remove(conn);
+                    if (conns.isEmpty()) {
+                        _byAddress.remove(addr, conns);
+                    }
+                }
+            }
+        }
+        scheduleExpiry(session, System.currentTimeMillis() + session.getFlushTime());
+    }
+
+    /**
+     * Returns the registered sessions that have been disconnected for longer than their flush
+     * time. Sessions that have since reconnected are forgotten until they are next disconnected
+     * and sessions that are not yet due are checked again later.
+     */
+    public List<PresentsSession> getExpired (long now)
+    {
+        List<PresentsSession> due;
+        synchronized (_expiries) {
+            due = _expiries.advance(now, Lists.<PresentsSession>newArrayList());
+        }
+
+        List<PresentsSession> expired = Lists.newArrayList();
+        Set<PresentsSession> seen = Sets.newHashSet();
+        for (PresentsSession session : due) {
+            if (!seen.add(session) || _byName.get(session.getAuthName()) != session) {
+                continue; // already handled or no longer registered
+            }
+            if (session.checkExpired(now)) {
+                expired.add(session);
+            } else if (session.getConnection() == null) {
+                scheduleExpiry(session, session.getNetworkStamp() + session.getFlushTime());
+            }
+        }
+        return expired;
+    }
+
+    protected void scheduleExpiry (PresentsSession session, long when)
+    {
+        synchronized (_expiries) {
+            _expiries.schedule(session, when);
+        }
+    }
+
+    /** Our sessions, by authentication username. */
+    protected ConcurrentMap<Name, PresentsSession> _byName =
+        new ConcurrentHashMap<Name, PresentsSession>();
+
+    /** Our resolved sessions, by client object oid. */
+    protected ConcurrentMap<Integer, PresentsSession> _byOid =
+        new ConcurrentHashMap<Integer, PresentsSession>();
+
+    /** Our connected sessions, by address and then by connection. */
+    protected ConcurrentMap<InetAddress, ConcurrentMap<Connection, PresentsSession>> _byAddress =
+        new ConcurrentHashMap<InetAddress, ConcurrentMap<Connection, PresentsSession>>();
+
+    /** The address of each connection in {@link #_byAddress}, which it forgets once closed. */
+    protected ConcurrentMap<Connection, InetAddress> _connAddrs =
+        new ConcurrentHashMap<Connection, InetAddress>();
+
+    /** Our disconnected sessions, by the time at which they'll expire. */
+    protected TimingWheel<PresentsSession> _expiries;
+
+    /** The number of buckets in our expiry wheel. */
+    protected static final int EXPIRY_SLOTS = 64;
+}
@@ -0,0 +1,303 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import com.samskivert.util.Lifecycle;
+import com.samskivert.util.StringUtil;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * Watches the threads that run our units of work (the dobj thread, the invokers and the threads of
+ * our {@link KeyedUnitExecutor}s) and notes when a unit has been running for longer than a
+ * threshold, while it is still running. When a stall is detected, the stack of the stuck thread,
+ * the unit and the depth of the queue behind it are logged and recorded in a bounded history
+ * which is available via the {@link #REPORT_TYPE} report.
+ */
+@Singleton
+public class StallWatchdog
+    implements Lifecycle.ShutdownComponent
+{
+    /** The type of the report that lists recent stalls along with the stacks of their threads. */
+    public static final String REPORT_TYPE = "stalls";
+
+    /** The default number of milliseconds a unit may run before it is considered stalled. */
+    public static final long DEFAULT_STALL_THRESHOLD = 5 * 1000L;
+
+    /** The default number of stalls retained for reporting. */
+    public static final int DEFAULT_HISTORY_SIZE = 20;
+
+    /**
+     * Implemented by things that run units of work on a single thread.
+     */
+    public static interface Watched
+    {
+        /** Returns a name that identifies this thing in reports. */
+        String getName ();
+
+        /** Returns the thread on which units are run, or null if we are not yet running. */
+        Thread getUnitThread ();
+
+        /** Returns the number of units waiting to be run. */
+        int getQueueSize ();
+
+        /** Returns the unit currently being run, or null if we are idle. */
+        Object getCurrentUnit ();
+
+        /** Returns the time at which the current unit started running. This is read after {@link
+         * #getCurrentUnit}, so must be updated before the current unit is set. */
+        long getCurrentUnitStart ();
+    }
+
+    /**
+     * Describes a unit that ran for longer than the stall threshold.
+     */
+    public static class Stall
+    {
+        /** The name of the thing that was running the unit. */
+        public String source;
+
+        /** The unit's description. */
+        public String unit;
+
+        /** The time at which the unit started running. */
+        public long started;
+
+        /** The time at which the unit was noticed to be stalled. */
+        public long detected;
+
+        /** The time at which the unit was noticed to have finished, or zero if it is running. */
+        public long finished;
+
+        /** The number of units that were waiting behind it when it was noticed. */
+        public int queueSize;
+
+        /** The stack of the stalled thread when it was noticed. */
+        public StackTraceElement[] stack;
+
+        @Override
+        public String toString ()
+        {
+            StringBuilder buf = new StringBuilder();
+            buf.append(source).append(": ").append(unit);
+            buf.append(" (queue ").append(queueSize).append(", ");
+            if (finished == 0) {
+                buf.append("running");
+            } else {
+                buf.append("ran ~").append(finished - started).append("ms");
+            }
+            return buf.append(")").toString();
+        }
+
+        protected Object _unit;
+    }
+
+    /**
+     * Creates a watchdog that reports to the supplied report manager and stops when the server
+     * shuts down.
+     */
+    @Inject public StallWatchdog (ReportManager repmgr, Lifecycle cycle)
+    {
+        cycle.addComponent(this);
+        repmgr.registerReporter(ReportManager.DEFAULT_TYPE, new ReportManager.Reporter() {
+            public void appendReport (StringBuilder buf, long now, long sinceLast, boolean reset) {
+                appendSummary(buf, reset);
+            }
+        });
+        repmgr.registerReporter(REPORT_TYPE, new ReportManager.Reporter() {
+            public void appendReport (StringBuilder buf, long now, long sinceLast, boolean reset) {
+                appendStalls(buf);
+            }
+        });
+    }
+
+    /**
+     * Creates a watchdog that is not tied to a report manager or server lifecycle.
+     */
+    public StallWatchdog ()
+    {
+    }
+
+    /**
+     * Configures the number of milliseconds a unit may run before it is considered stalled. This
+     * must be called before the first call to {@link #watch}.
+     */
+    @Inject(optional=true)
+    public void setStallThreshold (@Named("presents.watchdog.stallThreshold") long millis)
+    {
+        _threshold = millis;
+    }
+
+    /**
+     * Configures the number of stalls retained for reporting.
+     */
+    @Inject(optional=true)
+    public void setHistorySize (@Named("presents.watchdog.historySize") int size)
+    {
+        _historySize = size;
+    }
+
+    /**
+     * Starts watching the supplied unit runner.
+     */
+    public synchronized void watch (Watched watched)
+    {
+        if (_shutdown) {
+            return;
+        }
+        _watched.add(watched);
+        if (_timer == null) {
+            long period = Math.max(100L, Math.min(1000L, _threshold/4));
+            _timer = new Timer("presents.StallWatchdog", true);
+            _timer.schedule(new TimerTask() {
+                @Override public void run () {
+                    check(System.currentTimeMillis());
+                }
+            }, period, period);
+        }
+    }
+
+    /**
+     * Returns the recorded stalls, oldest first.
+     */
+    public synchronized List<Stall> getStalls ()
+    {
+        return Lists.newArrayList(_history);
+    }
+
+    // from interface Lifecycle.ShutdownComponent
+    public synchronized void shutdown ()
+    {
+        _shutdown = true;
+        if (_timer != null) {
+            _timer.cancel();
+            _timer = null;
+        }
+    }
+
+    /**
+     * Checks our watched unit runners for stalls. This is called periodically on our timer thread.
+     */
+    protected synchronized void check (long now)
+    {
+        for (Watched watched : _watched) {
+            Object unit = watched.getCurrentUnit();
+            long started = watched.getCurrentUnitStart();
+
+            // note the completion of a previously detected stall
+            Stall active = _active.get(watched);
+            if (active != null) {
+                if (active._unit == unit && active.started == started) {
+                    continue;
+                }
+                active.finished = now;
+                active._unit = null;
+                _active.remove(watched);
+            }
+
+            if (unit == null || now - started < _threshold ||
+                unit instanceof PresentsDObjectMgr.LongRunnable) {
+                continue;
+            }
+            Thread thread = watched.getUnitThread();
+            Stall stall = new Stall();
+            stall.source = watched.getName();
+            stall.unit = StringUtil.safeToString(unit);
+            stall.started = started;
+            stall.detected = now;
+            stall.queueSize = watched.getQueueSize();
+            stall.stack = (thread == null) ? new StackTraceElement[0] : thread.getStackTrace();
+            stall._unit = unit;
+            _active.put(watched, stall);
+            _history.add(stall);
+            while (_history.size() > _historySize) {
+                _history.removeFirst();
+            }
+            _detected++;
+
+            Exception trace = new Exception("Stalled thread");
+            trace.setStackTrace(stall.stack);
+            log.warning("Unit stalled", "source", stall.source, "unit", stall.unit,
+                        "time", (now - started) + "ms", "queue", stall.queueSize, trace);
+        }
+    }
+
+    protected synchronized void appendSummary (StringBuilder buf, boolean reset)
+    {
+        buf.append("* presents.StallWatchdog:\n");
+        buf.append("- Stalls detected: ").append(_detected).append("\n");
+        for (Stall stall : _active.values()) {
+            buf.append("- Stalled: ").append(stall).append(" ");
+            buf.append(System.currentTimeMillis() - stall.started).append("ms\n");
+        }
+        if (reset) {
+            _detected = 0;
+        }
+    }
+
+    protected synchronized void appendStalls (StringBuilder buf)
+    {
+        // list the most recent stalls first
+        for (ListIterator<Stall> iter = _history.listIterator(_history.size());
+             iter.hasPrevious(); ) {
+            Stall stall = iter.previous();
+            buf.append("* ").append(stall).append("\n");
+            buf.append("- Detected after ").append(stall.detected - stall.started).append("ms\n");
+            for (StackTraceElement elem : stall.stack) {
+                buf.append("  at ").append(elem).append("\n");
+            }
+        }
+    }
+
+    /** The unit runners we're watching. */
+    protected List<Watched> _watched = Lists.newArrayList();
+
+    /** Stalls whose units were still running when last checked. */
+    protected Map<Watched, Stall> _active = Maps.newHashMap();
+
+    /** Recent stalls, oldest first. */
+    protected LinkedList<Stall> _history = new LinkedList<Stall>();
+
+    /** The number of stalls detected since our last report. */
+    protected int _detected;
+
+    /** Runs our periodic checks. */
+    protected Timer _timer;
+
+    /** Set once we've been shut down. */
+    protected boolean _shutdown;
+
+    protected long _threshold = DEFAULT_STALL_THRESHOLD;
+    protected int _historySize = DEFAULT_HISTORY_SIZE;
+}
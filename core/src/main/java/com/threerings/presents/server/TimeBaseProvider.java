@@ -21,10 +21,10 @@
 
 package com.threerings.presents.server;
 
-import java.util.HashMap;
-
-import com.google.common.collect.Maps;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.threerings.presents.annotation.ConcurrentDispatch;
 import com.threerings.presents.client.TimeBaseService;
 import com.threerings.presents.data.ClientObject;
 import com.threerings.presents.data.TimeBaseCodes;
@@ -81,6 +81,7 @@ public class TimeBaseProvider
     /**
      * Processes a request from a client to fetch the oid of the specified time object.
      */
+    @ConcurrentDispatch
     public void getTimeOid (ClientObject source, String timeBase,
                             TimeBaseService.GotTimeBaseListener listener)
         throws InvocationException
@@ -95,7 +96,8 @@ public class TimeBaseProvider
     }
 
     /** Used to keep track of our time base objects. */
-    protected static HashMap<String,TimeBaseObject> _timeBases = Maps.newHashMap();
+    protected static Map<String,TimeBaseObject> _timeBases =
+        new ConcurrentHashMap<String,TimeBaseObject>();
 
     /** The invocation manager with which we interoperate. */
     protected static InvocationManager _invmgr;
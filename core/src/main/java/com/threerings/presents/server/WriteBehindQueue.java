@@ -0,0 +1,298 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import com.samskivert.util.Interval;
+import com.samskivert.util.Invoker;
+import com.samskivert.util.Lifecycle;
+
+import com.threerings.presents.annotation.MainInvoker;
+import com.threerings.presents.util.PersistingUnit;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * Delays and coalesces writes of frequently changing data. Each unit is posted with a key that
+ * identifies the record it writes; if another unit is posted with the same key before the first
+ * has been flushed to the invoker, the later unit replaces it and the earlier unit's listener is
+ * informed of the later unit's outcome (see {@link PersistingUnit#absorb}). Pending units are
+ * flushed periodically, when too many are pending, when the session of the client whose key (see
+ * {@link #getOwnerKey}) matches their ordering key ends, when {@link #flush(Object)} is called for
+ * their ordering key and on server shutdown.
+ *
+ * <p> Because a pending write may be replaced, units posted here must write the complete current
+ * state of their record rather than an increment, and should report to a confirm listener (or
+ * none) rather than a result listener.
+ */
+@Singleton
+public class WriteBehindQueue
+    implements Lifecycle.ShutdownComponent
+{
+    /** The default number of milliseconds between periodic flushes. */
+    public static final long DEFAULT_FLUSH_INTERVAL = 30 * 1000L;
+
+    /** The default number of pending units that triggers an immediate flush. */
+    public static final int DEFAULT_MAX_PENDING = 1000;
+
+    /**
+     * Creates a queue that flushes periodically, when sessions end and on shutdown.
+     */
+    @Inject public WriteBehindQueue (
+        @MainInvoker Invoker invoker, PresentsDObjectMgr omgr, Lifecycle cycle,
+        ReportManager repmgr, ClientManager clmgr)
+    {
+        this(invoker);
+        _omgr = omgr;
+        cycle.addComponent(this);
+        clmgr.addClientObserver(new ClientManager.ClientObserver() {
+            public void clientSessionDidStart (PresentsSession session) {
+                // nothing doing
+            }
+            public void clientSessionDidEnd (PresentsSession session) {
+                Object owner = getOwnerKey(session);
+                if (owner != null) {
+                    flush(owner);
+                }
+            }
+        });
+        if (invoker instanceof Lifecycle.ShutdownComponent) {
+            // flush before the invoker empties its queue and goes away
+            cycle.addShutdownConstraint(
+                this, Lifecycle.Constraint.RUNS_BEFORE, (Lifecycle.ShutdownComponent)invoker);
+        }
+        repmgr.registerReporter(ReportManager.DEFAULT_TYPE, new ReportManager.Reporter() {
+            public void appendReport (StringBuilder buf, long now, long sinceLast, boolean reset) {
+                appendStats(buf, reset);
+            }
+        });
+    }
+
+    /**
+     * Creates a queue that only flushes when asked to or when its maximum pending count is
+     * reached.
+     */
+    public WriteBehindQueue (Invoker invoker)
+    {
+        _invoker = invoker;
+    }
+
+    /**
+     * Configures the number of milliseconds between periodic flushes of all pending units.
+     */
+    @Inject(optional=true)
+    public void setFlushInterval (@Named("presents.writeBehind.flushInterval") long millis)
+    {
+        _flushInterval = millis;
+    }
+
+    /**
+     * Configures the number of pending units beyond which all pending units are flushed.
+     */
+    @Inject(optional=true)
+    public void setMaxPending (@Named("presents.writeBehind.maxPending") int maxPending)
+    {
+        _maxPending = maxPending;
+    }
+
+    /**
+     * Queues up the supplied unit to be written later, replacing any pending unit with the same
+     * key. After shutdown, units are posted directly to the invoker. This may be called from any
+     * thread.
+     *
+     * @param key identifies the record written by the unit, for example a player id and the name
+     * of the table.
+     */
+    public void post (Object key, PersistingUnit unit)
+    {
+        boolean shutdown;
+        synchronized (this) {
+            _posted++;
+            shutdown = _shutdown;
+            if (!shutdown) {
+                PersistingUnit prev = _pending.put(key, unit);
+                if (prev != null) {
+                    unit.absorb(prev);
+                    _superseded++;
+                }
+                if (_pending.size() <= _maxPending) {
+                    if (_flusher == null && _omgr != null && _flushInterval > 0) {
+                        _flusher = _omgr.newInterval(new Runnable() {
+                            public void run () {
+                                flushAll();
+                            }
+                        });
+                        _flusher.schedule(_flushInterval, true);
+                    }
+                    return;
+                }
+            }
+        }
+        if (shutdown) {
+            write(Lists.newArrayList(unit));
+        } else {
+            flushAll();
+        }
+    }
+
+    /**
+     * Posts all pending units whose ordering key (see {@link PersistingUnit#setOrderingKey}) is
+     * equal to the supplied owner to the invoker. This should be called when the owner's session
+     * ends so that their data is written before anything else loads it.
+     */
+    public void flush (Object owner)
+    {
+        List<PersistingUnit> units = Lists.newArrayList();
+        synchronized (this) {
+            for (Iterator<PersistingUnit> iter = _pending.values().iterator(); iter.hasNext(); ) {
+                PersistingUnit unit = iter.next();
+                if (owner.equals(unit.getOrderingKey())) {
+                    units.add(unit);
+                    iter.remove();
+                }
+            }
+        }
+        write(units);
+    }
+
+    /**
+     * Posts all pending units to the invoker.
+     */
+    public void flushAll ()
+    {
+        List<PersistingUnit> units;
+        synchronized (this) {
+            units = Lists.newArrayList(_pending.values());
+            _pending.clear();
+        }
+        write(units);
+    }
+
+    /**
+     * Returns the number of units waiting to be flushed.
+     */
+    public synchronized int getPendingCount ()
+    {
+        return _pending.size();
+    }
+
+    // from interface Lifecycle.ShutdownComponent
+    public void shutdown ()
+    {
+        synchronized (this) {
+            _shutdown = true;
+            if (_flusher != null) {
+                _flusher.cancel();
+                _flusher = null;
+            }
+        }
+        int count = getPendingCount();
+        if (count > 0) {
+            log.info("Flushing pending writes", "count", count);
+        }
+        flushAll();
+    }
+
+    /**
+     * Returns the ordering key of the units that save the data of the client whose session is
+     * ending, which are flushed when it ends. By default this is the client's authentication
+     * username; systems that key their units by some other id should override this.
+     */
+    protected Object getOwnerKey (PresentsSession session)
+    {
+        return session.getAuthName();
+    }
+
+    /**
+     * Returns the key with which the supplied unit is posted to a {@link PresentsInvoker}. A
+     * unit's ordering key identifies its owner for {@link #flush(Object)} but is not used to
+     * choose its lane: by default this is null so that writes run on the invoker's main thread in
+     * order with the {@link ClientResolver} that next loads the owner's data. Systems that key
+     * their resolvers by owner (see {@link ClientResolver#getOrderingKey}) should return the
+     * unit's ordering key here.
+     */
+    protected Object getInvokerKey (PersistingUnit unit)
+    {
+        return null;
+    }
+
+    protected void write (List<PersistingUnit> units)
+    {
+        synchronized (this) {
+            _written += units.size();
+        }
+        PresentsInvoker pinvoker =
+            (_invoker instanceof PresentsInvoker) ? (PresentsInvoker)_invoker : null;
+        for (PersistingUnit unit : units) {
+            if (pinvoker != null) {
+                pinvoker.postUnit(getInvokerKey(unit), unit);
+            } else {
+                _invoker.postUnit(unit);
+            }
+        }
+    }
+
+    protected synchronized void appendStats (StringBuilder buf, boolean reset)
+    {
+        buf.append("* WriteBehindQueue:\n");
+        buf.append("- Pending writes: ").append(_pending.size()).append("\n");
+        buf.append("- Writes posted: ").append(_posted).append("\n");
+        buf.append("- Writes performed: ").append(_written).append("\n");
+        buf.append("- Writes saved: ").append(_superseded);
+        if (_posted > 0) {
+            buf.append(" (").append(_superseded * 100 / _posted).append("%)");
+        }
+        buf.append("\n");
+        if (reset) {
+            _posted = _written = _superseded = 0;
+        }
+    }
+
+    /** The invoker on which our units are written. */
+    protected Invoker _invoker;
+
+    /** Used to schedule our periodic flush, or null if we only flush on demand. */
+    protected PresentsDObjectMgr _omgr;
+
+    /** Our periodic flush interval, scheduled when the first unit is posted. */
+    protected Interval _flusher;
+
+    /** Units waiting to be written, by key, in the order they were first posted. */
+    protected Map<Object, PersistingUnit> _pending = Maps.newLinkedHashMap();
+
+    /** Set once we've been shut down, after which units are written immediately. */
+    protected boolean _shutdown;
+
+    /** Counts of units posted, written and replaced before they were written. */
+    protected long _posted, _written, _superseded;
+
+    protected long _flushInterval = DEFAULT_FLUSH_INTERVAL;
+    protected int _maxPending = DEFAULT_MAX_PENDING;
+}
@@ -47,62 +47,32 @@ public class AuthingConnection extends PresentsConnection
     {
         setMessageHandler(new MessageHandler() {
             public void handleMessage (Message msg) {
+                if (_securing) {
+                    log.warning("Received message while securing authentication process",
+                        "conn", AuthingConnection.this, "msg", msg);
+                    return;
+                }
+
                 if (_serverSecret == null) {
                     // first see if the client is trying to start secure authentication
-                    try {
-                        SecureRequest secreq = (SecureRequest)msg;
-                        PrivateKey key = _pcmgr.getPrivateKey();
-                        // fail quickly if we don't support secure connections
-                        if (key == null) {
-                            safePostMessage(new SecureResponse(AuthCodes.FAILED_TO_SECURE));
-                        } else {
-                            // generate a server key and encode it using the client key
-                            SecureResponse resp = new SecureResponse();
-                            PublicKeyCredentials pkcreds =
-                                    (PublicKeyCredentials)secreq.getCredentials();
-                            _clientSecureVersion = pkcreds.getSecureVersion();
-                            _serverSecret = resp.createSecret(pkcreds, key, 16);
-                            safePostMessage(resp);
-                        }
+                    if (msg instanceof SecureRequest &&
+                            ((SecureRequest)msg).getCredentials() instanceof PublicKeyCredentials) {
+                        startSecuring((SecureRequest)msg);
                         return;
-                    } catch (ClassCastException cce) {
-                        // Client didn't request a secure channel so proceed with normal
-                        // authentication
                     }
+                    // Client didn't request a secure channel so proceed with normal
+                    // authentication
+
+                } else if (msg instanceof AESAuthRequest) {
+                    startDecrypting((AESAuthRequest)msg);
+                    return;
+
                 } else {
-                    try {
-                        ((AESAuthRequest)msg).decrypt(_serverSecret);
-
-                    } catch (ClassCastException cce) {
-                        log.warning(
-                            "Received non-encrypted request during secure authentication process",
-                            "conn", AuthingConnection.this, "msg", msg);
-                    } catch (ClassNotFoundException cnfe) {
-                        log.warning(
-                            "Failed to decrypt request during secure authentication process",
-                            "conn", AuthingConnection.this, "msg", msg, cnfe);
-                        safePostMessage(new SecureResponse(AuthCodes.FAILED_TO_SECURE));
-                        return;
-                    } catch (IOException ioe) {
-                        log.warning(
-                            "Failed to decrypt request during secure authentication process",
-                            "conn", AuthingConnection.this, "msg", msg, ioe);
-                        safePostMessage(new SecureResponse(AuthCodes.FAILED_TO_SECURE));
-                        return;
-                    }
-                }
-                try {
-                    // keep a handle on our auth request
-                    _authreq = (AuthRequest)msg;
-                } catch (ClassCastException cce) {
-                    log.warning("Received non-authreq message during authentication process",
+                    log.warning(
+                        "Received non-encrypted request during secure authentication process",
                         "conn", AuthingConnection.this, "msg", msg);
                 }
-
-                if (_authreq != null) {
-                    // post ourselves for processing by the authmgr
-                    _pcmgr.authenticateConnection(AuthingConnection.this);
-                }
+                handleAuthRequest(msg);
             }
         });
     }
@@ -157,6 +127,134 @@ public class AuthingConnection extends PresentsConnection
         return "[mode=AUTHING, addr=" + getInetAddress() + "]";
     }
 
+    /**
+     * Generates our server secret and encodes it using the client's public key. The RSA work is
+     * done on the crypto stage and the response is delivered once we're back on our I/O loop.
+     */
+    protected void startSecuring (SecureRequest secreq)
+    {
+        final PrivateKey key = _pcmgr.getPrivateKey();
+        final CryptoStage stage = _pcmgr.getCryptoStage();
+        // fail quickly if we don't support secure connections
+        if (key == null || stage == null) {
+            safePostMessage(new SecureResponse(AuthCodes.FAILED_TO_SECURE));
+            return;
+        }
+
+        final PublicKeyCredentials pkcreds = (PublicKeyCredentials)secreq.getCredentials();
+        _clientSecureVersion = pkcreds.getSecureVersion();
+        _securing = true;
+        boolean queued = stage.execute(CryptoStage.Step.SECRET, new Runnable() {
+            public void run () {
+                final SecureResponse resp = new SecureResponse();
+                final byte[] secret;
+                try {
+                    secret = resp.createSecret(pkcreds, key, 16);
+                } catch (Throwable t) {
+                    cryptoFailed(t);
+                    return;
+                }
+                _loop.postTask(new Runnable() {
+                    public void run () {
+                        _securing = false;
+                        _serverSecret = secret;
+                        safePostMessage(resp);
+                    }
+                });
+            }
+        });
+        if (!queued) {
+            log.warning("Crypto stage overloaded, refusing secure authentication", "conn", this);
+            _securing = false;
+            safePostMessage(new SecureResponse(AuthCodes.FAILED_TO_SECURE));
+        }
+    }
+
+    /**
+     * Decrypts the supplied auth request on the crypto stage and then carries on with the
+     * authentication process back on our I/O loop.
+     */
+    protected void startDecrypting (final AESAuthRequest authreq)
+    {
+        final byte[] secret = _serverSecret;
+        _securing = true;
+        boolean queued = _pcmgr.getCryptoStage().execute(CryptoStage.Step.DECRYPT, new Runnable() {
+            public void run () {
+                Exception error = null;
+                try {
+                    authreq.decrypt(secret);
+                } catch (ClassNotFoundException cnfe) {
+                    error = cnfe;
+                } catch (IOException ioe) {
+                    error = ioe;
+                } catch (Throwable t) {
+                    cryptoFailed(t);
+                    return;
+                }
+                final Exception ferror = error;
+                _loop.postTask(new Runnable() {
+                    public void run () {
+                        _securing = false;
+                        if (ferror == null) {
+                            handleAuthRequest(authreq);
+                        } else {
+                            log.warning(
+                                "Failed to decrypt request during secure authentication process",
+                                "conn", AuthingConnection.this, "msg", authreq, ferror);
+                            safePostMessage(new SecureResponse(AuthCodes.FAILED_TO_SECURE));
+                        }
+                    }
+                });
+            }
+        });
+        if (!queued) {
+            log.warning("Crypto stage overloaded, refusing secure authentication", "conn", this);
+            _securing = false;
+            safePostMessage(new SecureResponse(AuthCodes.FAILED_TO_SECURE));
+        }
+    }
+
+    /**
+     * Called on a crypto stage thread if one of our handshake steps fails unexpectedly. We can't
+     * tell the client anything meaningful at that point, so we close the connection on our I/O
+     * loop rather than leave it waiting forever for a handshake that will never complete.
+     */
+    protected void cryptoFailed (final Throwable cause)
+    {
+        log.warning("Crypto task failed during secure authentication", "conn", this, cause);
+        _loop.postTask(new Runnable() {
+            public void run () {
+                _securing = false;
+                if (!isClosed()) {
+                    networkFailure(
+                        (IOException)new IOException("Secure handshake failed").initCause(cause));
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands the supplied (decrypted if need be) auth request off for processing.
+     */
+    protected void handleAuthRequest (Message msg)
+    {
+        if (isClosed()) {
+            return; // the client went away while we were securing things
+        }
+        try {
+            // keep a handle on our auth request
+            _authreq = (AuthRequest)msg;
+        } catch (ClassCastException cce) {
+            log.warning("Received non-authreq message during authentication process",
+                "conn", this, "msg", msg);
+        }
+
+        if (_authreq != null) {
+            // post ourselves for processing by the authmgr
+            _pcmgr.authenticateConnection(this);
+        }
+    }
+
     /**
      * Callable from non-dobjmgr thread, this queues up a runnable on the dobjmgr thread to post
      * the supplied message to this client.
@@ -177,6 +275,9 @@ public class AuthingConnection extends PresentsConnection
     /** The random secret generating for this connection. */
     protected byte[] _serverSecret;
 
+    /** Set while one of our handshake steps is being performed by the crypto stage. */
+    protected boolean _securing;
+
     /** The secure version for our connecting client. */
     protected int _clientSecureVersion;
 }
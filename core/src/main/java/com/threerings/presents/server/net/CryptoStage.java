@@ -0,0 +1,166 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.presents.server.net;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * Performs the expensive cryptographic steps of the secure authentication handshake (decoding the
+ * client's RSA encrypted secret and decrypting the AES encrypted auth request) on a bounded pool
+ * of worker threads so that a storm of secure logons does not stall network I/O for everyone
+ * else. Work is handed off by {@link AuthingConnection} which is responsible for getting the
+ * results back onto its I/O loop.
+ */
+public class CryptoStage
+{
+    /** The steps of the handshake performed by the stage, for which we track latency. */
+    public enum Step { SECRET, DECRYPT }
+
+    /**
+     * Creates a crypto stage with the specified number of worker threads which will queue at most
+     * the specified number of pending tasks before refusing more.
+     */
+    public CryptoStage (int threads, int maxQueued)
+    {
+        threads = Math.max(threads, 1);
+        _exec = new ThreadPoolExecutor(
+            threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(Math.max(maxQueued, 1)), new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "CryptoStage-" + _threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+                protected AtomicInteger _threadId = new AtomicInteger();
+            });
+        for (Step step : Step.values()) {
+            _profiles[step.ordinal()] = new StepProfile();
+        }
+    }
+
+    /**
+     * Queues up the supplied task to be run on one of our worker threads.
+     *
+     * @return true if the task was queued, false if the stage is shut down or has too many tasks
+     * pending, in which case the caller should fail the handshake.
+     */
+    public boolean execute (Step step, final Runnable task)
+    {
+        final StepProfile profile = _profiles[step.ordinal()];
+        final long queued = System.nanoTime();
+        try {
+            _exec.execute(new Runnable() {
+                public void run () {
+                    long started = System.nanoTime();
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        log.warning("Crypto task failed", "task", task, t);
+                    }
+                    profile.record(started - queued, System.nanoTime() - started);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ree) {
+            profile.noteRejected();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting for a worker thread.
+     */
+    public int getQueueSize ()
+    {
+        return _exec.getQueue().size();
+    }
+
+    /**
+     * Appends a summary of our activity to the supplied server report.
+     */
+    public void appendReport (StringBuilder report, boolean reset)
+    {
+        report.append("- Secure handshakes: ").append(getQueueSize()).append(" queued");
+        for (Step step : Step.values()) {
+            report.append(", ").append(step.name().toLowerCase()).append(" ");
+            _profiles[step.ordinal()].appendTo(report, reset);
+        }
+        report.append("\n");
+    }
+
+    /**
+     * Stops accepting work and lets our worker threads exit once the queued tasks are done.
+     */
+    public void shutdown ()
+    {
+        _exec.shutdown();
+    }
+
+    /** Tracks the queue wait and execution time of one step of the handshake. */
+    protected static class StepProfile
+    {
+        public synchronized void record (long waitNanos, long runNanos)
+        {
+            _count++;
+            _totalWait += waitNanos;
+            _totalRun += runNanos;
+            _maxWait = Math.max(_maxWait, waitNanos);
+            _maxRun = Math.max(_maxRun, runNanos);
+        }
+
+        public synchronized void noteRejected ()
+        {
+            _rejected++;
+        }
+
+        public synchronized void appendTo (StringBuilder report, boolean reset)
+        {
+            long count = Math.max(_count, 1);
+            report.append(_count).append(" (");
+            report.append(_totalWait/count/1000).append("us avg wait, ");
+            report.append(_maxWait/1000).append("us max wait, ");
+            report.append(_totalRun/count/1000).append("us avg run, ");
+            report.append(_maxRun/1000).append("us max run, ");
+            report.append(_rejected).append(" rejected)");
+            if (reset) {
+                _count = _totalWait = _totalRun = _maxWait = _maxRun = 0;
+                _rejected = 0;
+            }
+        }
+
+        protected long _count, _totalWait, _totalRun, _maxWait, _maxRun;
+        protected int _rejected;
+    }
+
+    /** Executes our tasks. */
+    protected ThreadPoolExecutor _exec;
+
+    /** Latency profiles for each step, indexed by ordinal. */
+    protected StepProfile[] _profiles = new StepProfile[Step.values().length];
+}
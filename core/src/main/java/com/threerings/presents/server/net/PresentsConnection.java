@@ -28,7 +28,6 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SocketChannel;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 import com.google.common.base.Preconditions;
@@ -39,6 +38,7 @@ import com.threerings.io.ObjectInputStream;
 import com.threerings.io.ObjectOutputStream;
 
 import com.threerings.presents.net.Message;
+import com.threerings.presents.util.DatagramAuthenticator;
 import com.threerings.presents.util.DatagramSequencer;
 
 import com.threerings.nio.conman.Connection;
@@ -79,6 +79,14 @@ public class PresentsConnection extends Connection
         _handler = Preconditions.checkNotNull(handler);
     }
 
+    /**
+     * Returns the handler to which we're currently passing parsed messages.
+     */
+    public MessageHandler getMessageHandler ()
+    {
+        return _handler;
+    }
+
     /**
      * Clears out our message handler, causing any subsequent messages to be dropped on arrival. A
      * log message is recorded for the dropped messages.
@@ -119,6 +127,22 @@ public class PresentsConnection extends Connection
         return _transmitDatagrams;
     }
 
+    /**
+     * Sets whether we should split very large messages into fragments.
+     */
+    public void setTransmitFragments (boolean transmit)
+    {
+        _transmitFragments = transmit;
+    }
+
+    /**
+     * Checks whether we should split very large messages into fragments.
+     */
+    public boolean getTransmitFragments ()
+    {
+        return _transmitFragments;
+    }
+
     /**
      * Returns the address to which datagrams should be sent or null if no datagram address has
      * been established.
@@ -159,16 +183,32 @@ public class PresentsConnection extends Connection
         _pcmgr.postMessage(this, msg);
     }
 
+    /**
+     * Returns the rate to which writes to this connection are limited by default (see {@link
+     * PresentsConnectionManager#getDefaultBandwidthLimit}).
+     */
+    public int getDefaultBandwidthLimit ()
+    {
+        return _pcmgr.getDefaultBandwidthLimit();
+    }
+
     /**
      * Processes a datagram sent to this connection.
+     *
+     * @param fastMac whether the datagram is authenticated with the fast MAC rather than the
+     * original MD5 based scheme (see {@link DatagramAuthenticator}).
      */
     public void handleDatagram (InetSocketAddress source, DatagramChannel channel,
-        ByteBuffer buf, long when)
+        ByteBuffer buf, long when, boolean fastMac)
     {
         // lazily create our various bits and bobs
-        if (_digest == null) {
+        if (_authenticator == null) {
+            if (_datagramSecret == null) {
+                log.debug("Ignoring datagram received before authentication", "id", _connectionId);
+                return;
+            }
             try {
-                _digest = MessageDigest.getInstance("MD5");
+                _authenticator = new DatagramAuthenticator(_datagramSecret);
             } catch (NoSuchAlgorithmException nsae) {
                 log.warning("Missing MD5 algorithm.");
                 return;
@@ -177,16 +217,11 @@ public class PresentsConnection extends Connection
         }
 
         // verify the hash
-        buf.position(12);
-        _digest.update(buf);
-        byte[] hash = _digest.digest(_datagramSecret);
-        buf.position(4);
-        for (int ii = 0; ii < 8; ii++) {
-            if (hash[ii] != buf.get()) {
-                log.warning("Datagram failed hash check", "id", _connectionId, "source", source);
-                return;
-            }
+        if (!_authenticator.verify(buf, fastMac)) {
+            log.warning("Datagram failed hash check", "id", _connectionId, "source", source);
+            return;
         }
+        buf.position(DatagramAuthenticator.CONTENTS_OFFSET);
 
         // update our target address
         _datagramAddress = source;
@@ -194,12 +229,23 @@ public class PresentsConnection extends Connection
 
         // read the contents through the sequencer
         try {
-            Message msg = _sequencer.readDatagram();
+            final Message msg = _sequencer.readDatagram();
             if (msg == null) {
                 return; // received out of order
             }
             msg.received = when;
-            _handler.handleMessage(msg);
+
+            // datagrams are read on the primary I/O loop, but our messages must be handled on the
+            // thread of our own loop so that they are not processed concurrently with our stream
+            if (_loop.isLoopThread()) {
+                _handler.handleMessage(msg);
+            } else {
+                _loop.postTask(new Runnable() {
+                    public void run () {
+                        _handler.handleMessage(msg);
+                    }
+                });
+            }
 
         } catch (ClassNotFoundException cnfe) {
             log.warning("Error reading datagram", "error", cnfe);
@@ -217,9 +263,12 @@ public class PresentsConnection extends Connection
         int bytesIn = 0;
         try {
             // we're lazy about creating our input streams because we may be inheriting them from
-            // our authing connection and we don't want to unnecessarily create them in that case
+            // our authing connection and we don't want to unnecessarily create them in that case;
+            // our stream reads into a buffer shared by all of the connections on our I/O loop and
+            // (as clients don't send fragments) refuses fragmented frames
             if (_fin == null) {
-                _oin = createObjectInputStream(_fin = new FramedInputStream());
+                _fin = new FramedInputStream(_loop.getFrameBufferPool(), 0);
+                _oin = createObjectInputStream(_fin);
                 if (_loader != null) {
                     _oin.setClassLoader(_loader);
                 }
@@ -231,8 +280,10 @@ public class PresentsConnection extends Connection
                 // make a note of how many bytes are in this frame (including the frame length
                 // bytes which aren't reported in available())
                 bytesIn = _fin.available() + 4;
-                // parse the message and pass it on
-                Message msg = (Message)_oin.readObject();
+                // parse the message and pass it on; reassembled frames are written with a stream
+                // of their own, so we must read them with one as well
+                Message msg = (Message)(_fin.isReassembled() ?
+                    createFragmentInputStream() : _oin).readObject();
                 msg.received = when;
 //                 Log.info("Read message " + msg + ".");
                 _handler.handleMessage(msg);
@@ -279,6 +330,18 @@ public class PresentsConnection extends Connection
         return new ObjectInputStream(src);
     }
 
+    /**
+     * Creates an object input stream for decoding a frame reassembled from fragments.
+     */
+    protected ObjectInputStream createFragmentInputStream ()
+    {
+        ObjectInputStream oin = createObjectInputStream(_fin);
+        if (_loader != null) {
+            oin.setClassLoader(_loader);
+        }
+        return oin;
+    }
+
     /**
      * Instructs this connection to inherit its streams from the supplied connection object. This
      * is called by the connection manager when the time comes to pass streams from the authing
@@ -334,8 +397,9 @@ public class PresentsConnection extends Connection
     protected DatagramChannel _datagramChannel;
     protected byte[] _datagramSecret;
     protected boolean _transmitDatagrams;
+    protected boolean _transmitFragments;
 
-    protected MessageDigest _digest;
+    protected DatagramAuthenticator _authenticator;
     protected DatagramSequencer _sequencer;
 
     protected MessageHandler _handler;
@@ -36,6 +36,7 @@ import java.security.PrivateKey;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
 import com.samskivert.util.Invoker;
 import com.samskivert.util.Lifecycle;
@@ -44,6 +45,7 @@ import com.samskivert.util.ResultListener;
 import com.samskivert.util.Tuple;
 
 import com.threerings.io.ByteBufferInputStream;
+import com.threerings.io.FramedInputStream;
 import com.threerings.io.FramingOutputStream;
 import com.threerings.io.ObjectOutputStream;
 import com.threerings.io.UnreliableObjectInputStream;
@@ -52,22 +54,32 @@ import com.threerings.io.UnreliableObjectOutputStream;
 import com.threerings.presents.annotation.AuthInvoker;
 import com.threerings.presents.client.Client;
 import com.threerings.presents.data.PresentsConMgrStats;
+import com.threerings.presents.dobj.AttributeChangedEvent;
+import com.threerings.presents.dobj.DEvent;
+import com.threerings.presents.net.EventNotification;
 import com.threerings.presents.net.Message;
+import com.threerings.presents.net.ObjectResponse;
 import com.threerings.presents.net.PingRequest;
 import com.threerings.presents.net.PongResponse;
+import com.threerings.presents.net.ResumableEventNotification;
 import com.threerings.presents.net.Transport;
 import com.threerings.presents.server.Authenticator;
 import com.threerings.presents.server.ChainedAuthenticator;
 import com.threerings.presents.server.ClientManager;
 import com.threerings.presents.server.DummyAuthenticator;
+import com.threerings.presents.server.KeyedUnitExecutor;
 import com.threerings.presents.server.PresentsDObjectMgr;
 import com.threerings.presents.server.ReportManager;
+import com.threerings.presents.server.StallWatchdog;
+import com.threerings.presents.util.DatagramAuthenticator;
 import com.threerings.presents.util.DatagramSequencer;
 import com.threerings.presents.util.SecureUtil;
 
 import com.threerings.nio.conman.Connection;
 import com.threerings.nio.conman.ConnectionManager;
+import com.threerings.nio.conman.IOLoop;
 import com.threerings.nio.conman.NetEventHandler;
+import com.threerings.nio.conman.OutgoingMessage;
 
 import static com.threerings.presents.Log.log;
 
@@ -88,7 +100,9 @@ public class PresentsConnectionManager extends ConnectionManager
     @Override
     public synchronized PresentsConMgrStats getStats ()
     {
-        ((PresentsConMgrStats)_stats).authQueueSize = _authq.size();
+        KeyedUnitExecutor authExec = _authExec;
+        ((PresentsConMgrStats)_stats).authQueueSize = _authq.size() +
+            ((authExec == null) ? _authInvoker.getPendingUnits() : authExec.getPendingUnits());
         return ((PresentsConMgrStats)super.getStats());
     }
 
@@ -104,6 +118,16 @@ public class PresentsConnectionManager extends ConnectionManager
         long bytesOut = stats.bytesOut - _lastStats.bytesOut;
         long msgsIn = stats.msgsIn - _lastStats.msgsIn;
         long msgsOut = stats.msgsOut - _lastStats.msgsOut;
+        long writes = stats.writes - _lastStats.writes;
+        long dropped = stats.overflowDropped - _lastStats.overflowDropped;
+        long coalesced = stats.overflowCoalesced - _lastStats.overflowCoalesced;
+        int slowDisconnects = stats.overflowDisconnects - _lastStats.overflowDisconnects;
+        long[] avgDelays = new long[OutgoingMessage.PRIORITY_CLASSES];
+        for (int ii = 0; ii < avgDelays.length; ii++) {
+            long delayed = stats.queueDelayed[ii] - _lastStats.queueDelayed[ii];
+            long delays = stats.queueDelays[ii] - _lastStats.queueDelays[ii];
+            avgDelays[ii] = (delayed == 0) ? 0 : (delays/delayed);
+        }
         if (reset) {
             _lastStats = stats;
         }
@@ -134,7 +158,33 @@ public class PresentsConnectionManager extends ConnectionManager
         report.append(msgsOut*1000/sinceLast).append(" mps, ");
         long avgOut = (msgsOut == 0) ? 0 : (bytesOut/msgsOut);
         report.append(avgOut).append(" avg size, ");
-        report.append(bytesOut*1000/sinceLast).append(" bps\n");
+        report.append(bytesOut*1000/sinceLast).append(" bps, ");
+        report.append(writes*1000/sinceLast).append(" writes/s, ");
+        long msgsPerWrite = (writes == 0) ? 0 : (msgsOut/writes);
+        report.append(msgsPerWrite).append(" msgs/write\n");
+        report.append("- Overflow queues: ");
+        report.append(stats.overQueueCount).append(" connections, ");
+        report.append(stats.overQueueSize).append(" msgs, ");
+        report.append(stats.maxOverQueueSize).append(" max msgs, ");
+        report.append(stats.maxOverQueueBytes).append(" max bytes, ");
+        report.append(dropped).append(" dropped, ");
+        report.append(coalesced).append(" coalesced, ");
+        report.append(slowDisconnects).append(" disconnects\n");
+        report.append("- Queue delay: ");
+        for (int ii = 0; ii < avgDelays.length; ii++) {
+            report.append(ii == 0 ? "" : ", ").append(PRIORITY_NAMES[ii]).append(" ");
+            report.append(avgDelays[ii]).append("ms avg");
+        }
+        report.append("\n");
+        report.append("- Authentication: ").append(stats.authQueueSize).append(" queued\n");
+        CryptoStage stage = _cryptoStage;
+        if (stage != null) {
+            stage.appendReport(report, reset);
+        }
+        SnapshotCache snaps = _snapshots;
+        if (snaps != null) {
+            snaps.appendReport(report, reset);
+        }
     }
 
     /**
@@ -178,6 +228,24 @@ public class PresentsConnectionManager extends ConnectionManager
         return _privateKey;
     }
 
+    /**
+     * Returns the rate (in bytes per second) to which writes to each client are limited unless
+     * their session says otherwise, or zero for no limit.
+     */
+    public int getDefaultBandwidthLimit ()
+    {
+        return _maxBytesPerSecond;
+    }
+
+    /**
+     * Returns the stage on which the cryptographic parts of the secure authentication handshake
+     * are performed.
+     */
+    public CryptoStage getCryptoStage ()
+    {
+        return _cryptoStage;
+    }
+
     /**
      * Called when a datagram message is ready to be read off its channel.
      */
@@ -206,11 +274,13 @@ public class PresentsConnectionManager extends ConnectionManager
             return 0;
         }
 
-        // the first four bytes are the connection id
+        // the first four bytes are the connection id, flagged if the datagram uses the fast MAC
         int connectionId = _databuf.getInt();
+        boolean fastMac = (connectionId & DatagramAuthenticator.FAST_MAC_FLAG) != 0;
+        connectionId &= ~DatagramAuthenticator.FAST_MAC_FLAG;
         Connection conn = _connections.get(connectionId);
         if (conn != null) {
-            ((PresentsConnection)conn).handleDatagram(source, listener, _databuf, when);
+            ((PresentsConnection)conn).handleDatagram(source, listener, _databuf, when, fastMac);
         } else {
             log.debug("Received datagram for unknown connection", "id", connectionId,
                       "source", source);
@@ -249,7 +319,8 @@ public class PresentsConnectionManager extends ConnectionManager
         try {
             // send it as a datagram if hinted and possible (pongs must be sent as part of the
             // negotation process)
-            if (!msg.getTransport().isReliable() &&
+            boolean unreliable = !msg.getTransport().isReliable();
+            if (unreliable &&
                     (conn.getTransmitDatagrams() || msg instanceof PongResponse) &&
                         postDatagram(conn, msg)) {
                 return;
@@ -258,27 +329,164 @@ public class PresentsConnectionManager extends ConnectionManager
             // note the actual transport
             msg.noteActualTransport(Transport.RELIABLE_ORDERED);
 
+            // clients that reassemble fragments can share a single encoding of a large object
+            SnapshotCache snaps = _snapshots;
+            boolean snapshot = (snaps != null && msg instanceof ObjectResponse<?> &&
+                                conn.getTransmitFragments() &&
+                                ((ObjectResponse<?>)msg).messageId == -1);
+            if (snapshot) {
+                List<byte[]> frames = snaps.getSnapshot((ObjectResponse<?>)msg, _maxFrameSize);
+                if (frames != null) {
+                    postFrames(conn, msg, frames);
+                    return;
+                }
+            }
+
             _framer.resetFrame();
 
             // flatten this message using the connection's output stream
             ObjectOutputStream oout = conn.getObjectOutputStream(_framer);
+            int mark = oout.markMappings(), mappings = oout.getMappingCount();
             oout.writeObject(msg);
             oout.flush();
 
-            // now extract that data into a byte array
+            // if the message created no new class or intern mappings, it can be discarded without
+            // harming the messages that follow it, should the client fall behind
+            boolean standalone = (oout.getMappingCount() == mappings);
+
             ByteBuffer buffer = _framer.frameAndReturnBuffer();
+            boolean fragments = conn.getTransmitFragments();
+            if (snapshot && buffer.limit() >= _snapshotMinSize) {
+                // this object is large enough that we'll encode it once for everyone rather than
+                // once per client; as with fragments, we must forget this frame's mappings
+                oout.rewindMappings(mark);
+                postFrames(conn, msg, snaps.createSnapshot(
+                               (ObjectResponse<?>)msg, _maxFrameSize, _omgr.getNextEventId(false)));
+                return;
+            }
+            if (fragments && buffer.limit() > _maxFrameSize) {
+                // this frame is too large to send in one piece; we'll send the message in
+                // fragments instead, which means the client will never see this frame, so we
+                // must forget any mappings that it created
+                oout.rewindMappings(mark);
+                postFragmented(conn, msg);
+                return;
+            }
+
+            // now extract that data into a byte array
             byte[] data = new byte[buffer.limit()];
             buffer.get(data);
             // log.info("Flattened " + msg + " into " + data.length + " bytes.");
 
-            // and slap both on the queue
-            _outq.append(Tuple.<Connection, byte[]>newTuple(conn, data));
+            // and slap it on the connection's queue
+            postMessage(new OutgoingMessage(conn, data, standalone && unreliable,
+                                            standalone ? getSupersedeKey(msg) : null,
+                                            getOrderKey(msg), false, getPriority(msg),
+                                            standalone));
 
         } catch (Exception e) {
             log.warning("Failure flattening message", "conn", conn, "msg", msg, e);
         }
     }
 
+    /**
+     * Helper function for {@link #postMessage}; flattens a message that is too large to send in a
+     * single frame and posts it as a series of fragments. The message is flattened with a stream
+     * of its own, which the client mirrors when decoding the reassembled frame, so that messages
+     * that overtake the fragments in the outgoing queue can never depend on class or intern
+     * mappings that the client has not yet seen.
+     */
+    protected void postFragmented (PresentsConnection conn, Message msg)
+        throws IOException
+    {
+        _flattener.reset();
+        ObjectOutputStream oout = new ObjectOutputStream(_flattener);
+        oout.writeObject(msg);
+        oout.flush();
+
+        byte[] data = _flattener.toByteArray();
+        if (data.length > FramedInputStream.MAX_REASSEMBLED_SIZE) {
+            log.warning("Refusing to send very large message", "conn", conn, "msg", msg,
+                        "size", data.length);
+            return;
+        }
+
+        Object orderKey = getOrderKey(msg);
+        for (byte[] frag : FramingOutputStream.fragment(data, 0, data.length, _maxFrameSize)) {
+            postMessage(new OutgoingMessage(conn, frag, false, null, orderKey, true));
+        }
+    }
+
+    /**
+     * Helper function for {@link #postMessage}; posts the fragment frames of an independently
+     * encoded message (such as a shared object snapshot) to a client that can reassemble them.
+     */
+    protected void postFrames (PresentsConnection conn, Message msg, List<byte[]> frames)
+    {
+        if (frames == null) {
+            log.warning("Refusing to send very large message", "conn", conn, "msg", msg);
+            return;
+        }
+
+        Object orderKey = getOrderKey(msg);
+        for (byte[] frame : frames) {
+            postMessage(new OutgoingMessage(conn, frame, false, null, orderKey, true));
+        }
+    }
+
+    /**
+     * Returns a key identifying the ordering constraints of the supplied message. Messages with
+     * different keys may be delivered out of order with respect to one another, which allows
+     * small messages to be sent while a large fragmented message is trickling out to a client.
+     * Events and object responses need only be kept in order with other messages that concern the
+     * same object, and unordered messages (and pongs) need not be kept in order at all. Everything
+     * else stays in order with everything else.
+     */
+    protected Object getOrderKey (Message msg)
+    {
+        if (!msg.getTransport().isOrdered() || msg instanceof PongResponse) {
+            return UNORDERED;
+        } else if (msg instanceof EventNotification) {
+            return ((EventNotification)msg).getEvent().getTargetOid();
+        } else if (msg instanceof ObjectResponse<?>) {
+            return ((ObjectResponse<?>)msg).getObject().getOid();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the priority class of the supplied message. Queued messages of a higher priority
+     * may overtake those of a lower priority when a connection falls behind (or is held to its
+     * bandwidth limit), within the constraints established by {@link #getOrderKey}. Pongs and
+     * unreliable messages, which are generally latency critical, are urgent; large messages that
+     * are sent in fragments are bulk; and everything else is normal.
+     */
+    protected int getPriority (Message msg)
+    {
+        if (msg instanceof PongResponse || !msg.getTransport().isReliable()) {
+            return OutgoingMessage.URGENT;
+        }
+        return OutgoingMessage.NORMAL;
+    }
+
+    /**
+     * Returns a key identifying the state updated by the supplied message such that a later
+     * message with the same key renders this one obsolete, or null if the message cannot be
+     * superseded. Only attribute changes are currently so treated, and not those sent to clients
+     * that may resume their session, which must receive every numbered notification.
+     */
+    protected Object getSupersedeKey (Message msg)
+    {
+        if (msg instanceof EventNotification && !(msg instanceof ResumableEventNotification)) {
+            DEvent event = ((EventNotification)msg).getEvent();
+            if (event instanceof AttributeChangedEvent) {
+                return Tuple.newTuple(
+                    event.getTargetOid(), ((AttributeChangedEvent)event).getName());
+            }
+        }
+        return null;
+    }
+
     /**
      * Helper function for {@link #postMessage}; handles posting the message as a datagram.
      *
@@ -342,7 +550,7 @@ public class PresentsConnectionManager extends ConnectionManager
         // have the non-blocking connect process started
         SocketChannel sockchan = SocketChannel.open();
         sockchan.configureBlocking(false);
-        conn.init(this, sockchan, System.currentTimeMillis());
+        conn.init(this, sockchan, System.currentTimeMillis()); // assigns it to our primary loop
         _connectq.append(Tuple.newTuple(conn, new InetSocketAddress(hostname, port)));
     }
 
@@ -355,7 +563,7 @@ public class PresentsConnectionManager extends ConnectionManager
         final SocketChannel sockchan = conn.getChannel();
         try {
             // register our channel with the selector (if this fails, we abandon ship immediately)
-            conn.selkey = sockchan.register(_selector, SelectionKey.OP_CONNECT);
+            conn.selkey = sockchan.register(_primary.getSelector(), SelectionKey.OP_CONNECT);
 
             // start our connection process (now if we fail we need to clean things up)
             NetEventHandler handler;
@@ -369,7 +577,7 @@ public class PresentsConnectionManager extends ConnectionManager
                 // finish the connection process and then wire things up fully
                 handler = new OutgoingConnectionHandler(conn);
             }
-            _handlers.put(conn.selkey, handler);
+            _primary.setHandler(conn.selkey, handler);
 
         } catch (IOException ioe) {
             log.warning("Failed to initiate connection for " + sockchan + ".", ioe);
@@ -389,6 +597,22 @@ public class PresentsConnectionManager extends ConnectionManager
         }
     }
 
+    @Override // from LoopingThread
+    protected void willStart ()
+    {
+        super.willStart();
+        _cryptoStage = new CryptoStage(_cryptoThreads, _cryptoQueueSize);
+        if (_snapshotCacheSize > 0) {
+            _snapshots = new SnapshotCache(_snapshotCacheSize);
+        }
+        if (_authThreads > 1) {
+            KeyedUnitExecutor authExec =
+                new KeyedUnitExecutor("presents.AuthExecutor", _omgr, _authThreads);
+            authExec.setWatchdog(_watchdog);
+            _authExec = authExec;
+        }
+    }
+
     @Override // from LoopingThread
     public boolean isRunning ()
     {
@@ -411,6 +635,16 @@ public class PresentsConnectionManager extends ConnectionManager
         processAuthedConnections(iterStamp);
     }
 
+    @Override
+    protected void didShutdown ()
+    {
+        super.didShutdown();
+        _cryptoStage.shutdown();
+        if (_authExec != null) {
+            _authExec.shutdown();
+        }
+    }
+
     @Override
     protected void connectionFailed (Connection conn, IOException ioe)
     {
@@ -443,14 +677,20 @@ public class PresentsConnectionManager extends ConnectionManager
             }
         }
 
-        author.authenticateConnection(_authInvoker, conn, new ResultListener<AuthingConnection>() {
+        ResultListener<AuthingConnection> onComplete = new ResultListener<AuthingConnection>() {
             public void requestCompleted (AuthingConnection conn) {
                 _authq.append(conn);
             }
             public void requestFailed (Exception cause) {
                 // this never happens
             }
-        });
+        };
+        KeyedUnitExecutor authExec = _authExec;
+        if (authExec == null || !author.supportsParallelAuthentication()) {
+            author.authenticateConnection(_authInvoker, conn, onComplete);
+        } else {
+            author.authenticateConnection(authExec, conn, onComplete);
+        }
     }
 
     /**
@@ -464,43 +704,63 @@ public class PresentsConnectionManager extends ConnectionManager
 
     /**
      * Converts connections that have completed the authentication process into full running
-     * connections and notifies the client manager that new connections have been established.
+     * connections and notifies the client manager that new connections have been established. The
+     * conversion is done on the thread of the I/O loop that owns each connection.
      */
     protected void processAuthedConnections (long iterStamp)
     {
         AuthingConnection conn;
         while ((conn = _authq.getNonBlocking()) != null) {
-            try {
-                // construct a new running connection to handle this connections network traffic
-                // from here on out
-                PresentsConnection rconn = new PresentsConnection();
-                rconn.init(this, conn.getChannel(), iterStamp);
-                rconn.selkey = conn.selkey;
-
-                // we need to keep using the same object input and output streams from the
-                // beginning of the session because they have context that needs to be preserved
-                rconn.inheritStreams(conn);
-
-                // replace the mapping in the handlers table from the old conn with the new one
-                _handlers.put(rconn.selkey, rconn);
-
-                // add a mapping for the connection id and set the datagram secret
-                _connections.put(rconn.getConnectionId(), rconn);
-                rconn.setDatagramSecret(conn.getAuthRequest().getCredentials().getDatagramSecret());
-
-                // transfer any overflow queue for that connection
-                OverflowQueue oflowHandler = _oflowqs.remove(conn);
-                if (oflowHandler != null) {
-                    _oflowqs.put(rconn, oflowHandler);
+            final AuthingConnection aconn = conn;
+            conn.getLoop().invoke(new Runnable() {
+                public void run () {
+                    upgradeConnection(aconn, System.currentTimeMillis());
                 }
+            });
+        }
+    }
 
-                // and let the client manager know about our new connection
-                _clmgr.connectionEstablished(rconn, conn.getAuthName(), conn.getAuthRequest(),
-                                             conn.getAuthResponse());
+    /**
+     * Replaces an authenticated connection with a running connection. This must be called on the
+     * thread of the connection's I/O loop.
+     */
+    protected void upgradeConnection (AuthingConnection conn, long when)
+    {
+        // if the connection went away while we were waiting to get onto its loop, stop here
+        if (conn.isClosed()) {
+            return;
+        }
 
-            } catch (IOException ioe) {
-                log.warning("Failure upgrading authing connection to running.", ioe);
-            }
+        try {
+            // construct a new running connection to handle this connections network traffic
+            // from here on out
+            PresentsConnection rconn = new PresentsConnection();
+            rconn.init(this, conn.getChannel(), when);
+            rconn.setLoop(conn.getLoop());
+            rconn.selkey = conn.selkey;
+
+            // we need to keep using the same object input and output streams from the
+            // beginning of the session because they have context that needs to be preserved
+            rconn.inheritStreams(conn);
+
+            // replace the mapping in the handlers table from the old conn with the new one
+            IOLoop loop = rconn.getLoop();
+            loop.setHandler(rconn.selkey, rconn);
+
+            // add a mapping for the connection id and set the datagram secret
+            _connections.put(rconn.getConnectionId(), rconn);
+            rconn.setDatagramSecret(conn.getAuthRequest().getCredentials().getDatagramSecret());
+            rconn.setBandwidthLimit(getDefaultBandwidthLimit());
+
+            // transfer any overflow queue for that connection
+            loop.transferOverflow(conn, rconn);
+
+            // and let the client manager know about our new connection
+            _clmgr.connectionEstablished(rconn, conn.getAuthName(), conn.getAuthRequest(),
+                                         conn.getAuthResponse());
+
+        } catch (IOException ioe) {
+            log.warning("Failure upgrading authing connection to running.", ioe);
         }
     }
 
@@ -552,8 +812,8 @@ public class PresentsConnectionManager extends ConnectionManager
             try {
                 if (sockchan.finishConnect()) {
                     // great, we're ready to roll, wire up the connection
-                    _conn.selkey = sockchan.register(_selector, SelectionKey.OP_READ);
-                    _handlers.put(_conn.selkey, _conn);
+                    _conn.selkey = sockchan.register(_primary.getSelector(), SelectionKey.OP_READ);
+                    _primary.setHandler(_conn.selkey, _conn);
                     log.info("Outgoing connection ready", "conn", _conn);
                 }
             } catch (IOException ioe) {
@@ -575,8 +835,7 @@ public class PresentsConnectionManager extends ConnectionManager
 
         protected void handleError (IOException ioe)
         {
-            _handlers.remove(_conn.selkey);
-            _oflowqs.remove(_conn);
+            _primary.connectionRemoved(_conn);
             _conn.connectFailure(ioe);
         }
 
@@ -590,6 +849,18 @@ public class PresentsConnectionManager extends ConnectionManager
     protected List<ChainedAuthenticator> _authors = Lists.newArrayList();
     protected PrivateKey _privateKey;
 
+    /** Performs the expensive parts of the secure authentication handshake. */
+    protected volatile CryptoStage _cryptoStage;
+
+    /** The number of threads on which to perform secure handshake cryptography. */
+    @Inject(optional=true) @Named("presents.net.cryptoThreads")
+    protected int _cryptoThreads = Runtime.getRuntime().availableProcessors();
+
+    /** The number of handshake steps that may be waiting for a crypto thread before we start
+     * refusing secure logons. */
+    @Inject(optional=true) @Named("presents.net.cryptoQueueSize")
+    protected int _cryptoQueueSize = 4096;
+
     protected Queue<AuthingConnection> _authq = Queue.newQueue();
     protected Queue<Tuple<Connection, InetSocketAddress>> _connectq = Queue.newQueue();
 
@@ -599,14 +870,50 @@ public class PresentsConnectionManager extends ConnectionManager
     protected FramingOutputStream _framer = new FramingOutputStream();
     protected ByteArrayOutputStream _flattener = new ByteArrayOutputStream();
 
+    /** Messages that flatten to frames larger than this are sent in fragments of at most this size
+     * to clients that can reassemble them. */
+    @Inject(optional=true) @Named("presents.net.maxFrameSize")
+    protected int _maxFrameSize = 64 * 1024;
+
+    /** Shares encoded object snapshots between subscribing clients, or null if disabled. */
+    protected volatile SnapshotCache _snapshots;
+
+    /** The maximum number of object snapshots to cache; zero disables snapshot sharing. */
+    @Inject(optional=true) @Named("presents.net.snapshotCacheSize")
+    protected int _snapshotCacheSize = 256;
+
+    /** Object snapshots that encode to fewer bytes than this are not worth caching. */
+    @Inject(optional=true) @Named("presents.net.snapshotMinSize")
+    protected int _snapshotMinSize = 2048;
+
+    /** The rate (in bytes per second) to which writes to each client are limited, or zero. */
+    @Inject(optional=true) @Named("presents.net.maxBytesPerSecond")
+    protected int _maxBytesPerSecond = 0;
+
     // some dependencies
+    /** Authenticates connections in parallel, or null if we use the single auth invoker. */
+    protected volatile KeyedUnitExecutor _authExec;
+
+    /** The number of threads on which to authenticate connections. By default this is one and all
+     * authentication is done on the auth invoker; authenticators that are safe to run in parallel
+     * may raise it. */
+    @Inject(optional=true) @Named("presents.net.authThreads")
+    protected int _authThreads = 1;
+
     @Inject @AuthInvoker protected Invoker _authInvoker;
     @Inject protected ClientManager _clmgr;
     @Inject protected PresentsDObjectMgr _omgr;
+    @Inject protected StallWatchdog _watchdog;
 
     /** A snapshot of our runtime stats as of our last report. */
     protected PresentsConMgrStats _lastStats = new PresentsConMgrStats();
 
     protected Queue<Tuple<PresentsConnection, byte[]>> _dataq = Queue.newQueue();
     protected ByteBuffer _databuf = ByteBuffer.allocateDirect(Client.MAX_DATAGRAM_SIZE);
+
+    /** The order key used for unordered messages. */
+    protected static final Object UNORDERED = new Object();
+
+    /** Names for our priority classes, for reporting. */
+    protected static final String[] PRIORITY_NAMES = { "urgent", "normal", "bulk" };
 }
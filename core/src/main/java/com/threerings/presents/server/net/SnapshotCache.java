@@ -0,0 +1,197 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server.net;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.threerings.io.FramedInputStream;
+import com.threerings.io.FramingOutputStream;
+import com.threerings.io.ObjectOutputStream;
+
+import com.threerings.presents.dobj.DEvent;
+import com.threerings.presents.dobj.DObject;
+import com.threerings.presents.dobj.EventListener;
+import com.threerings.presents.dobj.MessageEvent;
+import com.threerings.presents.net.ObjectResponse;
+
+/**
+ * Caches the encoded form of the {@link ObjectResponse}s sent to subscribing clients so that when
+ * many clients subscribe to the same large object (everyone entering a popular place, say), the
+ * object is serialized once rather than once per client. Snapshots are encoded with a stream of
+ * their own and sent as fragmented frames, which clients that can reassemble fragments decode
+ * independently of the rest of their stream; thus the same bytes can be sent to every such client.
+ *
+ * <p> A snapshot is discarded when an event that changes the object's state is dispatched on it,
+ * and the next subscriber encodes a fresh one. Message events do not change state and so leave
+ * the snapshot intact. Because server side changes take effect when their events are posted, a
+ * snapshot may be handed out after a change has been made but before its event is dispatched.
+ * Each snapshot is therefore stamped with the id of the next event to be posted when it was
+ * encoded, and the response it is sent for notes that id (see {@link
+ * ObjectResponse#getFirstEventId}) so that the subscriber is forwarded every event whose effects
+ * the snapshot lacks.
+ *
+ * <p> The cache must only be used on the distributed object thread.
+ */
+public class SnapshotCache
+{
+    /**
+     * Creates a cache that holds at most the specified number of snapshots.
+     */
+    public SnapshotCache (int maxEntries)
+    {
+        _maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cached fragment frames that encode the supplied response, or null if we have no
+     * valid snapshot of its object.
+     */
+    public List<byte[]> getSnapshot (ObjectResponse<?> rsp, int maxFrameSize)
+    {
+        DObject dobj = rsp.getObject();
+        Snapshot snap = _snaps.get(dobj.getOid());
+        if (snap == null) {
+            return null;
+        }
+        if (snap.object != dobj || snap.maxFrameSize != maxFrameSize) {
+            snap.invalidate();
+            return null;
+        }
+        _hits++;
+        rsp.setFirstEventId(snap.firstEventId);
+        return snap.frames;
+    }
+
+    /**
+     * Encodes the supplied response as a series of fragment frames, and caches them for use by
+     * subsequent subscribers until the object changes.
+     *
+     * @param firstEventId the id of the next event to be posted, the first whose effects will not
+     * be reflected in the snapshot.
+     *
+     * @return the frames to be sent or null if the response is too large to send at all.
+     */
+    public List<byte[]> createSnapshot (ObjectResponse<?> rsp, int maxFrameSize,
+                                        long firstEventId)
+        throws IOException
+    {
+        _misses++;
+        _flattener.reset();
+        ObjectOutputStream oout = new ObjectOutputStream(_flattener);
+        oout.writeObject(rsp);
+        oout.flush();
+        byte[] data = _flattener.toByteArray();
+        if (data.length > FramedInputStream.MAX_REASSEMBLED_SIZE) {
+            return null;
+        }
+
+        DObject dobj = rsp.getObject();
+        List<byte[]> frames = FramingOutputStream.fragment(data, 0, data.length, maxFrameSize);
+        Snapshot snap = new Snapshot(dobj, frames, maxFrameSize, firstEventId);
+        rsp.setFirstEventId(firstEventId);
+        _snaps.put(dobj.getOid(), snap);
+        dobj.addListener(snap);
+        return frames;
+    }
+
+    /**
+     * Discards all cached snapshots.
+     */
+    public void clear ()
+    {
+        for (Snapshot snap : _snaps.values()) {
+            snap.object.removeListener(snap);
+        }
+        _snaps.clear();
+    }
+
+    /**
+     * Appends a summary of our activity to the supplied report.
+     */
+    public void appendReport (StringBuilder report, boolean reset)
+    {
+        report.append("- Snapshots: ").append(_snaps.size()).append(" cached, ");
+        report.append(_hits).append(" hits, ");
+        report.append(_misses).append(" misses, ");
+        report.append(_invalidations).append(" invalidated\n");
+        if (reset) {
+            _hits = _misses = _invalidations = 0;
+        }
+    }
+
+    /** A cached encoding of an object, which discards itself when the object changes. */
+    protected class Snapshot implements EventListener
+    {
+        public final DObject object;
+        public final List<byte[]> frames;
+        public final int maxFrameSize;
+        public final long firstEventId;
+
+        public Snapshot (DObject object, List<byte[]> frames, int maxFrameSize,
+                         long firstEventId)
+        {
+            this.object = object;
+            this.frames = frames;
+            this.maxFrameSize = maxFrameSize;
+            this.firstEventId = firstEventId;
+        }
+
+        public void invalidate ()
+        {
+            object.removeListener(this);
+            if (_snaps.get(object.getOid()) == this) {
+                _snaps.remove(object.getOid());
+            }
+        }
+
+        // from interface EventListener
+        public void eventReceived (DEvent event)
+        {
+            if (!(event instanceof MessageEvent)) {
+                _invalidations++;
+                invalidate();
+            }
+        }
+    }
+
+    /** Our cached snapshots, in least recently used order. */
+    protected Map<Integer, Snapshot> _snaps =
+        new LinkedHashMap<Integer, Snapshot>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry (Map.Entry<Integer, Snapshot> eldest) {
+            if (size() <= _maxEntries) {
+                return false;
+            }
+            eldest.getValue().object.removeListener(eldest.getValue());
+            return true;
+        }
+    };
+
+    /** Used to encode snapshots. */
+    protected ByteArrayOutputStream _flattener = new ByteArrayOutputStream();
+
+    protected int _maxEntries;
+    protected int _hits, _misses, _invalidations;
+}
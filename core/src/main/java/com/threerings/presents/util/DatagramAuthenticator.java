@@ -0,0 +1,170 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes and checks the message authentication codes that protect datagrams sent from clients
+ * to the server. A datagram starts with the sender's connection id and an eight byte MAC computed
+ * over the remainder of the datagram using a secret established during authentication.
+ *
+ * <p> Two schemes are supported. The original scheme takes the first eight bytes of an MD5 hash
+ * of the datagram followed by the secret. The fast scheme uses SipHash-2-4, a keyed hash designed
+ * for short messages, keyed with the MD5 hash of the secret; it is indicated by setting {@link
+ * #FAST_MAC_FLAG} in the connection id. Servers accept both; clients use the fast scheme once a
+ * server has answered a datagram sent with it. Neither scheme allocates per datagram.
+ */
+public class DatagramAuthenticator
+{
+    /** Set in the connection id of datagrams authenticated with the fast scheme. */
+    public static final int FAST_MAC_FLAG = 1 << 31;
+
+    /** The offset of the MAC in a datagram. */
+    public static final int MAC_OFFSET = 4;
+
+    /** The offset of the authenticated contents of a datagram. */
+    public static final int CONTENTS_OFFSET = MAC_OFFSET + 8;
+
+    /**
+     * Creates an authenticator that uses the supplied secret.
+     */
+    public DatagramAuthenticator (byte[] secret)
+        throws NoSuchAlgorithmException
+    {
+        _secret = secret;
+        _digest = MessageDigest.getInstance("MD5");
+        byte[] key = _digest.digest(secret);
+        ByteBuffer kbuf = ByteBuffer.wrap(key).order(ByteOrder.LITTLE_ENDIAN);
+        _k0 = kbuf.getLong(0);
+        _k1 = kbuf.getLong(8);
+    }
+
+    /**
+     * Computes the MAC of the contents of the supplied datagram (from {@link #CONTENTS_OFFSET} to
+     * its limit) and writes it at {@link #MAC_OFFSET}. The buffer's position is not changed.
+     */
+    public void sign (ByteBuffer buf, boolean fast)
+    {
+        buf.putLong(MAC_OFFSET, computeMac(buf, fast));
+    }
+
+    /**
+     * Checks the MAC of the supplied datagram. The buffer's position is not changed.
+     */
+    public boolean verify (ByteBuffer buf, boolean fast)
+    {
+        return buf.limit() >= CONTENTS_OFFSET &&
+            buf.getLong(MAC_OFFSET) == computeMac(buf, fast);
+    }
+
+    /**
+     * Computes the MAC of the contents of the supplied datagram.
+     */
+    protected long computeMac (ByteBuffer buf, boolean fast)
+    {
+        if (fast) {
+            return sipHash(_k0, _k1, buf, CONTENTS_OFFSET, buf.limit() - CONTENTS_OFFSET);
+        }
+
+        int opos = buf.position();
+        buf.position(CONTENTS_OFFSET);
+        _digest.update(buf);
+        _digest.update(_secret);
+        try {
+            _digest.digest(_hash, 0, _hash.length);
+        } catch (DigestException de) {
+            throw new RuntimeException(de); // can't happen; our buffer fits an MD5 hash
+        }
+        buf.position(opos);
+
+        // the MAC is the first eight bytes of the hash, in order
+        long mac = 0;
+        for (int ii = 0; ii < 8; ii++) {
+            mac = (mac << 8) | (_hash[ii] & 0xFF);
+        }
+        return mac;
+    }
+
+    /**
+     * Computes the SipHash-2-4 of the specified region of the supplied buffer with the specified
+     * key, without changing the buffer's position.
+     */
+    public static long sipHash (long k0, long k1, ByteBuffer buf, int offset, int length)
+    {
+        long v0 = k0 ^ 0x736f6d6570736575L;
+        long v1 = k1 ^ 0x646f72616e646f6dL;
+        long v2 = k0 ^ 0x6c7967656e657261L;
+        long v3 = k1 ^ 0x7465646279746573L;
+
+        // the message is consumed as little endian words, the last of which is padded with zeros
+        // and carries the length in its high byte
+        boolean swap = (buf.order() == ByteOrder.BIG_ENDIAN);
+        int words = length / 8;
+        for (int ww = 0; ww <= words; ww++) {
+            long m;
+            if (ww < words) {
+                m = buf.getLong(offset + ww*8);
+                if (swap) {
+                    m = Long.reverseBytes(m);
+                }
+            } else {
+                m = ((long)length) << 56;
+                for (int ii = 0, base = offset + ww*8, nn = length % 8; ii < nn; ii++) {
+                    m |= (buf.get(base + ii) & 0xFFL) << (8*ii);
+                }
+            }
+            v3 ^= m;
+            for (int rr = 0; rr < 2; rr++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= m;
+        }
+
+        v2 ^= 0xFF;
+        for (int rr = 0; rr < 4; rr++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    /** The secret used by the original scheme. */
+    protected byte[] _secret;
+
+    /** The digest used by the original scheme. */
+    protected MessageDigest _digest;
+
+    /** Receives the digests computed by the original scheme. */
+    protected byte[] _hash = new byte[16];
+
+    /** The key used by the fast scheme. */
+    protected long _k0, _k1;
+}
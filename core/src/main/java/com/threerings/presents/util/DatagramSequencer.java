@@ -21,13 +21,11 @@
 
 package com.threerings.presents.util;
 
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
 
 import java.io.IOException;
 
-import com.google.common.collect.Lists;
 import com.threerings.io.UnreliableObjectInputStream;
 import com.threerings.io.UnreliableObjectOutputStream;
 
@@ -68,24 +66,21 @@ public class DatagramSequencer
         // write the object
         _uout.writeObject(datagram);
 
-        // if we wrote any class mappings, we will keep them in the send record
-        if (mappedClasses.isEmpty()) {
-            mappedClasses = null;
-        } else {
-            _uout.setMappedClasses(new HashSet<Class<?>>());
-
+        // if we wrote any mappings, we must keep them until the datagram is acknowledged (or
+        // until a later one is); we swap the filled sets for the record's empty ones rather than
+        // creating new sets for every datagram
+        if (mappedClasses.isEmpty() && mappedInterns.isEmpty()) {
+            return;
         }
-
-        // likewise with the intern mappings
-        if (mappedInterns.isEmpty()) {
-            mappedInterns = null;
-        } else {
-            _uout.setMappedInterns(new HashSet<String>());
-
+        SendRecord sendrec = addSendRecord(_lastNumber);
+        if (!mappedClasses.isEmpty()) {
+            _uout.setMappedClasses(sendrec.mappedClasses);
+            sendrec.mappedClasses = mappedClasses;
+        }
+        if (!mappedInterns.isEmpty()) {
+            _uout.setMappedInterns(sendrec.mappedInterns);
+            sendrec.mappedInterns = mappedInterns;
         }
-
-        // record the transmission
-        _sendrecs.add(new SendRecord(_lastNumber, mappedClasses, mappedInterns));
     }
 
     /**
@@ -105,26 +100,26 @@ public class DatagramSequencer
         _missedCount = number - _lastReceived - 1;
         _lastReceived = number;
 
-        // read the acknowledge number and process all send records up to that one
+        // read the acknowledge number and process all send records up to that one; the mappings
+        // in datagrams before the acknowledged one are presumed lost
         int received = _uin.readInt();
-        int remove = 0;
-        for (int ii = 0, nn = _sendrecs.size(); ii < nn; ii++) {
-            SendRecord sendrec = _sendrecs.get(ii);
+        while (_sendCount > 0) {
+            SendRecord sendrec = _sendrecs[_sendHead];
             if (sendrec.number > received) {
                 break;
             }
-            remove++;
             if (sendrec.number == received) {
-                if (sendrec.mappedClasses != null) {
+                if (!sendrec.mappedClasses.isEmpty()) {
                     _uout.noteClassMappingsReceived(sendrec.mappedClasses);
                 }
-                if (sendrec.mappedInterns != null) {
+                if (!sendrec.mappedInterns.isEmpty()) {
                     _uout.noteInternMappingsReceived(sendrec.mappedInterns);
                 }
             }
-        }
-        if (remove > 0) {
-            _sendrecs.subList(0, remove).clear();
+            sendrec.mappedClasses.clear();
+            sendrec.mappedInterns.clear();
+            _sendHead = (_sendHead + 1) % _sendrecs.length;
+            _sendCount--;
         }
 
         // read the contents of the datagram, note the transport, and return
@@ -142,27 +137,42 @@ public class DatagramSequencer
     }
 
     /**
-     * A record of a sent datagram.
+     * Appends a record for the specified datagram to our ring, growing it if necessary, and
+     * returns it with its number set and its sets empty.
+     */
+    protected SendRecord addSendRecord (int number)
+    {
+        if (_sendCount == _sendrecs.length) {
+            SendRecord[] sendrecs = new SendRecord[_sendrecs.length * 2];
+            for (int ii = 0; ii < _sendCount; ii++) {
+                sendrecs[ii] = _sendrecs[(_sendHead + ii) % _sendrecs.length];
+            }
+            _sendrecs = sendrecs;
+            _sendHead = 0;
+        }
+        int idx = (_sendHead + _sendCount++) % _sendrecs.length;
+        SendRecord sendrec = _sendrecs[idx];
+        if (sendrec == null) {
+            _sendrecs[idx] = sendrec = new SendRecord();
+        }
+        sendrec.number = number;
+        return sendrec;
+    }
+
+    /**
+     * A record of a sent datagram that included class or intern mappings. Records and their sets
+     * are reused once the datagram has been acknowledged or superseded.
      */
     protected static class SendRecord
     {
         /** The sequence number of the datagram. */
         public int number;
 
-        /** The set of classes for which mappings were included in the datagram (or
-         * <code>null</code> for none). */
-        public Set<Class<?>> mappedClasses;
-
-        /** The set of interns for which mappings were included in the datagram (or
-         * <code>null</code> for none). */
-        public Set<String> mappedInterns;
+        /** The set of classes for which mappings were included in the datagram. */
+        public Set<Class<?>> mappedClasses = new HashSet<Class<?>>();
 
-        public SendRecord (int number, Set<Class<?>> mappedClasses, Set<String> mappedInterns)
-        {
-            this.number = number;
-            this.mappedClasses = mappedClasses;
-            this.mappedInterns = mappedInterns;
-        }
+        /** The set of interns for which mappings were included in the datagram. */
+        public Set<String> mappedInterns = new HashSet<String>();
     }
 
     /** The underlying input stream. */
@@ -180,6 +190,15 @@ public class DatagramSequencer
     /** The number of datagrams missed between the last and the one before it. */
     protected int _missedCount;
 
-    /** Records of datagrams sent. */
-    protected ArrayList<SendRecord> _sendrecs = Lists.newArrayList();
+    /** A ring of records of sent datagrams that included mappings, oldest first. */
+    protected SendRecord[] _sendrecs = new SendRecord[INITIAL_SEND_RECORDS];
+
+    /** The index of the oldest record in the ring. */
+    protected int _sendHead;
+
+    /** The number of records in the ring. */
+    protected int _sendCount;
+
+    /** The initial size of our ring of send records. */
+    protected static final int INITIAL_SEND_RECORDS = 16;
 }
@@ -21,12 +21,17 @@
 
 package com.threerings.presents.util;
 
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
 import com.samskivert.util.ArrayUtil;
 import com.samskivert.util.Invoker;
 
 import com.threerings.presents.client.InvocationService;
 import com.threerings.presents.data.InvocationCodes;
 import com.threerings.presents.server.InvocationException;
+import com.threerings.presents.server.PresentsInvoker;
 
 import static com.threerings.presents.Log.log;
 
@@ -35,8 +40,13 @@ import static com.threerings.presents.Log.log;
  * operation and then calls back to an {@code InvocationService.InvocationListener} of some
  * sort. If the database operation fails, the error will be logged and the result listener will be
  * replied to with {@link InvocationCodes#INTERNAL_ERROR}.
+ *
+ * <p> A unit that is given an ordering key (see {@link #setOrderingKey}) need only be run in order
+ * with other units that share its key, and may be run in parallel with unrelated units when posted
+ * to the {@link PresentsInvoker}.
  */
 public abstract class PersistingUnit extends Invoker.Unit
+    implements PresentsInvoker.Keyed
 {
     public PersistingUnit (InvocationService.InvocationListener listener)
     {
@@ -64,6 +74,41 @@ public abstract class PersistingUnit extends Invoker.Unit
         _args = args;
     }
 
+    /**
+     * Configures the key that determines the order in which this unit is run relative to other
+     * units, for example the id of the player whose data it saves. This must be called before the
+     * unit is posted.
+     */
+    public void setOrderingKey (Object key)
+    {
+        _orderingKey = key;
+    }
+
+    // from interface PresentsInvoker.Keyed
+    public Object getOrderingKey ()
+    {
+        return _orderingKey;
+    }
+
+    /**
+     * Notes that the write performed by the supplied unit has been folded into this one, which
+     * will be run in its place. When this unit completes, the supplied unit (and any units that it
+     * had itself absorbed) will have {@link #handleSuccess} or {@link #handleFailure} called with
+     * our outcome. Note that a superseded unit never runs {@link #invokePersistent}, so any result
+     * it would have set will not be available to it.
+     */
+    public void absorb (PersistingUnit unit)
+    {
+        if (_absorbed == null) {
+            _absorbed = Lists.newArrayList();
+        }
+        if (unit._absorbed != null) {
+            _absorbed.addAll(unit._absorbed);
+            unit._absorbed = null;
+        }
+        _absorbed.add(unit);
+    }
+
     /**
      * This method is where the unit performs its persistent actions. Any persistence exception
      * will be caught and logged along with the output from {@link #getFailureMessage}, if any.
@@ -121,6 +166,12 @@ public abstract class PersistingUnit extends Invoker.Unit
         } else {
             handleSuccess();
         }
+        if (_absorbed != null) {
+            for (PersistingUnit unit : _absorbed) {
+                unit._error = _error;
+                unit.handleResult();
+            }
+        }
     }
 
     /**
@@ -165,4 +216,8 @@ public abstract class PersistingUnit extends Invoker.Unit
     protected Object[] _args;
     protected boolean _resultSet;
     protected Object _result;
+    protected Object _orderingKey;
+
+    /** Units whose writes were folded into ours, or null. */
+    protected List<PersistingUnit> _absorbed;
 }
@@ -0,0 +1,123 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.util;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A hashed timing wheel: items are scheduled into fixed width time buckets and are handed back in
+ * bulk once the wheel has been advanced past their bucket. Scheduling is O(1) and advancing only
+ * touches the buckets that have come due, which makes this a good fit for tracking large numbers
+ * of deadlines that are usually pushed back before they expire (idle timeouts, session expiry),
+ * where the owner simply rechecks an expired item and reschedules it if it is not yet really due.
+ *
+ * <p> Items scheduled further out than the span of the wheel (<code>tickMillis * slots</code>)
+ * are placed in the furthest bucket and will thus be handed back early; callers that might
+ * schedule that far out must be prepared to reschedule such items.
+ *
+ * <p><em>Note:</em> timing wheels are not thread safe.
+ */
+public class TimingWheel<T>
+{
+    /**
+     * Creates a timing wheel.
+     *
+     * @param tickMillis the width of each bucket in milliseconds.
+     * @param slots the number of buckets in the wheel.
+     * @param now the current time, from which the wheel starts turning.
+     */
+    public TimingWheel (long tickMillis, int slots, long now)
+    {
+        _tickMillis = tickMillis;
+        _slots = Lists.newArrayListWithCapacity(slots);
+        for (int ii = 0; ii < slots; ii++) {
+            _slots.add(Lists.<T>newArrayList());
+        }
+        _tick = now / tickMillis;
+    }
+
+    /**
+     * Returns the width of each of our buckets in milliseconds.
+     */
+    public long getTickMillis ()
+    {
+        return _tickMillis;
+    }
+
+    /**
+     * Returns the number of items currently scheduled.
+     */
+    public int size ()
+    {
+        return _size;
+    }
+
+    /**
+     * Schedules an item to be returned once the wheel has advanced past the supplied time. An item
+     * scheduled for a time that has already passed will be returned on the next tick.
+     */
+    public void schedule (T item, long when)
+    {
+        long tick = Math.max(when / _tickMillis, _tick + 1);
+        tick = Math.min(tick, _tick + _slots.size());
+        _slots.get((int)(tick % _slots.size())).add(item);
+        _size++;
+    }
+
+    /**
+     * Advances the wheel to the supplied time, adding all items in buckets that have come due to
+     * the supplied list. An item may be scheduled more than once, in which case it will be returned
+     * once for each time it was scheduled.
+     *
+     * @return the supplied list, for convenience.
+     */
+    public List<T> advance (long now, List<T> expired)
+    {
+        long target = now / _tickMillis;
+        // if we've fallen more than a full turn behind, one turn will catch us up
+        long start = Math.max(_tick + 1, target - _slots.size() + 1);
+        for (long tick = start; tick <= target; tick++) {
+            List<T> slot = _slots.get((int)(tick % _slots.size()));
+            if (!slot.isEmpty()) {
+                expired.addAll(slot);
+                _size -= slot.size();
+                slot.clear();
+            }
+        }
+        _tick = Math.max(_tick, target);
+        return expired;
+    }
+
+    /** The width of each bucket. */
+    protected final long _tickMillis;
+
+    /** Our buckets, indexed by absolute tick modulo their count. */
+    protected final List<List<T>> _slots;
+
+    /** The last tick through which we've advanced. */
+    protected long _tick;
+
+    /** The number of scheduled items. */
+    protected int _size;
+}
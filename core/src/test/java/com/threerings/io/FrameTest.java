@@ -21,9 +21,13 @@
 
 package com.threerings.io;
 
+import java.util.List;
+
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import java.nio.channels.Pipe;
 import java.nio.channels.ReadableByteChannel;
@@ -62,12 +66,32 @@ public class FrameTest extends TestCase
         dout.writeUTF(STRING7);
         out.write(fout.frameAndReturnBuffer());
         fout.resetFrame();
+
+        // write a fragmented frame with a regular frame in the middle of its fragments
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream bdout = new DataOutputStream(bout);
+        bdout.writeUTF(STRING3);
+        bdout.writeUTF(STRING4);
+        byte[] data = bout.toByteArray();
+        List<byte[]> frags = FramingOutputStream.fragment(data, 0, data.length, 64);
+        assertTrue("fragments", frags.size() > 2);
+        out.write(ByteBuffer.wrap(frags.get(0)));
+        dout.writeUTF(STRING1);
+        out.write(fout.frameAndReturnBuffer());
+        fout.resetFrame();
+        for (byte[] frag : frags.subList(1, frags.size())) {
+            out.write(ByteBuffer.wrap(frag));
+        }
+
+        dout.writeUTF(STRING2);
+        out.write(fout.frameAndReturnBuffer());
+        fout.resetFrame();
     }
 
     public void readFrames (ReadableByteChannel in)
         throws IOException
     {
-        FramedInputStream fin = new FramedInputStream();
+        FramedInputStream fin = new FramedInputStream(1024);
         DataInputStream din = new DataInputStream(fin);
 
         // read the first frame
@@ -88,6 +112,25 @@ public class FrameTest extends TestCase
         fin.readFrame(in);
         assertTrue("string7", STRING7.equals(din.readUTF()));
         assertTrue("hit eof", fin.read() == -1);
+
+        // read the frame that was sent between the fragments
+        assertTrue("frame", fin.readFrame(in));
+        assertFalse("regular", fin.isReassembled());
+        assertTrue("string1", STRING1.equals(din.readUTF()));
+        assertTrue("hit eof", fin.read() == -1);
+
+        // read the reassembled frame
+        assertTrue("frame", fin.readFrame(in));
+        assertTrue("reassembled", fin.isReassembled());
+        assertTrue("string3", STRING3.equals(din.readUTF()));
+        assertTrue("string4", STRING4.equals(din.readUTF()));
+        assertTrue("hit eof", fin.read() == -1);
+
+        // and a regular frame after that
+        assertTrue("frame", fin.readFrame(in));
+        assertFalse("regular", fin.isReassembled());
+        assertTrue("string2", STRING2.equals(din.readUTF()));
+        assertTrue("hit eof", fin.read() == -1);
     }
 
     @Override
@@ -100,6 +143,7 @@ public class FrameTest extends TestCase
 
         } catch (IOException ioe) {
             ioe.printStackTrace(System.err);
+            fail("IOException: " + ioe);
         }
     }
 
@@ -0,0 +1,140 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.io;
+
+import java.util.List;
+import java.util.Random;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link FramedInputStream}s sharing a {@link FrameBufferPool}.
+ */
+public class FramedInputStreamTest
+{
+    @Test public void testSharedPool ()
+        throws IOException
+    {
+        FrameBufferPool pool = new FrameBufferPool(1024);
+        Random rando = new Random(42);
+
+        // create a few streams whose data arrives in random sized pieces
+        int streams = 3, frames = 200;
+        List<ChunkedChannel> chans = Lists.newArrayList();
+        List<FramedInputStream> fins = Lists.newArrayList();
+        for (int ii = 0; ii < streams; ii++) {
+            FramingOutputStream fout = new FramingOutputStream();
+            DataOutputStream dout = new DataOutputStream(fout);
+            ChunkedChannel chan = new ChunkedChannel(rando);
+            for (int ff = 0; ff < frames; ff++) {
+                // most frames are small, a few are larger than the shared read buffer
+                int size = (ff % 17 == 0) ? 3000 + rando.nextInt(3000) : rando.nextInt(100);
+                dout.writeInt(ff);
+                dout.writeInt(size);
+                for (int bb = 0; bb < size; bb++) {
+                    dout.writeByte(ff + bb);
+                }
+                chan.append(fout.frameAndReturnBuffer());
+                fout.resetFrame();
+            }
+            chans.add(chan);
+            fins.add(new FramedInputStream(pool, 0));
+        }
+
+        // now read from the streams in turn, a frame at a time so that they're constantly stealing
+        // the read buffer out from under one another
+        int[] read = new int[streams];
+        for (int done = 0; done < streams; ) {
+            for (int ii = 0; ii < streams; ii++) {
+                FramedInputStream fin = fins.get(ii);
+                if (read[ii] == frames || !fin.readFrame(chans.get(ii))) {
+                    continue;
+                }
+                DataInputStream din = new DataInputStream(fin);
+                int ff = din.readInt(), size = din.readInt();
+                assertEquals(read[ii], ff);
+                for (int bb = 0; bb < size; bb++) {
+                    assertEquals((byte)(ff + bb), din.readByte());
+                }
+                assertEquals(-1, fin.read());
+                if (++read[ii] == frames) {
+                    done++;
+                }
+            }
+        }
+
+        // once they've consumed their last frames, our partial frame buffers should all have been
+        // returned to the pool
+        for (int ii = 0; ii < streams; ii++) {
+            assertFalse(fins.get(ii).readFrame(chans.get(ii)));
+            assertNull(fins.get(ii)._pending);
+        }
+        assertTrue(pool.getPooledBytes() > 0);
+    }
+
+    /** Serves up its data in randomly sized chunks, sometimes returning nothing at all. */
+    protected static class ChunkedChannel implements ReadableByteChannel
+    {
+        public ChunkedChannel (Random rando) {
+            _rando = rando;
+        }
+
+        public void append (ByteBuffer data) {
+            ByteBuffer ndata = ByteBuffer.allocate(_data.remaining() + data.remaining());
+            ndata.put(_data).put(data).flip();
+            _data = ndata;
+        }
+
+        public int read (ByteBuffer dst) {
+            if (!_data.hasRemaining()) {
+                return 0;
+            }
+            int count = Math.min(Math.min(dst.remaining(), _data.remaining()),
+                                 _rando.nextInt(2000));
+            ByteBuffer slice = _data.slice();
+            slice.limit(count);
+            dst.put(slice);
+            _data.position(_data.position() + count);
+            return count;
+        }
+
+        public boolean isOpen () {
+            return true;
+        }
+
+        public void close () {
+        }
+
+        protected Random _rando;
+        protected ByteBuffer _data = ByteBuffer.allocate(0);
+    }
+}
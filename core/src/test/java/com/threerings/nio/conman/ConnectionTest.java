@@ -0,0 +1,57 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.nio.conman;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the bandwidth limiting bits of {@link Connection}.
+ */
+public class ConnectionTest
+{
+    @Test public void testWriteAllowance ()
+    {
+        long now = System.currentTimeMillis();
+        Connection conn = new TestConnection();
+        assertEquals(Long.MAX_VALUE, conn.getWriteAllowance(now));
+
+        // a limit large enough to overflow if multiplied by the time since the epoch
+        int limit = 64 * 1024 * 1024;
+        conn.setBandwidthLimit(limit);
+        assertEquals(limit, conn.getWriteAllowance(now));
+
+        conn.noteWritten(limit + 1000);
+        assertEquals(-1000, conn.getWriteAllowance(now));
+        assertEquals(limit / 2 - 1000, conn.getWriteAllowance(now + 500));
+
+        // a long idle period earns no more than a second's worth
+        assertEquals(limit, conn.getWriteAllowance(now + 24 * 60 * 60 * 1000L));
+    }
+
+    protected static class TestConnection extends Connection
+    {
+        public int handleEvent (long when) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.nio.conman;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link OverflowQueue} class and the standard {@link OverflowPolicy} instances.
+ */
+public class OverflowQueueTest
+{
+    @Test public void testRing ()
+    {
+        OverflowQueue queue = createQueue(100, 1000);
+        for (int ii = 0; ii < 40; ii++) {
+            queue.add(message(ii, false, null));
+            if (ii % 3 == 2) {
+                queue.removeFirst(2);
+            }
+        }
+        // we've added 40 and removed 26 in dribs and drabs, wrapping around the ring as it grew
+        assertEquals(14, queue.size());
+        assertEquals(14 * 10 + 4, queue.getBytes());
+        for (int ii = 0; ii < queue.size(); ii++) {
+            assertEquals(26 + ii, queue.get(ii).data[0]);
+        }
+    }
+
+    @Test public void testLimits ()
+    {
+        OverflowQueue queue = createQueue(3, 1000);
+        for (int ii = 0; ii < 3; ii++) {
+            queue.add(message(ii, false, null));
+        }
+        assertFalse(queue.isOverLimit());
+        queue.add(message(3, false, null));
+        assertTrue(queue.isOverLimit());
+        assertFalse(OverflowPolicy.DROP_UNRELIABLE.handleOverflow(queue, new ConMgrStats()));
+
+        queue = createQueue(100, 33);
+        queue.add(message(0, false, null));
+        queue.add(message(1, false, null));
+        queue.add(message(2, true, null));
+        assertTrue(queue.isOverLimit()); // 34 bytes including our partial message
+        ConMgrStats stats = new ConMgrStats();
+        assertTrue(OverflowPolicy.DROP_UNRELIABLE.handleOverflow(queue, stats));
+        assertEquals(1, stats.overflowDropped);
+        assertEquals(2, queue.size());
+    }
+
+    @Test public void testCoalesce ()
+    {
+        OverflowQueue queue = createQueue(3, 1000);
+        queue.add(message(0, false, "a"));
+        queue.add(message(1, false, "b"));
+        queue.add(message(2, false, null));
+        queue.add(message(3, false, "a"));
+        queue.add(message(4, true, null));
+        queue.add(message(5, false, "a"));
+
+        ConMgrStats stats = new ConMgrStats();
+        assertTrue(OverflowPolicy.COALESCE.handleOverflow(queue, stats));
+        assertEquals(2, stats.overflowCoalesced);
+        assertEquals(1, stats.overflowDropped);
+        // the latest "a" remains, in its original position
+        assertEquals(3, queue.size());
+        assertEquals(1, queue.get(0).data[0]);
+        assertEquals(2, queue.get(1).data[0]);
+        assertEquals(5, queue.get(2).data[0]);
+    }
+
+    @Test public void testOvertake ()
+    {
+        OverflowQueue queue = createQueue(100, 1000);
+        queue.enqueue(message(0, null, false));
+        queue.enqueue(message(1, 5, true));
+        queue.enqueue(message(2, 5, true));
+        queue.enqueue(message(3, 7, false)); // overtakes the fragments
+        queue.enqueue(message(4, 5, false)); // must stay behind them
+        queue.enqueue(message(5, 9, false)); // can't get past the above
+        queue.enqueue(message(6, 9, true));
+        queue.enqueue(message(7, 9, true)); // fragments never overtake one another
+        queue.enqueue(message(8, null, false)); // nor do unkeyed messages overtake anything
+        int[] expect = { 0, 3, 1, 2, 4, 5, 6, 7, 8 };
+        for (int ii = 0; ii < expect.length; ii++) {
+            assertEquals(expect[ii], queue.get(ii).data[0]);
+        }
+    }
+
+    @Test public void testPriority ()
+    {
+        OverflowQueue queue = createQueue(100, 1000);
+        queue.enqueue(message(0, 1, OutgoingMessage.NORMAL, false));
+        queue.enqueue(message(1, 2, OutgoingMessage.NORMAL, true));
+        queue.enqueue(message(2, 3, OutgoingMessage.BULK, true));
+        queue.enqueue(message(3, 4, OutgoingMessage.URGENT, true)); // overtakes 2 and 1
+        queue.enqueue(message(4, 2, OutgoingMessage.URGENT, true)); // only overtakes 2
+        queue.enqueue(message(5, 5, OutgoingMessage.NORMAL, true)); // overtakes 2
+        queue.enqueue(message(6, 6, OutgoingMessage.NORMAL, true)); // but not its peer 5
+        queue.enqueue(message(7, 7, OutgoingMessage.BULK, true)); // bulk waits its turn
+        int[] expect = { 0, 3, 1, 4, 5, 6, 2, 7 };
+        for (int ii = 0; ii < expect.length; ii++) {
+            assertEquals(expect[ii], queue.get(ii).data[0]);
+        }
+    }
+
+    protected static OverflowQueue createQueue (int maxMessages, long maxBytes)
+    {
+        return new OverflowQueue(null, ByteBuffer.wrap(new byte[4]), maxMessages, maxBytes);
+    }
+
+    protected static OutgoingMessage message (int id, boolean droppable, Object key)
+    {
+        byte[] data = new byte[10];
+        data[0] = (byte)id;
+        return new OutgoingMessage(null, data, droppable, key);
+    }
+
+    protected static OutgoingMessage message (int id, Object orderKey, boolean fragment)
+    {
+        byte[] data = new byte[10];
+        data[0] = (byte)id;
+        return new OutgoingMessage(null, data, false, null, orderKey, fragment);
+    }
+
+    protected static OutgoingMessage message (
+        int id, Object orderKey, int priority, boolean standalone)
+    {
+        byte[] data = new byte[10];
+        data[0] = (byte)id;
+        return new OutgoingMessage(null, data, false, null, orderKey, false, priority, standalone);
+    }
+}
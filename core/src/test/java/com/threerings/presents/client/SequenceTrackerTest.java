@@ -0,0 +1,66 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the tracking of resumable event notification sequence numbers.
+ */
+public class SequenceTrackerTest
+{
+    @Test public void testInOrder ()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        assertEquals(0L, tracker.getContiguous());
+        for (long seq = 1; seq <= 3; seq++) {
+            assertTrue(tracker.noteReceived(seq));
+        }
+        assertEquals(3L, tracker.getContiguous());
+    }
+
+    @Test public void testOvertaken ()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        assertTrue(tracker.noteReceived(1L));
+        // an urgent notification overtakes 2 and 3
+        assertTrue(tracker.noteReceived(4L));
+        assertEquals(1L, tracker.getContiguous());
+        assertTrue(tracker.noteReceived(3L));
+        assertEquals(1L, tracker.getContiguous());
+        assertTrue(tracker.noteReceived(2L));
+        assertEquals(4L, tracker.getContiguous());
+    }
+
+    @Test public void testDuplicates ()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        assertTrue(tracker.noteReceived(1L));
+        assertTrue(tracker.noteReceived(3L));
+        // a replay after resumption resends everything after the contiguous sequence
+        assertFalse(tracker.noteReceived(1L));
+        assertTrue(tracker.noteReceived(2L));
+        assertFalse(tracker.noteReceived(3L));
+        assertEquals(3L, tracker.getContiguous());
+    }
+}
@@ -0,0 +1,122 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.Invoker;
+
+import com.threerings.util.Name;
+
+import com.threerings.presents.data.ClientObject;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link BatchingClientResolver}.
+ */
+public class BatchingClientResolverTest extends PresentsTestBase
+{
+    @Test public void testBatching ()
+    {
+        BatchingClientResolver.Batcher batcher = getInstance(BatchingClientResolver.Batcher.class);
+        List<Invoker.Unit> units = Lists.newArrayList();
+        batcher._invoker = createInvoker(units);
+
+        // resolving many clients costs a handful of loads rather than one per client
+        List<TestResolver> resolvers = Lists.newArrayList();
+        for (int ii = 0; ii < CLIENTS; ii++) {
+            TestResolver resolver = new TestResolver();
+            resolver.init(new Name("user" + ii));
+            resolver._batcher = batcher;
+            resolver.objectAvailable(new ClientObject());
+            resolvers.add(resolver);
+        }
+        assertEquals(CLIENTS / MAX_BATCH, units.size());
+
+        // batches flushed when full must not leave their window to flush the next batch early
+        assertEquals(1, batcher._windows.size());
+        batcher.flush(TestResolver.class);
+        assertTrue(batcher._windows.isEmpty());
+
+        long start = System.currentTimeMillis();
+        for (Invoker.Unit unit : units) {
+            assertTrue(unit.invoke());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        int loads = (CLIENTS + MAX_BATCH - 1) / MAX_BATCH;
+        assertEquals(loads, _loads);
+        assertTrue("elapsed " + elapsed, elapsed < CLIENTS * LOAD_MILLIS / 2);
+        for (TestResolver resolver : resolvers) {
+            assertEquals(resolver._username.toString(), resolver.resolved);
+        }
+    }
+
+    protected Invoker createInvoker (final List<Invoker.Unit> units)
+    {
+        return new Invoker("test", new Executor() {
+            public void execute (Runnable r) {
+                r.run();
+            }
+        }) {
+            @Override public void postUnit (Invoker.Unit unit) {
+                units.add(unit);
+            }
+        };
+    }
+
+    protected class TestResolver extends BatchingClientResolver<String>
+    {
+        public String resolved;
+
+        @Override protected Map<Name, String> loadClientData (List<Name> names)
+            throws Exception {
+            // simulate a database round trip, which is the same cost whatever the batch size
+            _loads++;
+            Thread.sleep(LOAD_MILLIS);
+            Map<Name, String> data = Maps.newHashMap();
+            for (Name name : names) {
+                data.put(name, name.toString());
+            }
+            return data;
+        }
+
+        @Override protected void resolveClientData (ClientObject clobj, String data) {
+            resolved = data;
+        }
+
+        @Override protected int getMaxBatchSize () {
+            return MAX_BATCH;
+        }
+    }
+
+    protected int _loads;
+
+    protected static final int CLIENTS = 250, MAX_BATCH = 100;
+    protected static final long LOAD_MILLIS = 10L;
+}
@@ -0,0 +1,173 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.util.ResultListener;
+
+import com.threerings.presents.data.ClientObject;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link BlockingExecutor}.
+ */
+public class BlockingExecutorTest extends PresentsTestBase
+{
+    @Test public void testCalls ()
+    {
+        final PresentsDObjectMgr omgr = getInstance(PresentsDObjectMgr.class);
+        BlockingExecutor exec = getInstance(BlockingExecutor.class);
+        exec.setThreads(2);
+
+        final ClientObject caller = new ClientObject();
+        final AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        for (int ii = 0; ii < CALLS; ii++) {
+            final int value = ii;
+            exec.execute("test", (ii == 0) ? caller : null, new Callable<Integer>() {
+                public Integer call () throws Exception {
+                    int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    try {
+                        Thread.sleep(20);
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                    if (value == 0 && BlockingExecutor.getCaller() != caller) {
+                        throw new Exception("Missing caller");
+                    } else if (value > 0 && BlockingExecutor.getCaller() != null) {
+                        throw new Exception("Unexpected caller");
+                    } else if (value == 1) {
+                        throw new Exception("Failed");
+                    }
+                    return value;
+                }
+            }, new Recorder(omgr));
+        }
+        omgr.run();
+
+        // every result was delivered on the dobj thread
+        assertFalse("wrong thread", _wrongThread);
+        assertEquals(CALLS - 1, _results.size());
+        assertTrue(_results.contains(0));
+        assertFalse(_results.contains(1));
+        assertEquals(1, _failures.size());
+        assertEquals("Failed", _failures.get(0).getMessage());
+
+        // no more than our configured number of calls ran at once
+        assertTrue("bounded", maxRunning.get() <= 2);
+    }
+
+    @Test public void testShutdown ()
+    {
+        final PresentsDObjectMgr omgr = getInstance(PresentsDObjectMgr.class);
+        BlockingExecutor exec = getInstance(BlockingExecutor.class);
+        exec.shutdown();
+
+        Callable<Integer> call = new Callable<Integer>() {
+            public Integer call () {
+                fail("Call run after shutdown");
+                return 0;
+            }
+        };
+        // calls with no listener are simply logged
+        exec.execute("test", call, null);
+        exec.execute("test", call, new Recorder(omgr) {
+            @Override protected int getExpected () {
+                return 1;
+            }
+        });
+        omgr.run();
+
+        assertFalse("wrong thread", _wrongThread);
+        assertEquals(0, _results.size());
+        assertEquals(1, _failures.size());
+        assertTrue(_failures.get(0) instanceof RejectedExecutionException);
+    }
+
+    @Test public void testError ()
+    {
+        final PresentsDObjectMgr omgr = getInstance(PresentsDObjectMgr.class);
+        BlockingExecutor exec = getInstance(BlockingExecutor.class);
+        final Error error = new Error("Broken");
+        exec.execute("test", new Callable<Integer>() {
+            public Integer call () {
+                throw error;
+            }
+        }, new Recorder(omgr) {
+            @Override protected int getExpected () {
+                return 1;
+            }
+        });
+        omgr.run();
+
+        // the listener hears about errors as well as exceptions
+        assertEquals(1, _failures.size());
+        assertSame(error, _failures.get(0).getCause());
+    }
+
+    /** Records results on the dobj thread and shuts it down once they are all in. */
+    protected class Recorder implements ResultListener<Integer>
+    {
+        public Recorder (PresentsDObjectMgr omgr) {
+            _omgr = omgr;
+        }
+
+        public void requestCompleted (Integer result) {
+            _results.add(result);
+            noteResult();
+        }
+
+        public void requestFailed (Exception cause) {
+            _failures.add(cause);
+            noteResult();
+        }
+
+        protected int getExpected () {
+            return CALLS;
+        }
+
+        protected void noteResult () {
+            _wrongThread |= !_omgr.isDispatchThread();
+            if (_results.size() + _failures.size() == getExpected()) {
+                _omgr.harshShutdown();
+            }
+        }
+
+        protected PresentsDObjectMgr _omgr;
+    }
+
+    protected List<Integer> _results = Lists.newArrayList();
+    protected List<Exception> _failures = Lists.newArrayList();
+    protected boolean _wrongThread;
+
+    protected static final int CALLS = 8;
+}
@@ -0,0 +1,94 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+
+import com.threerings.presents.client.InvocationService;
+import com.threerings.presents.client.TestService;
+import com.threerings.presents.data.TestClientObject;
+import com.threerings.presents.data.TestMarshaller;
+
+/**
+ * Measures the per-call overhead of dispatching invocation requests to a provider via its
+ * generated dispatcher and via reflection. Usage: <code>DispatcherBenchmark [calls]</code>.
+ */
+public class DispatcherBenchmark
+{
+    public static void main (String[] args)
+        throws Exception
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 10000000;
+        InvocationManager invmgr = Guice.createInjector(new PresentsServer.PresentsModule()).
+            getInstance(InvocationManager.class);
+        TestProvider provider = new NoopProvider();
+
+        // register the provider once with its generated dispatcher and once without
+        TestMarshaller gen = invmgr.registerProvider(provider, TestMarshaller.class);
+        invmgr._genDispatchers.put(TestMarshaller.class, null);
+        TestMarshaller refl = invmgr.registerProvider(provider, TestMarshaller.class);
+
+        for (int pass = 0; pass < 3; pass++) {
+            for (TestMarshaller marsh : new TestMarshaller[] { refl, gen }) {
+                InvocationManager.Dispatcher disp =
+                    invmgr._dispatchers.get(marsh.getInvocationCode());
+                long start = System.nanoTime();
+                run(disp, count);
+                long elapsed = System.nanoTime() - start;
+                System.out.println(((marsh == gen) ? "Generated:  " : "Reflective: ") +
+                                   (count * 1000000000L / elapsed) + " calls/s, " +
+                                   (elapsed / count) + " ns per call");
+            }
+        }
+    }
+
+    protected static void run (InvocationManager.Dispatcher disp, int count)
+        throws InvocationException
+    {
+        TestClientObject caller = new TestClientObject();
+        List<Integer> three = Lists.newArrayList(3);
+        for (int ii = 0; ii < count; ii++) {
+            Object[] args = new Object[] { "one", ii, three, null };
+            disp.dispatchRequest(caller, TestMarshaller.TEST, args);
+        }
+    }
+
+    /** A provider that does nothing, so that we measure only the cost of dispatch. */
+    protected static class NoopProvider implements TestProvider
+    {
+        public void getTestOid (TestClientObject caller, TestService.TestOidListener listener) {
+        }
+
+        public void giveMeThePower (TestClientObject caller,
+                                    InvocationService.ConfirmListener listener) {
+        }
+
+        public void test (TestClientObject caller, String one, int two, List<Integer> three,
+                          TestService.TestFuncListener listener) {
+            _calls += two;
+        }
+
+        protected long _calls;
+    }
+}
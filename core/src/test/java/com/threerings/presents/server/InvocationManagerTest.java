@@ -0,0 +1,110 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.util.Lifecycle;
+
+import com.threerings.presents.annotation.ConcurrentDispatch;
+import com.threerings.presents.client.InvocationService;
+import com.threerings.presents.client.TestService;
+import com.threerings.presents.data.TestClientObject;
+import com.threerings.presents.data.TestMarshaller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link InvocationManager}.
+ */
+public class InvocationManagerTest extends PresentsTestBase
+{
+    @Test public void testGeneratedDispatcher ()
+        throws InvocationException
+    {
+        InvocationManager invmgr = getInstance(InvocationManager.class);
+        RecordingProvider provider = new RecordingProvider();
+        TestMarshaller marsh = invmgr.registerProvider(provider, TestMarshaller.class);
+
+        // the dispatcher generated for the service is found and used in place of reflection
+        InvocationManager.Dispatcher disp = invmgr._dispatchers.get(marsh.getInvocationCode());
+        assertTrue("generated", disp instanceof TestDispatcher);
+        assertSame(provider, disp.getProvider());
+
+        TestClientObject caller = new TestClientObject();
+        List<Integer> three = Lists.newArrayList(3);
+        disp.dispatchRequest(caller, TestMarshaller.TEST, new Object[] { "one", 2, three, null });
+        assertSame(caller, provider.caller);
+        assertEquals("one", provider.one);
+        assertEquals(2, provider.two);
+        assertSame(three, provider.three);
+    }
+
+    @Test public void testConcurrentAfterShutdown ()
+    {
+        InvocationManager invmgr = getInstance(InvocationManager.class);
+        TestMarshaller marsh = invmgr.registerProvider(
+            new ConcurrentProvider(), TestMarshaller.class);
+        assertNotNull(invmgr._concurrent.get(marsh.getInvocationCode()));
+        getInstance(Lifecycle.class).shutdown();
+        assertTrue(invmgr._concurrentExec._exec.isShutdown());
+
+        // registering a concurrent provider once shutdown has started must not fail, and its
+        // methods are then dispatched on the dobj thread
+        marsh = invmgr.registerProvider(new ConcurrentProvider(), TestMarshaller.class);
+        assertNull(invmgr._concurrent.get(marsh.getInvocationCode()));
+    }
+
+    /** Records the arguments of the last request it handled. */
+    protected static class RecordingProvider implements TestProvider
+    {
+        public TestClientObject caller;
+        public String one;
+        public int two;
+        public List<Integer> three;
+
+        public void getTestOid (TestClientObject caller, TestService.TestOidListener listener) {
+            this.caller = caller;
+        }
+
+        public void giveMeThePower (TestClientObject caller,
+                                    InvocationService.ConfirmListener listener) {
+            this.caller = caller;
+        }
+
+        public void test (TestClientObject caller, String one, int two, List<Integer> three,
+                          TestService.TestFuncListener listener) {
+            this.caller = caller;
+            this.one = one;
+            this.two = two;
+            this.three = three;
+        }
+    }
+
+    @ConcurrentDispatch
+    protected static class ConcurrentProvider extends RecordingProvider
+    {
+    }
+}
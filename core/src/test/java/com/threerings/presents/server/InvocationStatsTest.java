@@ -0,0 +1,80 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.presents.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link InvocationStats} latency recording.
+ */
+public class InvocationStatsTest
+{
+    @Test public void testPercentiles ()
+    {
+        InvocationStats.Latencies lats = new InvocationStats.Latencies();
+        assertEquals(0, lats.getPercentile(50));
+        for (int ii = 1; ii <= 1000; ii++) {
+            lats.record(ii);
+        }
+        assertEquals(1000, lats.getCount());
+        assertEquals(1000, lats.getMax());
+        // percentiles are reported to within an eighth of their value, rounding up
+        assertWithin(500, lats.getPercentile(50));
+        assertWithin(900, lats.getPercentile(90));
+        assertWithin(990, lats.getPercentile(99));
+        assertEquals(1000, lats.getPercentile(100));
+
+        lats.clear();
+        assertEquals(0, lats.getCount());
+        lats.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, lats.getPercentile(50));
+    }
+
+    @Test public void testBuckets ()
+    {
+        // every value must fall within the bounds of its bucket
+        for (long value = 0; value < (1L << 34); value = value * 5 / 4 + 1) {
+            int bucket = InvocationStats.Latencies.getBucket(value);
+            assertTrue(value <= InvocationStats.Latencies.getUpperBound(bucket));
+            assertTrue(bucket == 0 ||
+                       value > InvocationStats.Latencies.getUpperBound(bucket-1) ||
+                       value >= (1L << InvocationStats.Latencies.MAX_EXPONENT));
+        }
+    }
+
+    @Test public void testMethodNames ()
+    {
+        InvocationStats.ServiceStats stats = new InvocationStats.ServiceStats(
+            com.threerings.presents.data.TimeBaseMarshaller.class);
+        assertEquals("getTimeOid", stats.getMethod(
+                         com.threerings.presents.data.TimeBaseMarshaller.GET_TIME_OID).method);
+        assertEquals("7", stats.getMethod(7).method);
+        assertNull(stats.getMethod(-1));
+    }
+
+    protected static void assertWithin (long expected, long actual)
+    {
+        assertTrue(actual + " !~ " + expected, actual >= expected && actual <= expected * 9 / 8);
+    }
+}
@@ -0,0 +1,174 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.presents.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.Invoker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link KeyedUnitExecutor}.
+ */
+public class KeyedUnitExecutorTest
+{
+    @Test public void testOrdering ()
+        throws InterruptedException
+    {
+        final int keys = 5, units = 40;
+        final CountDownLatch done = new CountDownLatch(keys * units);
+        final Map<String, List<Integer>> results = Maps.newHashMap();
+        final Map<String, AtomicInteger> running = Maps.newHashMap();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final AtomicInteger maxConcurrent = new AtomicInteger(), concurrent = new AtomicInteger();
+        for (int kk = 0; kk < keys; kk++) {
+            results.put("key" + kk, Lists.<Integer>newArrayList());
+            running.put("key" + kk, new AtomicInteger());
+        }
+
+        KeyedUnitExecutor exec = new KeyedUnitExecutor("test", new Executor() {
+            public void execute (Runnable r) {
+                r.run();
+            }
+        }, keys);
+        for (int ii = 0; ii < units; ii++) {
+            for (int kk = 0; kk < keys; kk++) {
+                final String key = "key" + kk;
+                final int seq = ii;
+                exec.postUnit(key, new Invoker.Unit() {
+                    @Override public boolean invoke () {
+                        if (running.get(key).incrementAndGet() != 1) {
+                            overlapped.set(true);
+                        }
+                        int now = concurrent.incrementAndGet();
+                        synchronized (maxConcurrent) {
+                            maxConcurrent.set(Math.max(maxConcurrent.get(), now));
+                        }
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException ie) {
+                            // no matter
+                        }
+                        synchronized (results) {
+                            results.get(key).add(seq);
+                        }
+                        concurrent.decrementAndGet();
+                        running.get(key).decrementAndGet();
+                        return true;
+                    }
+                    @Override public void handleResult () {
+                        done.countDown();
+                    }
+                });
+            }
+        }
+
+        assertTrue("completed", done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, exec.getPendingUnits());
+        assertFalse("overlapped", overlapped.get());
+        for (List<Integer> seqs : results.values()) {
+            assertEquals(units, seqs.size());
+            for (int ii = 0; ii < units; ii++) {
+                assertEquals(ii, (int)seqs.get(ii));
+            }
+        }
+        // units for different keys should have had a chance to run in parallel
+        assertTrue("parallel", maxConcurrent.get() > 1);
+        exec.shutdown();
+    }
+
+    @Test public void testShutdown ()
+    {
+        KeyedUnitExecutor exec = new KeyedUnitExecutor("test", new Executor() {
+            public void execute (Runnable r) {
+                r.run();
+            }
+        }, 1);
+        exec.shutdown();
+        try {
+            exec.postUnit("key", new Invoker.Unit() {
+                @Override public boolean invoke () {
+                    return false;
+                }
+            });
+            fail("Posted unit after shutdown");
+        } catch (RejectedExecutionException ree) {
+            // expected
+        }
+        // the rejected unit must not leave anything behind
+        assertEquals(0, exec.getPendingUnits());
+        assertTrue(exec._lanes.isEmpty());
+    }
+
+    @Test public void testShutdownDrainsLanes ()
+        throws InterruptedException
+    {
+        final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        KeyedUnitExecutor exec = new KeyedUnitExecutor("test", new Executor() {
+            public void execute (Runnable r) {
+                r.run();
+            }
+        }, 1);
+        exec.postUnit("key", new Invoker.Unit() {
+            @Override public boolean invoke () {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    // no matter
+                }
+                done.countDown();
+                return false;
+            }
+        });
+        exec.postUnit("key", new Invoker.Unit() {
+            @Override public boolean invoke () {
+                done.countDown();
+                return false;
+            }
+        });
+
+        // shut down while the first unit is running and the second is waiting in its lane
+        assertTrue("started", started.await(10, TimeUnit.SECONDS));
+        exec.shutdown();
+        release.countDown();
+
+        assertTrue("completed", done.await(10, TimeUnit.SECONDS));
+        assertTrue(exec._exec.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, exec.getPendingUnits());
+        assertTrue(exec._lanes.isEmpty());
+    }
+}
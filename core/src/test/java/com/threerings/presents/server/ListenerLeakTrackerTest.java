@@ -0,0 +1,79 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import com.threerings.presents.data.InvocationMarshaller.ConfirmMarshaller;
+import com.threerings.presents.data.InvocationMarshaller.ListenerMarshaller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link ListenerLeakTracker}.
+ */
+public class ListenerLeakTrackerTest
+{
+    @Test public void testSampling ()
+    {
+        ListenerLeakTracker tracker = new ListenerLeakTracker(2);
+
+        // plain listeners expect no response, so they don't use up samples
+        for (int ii = 0; ii < 3; ii++) {
+            tracker.sample(new ListenerMarshaller(), this, 1);
+        }
+        assertEquals(0, tracker.getPending());
+
+        ConfirmMarshaller first = new ConfirmMarshaller(), second = new ConfirmMarshaller();
+        tracker.sample(first, this, 1);
+        assertEquals(0, tracker.getPending());
+        tracker.sample(second, this, 1);
+        assertEquals(1, tracker.getPending());
+
+        // a listener that declines to respond is no longer watched
+        second.setNoResponse();
+        assertEquals(0, tracker.getPending());
+    }
+
+    @Test public void testLeak ()
+        throws InterruptedException
+    {
+        ListenerLeakTracker tracker = new ListenerLeakTracker(1);
+        sampleUnanswered(tracker);
+        assertEquals(1, tracker.getPending());
+
+        // once the unanswered listener is collected, it is reported as leaked
+        long deadline = System.currentTimeMillis() + 10 * 1000L;
+        while (tracker.getLeaked() == 0 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+            tracker.reportLeaks();
+        }
+        assertEquals(1, tracker.getLeaked());
+        assertEquals(0, tracker.getPending());
+    }
+
+    protected void sampleUnanswered (ListenerLeakTracker tracker)
+    {
+        // the listener becomes unreachable as soon as we return
+        tracker.sample(new ConfirmMarshaller(), this, 1);
+    }
+}
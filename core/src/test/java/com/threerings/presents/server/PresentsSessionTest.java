@@ -0,0 +1,177 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import com.threerings.presents.data.ClientObject;
+import com.threerings.presents.dobj.AttributeChangedEvent;
+import com.threerings.presents.dobj.DEvent;
+import com.threerings.presents.net.DownstreamMessage;
+import com.threerings.presents.net.ResumableEventNotification;
+import com.threerings.presents.net.ResumeSessionRequest;
+import com.threerings.presents.net.ResumeSessionResponse;
+import com.threerings.presents.net.Transport;
+import com.threerings.presents.server.net.PresentsConnection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the resumption of sessions whose connections drop.
+ */
+public class PresentsSessionTest extends PresentsTestBase
+{
+    @Test public void testResume ()
+    {
+        TestSession session = createSession();
+        for (int ii = 0; ii < 3; ii++) {
+            session.forwardEvent(createEvent(ii), null);
+        }
+        // unreliable events are not numbered, as the client need not hear about them
+        session.forwardEvent(createEvent(3).setTransport(Transport.UNRELIABLE_UNORDERED), null);
+        assertEquals(4, session.sent.size());
+        assertFalse(session.sent.get(3) instanceof ResumableEventNotification);
+
+        // the connection drops and we hold onto the session, buffering events meanwhile
+        session.sessionConnectionClosed();
+        assertTrue(session._parked);
+        session.forwardEvent(createEvent(4), null);
+
+        // the client reconnects having received 1 and 3 but not 2, so it asks for everything
+        // after 1 and we replay the rest in order
+        session.sent.clear();
+        session.finishResumeSession();
+        assertTrue(session._awaitingResume);
+        session.resumeRequested(1L);
+        assertFalse(session._parked);
+        assertFalse(session.bootstrapped);
+        assertTrue(((ResumeSessionResponse)session.sent.get(0)).resumed);
+        assertEquals(Lists.newArrayList(2L, 3L, 4L), session.getSequences());
+    }
+
+    @Test public void testParkedOverflow ()
+    {
+        TestSession session = createSession();
+        session.sessionConnectionClosed();
+        assertTrue(session._parked);
+
+        // missing more events than we buffer makes the session unresumable
+        for (int ii = 0; ii <= BUFFER_SIZE; ii++) {
+            session.forwardEvent(createEvent(ii), null);
+        }
+        assertFalse(session._parked);
+
+        // so the reconnecting client is bootstrapped afresh
+        session.finishResumeSession();
+        assertFalse(session._awaitingResume);
+        assertTrue(session.bootstrapped);
+    }
+
+    @Test public void testFallback ()
+    {
+        TestSession session = createSession();
+        for (int ii = 0; ii < BUFFER_SIZE + 2; ii++) {
+            session.forwardEvent(createEvent(ii), null);
+        }
+        session.sessionConnectionClosed();
+        session.finishResumeSession();
+
+        // the client missed notifications that have since left our buffer, so it can't resume
+        session.sent.clear();
+        session.resumeRequested(1L);
+        assertFalse(((ResumeSessionResponse)session.sent.get(0)).resumed);
+        assertFalse(session._parked);
+        assertTrue(session.bootstrapped);
+    }
+
+    @Test public void testResumeTimeout ()
+    {
+        TestSession session = createSession();
+        session.sessionConnectionClosed();
+        session.finishResumeSession();
+
+        // the client sends nothing, so we eventually give up and bootstrap it
+        session.resumeTimerExpired();
+        assertFalse(session._awaitingResume);
+        assertFalse(session._parked);
+        assertTrue(session.bootstrapped);
+    }
+
+    protected TestSession createSession ()
+    {
+        TestSession session = getInstance(TestSession.class);
+        session._clobj = new ClientObject();
+        session._clobj.setLocal(ClientLocal.class, new ClientLocal());
+        session.resumeRequested(ResumeSessionRequest.ENABLE);
+        return session;
+    }
+
+    protected static DEvent createEvent (int value)
+    {
+        return new AttributeChangedEvent(1, "value", value);
+    }
+
+    /** A session that records the messages it sends rather than sending them. */
+    protected static class TestSession extends PresentsSession
+    {
+        public List<DownstreamMessage> sent = Lists.newArrayList();
+        public boolean bootstrapped;
+
+        public List<Long> getSequences () {
+            List<Long> seqs = Lists.newArrayList();
+            for (DownstreamMessage msg : sent) {
+                if (msg instanceof ResumableEventNotification) {
+                    seqs.add(((ResumableEventNotification)msg).sequence);
+                }
+            }
+            return seqs;
+        }
+
+        public void resumeTimerExpired () {
+            _resumeTimer.expired();
+        }
+
+        @Override protected PresentsConnection getConnection () {
+            return _testConn;
+        }
+
+        @Override protected boolean postMessage (DownstreamMessage msg, PresentsConnection expect) {
+            sent.add(msg);
+            return true;
+        }
+
+        @Override protected void sendBootstrap () {
+            bootstrapped = true;
+        }
+
+        @Override protected int getReplayBufferSize () {
+            return BUFFER_SIZE;
+        }
+
+        protected PresentsConnection _testConn = new PresentsConnection();
+    }
+
+    protected static final int BUFFER_SIZE = 4;
+}
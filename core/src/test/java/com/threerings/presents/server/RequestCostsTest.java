@@ -0,0 +1,53 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import org.junit.Test;
+
+import com.threerings.presents.net.CompoundUpstreamMessage;
+import com.threerings.presents.net.PingRequest;
+import com.threerings.presents.net.SubscribeRequest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link RequestCosts}.
+ */
+public class RequestCostsTest
+{
+    @Test public void testCompoundCost ()
+    {
+        RequestCosts costs = new RequestCosts();
+        costs.setCost(SubscribeRequest.class, 3.0);
+        SubscribeRequest single = new SubscribeRequest(1);
+        assertEquals(3.0, costs.getCost(single), 0.0);
+
+        // a compound of N requests must cost as much as sending them separately
+        CompoundUpstreamMessage compound = new CompoundUpstreamMessage();
+        for (int ii = 0; ii < 10; ii++) {
+            compound.msgs.add(new SubscribeRequest(ii));
+        }
+        assertEquals(10 * costs.getCost(single), costs.getCost(compound), 0.0);
+
+        compound.msgs.add(new PingRequest());
+        assertEquals(30.25, costs.getCost(compound), 0.0);
+    }
+}
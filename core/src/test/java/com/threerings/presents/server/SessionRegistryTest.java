@@ -0,0 +1,163 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.net.InetAddress;
+
+import com.google.common.collect.Lists;
+
+import com.threerings.util.Name;
+
+import com.threerings.presents.data.ClientObject;
+import com.threerings.presents.server.net.PresentsConnection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link SessionRegistry}.
+ */
+public class SessionRegistryTest
+{
+    @Test public void testAddressRace ()
+        throws Exception
+    {
+        final SessionRegistry registry = new SessionRegistry(100L);
+        final InetAddress addr = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+        final AtomicBoolean lost = new AtomicBoolean();
+
+        // connections from the same address coming and going at once must not lose one another
+        // when one empties the address's map and another adds to it
+        List<Thread> threads = Lists.newArrayList();
+        for (int ii = 0; ii < 4; ii++) {
+            final TestSession session = new TestSession("user" + ii);
+            final TestConnection conn = new TestConnection(addr);
+            registry.add(session);
+            threads.add(new Thread() {
+                @Override public void run () {
+                    for (int nn = 0; nn < 5000 && !lost.get(); nn++) {
+                        registry.connected(session, conn);
+                        if (!registry.getByAddress(addr).contains(session)) {
+                            lost.set(true);
+                        }
+                        registry.disconnected(session, conn);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse("lost connection", lost.get());
+        assertTrue(registry.getByAddress(addr).isEmpty());
+        assertTrue(registry._byAddress.isEmpty());
+    }
+
+    @Test public void testStaleOid ()
+    {
+        SessionRegistry registry = new SessionRegistry(100L);
+        TestSession session = new TestSession("bob");
+        session._clobj = createClientObject(5);
+        registry.add(session);
+        registry.mapClientObject(session, 5);
+        assertSame(session, registry.getByOid(5));
+
+        // the session switches client objects without the index hearing about it
+        session._clobj = createClientObject(6);
+        assertNull(registry.getByOid(5));
+        assertFalse(registry._byOid.containsKey(5));
+
+        // removal clears the index of the current client object
+        registry.mapClientObject(session, 6);
+        assertSame(session, registry.remove(session));
+        assertNull(registry.getByOid(6));
+    }
+
+    @Test public void testExpiry ()
+        throws Exception
+    {
+        SessionRegistry registry = new SessionRegistry(10L);
+        long now = System.currentTimeMillis();
+        InetAddress addr = InetAddress.getByAddress(new byte[] { 10, 0, 0, 2 });
+        TestSession gone = new TestSession("gone"), back = new TestSession("back");
+        TestSession again = new TestSession("again");
+        for (TestSession session : new TestSession[] { gone, back, again }) {
+            TestConnection conn = new TestConnection(addr);
+            registry.add(session);
+            registry.connected(session, conn);
+            session._networkStamp = now;
+            registry.disconnected(session, conn);
+        }
+
+        // one session reconnects for good, another reconnects and drops again a bit later
+        back._conn = new TestConnection(addr);
+        again._networkStamp = now + FLUSH_TIME;
+
+        assertEquals(Lists.newArrayList(gone), registry.getExpired(now + FLUSH_TIME + 50));
+        registry.remove(gone);
+
+        // the reconnected session is forgotten even once it loses its connection again
+        back._conn = null;
+        back._networkStamp = now;
+        assertEquals(Lists.newArrayList(again), registry.getExpired(now + 2 * FLUSH_TIME + 50));
+        assertTrue(registry.getExpired(now + 10 * FLUSH_TIME).isEmpty());
+    }
+
+    protected static ClientObject createClientObject (int oid)
+    {
+        ClientObject clobj = new ClientObject();
+        clobj.setOid(oid);
+        return clobj;
+    }
+
+    protected static class TestSession extends PresentsSession
+    {
+        public TestSession (String name) {
+            _authname = new Name(name);
+        }
+
+        @Override protected long getFlushTime () {
+            return FLUSH_TIME;
+        }
+    }
+
+    protected static class TestConnection extends PresentsConnection
+    {
+        public TestConnection (InetAddress addr) {
+            _addr = addr;
+        }
+
+        @Override public InetAddress getInetAddress () {
+            return _addr;
+        }
+
+        protected InetAddress _addr;
+    }
+
+    protected static final long FLUSH_TIME = 1000L;
+}
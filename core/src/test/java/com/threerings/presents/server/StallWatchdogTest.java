@@ -0,0 +1,165 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import com.samskivert.util.Invoker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link StallWatchdog}.
+ */
+public class StallWatchdogTest
+{
+    @Test public void testStallDetection ()
+        throws InterruptedException
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Runner runner = new Runner(new Runnable() {
+            public void run () {
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    // no matter
+                }
+            }
+            @Override public String toString () {
+                return "StuckUnit";
+            }
+        });
+
+        StallWatchdog watchdog = new StallWatchdog();
+        watchdog.setStallThreshold(100L);
+        watchdog.watch(runner);
+        runner.start();
+
+        List<StallWatchdog.Stall> stalls = awaitStalls(watchdog);
+        assertEquals(1, stalls.size());
+        StallWatchdog.Stall stall = stalls.get(0);
+        assertEquals("runner", stall.source);
+        assertEquals("StuckUnit", stall.unit);
+        assertEquals(3, stall.queueSize);
+        assertEquals(0L, stall.finished);
+        boolean sawAwait = false;
+        for (StackTraceElement elem : stall.stack) {
+            sawAwait |= elem.getMethodName().equals("await");
+        }
+        assertTrue("captured stack", sawAwait);
+
+        // once the unit completes, the stall is marked finished and not reported again
+        release.countDown();
+        runner.join();
+        for (int ii = 0; ii < 50 && stall.finished == 0; ii++) {
+            Thread.sleep(100);
+        }
+        assertTrue("finished", stall.finished != 0);
+        assertEquals(1, watchdog.getStalls().size());
+        watchdog.shutdown();
+    }
+
+    @Test public void testExecutorStall ()
+        throws InterruptedException
+    {
+        StallWatchdog watchdog = new StallWatchdog();
+        watchdog.setStallThreshold(100L);
+        KeyedUnitExecutor exec = new KeyedUnitExecutor("test", new Executor() {
+            public void execute (Runnable r) {
+                r.run();
+            }
+        }, 1);
+        exec.setWatchdog(watchdog);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        exec.postUnit(null, new Invoker.Unit("StuckUnit") {
+            @Override public boolean invoke () {
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    // no matter
+                }
+                return false;
+            }
+        });
+
+        List<StallWatchdog.Stall> stalls = awaitStalls(watchdog);
+        assertEquals("test-1", stalls.get(0).source);
+        assertEquals("StuckUnit", stalls.get(0).unit);
+        release.countDown();
+        exec.shutdown();
+        watchdog.shutdown();
+    }
+
+    protected static List<StallWatchdog.Stall> awaitStalls (StallWatchdog watchdog)
+        throws InterruptedException
+    {
+        for (int ii = 0; ii < 50; ii++) {
+            List<StallWatchdog.Stall> stalls = watchdog.getStalls();
+            if (!stalls.isEmpty()) {
+                return stalls;
+            }
+            Thread.sleep(100);
+        }
+        fail("No stall detected");
+        return null;
+    }
+
+    protected static class Runner extends Thread
+        implements StallWatchdog.Watched
+    {
+        public Runner (Runnable unit) {
+            super("runner");
+            _unit = unit;
+        }
+
+        @Override public void run () {
+            _start = System.currentTimeMillis();
+            _current = _unit;
+            _unit.run();
+            _current = null;
+        }
+
+        public Thread getUnitThread () {
+            return this;
+        }
+
+        public int getQueueSize () {
+            return 3;
+        }
+
+        public Object getCurrentUnit () {
+            return _current;
+        }
+
+        public long getCurrentUnitStart () {
+            return _start;
+        }
+
+        protected Runnable _unit;
+        protected volatile Object _current;
+        protected volatile long _start;
+    }
+}
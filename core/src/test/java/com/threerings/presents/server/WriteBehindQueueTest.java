@@ -0,0 +1,229 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+
+import com.samskivert.util.Invoker;
+import com.samskivert.util.Lifecycle;
+
+import com.threerings.util.Name;
+
+import com.threerings.presents.client.InvocationService;
+import com.threerings.presents.util.PersistingUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link WriteBehindQueue}.
+ */
+public class WriteBehindQueueTest extends PresentsTestBase
+{
+    @Test public void testCoalescing ()
+        throws InterruptedException
+    {
+        Invoker invoker = createInvoker();
+        WriteBehindQueue queue = new WriteBehindQueue(invoker);
+        Map<String, Integer> store = Maps.newHashMap();
+        List<Integer> writes = Lists.newArrayList();
+        Confirms confirms = new Confirms(20);
+
+        for (int ii = 0; ii < 10; ii++) {
+            queue.post("a", new SaveUnit(store, writes, "a", ii, confirms));
+            queue.post("b", new SaveUnit(store, writes, "b", 100 + ii, confirms));
+        }
+        assertEquals(2, queue.getPendingCount());
+        queue.flushAll();
+        assertTrue("confirmed", confirms.await());
+        assertEquals(0, queue.getPendingCount());
+
+        // only the last value for each key was written, but every listener heard back
+        assertEquals(2, writes.size());
+        assertEquals(9, (int)store.get("a"));
+        assertEquals(109, (int)store.get("b"));
+        assertEquals(0, confirms.failed);
+        invoker.shutdown();
+    }
+
+    @Test public void testShutdown ()
+        throws InterruptedException
+    {
+        Invoker invoker = createInvoker();
+        WriteBehindQueue queue = new WriteBehindQueue(invoker);
+        queue.setMaxPending(3);
+        Map<String, Integer> store = Maps.newHashMap();
+        List<Integer> writes = Lists.newArrayList();
+        Confirms confirms = new Confirms(7);
+
+        // exceeding the maximum pending count flushes everything
+        for (int ii = 0; ii < 4; ii++) {
+            queue.post("k" + ii, new SaveUnit(store, writes, "k" + ii, ii, confirms));
+        }
+        assertEquals(0, queue.getPendingCount());
+
+        // pending units are written on shutdown, and later units are written directly
+        queue.post("k0", new SaveUnit(store, writes, "k0", 10, confirms));
+        queue.post("k0", new SaveUnit(store, writes, "k0", 11, confirms));
+        queue.shutdown();
+        assertEquals(0, queue.getPendingCount());
+        queue.post("k1", new SaveUnit(store, writes, "k1", 12, confirms));
+        assertEquals(0, queue.getPendingCount());
+
+        assertTrue("confirmed", confirms.await());
+        assertEquals(6, writes.size());
+        assertEquals(11, (int)store.get("k0"));
+        assertEquals(12, (int)store.get("k1"));
+        assertEquals(3, (int)store.get("k3"));
+        invoker.shutdown();
+    }
+
+    @Test public void testSessionEnd ()
+    {
+        WriteBehindQueue queue = getInstance(WriteBehindQueue.class);
+        ClientManager clmgr = getInstance(ClientManager.class);
+        queue.setFlushInterval(0);
+        Map<String, Integer> store = Maps.newHashMap();
+        List<Integer> writes = Lists.newArrayList();
+        Name bob = new Name("bob"), jim = new Name("jim");
+
+        SaveUnit unit = new SaveUnit(store, writes, "bob", 1, null);
+        unit.setOrderingKey(bob);
+        queue.post("bob", unit);
+        unit = new SaveUnit(store, writes, "jim", 2, null);
+        unit.setOrderingKey(jim);
+        queue.post("jim", unit);
+        assertEquals(2, queue.getPendingCount());
+
+        // only the ending session's writes are flushed
+        PresentsSession session = new PresentsSession();
+        session._authname = bob;
+        clmgr.clientSessionDidEnd(session);
+        assertEquals(1, queue.getPendingCount());
+        assertTrue(queue._pending.containsKey("jim"));
+    }
+
+    @Test public void testOrderedWithResolver ()
+    {
+        RecordingInvoker invoker = getInstance(RecordingInvoker.class);
+        WriteBehindQueue queue = new WriteBehindQueue(invoker);
+        Name bob = new Name("bob");
+
+        SaveUnit unit = new SaveUnit(Maps.<String, Integer>newHashMap(),
+                                     Lists.<Integer>newArrayList(), "bob", 1, null);
+        unit.setOrderingKey(bob);
+        queue.post("bob", unit);
+        queue.flush(bob);
+
+        // bob's final save must run in order with the resolver that loads his data if he logs
+        // right back on, so it must land on the same thread
+        ClientResolver resolver = new ClientResolver();
+        invoker.postUnit(resolver);
+        assertEquals(Lists.newArrayList(unit, resolver), invoker.units);
+        assertEquals(2, invoker.keys.size());
+        assertEquals(invoker.keys.get(1), invoker.keys.get(0));
+    }
+
+    protected static Invoker createInvoker ()
+    {
+        Invoker invoker = new Invoker("test", new Executor() {
+            public void execute (Runnable r) {
+                r.run();
+            }
+        });
+        invoker.start();
+        return invoker;
+    }
+
+    /** Records the units posted to it, and their keys, rather than running them. */
+    protected static class RecordingInvoker extends PresentsInvoker
+    {
+        public List<Object> keys = Lists.newArrayList();
+        public List<Invoker.Unit> units = Lists.newArrayList();
+
+        @Inject public RecordingInvoker (
+            PresentsDObjectMgr omgr, Lifecycle cycle, ReportManager repmgr) {
+            super(omgr, cycle, repmgr);
+        }
+
+        @Override public void postUnit (Object key, Unit unit) {
+            keys.add(key);
+            units.add(unit);
+        }
+    }
+
+    protected static class SaveUnit extends PersistingUnit
+    {
+        public SaveUnit (Map<String, Integer> store, List<Integer> writes, String key, int value,
+                         InvocationService.ConfirmListener listener) {
+            super("save", listener);
+            _store = store;
+            _writes = writes;
+            _key = key;
+            _value = value;
+        }
+
+        @Override public void invokePersistent () {
+            synchronized (_store) {
+                _store.put(_key, _value);
+                _writes.add(_value);
+            }
+        }
+
+        protected Map<String, Integer> _store;
+        protected List<Integer> _writes;
+        protected String _key;
+        protected int _value;
+    }
+
+    protected static class Confirms implements InvocationService.ConfirmListener
+    {
+        public volatile int failed;
+
+        public Confirms (int count) {
+            _latch = new CountDownLatch(count);
+        }
+
+        public boolean await () throws InterruptedException {
+            return _latch.await(10, TimeUnit.SECONDS);
+        }
+
+        public void requestProcessed () {
+            _latch.countDown();
+        }
+
+        public void requestFailed (String cause) {
+            failed++;
+            _latch.countDown();
+        }
+
+        protected CountDownLatch _latch;
+    }
+}
@@ -0,0 +1,157 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.presents.server.net;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+
+import com.google.common.collect.Lists;
+
+import com.threerings.io.ObjectInputStream;
+import com.threerings.io.ObjectOutputStream;
+
+import com.threerings.presents.net.PublicKeyCredentials;
+import com.threerings.presents.net.SecureResponse;
+import com.threerings.presents.util.SecureUtil;
+
+/**
+ * Simulates a login storm of secure logons against a single I/O loop, first doing the RSA work
+ * directly on the loop (as we used to) and then via the {@link CryptoStage}, and reports how long
+ * the loop stalled in each case. Usage: <code>SecureLogonStorm [logons] [threads]</code>.
+ */
+public class SecureLogonStorm
+{
+    public static void main (String[] args)
+        throws Exception
+    {
+        int logons = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) :
+            Runtime.getRuntime().availableProcessors();
+
+        KeyPair pair = SecureUtil.genRSAKeyPair(1024);
+        List<byte[]> creds = Lists.newArrayList();
+        for (int ii = 0; ii < logons; ii++) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            ObjectOutputStream oout = new ObjectOutputStream(bout);
+            oout.writeObject(new PublicKeyCredentials(pair.getPublic()));
+            oout.flush();
+            creds.add(bout.toByteArray());
+        }
+
+        System.out.println("Inline: " + storm(receive(creds), pair.getPrivate(), null));
+        CryptoStage stage = new CryptoStage(threads, logons);
+        System.out.println("Staged: " + storm(receive(creds), pair.getPrivate(), stage));
+        stage.shutdown();
+        Thread.sleep(100); // let the workers record their final timings
+        StringBuilder report = new StringBuilder();
+        stage.appendReport(report, false);
+        System.out.print(report);
+    }
+
+    /**
+     * Unserializes the supplied credentials as the server would, so that their secrets must be
+     * decoded with our private key.
+     */
+    protected static List<PublicKeyCredentials> receive (List<byte[]> data)
+        throws Exception
+    {
+        List<PublicKeyCredentials> creds = Lists.newArrayList();
+        for (byte[] bytes : data) {
+            creds.add((PublicKeyCredentials)new ObjectInputStream(
+                new ByteArrayInputStream(bytes)).readObject());
+        }
+        return creds;
+    }
+
+    protected static String storm (
+        List<PublicKeyCredentials> creds, final PrivateKey key, final CryptoStage stage)
+        throws InterruptedException
+    {
+        final ExecutorService loop = Executors.newSingleThreadExecutor();
+        final CountDownLatch done = new CountDownLatch(creds.size());
+        final AtomicLong maxStall = new AtomicLong();
+
+        // ping the loop every millisecond and note how long it takes to get around to us
+        Thread pinger = new Thread() {
+            @Override public void run () {
+                while (done.getCount() > 0) {
+                    final long posted = System.nanoTime();
+                    loop.execute(new Runnable() {
+                        public void run () {
+                            long stall = System.nanoTime() - posted;
+                            if (stall > maxStall.get()) {
+                                maxStall.set(stall);
+                            }
+                        }
+                    });
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        };
+        pinger.start();
+
+        long start = System.nanoTime();
+        for (final PublicKeyCredentials pkcreds : creds) {
+            loop.execute(new Runnable() {
+                public void run () {
+                    final Runnable secure = new Runnable() {
+                        public void run () {
+                            new SecureResponse().createSecret(pkcreds, key, 16);
+                            loop.execute(new Runnable() {
+                                public void run () {
+                                    done.countDown();
+                                }
+                            });
+                        }
+                    };
+                    if (stage == null) {
+                        secure.run();
+                    } else if (!stage.execute(CryptoStage.Step.SECRET, secure)) {
+                        System.err.println("Crypto stage rejected logon.");
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        pinger.join();
+        loop.shutdown();
+        loop.awaitTermination(10, TimeUnit.SECONDS);
+
+        return creds.size() + " logons in " + (elapsed / 1000000) + "ms, " +
+            (maxStall.get() / 1000000) + "ms max loop stall";
+    }
+}
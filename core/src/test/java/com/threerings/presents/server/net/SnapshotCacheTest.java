@@ -0,0 +1,104 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.server.net;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.threerings.presents.data.TestObject;
+import com.threerings.presents.dobj.AttributeChangeListener;
+import com.threerings.presents.dobj.AttributeChangedEvent;
+import com.threerings.presents.net.ObjectResponse;
+import com.threerings.presents.server.PresentsDObjectMgr;
+import com.threerings.presents.server.PresentsTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link SnapshotCache}.
+ */
+public class SnapshotCacheTest extends PresentsTestBase
+{
+    @Test public void testSubscribeBeforeDispatch ()
+        throws Exception
+    {
+        final PresentsDObjectMgr omgr = getInstance(PresentsDObjectMgr.class);
+        final SnapshotCache cache = new SnapshotCache(10);
+        omgr.postRunnable(new Runnable() {
+            public void run () {
+                try {
+                    subscribeBeforeDispatch(omgr, cache);
+                } catch (Exception e) {
+                    _error = e;
+                    omgr.harshShutdown();
+                }
+            }
+        });
+        omgr.run();
+
+        if (_error != null) {
+            throw _error;
+        }
+        // the subscriber that got the stale snapshot must be forwarded the change
+        assertTrue("stale snapshot handed out", _staleFrames);
+        assertTrue("change forwarded", _changeEventId >= _fence);
+        assertTrue("snapshot invalidated", _invalidated);
+    }
+
+    protected void subscribeBeforeDispatch (
+        final PresentsDObjectMgr omgr, final SnapshotCache cache)
+        throws Exception
+    {
+        final TestObject obj = omgr.registerObject(new TestObject());
+        obj.addListener(new AttributeChangeListener() {
+            public void attributeChanged (AttributeChangedEvent event) {
+                if (TestObject.FOO.equals(event.getName())) {
+                    _changeEventId = event.eventId;
+                }
+            }
+        });
+
+        // the first subscriber encodes a snapshot
+        ObjectResponse<TestObject> rsp = new ObjectResponse<TestObject>(obj);
+        List<byte[]> frames = cache.createSnapshot(rsp, 1024, omgr.getNextEventId(false));
+
+        // the object changes, but the event has not yet been dispatched when another client
+        // subscribes and is handed the (now stale) snapshot
+        obj.setFoo(42);
+        ObjectResponse<TestObject> stale = new ObjectResponse<TestObject>(obj);
+        _staleFrames = (cache.getSnapshot(stale, 1024) == frames);
+        _fence = stale.getFirstEventId();
+
+        // once the change has been dispatched, the snapshot is discarded
+        omgr.postRunnable(new Runnable() {
+            public void run () {
+                ObjectResponse<TestObject> fresh = new ObjectResponse<TestObject>(obj);
+                _invalidated = (cache.getSnapshot(fresh, 1024) == null);
+                omgr.harshShutdown();
+            }
+        });
+    }
+
+    protected Exception _error;
+    protected boolean _staleFrames, _invalidated;
+    protected long _fence, _changeEventId = -1;
+}
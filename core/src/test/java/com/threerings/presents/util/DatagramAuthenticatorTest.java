@@ -0,0 +1,88 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link DatagramAuthenticator}.
+ */
+public class DatagramAuthenticatorTest
+{
+    @Test public void testSipHash ()
+    {
+        // the reference vectors from the SipHash paper: key 00..0f, messages 00..(n-1)
+        long k0 = 0x0706050403020100L, k1 = 0x0f0e0d0c0b0a0908L;
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        for (int ii = 0; ii < 64; ii++) {
+            buf.put(ii, (byte)ii);
+        }
+        assertEquals(0x726fdb47dd0e0e31L, DatagramAuthenticator.sipHash(k0, k1, buf, 0, 0));
+        assertEquals(0xa129ca6149be45e5L, DatagramAuthenticator.sipHash(k0, k1, buf, 0, 15));
+        assertEquals(0x958a324ceb064572L, DatagramAuthenticator.sipHash(k0, k1, buf, 0, 63));
+    }
+
+    @Test public void testMacs ()
+        throws Exception
+    {
+        byte[] secret = "sekrit".getBytes("UTF-8");
+        DatagramAuthenticator auth = new DatagramAuthenticator(secret);
+        for (boolean fast : new boolean[] { false, true }) {
+            ByteBuffer buf = createDatagram();
+            auth.sign(buf, fast);
+            assertEquals(0, buf.position());
+            assertTrue(auth.verify(buf, fast));
+            assertFalse(auth.verify(buf, !fast));
+
+            // tampering with the contents must be noticed
+            buf.put(20, (byte)(buf.get(20) + 1));
+            assertFalse(auth.verify(buf, fast));
+        }
+
+        // the original scheme must match what older clients compute
+        ByteBuffer buf = createDatagram();
+        auth.sign(buf, false);
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        ByteBuffer contents = createDatagram();
+        contents.position(DatagramAuthenticator.CONTENTS_OFFSET);
+        digest.update(contents);
+        byte[] hash = digest.digest(secret);
+        for (int ii = 0; ii < 8; ii++) {
+            assertEquals(hash[ii], buf.get(DatagramAuthenticator.MAC_OFFSET + ii));
+        }
+    }
+
+    protected static ByteBuffer createDatagram ()
+    {
+        ByteBuffer buf = ByteBuffer.allocate(45);
+        buf.putInt(42).putLong(0L);
+        while (buf.hasRemaining()) {
+            buf.put((byte)buf.position());
+        }
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,132 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import com.threerings.io.ByteBufferInputStream;
+import com.threerings.io.ByteBufferOutputStream;
+import com.threerings.io.UnreliableObjectInputStream;
+import com.threerings.io.UnreliableObjectOutputStream;
+
+import com.threerings.presents.dobj.AttributeChangedEvent;
+import com.threerings.presents.net.ForwardEventRequest;
+import com.threerings.presents.net.Message;
+
+/**
+ * Measures the rate at which small datagrams can be sequenced, authenticated, verified and read
+ * back, with the original and the fast MAC. The server periodically answers so that mappings are
+ * acknowledged as they would be in practice. Usage: <code>DatagramBenchmark [datagrams]</code>.
+ */
+public class DatagramBenchmark
+{
+    public static void main (String[] args)
+        throws Exception
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        for (int pass = 0; pass < 3; pass++) {
+            for (boolean fast : new boolean[] { false, true }) {
+                DatagramBenchmark bench = new DatagramBenchmark();
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                bench.run(count, fast);
+                long elapsed = System.nanoTime() - start;
+                allocated = allocatedBytes() - allocated;
+                System.out.println((fast ? "Fast MAC: " : "MD5 MAC:  ") +
+                                   (count * 1000000000L / elapsed) + " datagrams/s, " +
+                                   (allocated < 0 ? "?" : String.valueOf(allocated / count)) +
+                                   " bytes allocated per datagram");
+            }
+        }
+    }
+
+    public DatagramBenchmark ()
+        throws Exception
+    {
+        _auth = new DatagramAuthenticator("sekrit".getBytes("UTF-8"));
+        _upbuf = ByteBuffer.allocate(1024);
+        _downbuf = ByteBuffer.allocate(1024);
+        _cbout = new ByteBufferOutputStream();
+        _sbout = new ByteBufferOutputStream();
+        _cuout = new UnreliableObjectOutputStream(_cbout);
+        _client = new DatagramSequencer(
+            new UnreliableObjectInputStream(new ByteBufferInputStream(_downbuf)), _cuout);
+        _server = new DatagramSequencer(
+            new UnreliableObjectInputStream(new ByteBufferInputStream(_upbuf)),
+            new UnreliableObjectOutputStream(_sbout));
+    }
+
+    public void run (int count, boolean fast)
+        throws Exception
+    {
+        Message msg = new ForwardEventRequest(new AttributeChangedEvent(1, "location", 42));
+        for (int ii = 0; ii < count; ii++) {
+            // the client writes and signs an upstream datagram
+            _cbout.reset();
+            _cuout.writeInt(CONNECTION_ID | (fast ? DatagramAuthenticator.FAST_MAC_FLAG : 0));
+            _cuout.writeLong(0L);
+            _client.writeDatagram(msg);
+            ByteBuffer out = _cbout.flip();
+            _auth.sign(out, fast);
+
+            // the server verifies and reads it
+            _upbuf.clear();
+            _upbuf.put(out).flip();
+            _upbuf.getInt();
+            if (!_auth.verify(_upbuf, fast)) {
+                throw new IllegalStateException("Datagram failed hash check");
+            }
+            _upbuf.position(DatagramAuthenticator.CONTENTS_OFFSET);
+            if (_server.readDatagram() == null) {
+                throw new IllegalStateException("Datagram dropped");
+            }
+
+            // every so often the server sends one back, acknowledging the client's mappings
+            if (ii % 10 == 0) {
+                _sbout.reset();
+                _server.writeDatagram(msg);
+                _downbuf.clear();
+                _downbuf.put(_sbout.flip()).flip();
+                _client.readDatagram();
+            }
+        }
+    }
+
+    protected static long allocatedBytes ()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    protected DatagramAuthenticator _auth;
+    protected ByteBuffer _upbuf, _downbuf;
+    protected ByteBufferOutputStream _cbout, _sbout;
+    protected UnreliableObjectOutputStream _cuout;
+    protected DatagramSequencer _client, _server;
+
+    protected static final int CONNECTION_ID = 42;
+}
@@ -0,0 +1,77 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.util;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link TimingWheel} class.
+ */
+public class TimingWheelTest
+{
+    @Test public void testExpiry ()
+    {
+        TimingWheel<String> wheel = new TimingWheel<String>(100, 16, 1000);
+        wheel.schedule("a", 1250);
+        wheel.schedule("b", 1500);
+        wheel.schedule("c", 500); // already past, due on the next tick
+        assertEquals(3, wheel.size());
+
+        List<String> expired = Lists.newArrayList();
+        assertEquals(Lists.newArrayList("c"), wheel.advance(1150, expired));
+        expired.clear();
+        assertTrue(wheel.advance(1199, expired).isEmpty());
+        assertEquals(Lists.newArrayList("a"), wheel.advance(1200, expired));
+        expired.clear();
+        assertEquals(Lists.newArrayList("b"), wheel.advance(1500, expired));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test public void testBeyondSpan ()
+    {
+        // items beyond the span of the wheel come back early, at the end of a full turn
+        TimingWheel<String> wheel = new TimingWheel<String>(100, 4, 0);
+        wheel.schedule("far", 10000);
+        List<String> expired = Lists.newArrayList();
+        assertTrue(wheel.advance(300, expired).isEmpty());
+        assertEquals(Lists.newArrayList("far"), wheel.advance(400, expired));
+    }
+
+    @Test public void testFallBehind ()
+    {
+        // advancing by many turns at once still returns everything exactly once
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(10, 8, 0);
+        for (int ii = 0; ii < 8; ii++) {
+            wheel.schedule(ii, ii * 10);
+        }
+        List<Integer> expired = wheel.advance(100000, Lists.<Integer>newArrayList());
+        assertEquals(8, expired.size());
+        assertEquals(0, wheel.size());
+        assertTrue(wheel.advance(100010, Lists.<Integer>newArrayList()).isEmpty());
+    }
+}
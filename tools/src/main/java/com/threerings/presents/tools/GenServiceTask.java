@@ -186,6 +186,16 @@ public class GenServiceTask extends InvocationTask
         _verbose = verbose;
     }
 
+    /**
+     * Configures whether we generate a dispatcher for each service that has a provider interface.
+     * {@link com.threerings.presents.server.InvocationManager#registerProvider} uses a service's
+     * dispatcher if one exists, which calls the provider directly rather than via reflection.
+     */
+    public void setDispatchers (boolean dispatchers)
+    {
+        _dispatchers = dispatchers;
+    }
+
     /**
      * Configures the path to our ActionScript source files.
      */
@@ -220,9 +230,13 @@ public class GenServiceTask extends InvocationTask
 
         ServiceDescription desc = new ServiceDescription(service);
         generateMarshaller(source, desc);
-        // generateDispatcher(source, desc); // dispatchers are no longer needed
         if (!_providerless.contains(service.getSimpleName())) {
             generateProvider(source, desc);
+            // dispatchers are optional (services are dispatched reflectively without them), but
+            // spare the server the cost of reflection on every request
+            if (_dispatchers) {
+                generateDispatcher(source, desc);
+            }
         }
     }
 
@@ -660,6 +674,9 @@ public class GenServiceTask extends InvocationTask
     /** The path to our ActionScript source files. */
     protected File _asroot;
 
+    /** Whether to generate dispatchers. */
+    protected boolean _dispatchers;
+
     /** Services for which we should not generate provider interfaces. */
     protected Set<String> _providerless = Sets.newHashSet();
 